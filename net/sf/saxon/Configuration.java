@@ -9,6 +9,7 @@ package net.sf.saxon;
 
 import net.sf.saxon.event.*;
 import net.sf.saxon.expr.*;
+import net.sf.saxon.expr.compiler.CompilationMonitor;
 import net.sf.saxon.expr.accum.AccumulatorRegistry;
 import net.sf.saxon.expr.compat.TypeChecker10;
 import net.sf.saxon.expr.instruct.*;
@@ -68,6 +69,12 @@ import java.net.URL;
 import java.net.URLDecoder;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.IntPredicate;
 
 
@@ -193,6 +200,15 @@ public class Configuration implements SourceResolver, NotationSet {
     private Map<String, FunctionAnnotationHandler> functionAnnotationHandlers = new HashMap<>();
     protected int byteCodeThreshold = 100;
     private int regexBacktrackingLimit = 10000000;
+    private int maxParallelism = -1;
+    private ForkJoinPool workerPool;
+    private int resultDocumentThreads = -1;
+    private ExecutorService resultDocumentExecutor;
+    private int maxCompiledClasses = 10000;
+    private int ruleMatchCacheSize = 0;
+    private String streamability = "standard";
+    private AtomicInteger compiledClassCount = new AtomicInteger(0);
+    private CompilationMonitor compilationMonitor;
 
     private TreeStatistics treeStatistics = new TreeStatistics();
 
@@ -2402,7 +2418,12 @@ public class Configuration implements SourceResolver, NotationSet {
      */
 
     public void processResultDocument(ResultDocument instruction, Expression content, XPathContext context) throws XPathException {
-        instruction.processInstruction(content, context);
+        XPathContextMajor.ThreadManager manager = context.getThreadManager();
+        if (instruction.isAsynchronous() && manager instanceof ResultDocumentThreadManager) {
+            instruction.processAsynchronously(content, context, (ResultDocumentThreadManager) manager);
+        } else {
+            instruction.processInstruction(content, context);
+        }
     }
 
     /**
@@ -2419,6 +2440,115 @@ public class Configuration implements SourceResolver, NotationSet {
         return new ItemMappingIterator<>(base, action);
     }
 
+    /**
+     * Ask whether an operation that has a multi-threaded implementation in Saxon-HE may use it.
+     * This is the case if {@link Feature#ALLOW_MULTITHREADING} is set and tracing is not in use.
+     *
+     * @return true if multi-threaded evaluation is permitted
+     */
+
+    public boolean isMultiThreadingEnabled() {
+        return getBooleanProperty(Feature.ALLOW_MULTITHREADING) && getTraceListener() == null;
+    }
+
+    /**
+     * Get the maximum number of worker threads to be used for multi-threaded evaluation, as set using
+     * {@link Feature#MAX_PARALLELISM}
+     *
+     * @return the maximum number of worker threads; by default, the number of available processors
+     */
+
+    public int getMaxParallelism() {
+        return maxParallelism > 0 ? maxParallelism : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Get the pool of worker threads used for multi-threaded evaluation in Saxon-HE. The pool is shared by
+     * all queries and transformations using this configuration, and is created when it is first needed. Its
+     * threads are daemon threads, so the pool does not need to be shut down.
+     *
+     * @return the worker pool, whose parallelism is given by {@link #getMaxParallelism()}
+     */
+
+    public synchronized ForkJoinPool getWorkerPool() {
+        if (workerPool == null) {
+            workerPool = new ForkJoinPool(getMaxParallelism());
+        }
+        return workerPool;
+    }
+
+    /**
+     * Get the maximum number of threads used to write the results of <code>xsl:result-document</code>
+     * instructions, as set using {@link Feature#RESULT_DOCUMENT_THREADS}
+     *
+     * @return the maximum number of threads; by default, the number of available processors
+     */
+
+    public int getResultDocumentThreads() {
+        return resultDocumentThreads >= 0 ? resultDocumentThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Get the executor used to write the results of <code>xsl:result-document</code> instructions asynchronously.
+     * The executor is shared by all transformations using this configuration, and is created when it is first
+     * needed. It has at most {@link #getResultDocumentThreads()} threads; when they are all busy, a task is run in
+     * the thread that submits it. The threads are daemon threads, so the executor does not need to be shut down.
+     *
+     * @return the executor for asynchronous result documents
+     */
+
+    public synchronized ExecutorService getResultDocumentExecutor() {
+        if (resultDocumentExecutor == null) {
+            int threads = Math.max(getResultDocumentThreads(), 1);
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    threads, threads, 60L, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+                        Thread t = new Thread(r, "saxon-result-document");
+                        t.setDaemon(true);
+                        return t;
+                    }, new ThreadPoolExecutor.CallerRunsPolicy());
+            executor.allowCoreThreadTimeOut(true);
+            resultDocumentExecutor = executor;
+        }
+        return resultDocumentExecutor;
+    }
+
+    /**
+     * Get the maximum number of nodes for which the selected template rule is remembered in each mode,
+     * as set using {@link Feature#RULE_MATCH_CACHE_SIZE}
+     *
+     * @return the maximum number of cached rule selections per mode; zero if rule selection is not cached
+     */
+
+    public int getRuleMatchCacheSize() {
+        return ruleMatchCacheSize;
+    }
+
+    /**
+     * Reserve one of the compiled expressions permitted by {@link Feature#MAX_COMPILED_CLASSES}.
+     * This is called before an expression is compiled; once the limit has been reached, no further
+     * expressions are compiled, and they continue to be interpreted.
+     *
+     * @return true if the expression may be compiled; false if the limit has been reached
+     */
+
+    public boolean allocateCompiledClass() {
+        return compiledClassCount.incrementAndGet() <= maxCompiledClasses;
+    }
+
+    /**
+     * Get the object that records the compiled expressions for reporting, when
+     * {@link Feature#MONITOR_HOT_SPOT_BYTE_CODE} is set
+     *
+     * @return the compilation monitor, created if necessary
+     */
+
+    public synchronized CompilationMonitor getCompilationMonitor() {
+        if (compilationMonitor == null) {
+            compilationMonitor = new CompilationMonitor();
+        }
+        return compilationMonitor;
+    }
+
     /**
      * Determine whether brief progress messages and timing information will be output.
      *
@@ -3606,9 +3736,25 @@ public class Configuration implements SourceResolver, NotationSet {
         throw new XPathException("Streaming is only available in Saxon-EE");
     }
 
+    /**
+     * Make an expression implementing the xsl:source-document instruction. In Saxon-HE, a streamable
+     * instruction is implemented using burst-mode streaming when the body takes a suitable form,
+     * and by building the document in memory otherwise.
+     *
+     * @param hrefExp     the expression that computes the URI of the source document
+     * @param body        the body of the instruction
+     * @param streaming   true if the instruction specifies <code>streamable="yes"</code>
+     * @param options     the options for parsing the source document
+     * @param packageData information about the containing package
+     * @param location    the location of the instruction
+     * @param rsc         the retained static context
+     * @return the compiled instruction
+     * @throws XPathException if the instruction cannot be compiled
+     */
+
     public Expression makeStreamInstruction(Expression hrefExp, Expression body, boolean streaming, ParseOptions options,
                                             PackageData packageData, Location location, RetainedStaticContext rsc) throws XPathException {
-        SourceDocument si = new SourceDocument(hrefExp, body, options);
+        SourceDocument si = streaming ? new BurstSourceDocument(hrefExp, body, options) : new SourceDocument(hrefExp, body, options);
         si.setLocation(location);
         si.setRetainedStaticContext(rsc);
         return si;
@@ -4651,6 +4797,22 @@ public class Configuration implements SourceResolver, NotationSet {
                     regexBacktrackingLimit = requireInteger(name, value);
                     break;
 
+                case FeatureCode.MAX_PARALLELISM:
+                    maxParallelism = requireInteger(name, value);
+                    break;
+
+                case FeatureCode.MAX_COMPILED_CLASSES:
+                    maxCompiledClasses = requireInteger(name, value);
+                    break;
+
+                case FeatureCode.RULE_MATCH_CACHE_SIZE:
+                    ruleMatchCacheSize = requireInteger(name, value);
+                    break;
+
+                case FeatureCode.RESULT_DOCUMENT_THREADS:
+                    resultDocumentThreads = requireInteger(name, value);
+                    break;
+
                 case FeatureCode.SERIALIZER_FACTORY_CLASS:
                     setSerializerFactory(
                             (SerializerFactory) instantiateClassName(name, value, SerializerFactory.class));
@@ -4686,6 +4848,16 @@ public class Configuration implements SourceResolver, NotationSet {
                     }
                     break;
 
+                case FeatureCode.STREAMABILITY: {
+                    String s = requireString(name, value);
+                    if (!(s.equals("off") || s.equals("standard"))) {
+                        throw new IllegalArgumentException(
+                                "Unrecognized value STREAMABILITY = '" + value + "': must be 'off' or 'standard'");
+                    }
+                    streamability = s;
+                    break;
+                }
+
                 case FeatureCode.STRIP_WHITESPACE: {
                     String s = requireString(name, value);
                     switch (s) {
@@ -5102,10 +5274,13 @@ public class Configuration implements SourceResolver, NotationSet {
         booleanFeatures.add(Feature.GENERATE_BYTE_CODE);
         booleanFeatures.add(Feature.IGNORE_SAX_SOURCE_PARSER);
         booleanFeatures.add(Feature.IMPLICIT_SCHEMA_IMPORTS);
+        booleanFeatures.add(Feature.INCREMENTAL_TREE_INDEXING);
         booleanFeatures.add(Feature.MARK_DEFAULTED_ATTRIBUTES);
         booleanFeatures.add(Feature.MONITOR_HOT_SPOT_BYTE_CODE);
         booleanFeatures.add(Feature.MULTIPLE_SCHEMA_IMPORTS);
+        booleanFeatures.add(Feature.PARALLEL_MAPPING);
         booleanFeatures.add(Feature.PRE_EVALUATE_DOC_FUNCTION);
+        booleanFeatures.add(Feature.PRE_EVALUATE_GLOBAL_VARIABLES);
         booleanFeatures.add(Feature.PREFER_JAXP_PARSER);
         booleanFeatures.add(Feature.RETAIN_DTD_ATTRIBUTE_TYPES);
         booleanFeatures.add(Feature.STABLE_COLLECTION_URI);
@@ -5260,6 +5435,18 @@ public class Configuration implements SourceResolver, NotationSet {
             case FeatureCode.REGEX_BACKTRACKING_LIMIT:
                 return (T) Integer.valueOf(regexBacktrackingLimit);
 
+            case FeatureCode.MAX_PARALLELISM:
+                return (T) Integer.valueOf(getMaxParallelism());
+
+            case FeatureCode.MAX_COMPILED_CLASSES:
+                return (T) Integer.valueOf(maxCompiledClasses);
+
+            case FeatureCode.RULE_MATCH_CACHE_SIZE:
+                return (T) Integer.valueOf(ruleMatchCacheSize);
+
+            case FeatureCode.RESULT_DOCUMENT_THREADS:
+                return (T) Integer.valueOf(getResultDocumentThreads());
+
             case FeatureCode.SCHEMA_VALIDATION:
                 return (T) Integer.valueOf(getSchemaValidationMode());
 
@@ -5275,6 +5462,9 @@ public class Configuration implements SourceResolver, NotationSet {
             case FeatureCode.SOURCE_RESOLVER_CLASS:
                 return (T) getSourceResolver().getClass().getName();
 
+            case FeatureCode.STREAMABILITY:
+                return (T) streamability;
+
             case FeatureCode.STRIP_WHITESPACE:
                 SpaceStrippingRule rule = getParseOptions().getSpaceStrippingRule();
                 if (rule == AllElementsSpaceStrippingRule.getInstance()) {
@@ -5415,9 +5605,10 @@ public class Configuration implements SourceResolver, NotationSet {
 
     /**
      * Ask whether bytecode should be generated. The default setting
-     * is true in Saxon Enterprise Edition and false in all other cases. Setting the option to
-     * true has no effect if Saxon-EE is not available (but if it is set to true, this method will
-     * return true). Setting the option to false in Saxon-EE
+     * is true in Saxon Enterprise Edition and false in all other cases. If Saxon-EE is not available,
+     * setting the option to true causes frequently-evaluated expressions to be compiled into Java
+     * closures rather than bytecode (see {@link net.sf.saxon.expr.compiler.ExpressionCompiler}).
+     * Setting the option to false in Saxon-EE
      * is permitted if for some reason bytecode generation is to be suppressed (one possible reason
      * is to improve compilation performance at the expense of evaluation performance).
      *
@@ -5426,7 +5617,7 @@ public class Configuration implements SourceResolver, NotationSet {
      */
 
     public boolean isGenerateByteCode(int hostLanguage) {
-        return false;
+        return getBooleanProperty(Feature.GENERATE_BYTE_CODE);
     }
 
     /**
@@ -5515,10 +5706,14 @@ public class Configuration implements SourceResolver, NotationSet {
     /**
      * Make a ThreadManager for asynchronous xsl:result-document instructions
      *
-     * @return a new ThreadManager (or null in the case of Saxon-HE)
+     * @return a new ThreadManager, or null if multi-threading is not enabled, or if
+     * {@link Feature#RESULT_DOCUMENT_THREADS} is set to zero or one
      */
 
     public XPathContextMajor.ThreadManager makeThreadManager() {
+        if (isMultiThreadingEnabled() && getResultDocumentThreads() > 1) {
+            return new ResultDocumentThreadManager(this);
+        }
         return null;
     }
 
@@ -5545,13 +5740,25 @@ public class Configuration implements SourceResolver, NotationSet {
     }
 
     /**
-     * Generate a report on byte code instrumentation to a specified file
+     * Generate a report on byte code instrumentation to a specified file. In Saxon-HE the report
+     * lists the expressions that have been compiled while {@link Feature#MONITOR_HOT_SPOT_BYTE_CODE}
+     * was set; if there are none, no report is written.
      *
      * @param fileName the specified file name
      */
 
     public void createByteCodeReport(String fileName) {
-        // no action in Saxon-HE
+        CompilationMonitor monitor;
+        synchronized (this) {
+            monitor = compilationMonitor;
+        }
+        if (monitor != null) {
+            try {
+                monitor.createReport(this, fileName);
+            } catch (XPathException e) {
+                getLogger().error(e.getMessage());
+            }
+        }
     }
 
     /**
@@ -44,10 +44,10 @@ import javax.xml.transform.URIResolver;
 import javax.xml.transform.sax.SAXSource;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.function.Function;
 
 import static net.sf.saxon.om.SequenceIterator.GROUNDED;
@@ -1386,24 +1386,58 @@ public class Controller implements ContextOriginator {
 
 
     /**
-     * Pre-evaluate global variables (when debugging/tracing).
+     * Pre-evaluate global variables (when debugging/tracing, or when {@link Feature#PRE_EVALUATE_GLOBAL_VARIABLES}
+     * is set). If multi-threading is enabled and {@link Feature#PRE_EVALUATE_GLOBAL_VARIABLES} is set, the variables
+     * are evaluated in parallel using the worker pool of the configuration; each worker thread uses its own
+     * dynamic context, and a variable needed by several threads is evaluated only once.
      * <p>This method is intended for internal use.</p>
      *
      * @param context the dynamic context for evaluating the global variables
      */
 
     public void preEvaluateGlobals(XPathContext context) throws XPathException {
+        List<GlobalVariable> vars = new ArrayList<>();
         for (PackageData pack : getExecutable().getPackages()) {
             for (GlobalVariable var : pack.getGlobalVariableList()) {
                 if (!var.isUnused()) {
-                    try {
-                        var.evaluateVariable(context, var.getDeclaringComponent());
-                    } catch (XPathException err) {
-                        // Don't report an exception unless the variable is actually evaluated
-                        getBindery(var.getPackageData()).setGlobalVariable(var, new Bindery.FailureValue(err));
-                    }
+                    vars.add(var);
+                }
+            }
+        }
+        Configuration config = getConfiguration();
+        if (traceListener == null && vars.size() > 1 && config.isMultiThreadingEnabled() &&
+                config.getMaxParallelism() > 1 && config.getBooleanProperty(Feature.PRE_EVALUATE_GLOBAL_VARIABLES)) {
+            List<Callable<Object>> tasks = new ArrayList<>(vars.size());
+            for (GlobalVariable var : vars) {
+                tasks.add(() -> {
+                    preEvaluateGlobal(var, newXPathContext());
+                    return null;
+                });
+            }
+            for (Future<Object> f : config.getWorkerPool().invokeAll(tasks)) {
+                try {
+                    f.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new XPathException(e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof XPathException ? (XPathException) cause : new XPathException(cause);
                 }
             }
+        } else {
+            for (GlobalVariable var : vars) {
+                preEvaluateGlobal(var, context);
+            }
+        }
+    }
+
+    private void preEvaluateGlobal(GlobalVariable var, XPathContext context) {
+        try {
+            var.evaluateVariable(context, var.getDeclaringComponent());
+        } catch (XPathException err) {
+            // Don't report an exception unless the variable is actually evaluated
+            getBindery(var.getPackageData()).setGlobalVariable(var, new Bindery.FailureValue(err));
         }
     }
 
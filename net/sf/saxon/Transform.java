@@ -20,9 +20,11 @@ import net.sf.saxon.trace.TimingTraceListener;
 import net.sf.saxon.trans.CommandLineOptions;
 import net.sf.saxon.trans.CompilerInfo;
 import net.sf.saxon.trans.LicenseException;
+import net.sf.saxon.trans.SimpleMode;
 import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.trans.packages.PackageDetails;
 import net.sf.saxon.trans.packages.PackageLibrary;
+import net.sf.saxon.trans.rules.RuleMatchCache;
 import net.sf.saxon.value.DateTimeValue;
 import org.xml.sax.InputSource;
 import org.xml.sax.XMLReader;
@@ -1292,6 +1294,12 @@ public class Transform {
             if (showTime) {
                 System.err.println("Execution time: " + CommandLineOptions.showExecutionTimeNano(endTime - startTime));
                 System.err.println("Memory used: " + CommandLineOptions.showMemoryUsed());
+                for (Map.Entry<SimpleMode, RuleMatchCache> entry :
+                        transformer.getUnderlyingController().getRuleMatchCaches().entrySet()) {
+                    RuleMatchCache cache = entry.getValue();
+                    System.err.println(entry.getKey().getModeTitle() + ": rule match cache hits " + cache.getHits() +
+                                               ", misses " + cache.getMisses());
+                }
                 if (repeat > 1) {
                     System.err.println("-------------------------------");
                     Runtime.getRuntime().gc();
@@ -368,7 +368,7 @@ public class EarlyEvaluationContext implements XPathContext {
      * @param isTunnel    True if a tunnel parameter is required, else false  @return true if a parameter of this name was supplied, false if not
      */
 
-    public int useLocalParameter(StructuredQName parameterId, int slotNumber, boolean isTunnel) {
+    public int useLocalParameter(int parameterId, int slotNumber, boolean isTunnel) {
         return ParameterSet.NOT_SUPPLIED;
     }
 
@@ -39,6 +39,7 @@ public final class FilterExpression extends BinaryExpression implements ContextS
     private boolean filterIsSingletonBoolean;   // true if the filter expression always returns a single boolean
     private boolean filterIsIndependent;        // true if the filter expression does not
     // depend on the context item or position. (It may depend on last()).
+    private boolean filterIsIndexed;            // true if the filter is evaluated using an index on the base variable
     public static final int FILTERED = 10000;
 
     public final static OperandRole FILTER_PREDICATE =
@@ -190,6 +191,28 @@ public final class FilterExpression extends BinaryExpression implements ContextS
         return filterIsIndependent;
     }
 
+    /**
+     * Say whether the filter is to be evaluated using an index built over the value of the base
+     * expression, which must be a reference to an indexed variable
+     *
+     * @param indexed true if the filter is to be evaluated using an index
+     */
+
+    public void setFilterIsIndexed(boolean indexed) {
+        filterIsIndexed = indexed;
+    }
+
+    /**
+     * Ask whether the filter is to be evaluated using an index built over the value of the base
+     * expression
+     *
+     * @return true if the filter is to be evaluated using an index
+     */
+
+    public boolean isFilterIsIndexed() {
+        return filterIsIndexed;
+    }
+
     /**
      * Simplify an expression
      *
@@ -1118,6 +1141,15 @@ public final class FilterExpression extends BinaryExpression implements ContextS
             }
         }
 
+        // use an index over the value of the base variable, if there is one
+
+        if (filterIsIndexed) {
+            SequenceIterator<?> indexed = FilterIndex.iterate(this, context);
+            if (indexed != null) {
+                return indexed;
+            }
+        }
+
         // get an iterator over the base nodes
 
         SequenceIterator<?> baseIter = getBase().iterate(context);
@@ -1152,6 +1184,7 @@ public final class FilterExpression extends BinaryExpression implements ContextS
         fe.filterIsIndependent = filterIsIndependent;
         fe.filterIsPositional = filterIsPositional;
         fe.filterIsSingletonBoolean = filterIsSingletonBoolean;
+        fe.filterIsIndexed = filterIsIndexed;
         return fe;
     }
 
@@ -1201,6 +1234,9 @@ public final class FilterExpression extends BinaryExpression implements ContextS
         if (filterIsSingletonBoolean) {
             flags += "b";
         }
+        if (filterIsIndexed) {
+            flags += "x";
+        }
         out.emitAttribute("flags", flags);
         getBase().export(out);
         getFilter().export(out);
@@ -1211,6 +1247,7 @@ public final class FilterExpression extends BinaryExpression implements ContextS
         filterIsIndependent = flags.contains("i");
         filterIsPositional = flags.contains("p");
         filterIsSingletonBoolean = flags.contains("b");
+        filterIsIndexed = flags.contains("x");
     }
 
 
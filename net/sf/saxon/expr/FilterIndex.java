@@ -0,0 +1,303 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018 Saxonica Limited.
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.expr;
+
+import net.sf.saxon.expr.parser.Token;
+import net.sf.saxon.lib.ConversionRules;
+import net.sf.saxon.om.GroundedValue;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.Sequence;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.iter.EmptyIterator;
+import net.sf.saxon.tree.iter.ListIterator;
+import net.sf.saxon.tree.iter.ManualIterator;
+import net.sf.saxon.value.*;
+import net.sf.saxon.z.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hash index supporting the evaluation of a filter expression of the form <code>$var[K = V]</code>,
+ * where <code>$var</code> is an indexed variable, the key expression <code>K</code> depends on the context
+ * item (but not on the context position or size, or on local variables), and the probe expression
+ * <code>V</code> does not depend on the focus. The index is built over the value of the variable the first
+ * time the filter expression is evaluated against that value, and is reused for subsequent evaluations, so
+ * that a filter expression inside a loop no longer needs a sequential search of the whole value on each
+ * iteration.
+ *
+ * <p>The index identifies candidates rather than results. Key values are entered under their string value
+ * (for strings, URIs, and untyped atomic values) and under their numeric value (for numbers, and for untyped
+ * atomic values that can be converted to a number). Under the codepoint collation, every item whose key is
+ * equal to a probe value appears among the candidates for that probe; the original predicate is then applied
+ * to each candidate, so that the result is exactly the same as a sequential search. Items whose keys are of
+ * some other type are included among the candidates for every probe.</p>
+ *
+ * <p>If the index cannot be built (for example because evaluation of a key fails, or a key is an
+ * <code>xs:float</code>), or if a probe value is of a type that the index cannot handle, the filter is
+ * evaluated by a sequential search in the usual way, so that errors are reported as they would be without
+ * indexing.</p>
+ */
+
+public final class FilterIndex {
+
+    private Map<String, MonotonicIntSet> strings = new HashMap<>();
+    private Map<Double, MonotonicIntSet> numbers = new HashMap<>();
+    private MonotonicIntSet others = new MonotonicIntSet();
+    private boolean stringKeys = false;     // true if some key can only be compared as a string
+    private boolean numericKeys = false;    // true if some key is numeric
+
+    private FilterIndex() {
+    }
+
+    /**
+     * Ask whether an operand of an equality comparison is suitable for use as the key of an index.
+     * This is the case if it depends on the context item, but not on the context position or size,
+     * the XSLT context, local variables, or user-defined functions
+     *
+     * @param exp the operand of the comparison
+     * @return true if the value of the operand can be computed once for each item in the indexed value
+     */
+
+    public static boolean isIndexableKey(Expression exp) {
+        int d = exp.getDependencies();
+        return (d & StaticProperty.DEPENDS_ON_FOCUS) != 0 &&
+                (d & (StaticProperty.DEPENDS_ON_POSITION |
+                        StaticProperty.DEPENDS_ON_LAST |
+                        StaticProperty.DEPENDS_ON_XSLT_CONTEXT |
+                        StaticProperty.DEPENDS_ON_LOCAL_VARIABLES |
+                        StaticProperty.DEPENDS_ON_USER_FUNCTIONS)) == 0 &&
+                (exp.getSpecialProperties() & StaticProperty.HAS_SIDE_EFFECTS) == 0;
+    }
+
+    /**
+     * Ask whether an operand of an equality comparison is suitable for use as the probe
+     * value of an index. This is the case if it does not depend on the focus
+     *
+     * @param exp the operand of the comparison
+     * @return true if the operand can be evaluated outside the filter predicate
+     */
+
+    public static boolean isIndexableProbe(Expression exp) {
+        return (exp.getDependencies() & StaticProperty.DEPENDS_ON_FOCUS) == 0;
+    }
+
+    /**
+     * Evaluate a filter expression using an index, if possible
+     *
+     * @param filter  the filter expression, which must have been marked as indexed
+     * @param context the dynamic evaluation context
+     * @return an iterator over the result of the filter expression, or null if the index cannot be
+     * used, in which case the caller must evaluate the filter expression by other means
+     * @throws XPathException if a dynamic error occurs
+     */
+
+    public static SequenceIterator<?> iterate(FilterExpression filter, XPathContext context) throws XPathException {
+        Expression predicate = filter.getFilter();
+        if (!(filter.getBase() instanceof VariableReference) ||
+                !(predicate instanceof GeneralComparison || predicate instanceof ValueComparison) ||
+                ((ComparisonExpression) predicate).getSingletonOperator() != Token.FEQ) {
+            return null;
+        }
+        ComparisonExpression comparison = (ComparisonExpression) predicate;
+        Expression key;
+        Expression probe;
+        if (isIndexableKey(comparison.getLhsExpression()) && isIndexableProbe(comparison.getRhsExpression())) {
+            key = comparison.getLhsExpression();
+            probe = comparison.getRhsExpression();
+        } else if (isIndexableKey(comparison.getRhsExpression()) && isIndexableProbe(comparison.getLhsExpression())) {
+            key = comparison.getRhsExpression();
+            probe = comparison.getLhsExpression();
+        } else {
+            return null;
+        }
+        boolean valueComparison = predicate instanceof ValueComparison;
+
+        Sequence<?> value = ((VariableReference) filter.getBase()).evaluateVariable(context);
+        if (!(value instanceof IndexedValue)) {
+            return null;
+        }
+        IndexedValue<?> indexedValue = (IndexedValue<?>) value;
+        FilterIndex index = indexedValue.obtainIndex(filter, v -> build(v, key, valueComparison, context));
+        if (index == null) {
+            return null;
+        }
+        IntSet positions = index.find(probe.iterate(context), valueComparison, context.getConfiguration().getConversionRules());
+        if (positions == null) {
+            return null;
+        }
+        if (positions.isEmpty()) {
+            return EmptyIterator.emptyIterator();
+        }
+        List<Item<?>> candidates = new ArrayList<>(positions.size());
+        IntIterator it = positions.iterator();
+        while (it.hasNext()) {
+            candidates.add(indexedValue.itemAt(it.next()));
+        }
+        return new FilterIterator.NonNumeric<>(new ListIterator<>(candidates), predicate, context);
+    }
+
+    /**
+     * Build an index over the items in a value
+     *
+     * @param value           the value to be indexed
+     * @param key             the expression that computes the keys of each item
+     * @param valueComparison true if the predicate is a value comparison, in which case each item must
+     *                        have at most one key value, and untyped atomic keys are compared as strings
+     * @param context         the dynamic evaluation context
+     * @return the index, or null if no index can be built
+     */
+
+    private static FilterIndex build(GroundedValue<?> value, Expression key, boolean valueComparison, XPathContext context) {
+        FilterIndex index = new FilterIndex();
+        ConversionRules rules = context.getConfiguration().getConversionRules();
+        XPathContextMinor c2 = context.newMinorContext();
+        ManualIterator<Item<?>> focus = new ManualIterator<>();
+        c2.setCurrentIterator(focus);
+        int n = value.getLength();
+        try {
+            for (int i = 0; i < n; i++) {
+                focus.setContextItem(value.itemAt(i));
+                focus.setPosition(i + 1);
+                SequenceIterator<?> keys = key.iterate(c2);
+                int count = 0;
+                Item<?> k;
+                while ((k = keys.next()) != null) {
+                    if (++count > 1 && valueComparison) {
+                        return null;
+                    }
+                    if (!(k instanceof AtomicValue) || !index.add((AtomicValue) k, i, valueComparison, rules)) {
+                        return null;
+                    }
+                }
+            }
+        } catch (XPathException e) {
+            return null;
+        }
+        return index;
+    }
+
+    private boolean add(AtomicValue key, int position, boolean valueComparison, ConversionRules rules) {
+        if (key instanceof StringValue) {
+            addEntry(strings, key.getStringValue(), position);
+            if (key instanceof UntypedAtomicValue && !valueComparison) {
+                try {
+                    double d = rules.getStringToDoubleConverter().stringToNumber(key.getStringValueCS());
+                    addEntry(numbers, normalize(d), position);
+                } catch (NumberFormatException e) {
+                    // comparing this key with a number is an error
+                    stringKeys = true;
+                }
+            } else {
+                stringKeys = true;
+            }
+        } else if (key instanceof NumericValue) {
+            if (key instanceof FloatValue) {
+                // comparisons between xs:float and xs:decimal are not done in double precision
+                return false;
+            }
+            addEntry(numbers, normalize(((NumericValue) key).getDoubleValue()), position);
+            numericKeys = true;
+        } else {
+            others.add(position);
+        }
+        return true;
+    }
+
+    private static <K> void addEntry(Map<K, MonotonicIntSet> map, K key, int position) {
+        MonotonicIntSet entry = map.get(key);
+        if (entry == null) {
+            entry = new MonotonicIntSet();
+            map.put(key, entry);
+        }
+        entry.add(position);
+    }
+
+    private static Double normalize(double d) {
+        // positive and negative zero compare equal
+        return d == 0 ? 0.0d : d;
+    }
+
+    /**
+     * Find the positions of the candidate items for a set of probe values
+     *
+     * @param probes          the probe values
+     * @param valueComparison true if the predicate is a value comparison
+     * @param rules           the conversion rules
+     * @return the positions of the candidate items, in ascending order, or null if the index cannot
+     * be used for these probe values. This is the case if a probe value is of a type not handled by the
+     * index, or if comparing it with some key would raise a type error, which a sequential search must report
+     * @throws XPathException if evaluating the probe values fails
+     */
+
+    private IntSet find(SequenceIterator<?> probes, boolean valueComparison, ConversionRules rules) throws XPathException {
+        List<IntSet> hits = new ArrayList<>();
+        if (!others.isEmpty()) {
+            hits.add(others);
+        }
+        int count = 0;
+        Item<?> p;
+        while ((p = probes.next()) != null) {
+            if (++count > 1 && valueComparison) {
+                probes.close();
+                return null;
+            }
+            if (p instanceof UntypedAtomicValue && !valueComparison) {
+                addHit(hits, strings.get(p.getStringValue()));
+                if (numericKeys) {
+                    try {
+                        double d = rules.getStringToDoubleConverter().stringToNumber(p.getStringValueCS());
+                        addHit(hits, numbers.get(normalize(d)));
+                    } catch (NumberFormatException e) {
+                        probes.close();
+                        return null;
+                    }
+                }
+            } else if (p instanceof StringValue && !numericKeys) {
+                addHit(hits, strings.get(p.getStringValue()));
+            } else if (p instanceof NumericValue && !(p instanceof FloatValue) && !stringKeys) {
+                addHit(hits, numbers.get(normalize(((NumericValue) p).getDoubleValue())));
+            } else {
+                probes.close();
+                return null;
+            }
+        }
+        if (hits.isEmpty()) {
+            return IntEmptySet.getInstance();
+        } else if (hits.size() == 1) {
+            return hits.get(0);
+        } else {
+            IntHashSet union = new IntHashSet();
+            for (IntSet hit : hits) {
+                IntIterator it = hit.iterator();
+                while (it.hasNext()) {
+                    union.add(it.next());
+                }
+            }
+            return new IntArraySet(union);
+        }
+    }
+
+    private static void addHit(List<IntSet> hits, IntSet hit) {
+        if (hit != null && !containsSame(hits, hit)) {
+            hits.add(hit);
+        }
+    }
+
+    private static boolean containsSame(List<IntSet> hits, IntSet hit) {
+        for (IntSet h : hits) {
+            if (h == hit) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
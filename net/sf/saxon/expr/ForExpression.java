@@ -12,6 +12,7 @@ import net.sf.saxon.expr.flwor.OuterForExpression;
 import net.sf.saxon.expr.instruct.Choose;
 import net.sf.saxon.expr.parser.*;
 import net.sf.saxon.lib.Feature;
+import net.sf.saxon.om.GroundedValue;
 import net.sf.saxon.om.Item;
 import net.sf.saxon.om.SequenceIterator;
 import net.sf.saxon.om.StructuredQName;
@@ -39,6 +40,8 @@ import java.util.List;
 public class ForExpression extends Assignation {
 
     int actionCardinality = StaticProperty.ALLOWS_MANY;
+    private boolean parallelEvaluationRequested = false;
+    private boolean parallelizable = false;
 
     /**
      * Create a "for" expression (for $x at $p in SEQUENCE return ACTION)
@@ -97,9 +100,33 @@ public class ForExpression extends Assignation {
         }
         getActionOp().typeCheck(visitor, contextInfo);
         actionCardinality = getAction().getCardinality();
+        parallelizable = ParallelMappingIterator.isParallelizable(
+                getAction(), parallelEvaluationRequested, visitor.getConfiguration());
         return this;
     }
 
+    /**
+     * Request that the expression be evaluated in parallel if possible, regardless of the setting of
+     * {@link Feature#PARALLEL_MAPPING}. This is used for an expression enclosed in the XQuery pragma
+     * <code>(# saxon:parallel #)</code>.
+     *
+     * @param requested true if parallel evaluation is requested
+     */
+
+    public void setParallelEvaluationRequested(boolean requested) {
+        parallelEvaluationRequested = requested;
+    }
+
+    /**
+     * Ask whether parallel evaluation of this expression has been specifically requested
+     *
+     * @return true if parallel evaluation has been requested
+     */
+
+    public boolean isParallelEvaluationRequested() {
+        return parallelEvaluationRequested;
+    }
+
     /**
      * Get the cardinality of the range variable
      *
@@ -208,6 +235,7 @@ public class ForExpression extends Assignation {
             return let.typeCheck(visitor, contextItemType).optimize(visitor, contextItemType);
         }
 
+        parallelizable = ParallelMappingIterator.isParallelizable(getAction(), parallelEvaluationRequested, config);
         return this;
     }
 
@@ -317,6 +345,8 @@ public class ForExpression extends Assignation {
         forExp.setAction(newAction);
         forExp.variableName = variableName;
         forExp.slotNumber = slotNumber;
+        forExp.parallelEvaluationRequested = parallelEvaluationRequested;
+        forExp.parallelizable = parallelizable;
         // TODO: should be able to do this by adding a mapping to rebindings as above. But -s:app-Walmsley -t:d1e41271 crashes.
         ExpressionTool.rebindVariableReferences(newAction, this, forExp);
         return forExp;
@@ -381,7 +411,18 @@ public class ForExpression extends Assignation {
         // expression, wrapped in a MappingAction object that is responsible also for
         // setting the range variable at each step.
 
+        // If parallel evaluation is enabled, and the input is a large grounded sequence, the return expression
+        // is evaluated for different chunks of the input in different threads.
+
         SequenceIterator<?> base = getSequence().iterate(context);
+        if ((base.getProperties() & SequenceIterator.GROUNDED) != 0 &&
+                ParallelMappingIterator.isEnabled(parallelEvaluationRequested, context)) {
+            GroundedValue<?> input = base.materialize();
+            if (parallelizable && input.getLength() >= ParallelMappingIterator.MIN_PARALLEL_SIZE) {
+                return new ParallelMappingIterator(input, getAction(), getLocalSlotNumber(), context);
+            }
+            base = input.iterate();
+        }
         MappingAction map = new MappingAction(context, getLocalSlotNumber(), getAction());
         switch (actionCardinality) {
             case StaticProperty.EXACTLY_ONE:
@@ -0,0 +1,351 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018 Saxonica Limited.
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.expr;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.Controller;
+import net.sf.saxon.expr.instruct.Message;
+import net.sf.saxon.expr.instruct.MultithreadedForEach;
+import net.sf.saxon.expr.instruct.UserFunction;
+import net.sf.saxon.expr.parser.ExpressionTool;
+import net.sf.saxon.functions.ApplyFn;
+import net.sf.saxon.functions.SystemFunction;
+import net.sf.saxon.functions.Trace;
+import net.sf.saxon.lib.Feature;
+import net.sf.saxon.om.GroundedValue;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.trans.UncheckedXPathException;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.iter.ManualIterator;
+import net.sf.saxon.type.FunctionItemType;
+import net.sf.saxon.type.ItemType;
+import net.sf.saxon.value.Cardinality;
+import net.sf.saxon.value.SequenceType;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * An iterator that evaluates a <code>for</code> expression, or an expression using the simple mapping
+ * operator <code>!</code>, by applying the return expression to the items of the input sequence in parallel.
+ * It is used when {@link Feature#PARALLEL_MAPPING} is set (or, in XQuery, when the expression is enclosed in the
+ * pragma <code>(# saxon:parallel #)</code>), multi-threading is enabled, and the input sequence is grounded
+ * and contains at least {@link #MIN_PARALLEL_SIZE} items.
+ *
+ * <p>The input sequence is divided into contiguous chunks, each of which is evaluated as a separate task in the
+ * worker pool of the configuration, using its own copy of the dynamic context. The results of the chunks are
+ * delivered in input order, so the result is the same as for sequential evaluation. Chunks are started as the
+ * result is consumed, a few at a time, so that an expression whose result is only partly read does not
+ * evaluate the whole input. If evaluation fails for any item, the results for the preceding items are
+ * delivered before the error is reported, as they would be if the expression were evaluated sequentially.</p>
+ */
+
+public class ParallelMappingIterator implements SequenceIterator<Item<?>> {
+
+    /**
+     * The minimum number of items in the input sequence for the expression to be evaluated in parallel
+     */
+
+    public final static int MIN_PARALLEL_SIZE = 256;
+
+    /**
+     * The minimum number of items evaluated by each task
+     */
+
+    private final static int MIN_CHUNK_SIZE = 64;
+
+    /**
+     * The number of chunks into which the input is divided for each worker thread
+     */
+
+    private final static int CHUNKS_PER_THREAD = 4;
+
+    /**
+     * The result of evaluating one chunk: the items delivered, followed (if evaluation failed) by an error
+     */
+
+    private static class Chunk {
+        List<Item<?>> items;
+        XPathException error;
+    }
+
+    private final GroundedValue<?> input;
+    private final Expression action;
+    private final int slotNumber;
+    private final XPathContextMajor snapshot;
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+    private final int window;
+    private final Deque<Future<Chunk>> pending;
+    private int nextStart = 0;
+    private Chunk current;
+    private int index;
+
+    /**
+     * Create an iterator that evaluates a mapping expression in parallel
+     *
+     * @param input      the input sequence, which must be grounded
+     * @param action     the expression to be evaluated for each item in the input sequence
+     * @param slotNumber the slot number of the range variable to which each input item is bound; or -1
+     *                   if the input item is to be the context item (as with the <code>!</code> operator)
+     * @param context    the dynamic context of the mapping expression, which must be an {@link XPathContextMinor}
+     * @throws XPathException if the dynamic context cannot be copied
+     */
+
+    public ParallelMappingIterator(GroundedValue<?> input, Expression action, int slotNumber, XPathContext context)
+            throws XPathException {
+        this.input = input;
+        this.action = action;
+        this.slotNumber = slotNumber;
+        // The context is copied now, because the caller's stack frame and focus may change while the result is read.
+        // Each task takes a further copy, so that it can bind the range variable or the focus independently.
+        XPathContextMinor c = (XPathContextMinor) context;
+        boolean needsLast = slotNumber >= 0 && (action.getDependencies() & StaticProperty.DEPENDS_ON_LAST) != 0;
+        this.snapshot = XPathContextMajor.newThreadContext(c, needsLast);
+        // The copies take the place of the context of the mapping expression in diagnostics, such as the
+        // stack trace reported with an error
+        XPathContext major = c;
+        while (!(major instanceof XPathContextMajor)) {
+            major = major.getCaller();
+        }
+        snapshot.setOrigin(((XPathContextMajor) major).getOrigin());
+        snapshot.setCaller(major.getCaller());
+        Configuration config = context.getConfiguration();
+        this.pool = config.getWorkerPool();
+        int threads = config.getMaxParallelism();
+        this.chunkSize = Math.max(MIN_CHUNK_SIZE, input.getLength() / (threads * CHUNKS_PER_THREAD));
+        this.window = threads * 2;
+        this.pending = new ArrayDeque<>(window);
+    }
+
+    /**
+     * Ask whether an expression is suitable for evaluation in parallel, as the return expression of a
+     * <code>for</code> expression or the right-hand operand of the <code>!</code> operator. This is the case
+     * if it is known to create no new nodes, to have no side-effects, and not to depend on variables that can
+     * be assigned or on the current group or current regex match. Calls on <code>fn:trace()</code> and
+     * <code>xsl:message</code> instructions are also excluded, so that their output is written in the same order
+     * as for sequential evaluation. Since a call on a user-defined function does not carry the side-effects of
+     * the function body, the bodies of all the functions called, directly or indirectly, are examined in the
+     * same way. Dynamic function calls, calls on higher-order functions, and expressions that return function
+     * items other than maps and arrays are excluded, because the function that will be called cannot be
+     * determined statically.
+     *
+     * <p>The result depends only on the expression tree, so callers should compute it at compile time
+     * and retain it, rather than calling this method each time the expression is evaluated.</p>
+     *
+     * @param action the expression to be evaluated for each item in the input sequence
+     * @return true if the expression may be evaluated for different items in different threads
+     */
+
+    public static boolean isParallelizable(Expression action) {
+        int p = action.getSpecialProperties();
+        int d = action.getDependencies();
+        if ((p & (StaticProperty.NO_NODES_NEWLY_CREATED | StaticProperty.HAS_SIDE_EFFECTS)) !=
+                StaticProperty.NO_NODES_NEWLY_CREATED ||
+                (d & (StaticProperty.DEPENDS_ON_ASSIGNABLE_GLOBALS |
+                        StaticProperty.DEPENDS_ON_CURRENT_GROUP | StaticProperty.DEPENDS_ON_REGEX_GROUP)) != 0) {
+            return false;
+        }
+        List<UserFunction> called = new ArrayList<>();
+        List<Expression> bodies = new ArrayList<>();
+        bodies.add(action);
+        for (int i = 0; i < bodies.size(); i++) {
+            boolean unsafe = ExpressionTool.contains(bodies.get(i), false, e -> {
+                if ((e.getSpecialProperties() & StaticProperty.HAS_SIDE_EFFECTS) != 0 ||
+                        e instanceof Message || e.isCallOn(Trace.class) || callsUnknownFunction(e)) {
+                    return true;
+                }
+                if (e instanceof UserFunctionCall) {
+                    UserFunction function = ((UserFunctionCall) e).getFunction();
+                    if (function == null || function.getBody() == null) {
+                        return true;
+                    }
+                    if (!called.contains(function)) {
+                        called.add(function);
+                        bodies.add(function.getBody());
+                    }
+                }
+                return false;
+            });
+            if (unsafe) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Ask, at compile time, whether a mapping expression may be evaluated in parallel. This is the case if
+     * parallel evaluation can be enabled in the configuration, and the return expression satisfies the
+     * conditions of {@link #isParallelizable(Expression)}. The expression is not examined if parallel evaluation
+     * cannot be enabled, which avoids the cost of searching the bodies of the functions that it calls.
+     *
+     * @param action    the expression to be evaluated for each item in the input sequence
+     * @param requested true if parallel evaluation has been requested for the particular expression,
+     *                  for example using the XQuery pragma <code>saxon:parallel</code>
+     * @param config    the Saxon configuration
+     * @return true if the expression may be evaluated for different items in different threads
+     */
+
+    public static boolean isParallelizable(Expression action, boolean requested, Configuration config) {
+        return (requested || config.getBooleanProperty(Feature.PARALLEL_MAPPING)) &&
+                config.isMultiThreadingEnabled() && isParallelizable(action);
+    }
+
+    /**
+     * Ask whether an expression may call a function that cannot be identified statically: that is, whether it
+     * is a dynamic function call, a call on a higher-order function, or an expression (such as a function
+     * literal or a partial function application) that returns function items other than maps and arrays
+     *
+     * @param e the expression to be tested (not including its subexpressions)
+     * @return true if the expression may create or call a function item whose body is not known
+     */
+
+    private static boolean callsUnknownFunction(Expression e) {
+        if (isFunctionItemType(e.getItemType())) {
+            return true;
+        }
+        if (e instanceof SystemFunctionCall) {
+            SystemFunction target = ((SystemFunctionCall) e).getTargetFunction();
+            if (target instanceof ApplyFn) {
+                return true;
+            }
+            for (int i = 0; i < target.getArity(); i++) {
+                SequenceType required = target.getRequiredType(i);
+                if (required != null && isFunctionItemType(required.getPrimaryType())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isFunctionItemType(ItemType type) {
+        return type instanceof FunctionItemType &&
+                !((FunctionItemType) type).isMapType() && !((FunctionItemType) type).isArrayType();
+    }
+
+    /**
+     * Ask whether parallel evaluation of mapping expressions is enabled in a dynamic context
+     *
+     * @param requested true if parallel evaluation has been requested for the particular expression,
+     *                  for example using the XQuery pragma <code>saxon:parallel</code>
+     * @param context   the dynamic context
+     * @return true if parallel evaluation has been requested (either for this expression or by setting
+     * {@link Feature#PARALLEL_MAPPING}), multi-threading is enabled, and execution is not being traced.
+     * Parallel evaluation is never used when the expression is evaluated at compile time.
+     */
+
+    public static boolean isEnabled(boolean requested, XPathContext context) {
+        if (!(context instanceof XPathContextMinor)) {
+            return false;
+        }
+        Configuration config = context.getConfiguration();
+        Controller controller = context.getController();
+        return (requested || config.getBooleanProperty(Feature.PARALLEL_MAPPING)) &&
+                config.isMultiThreadingEnabled() && config.getMaxParallelism() > 1 &&
+                (controller == null || !controller.isTracing());
+    }
+
+    public Item<?> next() throws XPathException {
+        while (true) {
+            if (current != null) {
+                if (index < current.items.size()) {
+                    return current.items.get(index++);
+                }
+                XPathException error = current.error;
+                current = null;
+                if (error != null) {
+                    close();
+                    throw error;
+                }
+            }
+            while (pending.size() < window && nextStart < input.getLength()) {
+                startChunk();
+            }
+            if (pending.isEmpty()) {
+                return null;
+            }
+            current = MultithreadedForEach.waitFor(pending.removeFirst());
+            index = 0;
+        }
+    }
+
+    /**
+     * Start a task to evaluate the next chunk of the input sequence
+     */
+
+    private void startChunk() {
+        final int from = nextStart;
+        final int to = Math.min(input.getLength(), from + chunkSize);
+        nextStart = to;
+        final XPathContextMajor c = XPathContextMajor.newThreadContext(snapshot);
+        c.setOrigin(snapshot.getOrigin());
+        c.setCaller(snapshot.getCaller());
+        pending.addLast(pool.submit(() -> evaluateChunk(from, to, c)));
+    }
+
+    /**
+     * Evaluate the mapping expression for a contiguous range of items in the input sequence
+     *
+     * @param from    the position of the first item to be processed (zero-based)
+     * @param to      the position after the last item to be processed (zero-based)
+     * @param context the dynamic context to be used; the range variable or focus is changed to each item in turn
+     * @return the items delivered, together with the error that caused evaluation to fail, if any
+     */
+
+    private Chunk evaluateChunk(int from, int to, XPathContextMajor context) {
+        Chunk chunk = new Chunk();
+        chunk.items = new ArrayList<>(to - from);
+        ManualIterator<Item<?>> focus = null;
+        if (slotNumber < 0) {
+            final int size = input.getLength();
+            focus = new ManualIterator<>();
+            focus.setLastPositionFinder(() -> size);
+            context.setCurrentIterator(focus);
+        }
+        boolean singleton = !Cardinality.allowsMany(action.getCardinality());
+        try {
+            for (int i = from; i < to; i++) {
+                Item<?> item = input.itemAt(i);
+                if (focus == null) {
+                    context.setLocalVariable(slotNumber, item);
+                } else {
+                    focus.setContextItem(item);
+                    focus.setPosition(i + 1);
+                }
+                if (singleton) {
+                    Item<?> result = action.evaluateItem(context);
+                    if (result != null) {
+                        chunk.items.add(result);
+                    }
+                } else {
+                    action.iterate(context).forEachOrFail(chunk.items::add);
+                }
+            }
+        } catch (XPathException e) {
+            chunk.error = e;
+        } catch (UncheckedXPathException e) {
+            chunk.error = e.getXPathException();
+        }
+        return chunk;
+    }
+
+    public void close() {
+        for (Future<Chunk> task : pending) {
+            task.cancel(false);
+        }
+        pending.clear();
+        nextStart = input.getLength();
+    }
+}
@@ -501,7 +501,7 @@ public class SlashExpression extends BinaryExpression
         int lh = getLhsExpression().getCost() + 1;
         int rh = getRhsExpression().getCost();
         double product = (double) lh  + factor * (double) rh;
-        return product > 1e7 ? 10000000 : Math.max(lh + factor * rh, 10000000);
+        return product > 1e7 ? 10000000 : Math.min(lh + factor * rh, 10000000);
     }
 
     public Expression tryToMakeSorted(ExpressionVisitor visitor, ContextItemStaticInfo contextItemType) throws XPathException {
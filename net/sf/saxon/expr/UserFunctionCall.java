@@ -413,6 +413,18 @@ public class UserFunctionCall extends FunctionCall implements UserFunctionResolv
         return e;
     }
 
+    /**
+     * Return the estimated cost of evaluating the function call, excluding the cost of evaluating
+     * its arguments. Calls on small non-recursive functions are normally inlined, so the calls that
+     * remain are assumed to be expensive.
+     *
+     * @return the estimated cost
+     */
+    @Override
+    public int getNetCost() {
+        return 20;
+    }
+
     /**
      * Reset the static properties of the expression to -1, so that they have to be recomputed
      * next time they are used.
@@ -512,6 +524,17 @@ public class UserFunctionCall extends FunctionCall implements UserFunctionResolv
      * @throws XPathException if dynamic errors occur
      */
     private Sequence<?> callFunction(XPathContext context) throws XPathException {
+        if (!isTailCall() && context instanceof XPathContextMinor) {
+            UserFunction targetFunction = getReusableTarget(context);
+            if (targetFunction != null) {
+                XPathContextMajor c2 = prepareReusableContext((XPathContextMinor) context, targetFunction);
+                Sequence<?> result = invoke(targetFunction, c2, null, false);
+                // The context is released only if the call succeeds: an exception may retain a reference to it
+                ((XPathContextMinor) context).releaseReusableContext(c2);
+                return result;
+            }
+        }
+
         UserFunction targetFunction;
         Sequence<?>[] actualArgs = evaluateArguments(context);
         XPathContextMajor c2;
@@ -537,8 +560,40 @@ public class UserFunctionCall extends FunctionCall implements UserFunctionResolv
             c2.setOrigin(this);
         }
 
+        return invoke(targetFunction, c2, actualArgs, false);
+    }
+
+    /**
+     * Invoke the target function, in a context that has been created for the call, and translate
+     * the exceptions that it may throw. This is used both when the result is returned and when it is
+     * written to the current receiver, and both when a new context has been created and when the
+     * context of a previous call is being reused.
+     *
+     * @param targetFunction the function to be called
+     * @param c2             the new context for evaluating the function body
+     * @param actualArgs     the values of the arguments; or null if they have already been placed in the
+     *                       stack frame of the context (see {@link #prepareReusableContext})
+     * @param push           true if the result is to be written to the receiver of the context (in which case
+     *                       the method returns null), false if it is to be returned
+     * @return the result of the function, or null if <code>push</code> is true
+     * @throws XPathException if a dynamic error occurs
+     */
+
+    private Sequence<?> invoke(UserFunction targetFunction, XPathContextMajor c2,
+                               Sequence<?>[] actualArgs, boolean push) throws XPathException {
         try {
-            return targetFunction.call(c2, actualArgs);
+            if (push) {
+                if (actualArgs == null) {
+                    targetFunction.getBody().process(c2);
+                } else {
+                    targetFunction.process(actualArgs, c2);
+                }
+                return null;
+            } else if (actualArgs == null) {
+                return targetFunction.callInPreparedContext(c2);
+            } else {
+                return targetFunction.call(c2, actualArgs);
+            }
         } catch (UncheckedXPathException e) {
             XPathException xe = e.getXPathException();
             xe.maybeSetLocation(getLocation());
@@ -580,6 +635,16 @@ public class UserFunctionCall extends FunctionCall implements UserFunctionResolv
 
     public void process(XPathContext context) throws XPathException {
 
+        if (!isTailCall() && context instanceof XPathContextMinor) {
+            UserFunction targetFunction = getReusableTarget(context);
+            if (targetFunction != null) {
+                XPathContextMajor c2 = prepareReusableContext((XPathContextMinor) context, targetFunction);
+                invoke(targetFunction, c2, null, true);
+                ((XPathContextMinor) context).releaseReusableContext(c2);
+                return;
+            }
+        }
+
         Sequence<?>[] actualArgs = evaluateArguments(context);
 
         if (isTailCall()) {
@@ -596,14 +661,61 @@ public class UserFunctionCall extends FunctionCall implements UserFunctionResolv
             XPathContextMajor c2 = targetFunction.makeNewContext(context, this);
             c2.setCurrentComponent(target);
             c2.setOrigin(this);
-            targetFunction.process(actualArgs, c2);
+            invoke(targetFunction, c2, actualArgs, true);
         } else {
             XPathContextMajor c2 = function.makeNewContext(context, this);
             c2.setOrigin(this);
-            function.process(actualArgs, c2);
+            invoke(function, c2, actualArgs, true);
         }
     }
 
+    /**
+     * Get the function to be called, if it is a function for which the context of a previous
+     * call can be reused (see {@link UserFunction#isContextReusable()})
+     *
+     * @param context the dynamic context of the caller
+     * @return the target function, or null if a new context must be created for the call
+     */
+
+    private UserFunction getReusableTarget(XPathContext context) {
+        UserFunction targetFunction;
+        if (bindingSlot >= 0) {
+            Component target = context.getTargetComponent(bindingSlot);
+            if (target.isHiddenAbstractComponent() || !(target.getActor() instanceof UserFunction)) {
+                return null;
+            }
+            targetFunction = (UserFunction) target.getActor();
+        } else {
+            targetFunction = function;
+        }
+        return targetFunction.isContextReusable() ? targetFunction : null;
+    }
+
+    /**
+     * Obtain a context for calling a function, reusing the context of a previous call from the
+     * same calling context if possible, and evaluate the arguments directly into its stack frame
+     *
+     * @param context        the dynamic context of the caller
+     * @param targetFunction the function being called
+     * @return the context for evaluating the function body
+     * @throws XPathException if a dynamic error occurs evaluating the arguments
+     */
+
+    private XPathContextMajor prepareReusableContext(
+            XPathContextMinor context, UserFunction targetFunction) throws XPathException {
+        XPathContextMajor c2 = context.obtainReusableContext();
+        Sequence<?>[] slots = c2.openReusableStackFrame(targetFunction.getStackFrameMap());
+        evaluateArguments(context, false, slots);
+        c2.setReceiver(context.getReceiver());
+        c2.setTemporaryOutputState(StandardNames.XSL_FUNCTION);
+        c2.setCurrentOutputUri(null);
+        c2.setCurrentComponent(bindingSlot >= 0 ?
+                                       context.getTargetComponent(bindingSlot) :
+                                       targetFunction.getDeclaringComponent());
+        c2.setOrigin(this);
+        return c2;
+    }
+
     public Component getTargetComponent(XPathContext context) {
         if (bindingSlot == -1) {
             // fallback for non-package code
@@ -623,8 +735,13 @@ public class UserFunctionCall extends FunctionCall implements UserFunctionResolv
 
 
     public Sequence<?>[] evaluateArguments(XPathContext c, boolean streamed) throws XPathException {
+        Sequence<?>[] actualArgs = SequenceTool.makeSequenceArray(getArity());
+        evaluateArguments(c, streamed, actualArgs);
+        return actualArgs;
+    }
+
+    private void evaluateArguments(XPathContext c, boolean streamed, Sequence<?>[] actualArgs) throws XPathException {
         int numArgs = getArity();
-        Sequence<?>[] actualArgs = SequenceTool.makeSequenceArray(numArgs);
         synchronized(this) {
             if (argumentEvaluators == null) {
                 // should have been done at compile time
@@ -642,7 +759,6 @@ public class UserFunctionCall extends FunctionCall implements UserFunctionResolv
                 actualArgs[i] = EmptySequence.getInstance();
             }
         }
-        return actualArgs;
     }
 
     /**
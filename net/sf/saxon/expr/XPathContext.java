@@ -209,14 +209,33 @@ public interface XPathContext {
      * Otherwise the method returns false, so the xsl:param default will be evaluated
      *
      *
-     * @param parameterId Globally-unique parameter identifier
+     * @param parameterId Globally-unique parameter identifier, as returned by
+     *                    {@link net.sf.saxon.expr.instruct.ParameterSet#getParameterId}
      * @param slotNumber  Slot number of the parameter within the stack frame of the called template
      * @param isTunnel    True if a tunnel parameter is required, else false
      * @return ParameterSet.NOT_SUPPLIED, ParameterSet.SUPPLIED, or ParameterSet.SUPPLIED_AND_CHECKED
      */
 
     int useLocalParameter(
-            StructuredQName parameterId, int slotNumber, boolean isTunnel) throws XPathException;
+            int parameterId, int slotNumber, boolean isTunnel) throws XPathException;
+
+    /**
+     * Use local parameter. This is called when a local xsl:param element is processed.
+     * If a parameter of the relevant name was supplied, it is bound to the xsl:param element.
+     * Otherwise the method returns false, so the xsl:param default will be evaluated
+     *
+     * @param parameterId The name of the parameter
+     * @param slotNumber  Slot number of the parameter within the stack frame of the called template
+     * @param isTunnel    True if a tunnel parameter is required, else false
+     * @return ParameterSet.NOT_SUPPLIED, ParameterSet.SUPPLIED, or ParameterSet.SUPPLIED_AND_CHECKED
+     * @deprecated since 9.9.1.6: use {@link #useLocalParameter(int, int, boolean)}
+     */
+
+    @Deprecated
+    default int useLocalParameter(
+            StructuredQName parameterId, int slotNumber, boolean isTunnel) throws XPathException {
+        return useLocalParameter(ParameterSet.getParameterId(parameterId), slotNumber, isTunnel);
+    }
 
     /**
      * Get a reference to the local stack frame for variables. Note that it's
@@ -22,6 +22,7 @@ import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.trans.XsltController;
 import net.sf.saxon.trans.rules.Rule;
 import net.sf.saxon.trans.rules.RuleManager;
+import net.sf.saxon.tree.iter.ManualIterator;
 import net.sf.saxon.tree.iter.SingletonIterator;
 import net.sf.saxon.tree.iter.UnfailingIterator;
 
@@ -182,6 +183,33 @@ public class XPathContextMajor extends XPathContextMinor {
         return c;
     }
 
+    /**
+     * Make a copy of the supplied context for use in a new thread, with a focus that is independent
+     * of the focus of the supplied context. This is needed when the calling thread may continue to
+     * advance its own focus (for example in an xsl:for-each loop) while the new thread is running.
+     * The context item and position are copied; the context size is computed, in the calling thread,
+     * only if it is required.
+     *
+     * @param prev      the context to be copied
+     * @param needsLast true if the new thread may need the value of last()
+     * @return the copy of the context
+     * @throws XPathException if an error occurs computing the context size
+     */
+
+    public static XPathContextMajor newThreadContext(XPathContextMinor prev, boolean needsLast) throws XPathException {
+        XPathContextMajor c = newThreadContext(prev);
+        FocusIterator<?> focus = prev.getCurrentIterator();
+        if (focus != null && focus.current() != null) {
+            ManualIterator<Item<?>> frozen = new ManualIterator<>(focus.current(), focus.position());
+            if (needsLast) {
+                final int last = prev.getLast();
+                frozen.setLastPositionFinder(() -> last);
+            }
+            c.currentIterator = frozen;
+        }
+        return c;
+    }
+
     /**
      * The ThreadManager is used to manage asynchronous execution of xsl:result-document instructions in Saxon-EE.
      * This is a dummy implementation for Saxon-HE and Saxon-PE; it is subclassed in Saxon-EE
@@ -312,6 +340,59 @@ public class XPathContextMajor extends XPathContextMinor {
         }
     }
 
+    /**
+     * Set up a stack frame for a function call in a context that is being reused (see
+     * {@link XPathContextMinor#obtainReusableContext()}). If the stack frame of the previous call
+     * using this context was for the same function, its slots are reused; otherwise a new stack frame is
+     * allocated.
+     *
+     * @param map the SlotManager for the new stack frame
+     * @return the array of slots, in which the caller should place the arguments of the function call
+     */
+
+    public Sequence<?>[] openReusableStackFrame(SlotManager map) {
+        StackFrame frame = stackFrame;
+        if (frame == StackFrame.EMPTY || frame.map != map || frame.dynamicStack != null ||
+                frame.slots.length != map.getNumberOfVariables()) {
+            frame = new StackFrame(map, new Sequence[map.getNumberOfVariables()]);
+            stackFrame = frame;
+        }
+        return frame.slots;
+    }
+
+    /**
+     * Clear the values held in this context so that it can be reused for another function call: see
+     * {@link XPathContextMinor#releaseReusableContext}. The stack frame is retained, but the
+     * variables it holds are cleared.
+     */
+
+    void resetForReuse() {
+        currentIterator = null;
+        last = null;
+        currentReceiver = null;
+        caller = null;
+        currentDestination = "";
+        temporaryOutputState = 0;
+        Sequence<?>[] slots = stackFrame.slots;
+        if (slots.length > 0) {
+            Arrays.fill(slots, null);
+        }
+        localParameters = null;
+        tunnelParameters = null;
+        tailCallInfo = null;
+        currentMode = null;
+        currentTemplate = null;
+        currentGroupIterator = null;
+        currentMergeGroupIterator = null;
+        currentRegexIterator = null;
+        origin = controller;
+        threadManager = null;
+        uriResolver = null;
+        errorListener = null;
+        currentComponent = null;
+        currentException = null;
+    }
+
     /**
      * Reset the stack frame variable map, while reusing the StackFrame object itself. This
      * is done on a tail call to a different function
@@ -549,20 +630,20 @@ public class XPathContextMajor extends XPathContextMinor {
      * If a parameter of the relevant name was supplied, it is bound to the xsl:param element.
      * Otherwise the method returns false, so the xsl:param default will be evaluated
      *
-     * @param paramName the name of the parameter
+     * @param parameterId the identifier of the parameter, as returned by {@link ParameterSet#getParameterId}
      * @param slotNumber the slot number of the parameter on the callee's stack frame
      * @param isTunnel    True if a tunnel parameter is required, else false
      * @return ParameterSet.NOT_SUPPLIED, ParameterSet.SUPPLIED, or ParameterSet.SUPPLIED_AND_CHECKED
      */
 
     public int useLocalParameter(
-            StructuredQName paramName, int slotNumber, boolean isTunnel) throws XPathException {
+            int parameterId, int slotNumber, boolean isTunnel) throws XPathException {
 
         ParameterSet params = isTunnel ? getTunnelParameters() : localParameters;
         if (params == null) {
             return ParameterSet.NOT_SUPPLIED;
         }
-        int index = params.getIndex(paramName);
+        int index = params.getIndex(parameterId);
         if (index < 0) {
             return ParameterSet.NOT_SUPPLIED;
         }
@@ -43,6 +43,7 @@ public class XPathContextMinor implements XPathContext {
     protected StackFrame stackFrame;
     protected String currentDestination = "";
     protected int temporaryOutputState = 0;
+    private XPathContextMajor reusableContext;
 
 
     /**
@@ -98,6 +99,42 @@ public class XPathContextMinor implements XPathContext {
         return c;
     }
 
+    /**
+     * Get a clean context for a function call, as with {@link #newCleanContext()}, reusing the context
+     * released by a previous call from this context if there is one. The context must be released using
+     * {@link #releaseReusableContext} when the call has finished; this must only be done if no reference to
+     * the context, or to its stack frame, can survive the call.
+     *
+     * <p>Since a context released in this way retains the context it made available for its own calls,
+     * the contexts form a stack, and a sequence of nested calls (for example a recursive function) reuses the
+     * same context objects each time it is repeated.</p>
+     *
+     * @return a clean context, whose caller is this context
+     */
+
+    public XPathContextMajor obtainReusableContext() {
+        XPathContextMajor c = reusableContext;
+        if (c == null) {
+            return newCleanContext();
+        }
+        reusableContext = null;
+        c.setCaller(this);
+        return c;
+    }
+
+    /**
+     * Release a context obtained using {@link #obtainReusableContext()}, so that it can be used for a
+     * subsequent call. The values held in the context, including the variables on its stack frame, are
+     * cleared, so that they can be garbage-collected.
+     *
+     * @param context the context to be released
+     */
+
+    public void releaseReusableContext(XPathContextMajor context) {
+        context.resetForReuse();
+        reusableContext = context;
+    }
+
     /**
      * Get the local parameters for the current template call.
      *
@@ -428,7 +465,7 @@ public class XPathContextMinor implements XPathContext {
      */
 
     public int useLocalParameter(
-            StructuredQName parameterId, int slotNumber, boolean isTunnel) throws XPathException {
+            int parameterId, int slotNumber, boolean isTunnel) throws XPathException {
         return getCaller().useLocalParameter(parameterId, slotNumber, isTunnel);
     }
 
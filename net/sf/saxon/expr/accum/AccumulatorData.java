@@ -15,6 +15,7 @@ import net.sf.saxon.expr.instruct.SlotManager;
 import net.sf.saxon.expr.parser.Evaluator;
 import net.sf.saxon.om.*;
 import net.sf.saxon.trans.Err;
+import net.sf.saxon.trans.SimpleMode;
 import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.trans.rules.Rule;
 import net.sf.saxon.tree.iter.AxisIterator;
@@ -32,6 +33,8 @@ public class AccumulatorData implements IAccumulatorData {
     private Accumulator accumulator;
     private List<DataPoint> values = new ArrayList<>();
     private boolean building = false;
+    private XPathContextMajor incrementalContext;
+    private Sequence<?> incrementalValue;
 
     public AccumulatorData(Accumulator acc) {
         this.accumulator = acc;
@@ -58,6 +61,14 @@ public class AccumulatorData implements IAccumulatorData {
 
     public void buildIndex(NodeInfo doc, XPathContext context) throws XPathException {
         //System.err.println("Building accData " + this);
+        XPathContextMajor c2 = startBuilding(doc, context);
+        Sequence<?> val = values.get(0).value;
+        val = visit(doc, val, c2);
+        finishBuilding(doc, val);
+        //diagnosticPrint();
+    }
+
+    private XPathContextMajor startBuilding(NodeInfo doc, XPathContext context) throws XPathException {
         if (building) {
             throw new XPathException("Accumulator " + accumulator.getAccumulatorName().getDisplayName() +
                 " requires access to its own value", "XTDE3400");
@@ -71,11 +82,54 @@ public class AccumulatorData implements IAccumulatorData {
         c2.setCurrentIterator(new ManualIterator<>(doc));
         Sequence<?> val = initialValue.iterate(c2).materialize();
         values.add(new DataPoint(new Visit(doc, false), val));
-        val = visit(doc, val, c2);
+        return c2;
+    }
+
+    private void finishBuilding(NodeInfo doc, Sequence<?> val) {
         values.add(new DataPoint(new Visit(doc, true), val));
         ((ArrayList) values).trimToSize();
         building = false;
-        //diagnosticPrint();
+    }
+
+    /**
+     * Start building the data structure incrementally, while the document is itself under construction.
+     * This method evaluates the initial value of the accumulator; the caller must then call
+     * {@link #visitIncrementally(NodeInfo, boolean)} for the pre-descent and post-descent visits to
+     * each node in document order, starting and ending with the document node, and finally
+     * {@link #endIncrementalBuild(NodeInfo)}.
+     *
+     * @param doc     the root of the tree for which the accumulator is to be evaluated
+     * @param context the dynamic evaluation context
+     * @throws XPathException if a dynamic error occurs while evaluating the initial value
+     */
+
+    public void startIncrementalBuild(NodeInfo doc, XPathContext context) throws XPathException {
+        incrementalContext = startBuilding(doc, context);
+        incrementalValue = values.get(0).value;
+    }
+
+    /**
+     * Evaluate the accumulator for one visit to a node, during incremental construction
+     *
+     * @param node          the node being visited
+     * @param isPostDescent false for the pre-descent visit to a node, true for the post-descent visit
+     * @throws XPathException if a dynamic error occurs while evaluating the accumulator
+     */
+
+    public void visitIncrementally(NodeInfo node, boolean isPostDescent) throws XPathException {
+        incrementalValue = step(node, isPostDescent, incrementalValue, incrementalContext);
+    }
+
+    /**
+     * Complete the incremental construction of the data structure
+     *
+     * @param doc the root of the tree for which the accumulator has been evaluated
+     */
+
+    public void endIncrementalBuild(NodeInfo doc) {
+        finishBuilding(doc, incrementalValue);
+        incrementalContext = null;
+        incrementalValue = null;
     }
 
     /*
@@ -101,27 +155,36 @@ public class AccumulatorData implements IAccumulatorData {
 
     @SuppressWarnings({"InfiniteRecursion"}) //Spurious warning from IntelliJ
     private Sequence<?> visit(NodeInfo node, Sequence<?> value, XPathContext context) throws XPathException {
-        ((ManualIterator)context.getCurrentIterator()).setContextItem(node);
-        Rule rule = accumulator.getPreDescentRules().getRule(node, context);
-        if (rule != null) {
-            value = processRule(rule, node, false, value, context);
-            if (accumulator.isTracing()) {
-                context.getConfiguration().getLogger().info(accumulator.getAccumulatorName().getDisplayName() +
-                                                                    " BEFORE " + Navigator.getPath(node) + ": " + Err.depictSequence(value));
-            }
-        }
+        value = step(node, false, value, context);
         AxisIterator iter = node.iterateAxis(AxisInfo.CHILD);
         NodeInfo kid;
         while ((kid = iter.next()) != null) {
             value = visit(kid, value, context);
         }
+        return step(node, true, value, context);
+    }
+
+    /**
+     * Evaluate the accumulator for either the pre-descent or post-descent visit to a node
+     *
+     * @param node          the node being visited
+     * @param isPostDescent false for the pre-descent visit to a node, true for the post-descent visit
+     * @param value         the value of the accumulator before this visit
+     * @param context       the dynamic evaluation context
+     * @return the value of the accumulator after this visit
+     * @throws XPathException if a dynamic evaluation error occurs
+     */
+
+    private Sequence<?> step(NodeInfo node, boolean isPostDescent, Sequence<?> value, XPathContext context) throws XPathException {
         ((ManualIterator) context.getCurrentIterator()).setContextItem(node);
-        rule = accumulator.getPostDescentRules().getRule(node, context);
+        SimpleMode rules = isPostDescent ? accumulator.getPostDescentRules() : accumulator.getPreDescentRules();
+        Rule rule = rules.getRule(node, context);
         if (rule != null) {
-            value = processRule(rule, node, true, value, context);
+            value = processRule(rule, node, isPostDescent, value, context);
             if (accumulator.isTracing()) {
                 context.getConfiguration().getLogger().info(accumulator.getAccumulatorName().getDisplayName() +
-                                                                    " AFTER " + Navigator.getPath(node) + ": " + Err.depictSequence(value));
+                                                                    (isPostDescent ? " AFTER " : " BEFORE ") +
+                                                                    Navigator.getPath(node) + ": " + Err.depictSequence(value));
             }
         }
         return value;
@@ -0,0 +1,191 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018 Saxonica Limited.
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.expr.compiler;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.expr.*;
+import net.sf.saxon.expr.parser.ExpressionTool;
+import net.sf.saxon.expr.parser.RebindingMap;
+import net.sf.saxon.lib.Feature;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.trace.ExpressionPresenter;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.iter.SingletonIterator;
+
+/**
+ * A wrapper around an expression that can be compiled by the {@link ExpressionCompiler}. The target
+ * expression is interpreted in the usual way until it has been evaluated a given number of times
+ * (the count-down of the configuration); it is then compiled, and subsequent evaluations use the
+ * compiled code, reverting to the interpreter for any evaluation where the compiled code cannot
+ * deliver the result.
+ *
+ * <p>The number of expressions compiled under one configuration is limited by
+ * {@link Feature#MAX_COMPILED_CLASSES}. If {@link Feature#MONITOR_HOT_SPOT_BYTE_CODE} is set, each
+ * compiled expression is registered with the configuration's {@link CompilationMonitor}, which can
+ * report how often it was evaluated by the interpreter and by the compiled code.</p>
+ */
+
+public class CompilationCandidate extends UnaryExpression {
+
+    private Configuration config;
+    private int countDown;
+    private volatile ExpressionCompiler.Compiled compiled;
+    private boolean abandoned = false;
+    private long interpretedCount = 0;
+    private long compiledCount = 0;
+
+    /**
+     * Create a compilation candidate
+     *
+     * @param target the expression to be compiled when it becomes hot
+     * @param config the Saxon configuration
+     */
+
+    public CompilationCandidate(Expression target, Configuration config) {
+        super(target);
+        this.config = config;
+        this.countDown = config.getCountDown();
+    }
+
+    @Override
+    protected OperandRole getOperandRole() {
+        return OperandRole.SINGLE_ATOMIC;
+    }
+
+    @Override
+    public int getImplementationMethod() {
+        return EVALUATE_METHOD;
+    }
+
+    @Override
+    public String getExpressionName() {
+        return "compiled";
+    }
+
+    /**
+     * Get the number of times the target expression has been evaluated by the interpreter
+     *
+     * @return the number of interpreted evaluations
+     */
+
+    public long getInterpretedCount() {
+        return interpretedCount;
+    }
+
+    /**
+     * Get the number of times the target expression has been evaluated by the compiled code
+     *
+     * @return the number of compiled evaluations
+     */
+
+    public long getCompiledCount() {
+        return compiledCount;
+    }
+
+    /**
+     * Get the compiled code, compiling the target expression if it has now been evaluated often enough
+     *
+     * @return the compiled code, or null if the target expression is to be interpreted
+     */
+
+    private ExpressionCompiler.Compiled getCompiled() {
+        ExpressionCompiler.Compiled c = compiled;
+        if (c == null && !abandoned && --countDown <= 0) {
+            c = compile();
+        }
+        return c;
+    }
+
+    private synchronized ExpressionCompiler.Compiled compile() {
+        if (compiled == null && !abandoned) {
+            ExpressionCompiler.Compiled c = null;
+            if (config.allocateCompiledClass()) {
+                c = new ExpressionCompiler(config.getTypeHierarchy()).compile(getBaseExpression());
+            }
+            if (c == null) {
+                abandoned = true;
+            } else {
+                if (config.getBooleanProperty(Feature.MONITOR_HOT_SPOT_BYTE_CODE)) {
+                    config.getCompilationMonitor().register(this);
+                }
+                compiled = c;
+            }
+        }
+        return compiled;
+    }
+
+    @Override
+    public Item<?> evaluateItem(XPathContext context) throws XPathException {
+        ExpressionCompiler.Compiled c = getCompiled();
+        if (c != null) {
+            try {
+                Item<?> result = c.evaluate(context);
+                compiledCount++;
+                return result;
+            } catch (ExpressionCompiler.Fallback e) {
+                // evaluate the expression in the interpreter instead
+            }
+        }
+        interpretedCount++;
+        return getBaseExpression().evaluateItem(context);
+    }
+
+    @Override
+    public boolean effectiveBooleanValue(XPathContext context) throws XPathException {
+        ExpressionCompiler.Compiled c = getCompiled();
+        if (c != null) {
+            try {
+                boolean result = c.effectiveBooleanValue(context);
+                compiledCount++;
+                return result;
+            } catch (ExpressionCompiler.Fallback e) {
+                // evaluate the expression in the interpreter instead
+            }
+        }
+        interpretedCount++;
+        return getBaseExpression().effectiveBooleanValue(context);
+    }
+
+    @Override
+    public CharSequence evaluateAsString(XPathContext context) throws XPathException {
+        return evaluateItem(context).getStringValueCS();
+    }
+
+    @Override
+    public SequenceIterator<?> iterate(XPathContext context) throws XPathException {
+        return SingletonIterator.rawIterator(evaluateItem(context));
+    }
+
+    @Override
+    public Expression copy(RebindingMap rebindings) {
+        CompilationCandidate c2 = new CompilationCandidate(getBaseExpression().copy(rebindings), config);
+        ExpressionTool.copyLocationInfo(this, c2);
+        return c2;
+    }
+
+    /**
+     * Diagnostic print of expression structure. The compilation candidate is transparent: only the
+     * target expression is output, so that an exported package can be loaded without it.
+     */
+
+    @Override
+    public void export(ExpressionPresenter out) throws XPathException {
+        getBaseExpression().export(out);
+    }
+
+    @Override
+    public String toString() {
+        return getBaseExpression().toString();
+    }
+
+    @Override
+    public String toShortString() {
+        return getBaseExpression().toShortString();
+    }
+}
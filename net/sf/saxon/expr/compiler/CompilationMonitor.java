@@ -0,0 +1,84 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018 Saxonica Limited.
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.expr.compiler;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.event.Receiver;
+import net.sf.saxon.event.StreamWriterToReceiver;
+import net.sf.saxon.expr.parser.Location;
+import net.sf.saxon.serialize.SerializationProperties;
+import net.sf.saxon.trans.XPathException;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.stream.StreamResult;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the expressions that have been compiled under a configuration, when
+ * {@link net.sf.saxon.lib.Feature#MONITOR_HOT_SPOT_BYTE_CODE} is set, and produces a report
+ * showing how often each one was evaluated by the interpreter and by the compiled code.
+ */
+
+public class CompilationMonitor {
+
+    private final List<CompilationCandidate> compiledExpressions = new ArrayList<>();
+
+    /**
+     * Register an expression that has been compiled
+     *
+     * @param candidate the compiled expression
+     */
+
+    public synchronized void register(CompilationCandidate candidate) {
+        compiledExpressions.add(candidate);
+    }
+
+    /**
+     * Write a report on the compiled expressions to a file. The report contains a <code>compiled</code>
+     * element for each expression, with attributes <code>text</code> (abbreviated text of the expression),
+     * <code>intCount</code> (number of interpreted evaluations), <code>bcCount</code> (number of compiled
+     * evaluations), <code>module</code>, and <code>line</code>.
+     *
+     * @param config   the Saxon configuration
+     * @param fileName the name of the file to be written
+     * @throws XPathException if the report cannot be written
+     */
+
+    public synchronized void createReport(Configuration config, String fileName) throws XPathException {
+        SerializationProperties props = new SerializationProperties();
+        props.setProperty("method", "xml");
+        props.setProperty("indent", "yes");
+        Receiver out = config.getSerializerFactory().getReceiver(
+                new StreamResult(new File(fileName)), props, config.makePipelineConfiguration());
+        try {
+            XMLStreamWriter writer = new StreamWriterToReceiver(out);
+            writer.writeStartDocument();
+            writer.writeStartElement("compiledExpressions");
+            for (CompilationCandidate c : compiledExpressions) {
+                writer.writeStartElement("compiled");
+                writer.writeAttribute("text", c.toShortString());
+                writer.writeAttribute("intCount", Long.toString(c.getInterpretedCount()));
+                writer.writeAttribute("bcCount", Long.toString(c.getCompiledCount()));
+                Location loc = c.getLocation();
+                if (loc.getSystemId() != null) {
+                    writer.writeAttribute("module", loc.getSystemId());
+                }
+                writer.writeAttribute("line", Integer.toString(loc.getLineNumber()));
+                writer.writeEndElement();
+            }
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new XPathException("Unable to write bytecode report: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,538 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018 Saxonica Limited.
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.expr.compiler;
+
+import net.sf.saxon.expr.*;
+import net.sf.saxon.expr.parser.Token;
+import net.sf.saxon.expr.sort.AtomicComparer;
+import net.sf.saxon.expr.sort.CodepointCollator;
+import net.sf.saxon.functions.*;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.type.BuiltInAtomicType;
+import net.sf.saxon.type.ItemType;
+import net.sf.saxon.type.TypeHierarchy;
+import net.sf.saxon.value.*;
+
+/**
+ * Compiles an expression tree into a tree of closures that evaluate the expression using primitive
+ * Java values (<code>double</code>, <code>long</code>, <code>boolean</code>, and <code>String</code>)
+ * rather than boxed {@link AtomicValue}s, avoiding the dispatch to a general-purpose {@link Calculator}
+ * or {@link AtomicComparer} at each node.
+ *
+ * <p>The expressions that can be compiled are: literals; arithmetic (other than integer division
+ * yielding a decimal) on <code>xs:integer</code> and <code>xs:double</code> values; value and general
+ * comparisons of numbers, booleans, and strings under the codepoint collation; <code>and</code>,
+ * <code>or</code> and <code>not()</code>; and the functions <code>string-length()</code>,
+ * <code>concat()</code>, <code>contains()</code>, <code>starts-with()</code>, and <code>ends-with()</code>
+ * under the codepoint collation. Any other expression whose static type is exactly one
+ * <code>xs:integer</code>, <code>xs:double</code>, <code>xs:boolean</code> or <code>xs:string</code>
+ * (for example a variable reference, or a path that is atomized) is evaluated in the usual way, and its
+ * result is unboxed.</p>
+ *
+ * <p>Where the compiled code cannot deliver the same result as the interpreter (for example on integer
+ * overflow, or an integer value outside the range of a <code>long</code>), it throws {@link #FALLBACK},
+ * and the caller must then evaluate the original expression in the usual way.</p>
+ */
+
+public class ExpressionCompiler {
+
+    /**
+     * The result types of compiled expressions
+     */
+
+    public enum ResultType {DOUBLE, INTEGER, BOOLEAN, STRING}
+
+    @FunctionalInterface
+    public interface DoubleEvaluator {
+        double eval(XPathContext context) throws XPathException;
+    }
+
+    @FunctionalInterface
+    public interface LongEvaluator {
+        long eval(XPathContext context) throws XPathException;
+    }
+
+    @FunctionalInterface
+    public interface BooleanEvaluator {
+        boolean eval(XPathContext context) throws XPathException;
+    }
+
+    @FunctionalInterface
+    public interface StringEvaluator {
+        String eval(XPathContext context) throws XPathException;
+    }
+
+    /**
+     * Exception thrown by compiled code when the result must be computed by the interpreter instead
+     */
+
+    public static class Fallback extends RuntimeException {
+        private Fallback() {
+            super("fallback to interpreted evaluation", null, false, false);
+        }
+    }
+
+    public final static Fallback FALLBACK = new Fallback();
+
+    /**
+     * The result of compiling an expression: exactly one of the evaluators is non-null
+     */
+
+    public static class Compiled {
+        public final ResultType type;
+        public final DoubleEvaluator doubleEvaluator;
+        public final LongEvaluator longEvaluator;
+        public final BooleanEvaluator booleanEvaluator;
+        public final StringEvaluator stringEvaluator;
+
+        private Compiled(DoubleEvaluator e) {
+            type = ResultType.DOUBLE;
+            doubleEvaluator = e;
+            longEvaluator = null;
+            booleanEvaluator = null;
+            stringEvaluator = null;
+        }
+
+        private Compiled(LongEvaluator e) {
+            type = ResultType.INTEGER;
+            doubleEvaluator = null;
+            longEvaluator = e;
+            booleanEvaluator = null;
+            stringEvaluator = null;
+        }
+
+        private Compiled(BooleanEvaluator e) {
+            type = ResultType.BOOLEAN;
+            doubleEvaluator = null;
+            longEvaluator = null;
+            booleanEvaluator = e;
+            stringEvaluator = null;
+        }
+
+        private Compiled(StringEvaluator e) {
+            type = ResultType.STRING;
+            doubleEvaluator = null;
+            longEvaluator = null;
+            booleanEvaluator = null;
+            stringEvaluator = e;
+        }
+
+        /**
+         * Get an evaluator that delivers the result as a double, converting an integer if necessary
+         *
+         * @return the evaluator, or null if the result is not numeric
+         */
+
+        public DoubleEvaluator asDouble() {
+            if (type == ResultType.DOUBLE) {
+                return doubleEvaluator;
+            } else if (type == ResultType.INTEGER) {
+                LongEvaluator e = longEvaluator;
+                return c -> (double) e.eval(c);
+            } else {
+                return null;
+            }
+        }
+
+        /**
+         * Evaluate the compiled expression, delivering a boxed result
+         *
+         * @param context the dynamic evaluation context
+         * @return the result of the expression
+         * @throws XPathException if a dynamic error occurs
+         */
+
+        public AtomicValue evaluate(XPathContext context) throws XPathException {
+            switch (type) {
+                case DOUBLE:
+                    return new DoubleValue(doubleEvaluator.eval(context));
+                case INTEGER:
+                    return Int64Value.makeIntegerValue(longEvaluator.eval(context));
+                case BOOLEAN:
+                    return BooleanValue.get(booleanEvaluator.eval(context));
+                default:
+                    return new StringValue(stringEvaluator.eval(context));
+            }
+        }
+
+        /**
+         * Get the effective boolean value of the compiled expression
+         *
+         * @param context the dynamic evaluation context
+         * @return the effective boolean value
+         * @throws XPathException if a dynamic error occurs
+         */
+
+        public boolean effectiveBooleanValue(XPathContext context) throws XPathException {
+            switch (type) {
+                case DOUBLE:
+                    double d = doubleEvaluator.eval(context);
+                    return d != 0 && !Double.isNaN(d);
+                case INTEGER:
+                    return longEvaluator.eval(context) != 0;
+                case BOOLEAN:
+                    return booleanEvaluator.eval(context);
+                default:
+                    return !stringEvaluator.eval(context).isEmpty();
+            }
+        }
+    }
+
+    private TypeHierarchy th;
+
+    /**
+     * Create an expression compiler
+     *
+     * @param th the type hierarchy cache
+     */
+
+    public ExpressionCompiler(TypeHierarchy th) {
+        this.th = th;
+    }
+
+    /**
+     * Ask whether an expression is worth compiling: that is, whether it can be compiled and involves
+     * at least one operation that the compiler implements
+     *
+     * @param exp the expression
+     * @return true if the expression is worth compiling
+     */
+
+    public boolean isCandidate(Expression exp) {
+        return compileOperation(exp) != null;
+    }
+
+    /**
+     * Compile an expression
+     *
+     * @param exp the expression to be compiled
+     * @return the compiled expression, or null if the expression cannot be compiled
+     */
+
+    public Compiled compile(Expression exp) {
+        if (exp instanceof CompilationCandidate) {
+            exp = ((CompilationCandidate) exp).getBaseExpression();
+        }
+        Compiled c = compileOperation(exp);
+        return c != null ? c : compileLeaf(exp);
+    }
+
+    private Compiled compileLeaf(Expression exp) {
+        if (exp.getCardinality() != StaticProperty.EXACTLY_ONE ||
+                (exp.getSpecialProperties() & StaticProperty.HAS_SIDE_EFFECTS) != 0) {
+            return null;
+        }
+        ItemType type = exp.getItemType();
+        if (exp instanceof Literal) {
+            Item head = ((Literal) exp).getValue().head();
+            if (!(head instanceof AtomicValue)) {
+                // for example, a map or array constructor that has been evaluated at compile time
+                return null;
+            }
+            AtomicValue value = (AtomicValue) head;
+            if (value instanceof Int64Value) {
+                long v = ((Int64Value) value).longValue();
+                return new Compiled((LongEvaluator) c -> v);
+            } else if (value instanceof DoubleValue) {
+                double v = ((DoubleValue) value).getDoubleValue();
+                return new Compiled((DoubleEvaluator) c -> v);
+            } else if (value instanceof BooleanValue) {
+                boolean v = ((BooleanValue) value).getBooleanValue();
+                return new Compiled((BooleanEvaluator) c -> v);
+            } else if (value instanceof StringValue && th.isSubType(type, BuiltInAtomicType.STRING)) {
+                String v = value.getStringValue();
+                return new Compiled((StringEvaluator) c -> v);
+            }
+            return null;
+        }
+        if (type == BuiltInAtomicType.DOUBLE) {
+            return new Compiled((DoubleEvaluator) c -> ((NumericValue) exp.evaluateItem(c)).getDoubleValue());
+        } else if (th.isSubType(type, BuiltInAtomicType.INTEGER)) {
+            return new Compiled((LongEvaluator) c -> {
+                Item item = exp.evaluateItem(c);
+                if (item instanceof Int64Value) {
+                    return ((Int64Value) item).longValue();
+                }
+                throw FALLBACK;
+            });
+        } else if (type == BuiltInAtomicType.BOOLEAN) {
+            return new Compiled((BooleanEvaluator) c -> ((BooleanValue) exp.evaluateItem(c)).getBooleanValue());
+        } else if (th.isSubType(type, BuiltInAtomicType.STRING)) {
+            return new Compiled((StringEvaluator) c -> exp.evaluateItem(c).getStringValue());
+        }
+        return null;
+    }
+
+    private Compiled compileOperation(Expression exp) {
+        if (exp.getClass() == ArithmeticExpression.class) {
+            return compileArithmetic((ArithmeticExpression) exp);
+        } else if (exp instanceof NegateExpression && !((NegateExpression) exp).isBackwardsCompatible()) {
+            Compiled operand = compile(((NegateExpression) exp).getBaseExpression());
+            if (operand == null) {
+                return null;
+            } else if (operand.type == ResultType.INTEGER) {
+                LongEvaluator e = operand.longEvaluator;
+                return new Compiled((LongEvaluator) c -> {
+                    try {
+                        return Math.negateExact(e.eval(c));
+                    } catch (ArithmeticException err) {
+                        throw FALLBACK;
+                    }
+                });
+            } else if (operand.type == ResultType.DOUBLE) {
+                DoubleEvaluator e = operand.doubleEvaluator;
+                return new Compiled((DoubleEvaluator) c -> -e.eval(c));
+            }
+            return null;
+        } else if (exp instanceof ValueComparison ||
+                exp.getClass() == GeneralComparison.class || exp.getClass() == GeneralComparison20.class) {
+            return compileComparison((BinaryExpression) exp);
+        } else if (exp instanceof CompareToIntegerConstant) {
+            CompareToIntegerConstant comparison = (CompareToIntegerConstant) exp;
+            int op = comparison.getComparisonOperator();
+            long comparand = comparison.getComparand();
+            Compiled operand = compile(comparison.getLhsExpression());
+            if (operand == null) {
+                return null;
+            } else if (operand.type == ResultType.INTEGER) {
+                LongEvaluator e = operand.longEvaluator;
+                return new Compiled((BooleanEvaluator) c -> test(op, Long.compare(e.eval(c), comparand)));
+            } else if (operand.type == ResultType.DOUBLE) {
+                DoubleEvaluator e = operand.doubleEvaluator;
+                return new Compiled((BooleanEvaluator) c -> {
+                    double d = e.eval(c);
+                    if (Double.isNaN(d)) {
+                        return op == Token.FNE;
+                    }
+                    return test(op, d < comparand ? -1 : d > comparand ? 1 : 0);
+                });
+            }
+            return null;
+        } else if (exp instanceof AndExpression || exp instanceof OrExpression) {
+            Compiled lhs = compile(((BooleanExpression) exp).getLhsExpression());
+            Compiled rhs = compile(((BooleanExpression) exp).getRhsExpression());
+            if (lhs == null || rhs == null || lhs.type != ResultType.BOOLEAN || rhs.type != ResultType.BOOLEAN) {
+                return null;
+            }
+            BooleanEvaluator a = lhs.booleanEvaluator;
+            BooleanEvaluator b = rhs.booleanEvaluator;
+            if (exp instanceof AndExpression) {
+                return new Compiled((BooleanEvaluator) c -> a.eval(c) && b.eval(c));
+            } else {
+                return new Compiled((BooleanEvaluator) c -> a.eval(c) || b.eval(c));
+            }
+        } else if (exp instanceof SystemFunctionCall) {
+            return compileFunctionCall((SystemFunctionCall) exp);
+        }
+        return null;
+    }
+
+    private Compiled compileArithmetic(ArithmeticExpression exp) {
+        Compiled lhs = compile(exp.getLhsExpression());
+        Compiled rhs = compile(exp.getRhsExpression());
+        if (lhs == null || rhs == null) {
+            return null;
+        }
+        int op = exp.getOperator();
+        if (lhs.type == ResultType.INTEGER && rhs.type == ResultType.INTEGER) {
+            LongEvaluator a = lhs.longEvaluator;
+            LongEvaluator b = rhs.longEvaluator;
+            switch (op) {
+                case Token.PLUS:
+                    return new Compiled((LongEvaluator) c -> {
+                        try {
+                            return Math.addExact(a.eval(c), b.eval(c));
+                        } catch (ArithmeticException err) {
+                            throw FALLBACK;
+                        }
+                    });
+                case Token.MINUS:
+                    return new Compiled((LongEvaluator) c -> {
+                        try {
+                            return Math.subtractExact(a.eval(c), b.eval(c));
+                        } catch (ArithmeticException err) {
+                            throw FALLBACK;
+                        }
+                    });
+                case Token.MULT:
+                    return new Compiled((LongEvaluator) c -> {
+                        try {
+                            return Math.multiplyExact(a.eval(c), b.eval(c));
+                        } catch (ArithmeticException err) {
+                            throw FALLBACK;
+                        }
+                    });
+                case Token.IDIV:
+                case Token.MOD:
+                    boolean idiv = op == Token.IDIV;
+                    return new Compiled((LongEvaluator) c -> {
+                        long x = a.eval(c);
+                        long y = b.eval(c);
+                        if (y == 0 || (x == Long.MIN_VALUE && y == -1)) {
+                            // division by zero is an error; the other case overflows
+                            throw FALLBACK;
+                        }
+                        return idiv ? x / y : x % y;
+                    });
+                default:
+                    // integer division yields a decimal
+                    return null;
+            }
+        }
+        DoubleEvaluator a = lhs.asDouble();
+        DoubleEvaluator b = rhs.asDouble();
+        if (a == null || b == null) {
+            return null;
+        }
+        switch (op) {
+            case Token.PLUS:
+                return new Compiled((DoubleEvaluator) c -> a.eval(c) + b.eval(c));
+            case Token.MINUS:
+                return new Compiled((DoubleEvaluator) c -> a.eval(c) - b.eval(c));
+            case Token.MULT:
+                return new Compiled((DoubleEvaluator) c -> a.eval(c) * b.eval(c));
+            case Token.DIV:
+                return new Compiled((DoubleEvaluator) c -> a.eval(c) / b.eval(c));
+            case Token.MOD:
+                return new Compiled((DoubleEvaluator) c -> a.eval(c) % b.eval(c));
+            default:
+                return null;
+        }
+    }
+
+    private Compiled compileComparison(BinaryExpression exp) {
+        int op = ((ComparisonExpression) exp).getSingletonOperator();
+        Compiled lhs = compile(exp.getLhsExpression());
+        Compiled rhs = compile(exp.getRhsExpression());
+        if (lhs == null || rhs == null) {
+            return null;
+        }
+        if (lhs.type == ResultType.INTEGER && rhs.type == ResultType.INTEGER) {
+            LongEvaluator a = lhs.longEvaluator;
+            LongEvaluator b = rhs.longEvaluator;
+            return new Compiled((BooleanEvaluator) c -> test(op, Long.compare(a.eval(c), b.eval(c))));
+        }
+        DoubleEvaluator da = lhs.asDouble();
+        DoubleEvaluator db = rhs.asDouble();
+        if (da != null && db != null) {
+            switch (op) {
+                case Token.FEQ:
+                    return new Compiled((BooleanEvaluator) c -> da.eval(c) == db.eval(c));
+                case Token.FNE:
+                    return new Compiled((BooleanEvaluator) c -> da.eval(c) != db.eval(c));
+                case Token.FLT:
+                    return new Compiled((BooleanEvaluator) c -> da.eval(c) < db.eval(c));
+                case Token.FLE:
+                    return new Compiled((BooleanEvaluator) c -> da.eval(c) <= db.eval(c));
+                case Token.FGT:
+                    return new Compiled((BooleanEvaluator) c -> da.eval(c) > db.eval(c));
+                case Token.FGE:
+                    return new Compiled((BooleanEvaluator) c -> da.eval(c) >= db.eval(c));
+                default:
+                    return null;
+            }
+        }
+        if (lhs.type == ResultType.BOOLEAN && rhs.type == ResultType.BOOLEAN) {
+            BooleanEvaluator a = lhs.booleanEvaluator;
+            BooleanEvaluator b = rhs.booleanEvaluator;
+            return new Compiled((BooleanEvaluator) c -> test(op, Boolean.compare(a.eval(c), b.eval(c))));
+        }
+        if (lhs.type == ResultType.STRING && rhs.type == ResultType.STRING) {
+            AtomicComparer comparer = ((ComparisonExpression) exp).getAtomicComparer();
+            if (comparer == null ||
+                    !(comparer.getCollator() == null || comparer.getCollator() instanceof CodepointCollator)) {
+                return null;
+            }
+            StringEvaluator a = lhs.stringEvaluator;
+            StringEvaluator b = rhs.stringEvaluator;
+            if (op == Token.FEQ) {
+                return new Compiled((BooleanEvaluator) c -> a.eval(c).equals(b.eval(c)));
+            } else if (op == Token.FNE) {
+                return new Compiled((BooleanEvaluator) c -> !a.eval(c).equals(b.eval(c)));
+            }
+            return new Compiled((BooleanEvaluator) c -> test(op, CodepointCollator.compareCS(a.eval(c), b.eval(c))));
+        }
+        return null;
+    }
+
+    private static boolean test(int op, int comparison) {
+        switch (op) {
+            case Token.FEQ:
+                return comparison == 0;
+            case Token.FNE:
+                return comparison != 0;
+            case Token.FLT:
+                return comparison < 0;
+            case Token.FLE:
+                return comparison <= 0;
+            case Token.FGT:
+                return comparison > 0;
+            case Token.FGE:
+                return comparison >= 0;
+            default:
+                throw new AssertionError("Unknown comparison operator " + op);
+        }
+    }
+
+    private Compiled compileFunctionCall(SystemFunctionCall call) {
+        SystemFunction fn = call.getTargetFunction();
+        Expression[] args = call.getArguments();
+        if (!(fn instanceof NotFn || fn instanceof StringLength_1 || fn instanceof Concat ||
+                fn instanceof Contains || fn instanceof StartsWith || fn instanceof EndsWith)) {
+            return null;
+        }
+        Compiled[] compiledArgs = new Compiled[args.length];
+        for (int i = 0; i < args.length; i++) {
+            compiledArgs[i] = compile(args[i]);
+            if (compiledArgs[i] == null) {
+                return null;
+            }
+        }
+        if (fn instanceof NotFn && compiledArgs[0].type == ResultType.BOOLEAN) {
+            BooleanEvaluator a = compiledArgs[0].booleanEvaluator;
+            return new Compiled((BooleanEvaluator) c -> !a.eval(c));
+        }
+        for (Compiled arg : compiledArgs) {
+            if (arg.type != ResultType.STRING) {
+                return null;
+            }
+        }
+        if (fn instanceof StringLength_1 && args.length == 1) {
+            StringEvaluator a = compiledArgs[0].stringEvaluator;
+            return new Compiled((LongEvaluator) c -> {
+                String s = a.eval(c);
+                return s.codePointCount(0, s.length());
+            });
+        } else if (fn instanceof Concat) {
+            StringEvaluator[] parts = new StringEvaluator[args.length];
+            for (int i = 0; i < args.length; i++) {
+                parts[i] = compiledArgs[i].stringEvaluator;
+            }
+            return new Compiled((StringEvaluator) c -> {
+                StringBuilder sb = new StringBuilder();
+                for (StringEvaluator part : parts) {
+                    sb.append(part.eval(c));
+                }
+                return sb.toString();
+            });
+        } else if ((fn instanceof Contains || fn instanceof StartsWith || fn instanceof EndsWith) && args.length == 2 &&
+                ((CollatingFunctionFixed) fn).getStringCollator() == CodepointCollator.getInstance()) {
+            StringEvaluator a = compiledArgs[0].stringEvaluator;
+            StringEvaluator b = compiledArgs[1].stringEvaluator;
+            if (fn instanceof Contains) {
+                return new Compiled((BooleanEvaluator) c -> a.eval(c).contains(b.eval(c)));
+            } else if (fn instanceof StartsWith) {
+                return new Compiled((BooleanEvaluator) c -> a.eval(c).startsWith(b.eval(c)));
+            } else {
+                return new Compiled((BooleanEvaluator) c -> a.eval(c).endsWith(b.eval(c)));
+            }
+        }
+        return null;
+    }
+}
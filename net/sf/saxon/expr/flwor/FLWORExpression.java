@@ -30,6 +30,7 @@ public class FLWORExpression extends Expression {
 
     public List<Clause> clauses;
     public Operand returnClauseOp;
+    private boolean parallelEvaluationRequested = false;
 
     public FLWORExpression() {}
 
@@ -60,6 +61,19 @@ public class FLWORExpression extends Expression {
         return c.getClauseKey() == Clause.FOR || c.getClauseKey() == Clause.GROUPBYCLAUSE || c.getClauseKey() == Clause.WINDOW;
     }
 
+    /**
+     * Request that the outermost "for" clause be evaluated in parallel if possible. The request has no
+     * effect unless the FLWOR expression is rewritten as a {@link ForExpression}, which happens when it
+     * consists only of "for" and "let" clauses. It is used for an expression enclosed in the XQuery pragma
+     * <code>(# saxon:parallel #)</code>.
+     *
+     * @param requested true if parallel evaluation is requested
+     */
+
+    public void setParallelEvaluationRequested(boolean requested) {
+        parallelEvaluationRequested = requested;
+    }
+
     /**
      * Get the return clause of the FLWOR expression
      *
@@ -397,6 +411,7 @@ public class FLWORExpression extends Expression {
             newClauses.add(c2);
         }
         f2.init(newClauses, getReturnClause().copy(rebindings));
+        f2.parallelEvaluationRequested = parallelEvaluationRequested;
         ExpressionTool.copyLocationInfo(this, f2);
         for (int i = 0; i < oldBindings.size(); i++) {
             ExpressionTool.rebindVariableReferences(f2, oldBindings.get(i), newBindings.get(i));
@@ -704,6 +719,15 @@ public class FLWORExpression extends Expression {
             injector = ((QueryModule) visitor.getStaticContext()).getCodeInjector();
         }
 
+        int outermostFor = -1;
+        if (parallelEvaluationRequested) {
+            for (int i = 0; i < clauses.size() && outermostFor < 0; i++) {
+                if (clauses.get(i) instanceof ForClause) {
+                    outermostFor = i;
+                }
+            }
+        }
+
         for (int i = clauses.size() - 1; i >= 0; i--) {
 
             if (clauses.get(i) instanceof ForClause) {
@@ -713,6 +737,7 @@ public class FLWORExpression extends Expression {
                     forExpr = new OuterForExpression();
                 } else {
                     forExpr = new ForExpression();
+                    forExpr.setParallelEvaluationRequested(i == outermostFor);
                 }
 
                 forExpr.setLocation(forClause.getLocation());
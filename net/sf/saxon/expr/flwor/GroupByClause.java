@@ -13,6 +13,7 @@ import net.sf.saxon.expr.parser.ContextItemStaticInfo;
 import net.sf.saxon.expr.parser.ExpressionVisitor;
 import net.sf.saxon.expr.parser.PathMap;
 import net.sf.saxon.expr.parser.RebindingMap;
+import net.sf.saxon.expr.sort.CodepointCollator;
 import net.sf.saxon.expr.sort.GenericAtomicComparer;
 import net.sf.saxon.functions.DeepEqual;
 import net.sf.saxon.om.Item;
@@ -24,16 +25,23 @@ import net.sf.saxon.tree.util.FastStringBuffer;
 import net.sf.saxon.value.AtomicValue;
 import net.sf.saxon.value.SequenceExtent;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * This class represents an "group by" clause in a FLWOR expression
  */
 public class GroupByClause extends Clause {
 
+    /**
+     * The minimum number of tuples for which grouping is performed on multiple threads, when this is permitted
+     */
+
+    public final static int PARALLEL_GROUPING_THRESHOLD = 10000;
+
     Configuration config;
     LocalVariableBinding[] bindings;          // Variables bound in the output tuple stream.
     // There is one for each grouping variable, then one for each non-grouping variable
@@ -317,6 +325,133 @@ public class GroupByClause extends Clause {
         return new TupleComparisonKey(t.getMembers(), comparers);
     }
 
+    /**
+     * Ask whether the grouping may be performed on multiple threads. This requires multi-threading to be
+     * enabled in the configuration, and every grouping key to be compared using the Unicode codepoint
+     * collation, since other collators are not guaranteed to be thread-safe.
+     *
+     * @param comparers the comparers for the grouping keys
+     * @return true if {@link #formGroups} may use the configuration's worker pool
+     */
+
+    boolean allowsParallelGrouping(GenericAtomicComparer[] comparers) {
+        if (!config.isMultiThreadingEnabled() || config.getMaxParallelism() < 2) {
+            return false;
+        }
+        for (GenericAtomicComparer comparer : comparers) {
+            if (!(comparer.getCollator() == null || comparer.getCollator() instanceof CodepointCollator)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Allocate a list of tuples to groups. If there are at least {@link #PARALLEL_GROUPING_THRESHOLD} tuples,
+     * the work is shared between the threads of the configuration's worker pool: first the comparison keys
+     * are computed for contiguous ranges of the input, and the positions of the tuples in each range are
+     * divided into buckets according to the partition in which the hash of their key falls; then each thread
+     * groups the tuples in the buckets of its own partition, using its own hash map. Since each key belongs to
+     * exactly one partition, no group is split across threads.
+     *
+     * @param tuples    the tuples to be grouped, in input order
+     * @param comparers the comparers for the grouping keys
+     * @return the groups, in order of the first appearance of each grouping key in the input
+     * @throws XPathException if a dynamic error occurs
+     */
+
+    Collection<List<ObjectToBeGrouped>> formGroups(
+            final List<ObjectToBeGrouped> tuples, final GenericAtomicComparer[] comparers) throws XPathException {
+        final int size = tuples.size();
+        if (size < PARALLEL_GROUPING_THRESHOLD) {
+            LinkedHashMap<Object, List<ObjectToBeGrouped>> map = new LinkedHashMap<>();
+            for (ObjectToBeGrouped otbg : tuples) {
+                Object key = getComparisonKey(otbg.groupingValues, comparers);
+                GroupByClausePush.addToGroup(key, otbg, map.get(key), map);
+            }
+            return map.values();
+        }
+
+        ForkJoinPool pool = config.getWorkerPool();
+        final int partitions = pool.getParallelism();
+        final TupleComparisonKey[] keys = new TupleComparisonKey[size];
+        final int[] partitionOf = new int[size];
+        // buckets[c][p] holds the positions, in ascending order, of the tuples in chunk c whose key falls in partition p
+        final int[][][] buckets = new int[partitions][partitions][];
+        @SuppressWarnings("unchecked")
+        final List<ObjectToBeGrouped>[] groupStartingAt = new List[size];
+
+        List<Callable<Object>> tasks = new ArrayList<>(partitions);
+        final int chunk = (size + partitions - 1) / partitions;
+        for (int c = 0; c < partitions; c++) {
+            final int chunkNr = c;
+            final int from = c * chunk;
+            final int to = Math.min(size, from + chunk);
+            tasks.add(() -> {
+                int[] counts = new int[partitions];
+                for (int i = from; i < to; i++) {
+                    keys[i] = getComparisonKey(tuples.get(i).groupingValues, comparers);
+                    partitionOf[i] = Math.floorMod(keys[i].hashCode(), partitions);
+                    counts[partitionOf[i]]++;
+                }
+                int[][] chunkBuckets = buckets[chunkNr];
+                for (int p = 0; p < partitions; p++) {
+                    chunkBuckets[p] = new int[counts[p]];
+                    counts[p] = 0;
+                }
+                for (int i = from; i < to; i++) {
+                    int p = partitionOf[i];
+                    chunkBuckets[p][counts[p]++] = i;
+                }
+                return null;
+            });
+        }
+        invokeAll(pool, tasks);
+
+        tasks.clear();
+        for (int p = 0; p < partitions; p++) {
+            final int partition = p;
+            tasks.add(() -> {
+                HashMap<TupleComparisonKey, List<ObjectToBeGrouped>> map = new HashMap<>();
+                for (int c = 0; c < partitions; c++) {
+                    for (int i : buckets[c][partition]) {
+                        List<ObjectToBeGrouped> group = map.get(keys[i]);
+                        if (group == null) {
+                            group = new ArrayList<>();
+                            map.put(keys[i], group);
+                            groupStartingAt[i] = group;
+                        }
+                        group.add(tuples.get(i));
+                    }
+                }
+                return null;
+            });
+        }
+        invokeAll(pool, tasks);
+
+        List<List<ObjectToBeGrouped>> groups = new ArrayList<>();
+        for (List<ObjectToBeGrouped> group : groupStartingAt) {
+            if (group != null) {
+                groups.add(group);
+            }
+        }
+        return groups;
+    }
+
+    private static void invokeAll(ForkJoinPool pool, List<Callable<Object>> tasks) throws XPathException {
+        for (Future<Object> f : pool.invokeAll(tasks)) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new XPathException(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof XPathException ? (XPathException) cause : new XPathException(cause);
+            }
+        }
+    }
+
     @Override
     public void addToPathMap(PathMap pathMap, PathMap.PathMapNodeSet pathMapNodeSet) {
         throw new UnsupportedOperationException("Cannot use document projection with group-by");
@@ -334,6 +469,8 @@ public class GroupByClause extends Clause {
 
         private Sequence[] groupingValues;
         private GenericAtomicComparer[] comparers;
+        private int hash;
+        private boolean hashKnown = false;
 
         public TupleComparisonKey(Sequence[] groupingValues, GenericAtomicComparer[] comparers) {
             this.groupingValues = groupingValues;
@@ -341,6 +478,14 @@ public class GroupByClause extends Clause {
         }
 
         public int hashCode() {
+            if (!hashKnown) {
+                hash = computeHashCode();
+                hashKnown = true;
+            }
+            return hash;
+        }
+
+        private int computeHashCode() {
             int h = 0x77557755 ^ groupingValues.length;
             for (int i = 0; i < groupingValues.length; i++) {
                 GenericAtomicComparer comparer = comparers[i];
@@ -13,14 +13,15 @@ import net.sf.saxon.om.Sequence;
 import net.sf.saxon.trans.XPathException;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 /**
  * Represents the tuple stream delivered by an "group by" clause. This groups the tuple stream supplied
  * as its input, and outputs a new set of tuples one per group of the input tuples. No groups are output
- * until all the groups have been read.
+ * until all the groups have been read. Groups are output in order of the first appearance of their
+ * grouping key.
  */
 public class GroupByClausePull extends TuplePull {
 
@@ -28,6 +29,7 @@ public class GroupByClausePull extends TuplePull {
     private GroupByClause groupByClause;
     /*@Nullable*/ Iterator<List<GroupByClause.ObjectToBeGrouped>> groupIterator;
     private GenericAtomicComparer[] comparers;
+    private boolean parallel;
 
 
     public GroupByClausePull(TuplePull base, GroupByClause groupBy, XPathContext context) {
@@ -37,6 +39,7 @@ public class GroupByClausePull extends TuplePull {
         for (int i = 0; i < comparers.length; i++) {
             comparers[i] = groupBy.comparers[i].provideContext(context);
         }
+        parallel = groupBy.allowsParallelGrouping(comparers);
     }
 
     /**
@@ -56,20 +59,30 @@ public class GroupByClausePull extends TuplePull {
 
             TupleExpression groupingTupleExpr = groupByClause.getGroupingTupleExpression();
             TupleExpression retainedTupleExpr = groupByClause.getRetainedTupleExpression();
-            HashMap<Object, List<GroupByClause.ObjectToBeGrouped>> map = new HashMap<>();
+            LinkedHashMap<Object, List<GroupByClause.ObjectToBeGrouped>> map = new LinkedHashMap<>();
+            List<GroupByClause.ObjectToBeGrouped> tuples = new ArrayList<>();
             while (base.nextTuple(context)) {
                 GroupByClause.ObjectToBeGrouped otbg = new GroupByClause.ObjectToBeGrouped();
                 Sequence[] groupingValues = groupingTupleExpr.evaluateItem(context).getMembers();
                 GroupByClausePush.checkGroupingValues(groupingValues);
                 otbg.groupingValues = new Tuple(groupingValues);
                 otbg.retainedValues = retainedTupleExpr.evaluateItem(context);
-                Object key = groupByClause.getComparisonKey(otbg.groupingValues, comparers);
-                List<GroupByClause.ObjectToBeGrouped> group = map.get(key);
-                GroupByClausePush.addToGroup(key, otbg, group, map);
+                if (parallel) {
+                    // the keys are computed and compared later, possibly on several threads
+                    tuples.add(otbg);
+                } else {
+                    Object key = groupByClause.getComparisonKey(otbg.groupingValues, comparers);
+                    List<GroupByClause.ObjectToBeGrouped> group = map.get(key);
+                    GroupByClausePush.addToGroup(key, otbg, group, map);
+                }
             }
             // get an iterator over the groups
 
-            groupIterator = map.values().iterator();
+            if (parallel) {
+                groupIterator = groupByClause.formGroups(tuples, comparers).iterator();
+            } else {
+                groupIterator = map.values().iterator();
+            }
 
         }
 
@@ -17,19 +17,23 @@ import net.sf.saxon.value.AtomicValue;
 import net.sf.saxon.value.EmptySequence;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 /**
  * Represents the tuple stream delivered by an "group by" clause. This groups the tuple stream supplied
  * as its input, and outputs a new set of tuples one per group of the input tuples. No groups are output
- * until all the groups have been read.
+ * until all the groups have been read. Groups are output in order of the first appearance of their
+ * grouping key.
  */
 public class GroupByClausePush extends TuplePush {
 
     private TuplePush destination;
     private GroupByClause groupByClause;
-    private HashMap<Object, List<GroupByClause.ObjectToBeGrouped>> map = new HashMap<>();
+    private LinkedHashMap<Object, List<GroupByClause.ObjectToBeGrouped>> map = new LinkedHashMap<>();
+    private List<GroupByClause.ObjectToBeGrouped> tuples;
     private XPathContext context;
     private GenericAtomicComparer[] comparers;
 
@@ -41,6 +45,9 @@ public class GroupByClausePush extends TuplePush {
         for (int i=0; i<comparers.length; i++) {
             comparers[i] = groupBy.comparers[i].provideContext(context);
         }
+        if (groupBy.allowsParallelGrouping(comparers)) {
+            tuples = new ArrayList<>();
+        }
     }
 
     /**
@@ -63,9 +70,14 @@ public class GroupByClausePush extends TuplePush {
         checkGroupingValues(groupingValues);
         otbg.groupingValues = new Tuple(groupingValues);
         otbg.retainedValues = retainedTupleExpr.evaluateItem(context);
-        Object key = groupByClause.getComparisonKey(otbg.groupingValues, comparers);
-        List<GroupByClause.ObjectToBeGrouped> group = map.get(key);
-        addToGroup(key, otbg, group, map);
+        if (tuples != null) {
+            // the keys are computed and compared on close(), possibly on several threads
+            tuples.add(otbg);
+        } else {
+            Object key = groupByClause.getComparisonKey(otbg.groupingValues, comparers);
+            List<GroupByClause.ObjectToBeGrouped> group = map.get(key);
+            addToGroup(key, otbg, group, map);
+        }
     }
 
     protected static void addToGroup(
@@ -105,7 +117,9 @@ public class GroupByClausePush extends TuplePush {
     @Override
     public void close() throws XPathException {
 
-        for (List<GroupByClause.ObjectToBeGrouped> group : map.values()) {
+        Collection<List<GroupByClause.ObjectToBeGrouped>> groups =
+                tuples == null ? map.values() : groupByClause.formGroups(tuples, comparers);
+        for (List<GroupByClause.ObjectToBeGrouped> group : groups) {
             groupByClause.processGroup(group, context);
             destination.processTuple(context);
         }
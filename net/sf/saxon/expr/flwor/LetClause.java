@@ -31,6 +31,9 @@ public class LetClause extends Clause {
     }
 
     public Evaluator getEvaluator() {
+        if (rangeVariable.isIndexedVariable()) {
+            return Evaluator.MAKE_INDEXED_VARIABLE;
+        }
         if (evaluator == null) {
             evaluator = ExpressionTool.lazyEvaluator(getSequence(), true);
         }
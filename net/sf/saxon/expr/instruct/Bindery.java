@@ -13,6 +13,11 @@ import net.sf.saxon.om.Sequence;
 import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.value.ObjectValue;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 
 /**
  * The Bindery class holds information about variables and their values. It is
@@ -28,12 +33,44 @@ import net.sf.saxon.value.ObjectValue;
  * The Bindery is no longer used to hold supplied values of global parameters, but it does hold their
  * values after initialization, treating them as normal global variables. Management of dependencies
  * among global variables, and checking for dynamic circularities, has been moved to the {@link net.sf.saxon.Controller}.</p>
+ *
+ * <p>Global variables are evaluated lazily, and the bindery may be shared by several threads. Each variable is
+ * evaluated only once: the first thread that needs its value evaluates it, and any other thread that needs it
+ * in the meantime waits for that evaluation to finish. A thread never waits while holding a lock, and a cycle
+ * of threads waiting for each other's variables is reported as a circularity rather than causing a deadlock.</p>
  */
 
 public final class Bindery {
 
     private GroundedValue<?>[] globals;          // values of global variables and parameters
-    private long[] busy;                 // set to current thread id while variable is being evaluated
+    private AtomicReferenceArray<Evaluation> evaluations;   // evaluation in progress or completed, for each variable
+
+    /**
+     * The evaluation (if any) for which each thread is currently waiting. This is shared by all binderies,
+     * so that a cycle of threads waiting for each other is detected even when it spans several packages.
+     * Access is synchronized on the map itself.
+     */
+
+    private final static Map<Thread, Evaluation> waiting = new HashMap<>();
+
+    /**
+     * Represents the evaluation of a global variable by a particular thread. Other threads that require
+     * the value of the variable while it is being evaluated wait for the evaluation to complete, rather
+     * than evaluating it themselves.
+     */
+
+    private static class Evaluation {
+        final Thread thread;
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        Evaluation(Thread thread) {
+            this.thread = thread;
+        }
+
+        boolean isFinished() {
+            return finished.getCount() == 0;
+        }
+    }
 
 
     public Bindery(PackageData pack) {
@@ -48,11 +85,7 @@ public final class Bindery {
     private void allocateGlobals(SlotManager map) {
         int n = map.getNumberOfVariables() + 1;
         globals = (GroundedValue<?>[])new GroundedValue[n];
-        busy = new long[n];
-        for (int i = 0; i < n; i++) {
-            globals[i] = null;
-            busy[i] = -1L;
-        }
+        evaluations = new AtomicReferenceArray<>(n);
     }
 
     /**
@@ -67,66 +100,105 @@ public final class Bindery {
     }
 
     /**
-     * Set/Unset a flag to indicate that a particular global variable is currently being
-     * evaluated. Note that this code is not synchronized, so there is no absolute guarantee that
-     * two threads will not both evaluate the same global variable; however, apart from wasted time,
-     * it is harmless if they do.
+     * Indicate that the current thread wishes to evaluate a particular global variable. The first thread to
+     * call this method for a variable is given the task of evaluating it. Any other thread that calls the
+     * method while that evaluation is in progress waits until it has finished; it does not hold any lock
+     * while waiting, so threads evaluating other variables are not held up. If the first evaluation fails,
+     * one of the waiting threads takes over the task of evaluating the variable, so that it can report the
+     * error in its own context.
+     *
+     * <p>If this method returns true, the caller must subsequently call either
+     * {@link #saveGlobalVariableValue} or {@link #setNotExecuting}.</p>
      *
      * @param binding the global variable in question
-     * @return true if evaluation of the variable should proceed; false if it is found that the variable has now been
-     *         evaluated in another thread.
+     * @return true if evaluation of the variable should proceed in this thread; false if the variable has now
+     *         been evaluated (possibly in another thread), in which case its value is available in the bindery.
      * @throws net.sf.saxon.trans.XPathException
-     *          If an attempt is made to set the flag when it is already set, this means
-     *          the definition of the variable is circular.
+     *          If the variable is already being evaluated in this thread, or if waiting for another thread to
+     *          evaluate it would cause a deadlock: in either case the definition of the variable is circular.
      */
 
     public boolean setExecuting(GlobalVariable binding)
             throws XPathException {
-        long thisThread = Thread.currentThread().getId();
+        Thread thisThread = Thread.currentThread();
         int slot = binding.getBinderySlotNumber();
-
-        long busyThread = busy[slot];
-        if (busyThread != -1L) {
-            if (busyThread == thisThread) {
+        Evaluation mine = null;
+        while (true) {
+            if (globals[slot] != null) {
+                return false;
+            }
+            Evaluation current = evaluations.get(slot);
+            if (current == null) {
+                if (mine == null) {
+                    mine = new Evaluation(thisThread);
+                }
+                if (evaluations.compareAndSet(slot, null, mine)) {
+                    return true;
+                }
+            } else if (current.isFinished()) {
+                // The value has been saved, and is now visible to this thread
+                return false;
+            } else if (current.thread == thisThread) {
                 // The global variable is being evaluated in this thread. This shouldn't happen, because
                 // we have already tested for circularities. If it does happen, however, we fail cleanly.
                 throw new XPathException.Circularity("Circular definition of variable "
                         + binding.getVariableQName().getDisplayName());
             } else {
-                // The global variable is being evaluated in another thread. Give it a chance to finish.
-                // It could be a circularity, or just an accident of timing. Note that in the latter case,
-                // we will actually re-evaluate the variable; this normally does no harm, though there is a small
-                // risk it could lead to problems with the identity of a node changing.
-                for (int i = 0; i < 10; i++) {
-                    try {
-                        Thread.sleep(20 * i);
-                    } catch (InterruptedException e) {
-                        // no action
-                    }
-                    if (busy[slot] == -1L) {
-                        // evaluation has finished in another thread
-                        return false;
-                    }
+                // The global variable is being evaluated in another thread: wait for it to finish
+                awaitEvaluation(current, binding);
+            }
+        }
+    }
+
+    /**
+     * Wait for another thread to finish evaluating a global variable
+     *
+     * @param evaluation the evaluation in progress
+     * @param binding    the global variable being evaluated
+     * @throws XPathException if waiting would cause a deadlock, because the thread doing the evaluation is
+     *                        itself (directly or indirectly) waiting for this thread; or if the thread is interrupted
+     */
+
+    private static void awaitEvaluation(Evaluation evaluation, GlobalVariable binding) throws XPathException {
+        Thread thisThread = Thread.currentThread();
+        synchronized (waiting) {
+            Evaluation e = evaluation;
+            while (e != null && !e.isFinished()) {
+                if (e.thread == thisThread) {
+                    throw new XPathException.Circularity("Circular definition of variable "
+                            + binding.getVariableQName().getDisplayName()
+                            + " (detected while waiting for its evaluation in another thread)");
                 }
-                // We've waited long enough; there could be a deadlock if we wait any longer.
-                // Continue with the evaluation; whichever thread completes the evaluation first will
-                // save the value.
-                return true;
+                e = waiting.get(e.thread);
+            }
+            waiting.put(thisThread, evaluation);
+        }
+        try {
+            evaluation.finished.await();
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            throw new XPathException(err);
+        } finally {
+            synchronized (waiting) {
+                waiting.remove(thisThread);
             }
         }
-        busy[slot] = thisThread;
-        return true;
     }
 
     /**
-     * Indicate that a global variable is not currently being evaluated
+     * Indicate that a global variable is not currently being evaluated, because its evaluation in this
+     * thread has failed. Any threads waiting for the evaluation are released.
      *
      * @param binding the global variable
      */
 
     public void setNotExecuting(GlobalVariable binding) {
         int slot = binding.getBinderySlotNumber();
-        busy[slot] = -1L;
+        Evaluation current = evaluations.get(slot);
+        if (current != null && current.thread == Thread.currentThread() && !current.isFinished()) {
+            evaluations.compareAndSet(slot, current, null);
+            current.finished.countDown();
+        }
     }
 
 
@@ -144,14 +216,22 @@ public final class Bindery {
     public synchronized GroundedValue<?> saveGlobalVariableValue(
             GlobalVariable binding, GroundedValue<?> value) {
         int slot = binding.getBinderySlotNumber();
+        GroundedValue<?> result;
         if (globals[slot] != null) {
             // another thread has already evaluated the value
-            return globals[slot];
+            result = globals[slot];
         } else {
-            busy[slot] = -1L;
             globals[slot] = value;
-            return value;
+            result = value;
+        }
+        Evaluation current = evaluations.get(slot);
+        if (current == null) {
+            // the value was saved without calling setExecuting(), as happens for a supplied parameter
+            current = new Evaluation(Thread.currentThread());
+            evaluations.set(slot, current);
         }
+        current.finished.countDown();
+        return result;
     }
 
 
@@ -0,0 +1,506 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018 Saxonica Limited.
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.expr.instruct;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.Controller;
+import net.sf.saxon.event.BuilderMonitor;
+import net.sf.saxon.event.PipelineConfiguration;
+import net.sf.saxon.event.Receiver;
+import net.sf.saxon.event.Sender;
+import net.sf.saxon.event.SequenceReceiver;
+import net.sf.saxon.expr.*;
+import net.sf.saxon.expr.parser.ExpressionTool;
+import net.sf.saxon.expr.parser.Location;
+import net.sf.saxon.expr.parser.RebindingMap;
+import net.sf.saxon.functions.DocumentFn;
+import net.sf.saxon.functions.SnapshotFn;
+import net.sf.saxon.lib.ParseOptions;
+import net.sf.saxon.lib.Validation;
+import net.sf.saxon.om.*;
+import net.sf.saxon.pattern.NodeTest;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.trans.XsltController;
+import net.sf.saxon.tree.iter.ManualIterator;
+import net.sf.saxon.tree.tiny.TinyBuilder;
+import net.sf.saxon.type.SchemaType;
+import net.sf.saxon.type.SimpleType;
+import net.sf.saxon.type.Type;
+import net.sf.saxon.type.UType;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.dom.DOMSource;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Implementation of the xsl:source-document instruction with <code>streamable="yes"</code>, using
+ * burst-mode streaming where possible.
+ *
+ * <p>Burst-mode streaming is used when the body of the instruction is an <code>xsl:for-each</code>
+ * whose select expression applies <code>copy-of()</code> or <code>snapshot()</code> to a path
+ * of child-axis element steps starting at the document node, for example
+ * <code>&lt;xsl:for-each select="copy-of(/orders/order)"&gt;</code>, and whose body does not depend on
+ * <code>last()</code>. The document is then parsed without building a tree: for each element selected
+ * by the path, a small tree containing a copy of that element (with its ancestors, in the case of
+ * <code>snapshot()</code>) is built, the body of the <code>xsl:for-each</code> is evaluated with that
+ * copy as the context item, and the tree is then discarded. Memory use is therefore proportional to the
+ * size of the largest selected element, rather than the size of the document.</p>
+ *
+ * <p>In all other cases (and also when the document is already available in memory, when accumulators
+ * are used, or when tracing) the document is built in memory and the body is evaluated in the usual way.</p>
+ */
+
+public class BurstSourceDocument extends SourceDocument {
+
+    private boolean analyzed = false;
+    private ForEach forEach;
+    private List<NodeTest> steps;
+    private boolean snapshot;
+
+    public BurstSourceDocument(Expression hrefExp, Expression body, ParseOptions options) {
+        super(hrefExp, body, options);
+    }
+
+    @Override
+    public void setBody(Expression body) {
+        super.setBody(body);
+        analyzed = false;
+    }
+
+    @Override
+    public Expression copy(RebindingMap rebindings) {
+        BurstSourceDocument exp = new BurstSourceDocument(getHref().copy(rebindings), getBody().copy(rebindings), parseOptions);
+        exp.setRetainedStaticContext(getRetainedStaticContext());
+        ExpressionTool.copyLocationInfo(this, exp);
+        return exp;
+    }
+
+    /**
+     * Ask whether the body of the instruction can be evaluated using burst-mode streaming,
+     * and if so, identify the path of element steps that selects the bursts
+     *
+     * @return true if burst-mode streaming can be used
+     */
+
+    private synchronized boolean isBurstable() {
+        if (!analyzed) {
+            forEach = null;
+            Expression body = getBody();
+            if (body instanceof ForEach &&
+                    (((ForEach) body).getThreads() == null || Literal.isEmptySequence(((ForEach) body).getThreads())) &&
+                    (((ForEach) body).getAction().getDependencies() & StaticProperty.DEPENDS_ON_LAST) == 0) {
+                Expression select = ((ForEach) body).getSelect();
+                Expression path = null;
+                boolean snap = false;
+                if (select instanceof CopyOf) {
+                    CopyOf copy = (CopyOf) select;
+                    if (copy.isCopyNamespaces() && !copy.isValidating() && copy.getSchemaType() == null &&
+                            (copy.getValidationAction() == Validation.PRESERVE || copy.getValidationAction() == Validation.STRIP)) {
+                        path = copy.getSelect();
+                    }
+                } else if (select instanceof SystemFunctionCall &&
+                        ((SystemFunctionCall) select).getTargetFunction() instanceof SnapshotFn &&
+                        ((SystemFunctionCall) select).getArity() == 1) {
+                    path = ((SystemFunctionCall) select).getArg(0);
+                    snap = true;
+                }
+                List<NodeTest> list = new ArrayList<>();
+                if (path != null && gatherSteps(path, list) && !list.isEmpty()) {
+                    forEach = (ForEach) body;
+                    steps = list;
+                    snapshot = snap;
+                }
+            }
+            analyzed = true;
+        }
+        return forEach != null;
+    }
+
+    private static boolean gatherSteps(Expression exp, List<NodeTest> steps) {
+        if (exp instanceof SlashExpression) {
+            return gatherSteps(((SlashExpression) exp).getStart(), steps) &&
+                    gatherSteps(((SlashExpression) exp).getStep(), steps);
+        } else if (exp instanceof RootExpression || exp instanceof ContextItemExpression) {
+            // the context item is the document node
+            return steps.isEmpty();
+        } else if (exp instanceof AxisExpression && ((AxisExpression) exp).getAxis() == AxisInfo.CHILD) {
+            NodeTest test = ((AxisExpression) exp).getNodeTest();
+            if (test != null && UType.ELEMENT.subsumes(test.getUType()) && !test.getUType().equals(UType.VOID)) {
+                steps.add(test);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Evaluate the instruction in push mode
+     *
+     * @param context the evaluation context
+     * @throws XPathException in the event of a failure
+     */
+
+    @Override
+    public void push(XPathContext context) throws XPathException {
+        Controller controller = context.getController();
+        int validation = parseOptions.getSchemaValidationMode();
+        if (validation == Validation.DEFAULT) {
+            validation = controller.getSchemaValidationMode();
+        }
+        if (!isBurstable() || (accumulators != null && !accumulators.isEmpty()) || controller.isTracing() ||
+                !(validation == Validation.DEFAULT || validation == Validation.STRIP || validation == Validation.PRESERVE)) {
+            super.push(context);
+            return;
+        }
+        String href = getHref().evaluateAsString(context).toString();
+        if (href.indexOf('#') >= 0) {
+            super.push(context);
+            return;
+        }
+        String baseURI = getStaticBaseURIString();
+        URIResolver resolver = controller.getURIResolver();
+        if (resolver == null) {
+            resolver = controller.getStandardURIResolver();
+        }
+        DocumentURI documentKey = DocumentFn.computeDocumentKey(href, baseURI, getPackageData(), resolver, true);
+        if (context.getConfiguration().getGlobalDocumentPool().find(documentKey) != null ||
+                controller.getDocumentPool().find(documentKey) != null ||
+                controller.getDocumentPool().isMarkedUnavailable(documentKey)) {
+            // the document has already been built, so there is nothing to be gained by streaming it
+            super.push(context);
+            return;
+        }
+        // a document that has already been streamed is recorded as unavailable for output, but may be read again
+        boolean streamedBefore = controller.getUserData(documentKey, "saxon:streamed-document") != null;
+        if (controller instanceof XsltController && !streamedBefore &&
+                !((XsltController) controller).checkUniqueOutputDestination(documentKey)) {
+            XPathException err = new XPathException(
+                    "Cannot read a document that was written during the same transformation: " + documentKey);
+            err.setXPathContext(context);
+            err.setErrorCode("XTRE1500");
+            err.setLocator(getLocation());
+            throw err;
+        }
+        Configuration config = context.getConfiguration();
+        Source source = DocumentFn.resolveURI(href, baseURI, documentKey.toString(), context);
+        source = config.getSourceResolver().resolveSource(source, config);
+        if (source instanceof NodeInfo || source instanceof DOMSource) {
+            super.push(context);
+            return;
+        }
+
+        PipelineConfiguration pipe = controller.makePipelineConfiguration();
+        pipe.setParseOptions(parseOptions);
+        BurstReceiver burster = new BurstReceiver(pipe, context);
+        try {
+            Sender.send(source, burster, parseOptions);
+        } catch (XPathException err) {
+            if (err.getErrorCodeLocalPart() == null || err.getErrorCodeLocalPart().equals("SXXP0003")) {
+                err.setErrorCode("FODC0002");
+            }
+            throw err;
+        } finally {
+            if (parseOptions.isPleaseCloseAfterUse()) {
+                ParseOptions.close(source);
+            }
+        }
+        if (controller instanceof XsltController) {
+            ((XsltController) controller).addUnavailableOutputDestination(documentKey);
+        }
+        controller.setUserData(documentKey, "saxon:streamed-document", Boolean.TRUE);
+    }
+
+    /**
+     * The start tag of an element on the path to the selected elements, retained so that it can be
+     * copied (in the case of <code>snapshot()</code>) or its namespaces inherited
+     */
+
+    private static class StartTag {
+        NodeName name;
+        SchemaType type;
+        Location location;
+        int properties;
+        List<NamespaceBinding> namespaces = new ArrayList<>();
+        List<AttributeEvent> attributes = new ArrayList<>();
+    }
+
+    private static class AttributeEvent {
+        NodeName name;
+        SimpleType type;
+        String value;
+        Location location;
+        int properties;
+    }
+
+    /**
+     * Receiver that processes the parser events, building a small tree for each selected element
+     * and evaluating the body of the xsl:for-each for it
+     */
+
+    private class BurstReceiver extends SequenceReceiver {
+
+        private XPathContext context;
+        private List<StartTag> openTags = new ArrayList<>();
+        private List<String[]> unparsedEntities = new ArrayList<>();
+        private int depth = 0;
+        private int matchedDepth = 0;
+        private boolean inStartTag = false;
+        private int position = 0;
+
+        // The builder for the current burst, if any
+        private TinyBuilder builder;
+        private Receiver out;
+        private int burstDepth;
+        private List<NamespaceBinding> burstNamespaces;
+
+        BurstReceiver(PipelineConfiguration pipe, XPathContext context) {
+            super(pipe);
+            this.context = context;
+        }
+
+        @Override
+        public void setUnparsedEntity(String name, String systemID, String publicID) {
+            unparsedEntities.add(new String[]{name, systemID, publicID});
+        }
+
+        @Override
+        public void open() {
+        }
+
+        @Override
+        public void startDocument(int properties) {
+        }
+
+        @Override
+        public void endDocument() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void append(Item item, Location locationId, int copyNamespaces) {
+        }
+
+        @Override
+        public boolean usesTypeAnnotations() {
+            return false;
+        }
+
+        @Override
+        public void startElement(NodeName elemName, SchemaType typeCode, Location location, int properties) throws XPathException {
+            depth++;
+            if (out != null) {
+                out.startElement(elemName, typeCode, location, properties);
+                return;
+            }
+            inStartTag = false;
+            if (matchedDepth == depth - 1 && depth <= steps.size() &&
+                    steps.get(depth - 1).matches(Type.ELEMENT, elemName, typeCode)) {
+                matchedDepth = depth;
+                if (depth == steps.size()) {
+                    startBurst();
+                    out.startElement(elemName, typeCode, location, properties);
+                    burstNamespaces = new ArrayList<>();
+                } else {
+                    StartTag tag = new StartTag();
+                    tag.name = elemName;
+                    tag.type = typeCode;
+                    tag.location = location;
+                    tag.properties = properties;
+                    openTags.add(tag);
+                    inStartTag = true;
+                }
+            }
+        }
+
+        @Override
+        public void namespace(NamespaceBindingSet namespaceBindings, int properties) throws XPathException {
+            if (burstNamespaces != null) {
+                for (NamespaceBinding ns : namespaceBindings) {
+                    burstNamespaces.add(ns);
+                }
+            } else if (out != null) {
+                out.namespace(namespaceBindings, properties);
+            } else if (inStartTag) {
+                for (NamespaceBinding ns : namespaceBindings) {
+                    openTags.get(openTags.size() - 1).namespaces.add(ns);
+                }
+            }
+        }
+
+        @Override
+        public void attribute(NodeName attName, SimpleType typeCode, CharSequence value, Location location, int properties) throws XPathException {
+            if (out != null) {
+                flushBurstNamespaces();
+                out.attribute(attName, typeCode, value, location, properties);
+            } else if (inStartTag && snapshot) {
+                AttributeEvent att = new AttributeEvent();
+                att.name = attName;
+                att.type = typeCode;
+                att.value = value.toString();
+                att.location = location;
+                att.properties = properties;
+                openTags.get(openTags.size() - 1).attributes.add(att);
+            }
+        }
+
+        @Override
+        public void startContent() throws XPathException {
+            if (out != null) {
+                flushBurstNamespaces();
+                out.startContent();
+            }
+            inStartTag = false;
+        }
+
+        @Override
+        public void endElement() throws XPathException {
+            if (out != null) {
+                out.endElement();
+                if (depth == burstDepth) {
+                    endBurst();
+                }
+            }
+            if (matchedDepth == depth) {
+                matchedDepth--;
+                if (!openTags.isEmpty() && openTags.size() > matchedDepth) {
+                    openTags.remove(openTags.size() - 1);
+                }
+            }
+            depth--;
+        }
+
+        @Override
+        public void characters(CharSequence chars, Location locationId, int properties) throws XPathException {
+            if (out != null) {
+                out.characters(chars, locationId, properties);
+            }
+        }
+
+        @Override
+        public void processingInstruction(String target, CharSequence data, Location locationId, int properties) throws XPathException {
+            if (out != null) {
+                out.processingInstruction(target, data, locationId, properties);
+            }
+        }
+
+        @Override
+        public void comment(CharSequence chars, Location locationId, int properties) throws XPathException {
+            if (out != null) {
+                out.comment(chars, locationId, properties);
+            }
+        }
+
+        /**
+         * Start building the tree for a selected element. For <code>snapshot()</code> the tree contains
+         * a document node and copies of the ancestors of the element, with their attributes and namespaces.
+         * For <code>copy-of()</code> the element is the root of the tree, and the namespaces that it
+         * inherits from its ancestors are declared on it.
+         */
+
+        private void startBurst() throws XPathException {
+            builder = new TinyBuilder(getPipelineConfiguration());
+            builder.setStatistics(getConfiguration().getTreeStatistics().TEMPORARY_TREE_STATISTICS);
+            builder.setSystemId(getSystemId());
+            builder.setTiming(false);
+            builder.setUseEventLocation(true);
+            if (parseOptions.isLineNumbering()) {
+                builder.setLineNumbering(true);
+            }
+            burstDepth = depth;
+            if (snapshot) {
+                BuilderMonitor bm = builder.getBuilderMonitor();
+                bm.open();
+                for (String[] entity : unparsedEntities) {
+                    bm.setUnparsedEntity(entity[0], entity[1], entity[2]);
+                }
+                bm.startDocument(0);
+                for (StartTag tag : openTags) {
+                    bm.startElement(tag.name, tag.type, tag.location, tag.properties);
+                    for (NamespaceBinding ns : tag.namespaces) {
+                        bm.namespace(ns, 0);
+                    }
+                    for (AttributeEvent att : tag.attributes) {
+                        bm.attribute(att.name, att.type, att.value, att.location, att.properties);
+                    }
+                    bm.startContent();
+                }
+                bm.markNextNode(Type.ELEMENT);
+                out = bm;
+            } else {
+                builder.open();
+                out = builder;
+            }
+        }
+
+        private void flushBurstNamespaces() throws XPathException {
+            if (burstNamespaces != null) {
+                Map<String, NamespaceBinding> inScope = new LinkedHashMap<>();
+                for (NamespaceBinding ns : burstNamespaces) {
+                    inScope.put(ns.getPrefix(), ns);
+                }
+                if (!snapshot) {
+                    for (int i = openTags.size() - 1; i >= 0; i--) {
+                        for (NamespaceBinding ns : openTags.get(i).namespaces) {
+                            inScope.putIfAbsent(ns.getPrefix(), ns);
+                        }
+                    }
+                }
+                burstNamespaces = null;
+                for (NamespaceBinding ns : inScope.values()) {
+                    if (snapshot || !ns.getURI().isEmpty()) {
+                        out.namespace(ns, 0);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Finish building the tree for a selected element, and evaluate the body of the xsl:for-each
+         * with the copied element as the context item
+         */
+
+        private void endBurst() throws XPathException {
+            NodeInfo node;
+            if (snapshot) {
+                BuilderMonitor bm = (BuilderMonitor) out;
+                for (int i = 0; i < openTags.size(); i++) {
+                    bm.endElement();
+                }
+                bm.endDocument();
+                bm.close();
+                node = bm.getMarkedNode();
+            } else {
+                builder.close();
+                node = builder.getCurrentRoot();
+            }
+            builder = null;
+            out = null;
+
+            XPathContextMajor c2 = context.newContext();
+            c2.setOrigin(forEach);
+            ManualIterator<NodeInfo> focus = new ManualIterator<>(node, ++position);
+            c2.setCurrentIterator(focus);
+            c2.setCurrentTemplateRule(null);
+            PipelineConfiguration pipe = c2.getReceiver().getPipelineConfiguration();
+            pipe.setXPathContext(c2);
+            try {
+                forEach.getAction().process(c2);
+            } finally {
+                pipe.setXPathContext(context);
+            }
+        }
+    }
+
+}
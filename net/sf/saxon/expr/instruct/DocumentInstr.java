@@ -14,6 +14,7 @@ import net.sf.saxon.expr.*;
 import net.sf.saxon.expr.parser.ExpressionTool;
 import net.sf.saxon.expr.parser.RebindingMap;
 import net.sf.saxon.functions.SystemFunction;
+import net.sf.saxon.lib.Feature;
 import net.sf.saxon.lib.ParseOptions;
 import net.sf.saxon.lib.Validation;
 import net.sf.saxon.om.Item;
@@ -24,7 +25,9 @@ import net.sf.saxon.pattern.NodeKindTest;
 import net.sf.saxon.pattern.NodeTest;
 import net.sf.saxon.trace.ExpressionPresenter;
 import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.trans.XsltController;
 import net.sf.saxon.tree.linked.DocumentImpl;
+import net.sf.saxon.tree.tiny.IncrementalIndexer;
 import net.sf.saxon.tree.tiny.TinyBuilder;
 import net.sf.saxon.tree.util.FastStringBuffer;
 import net.sf.saxon.type.*;
@@ -47,6 +50,8 @@ public class DocumentInstr extends ParentNodeConstructor {
 
     private boolean textOnly;
     /*@Nullable*/ private String constantText;
+    private transient IncrementalIndexer.Plan indexingPlan;
+    private transient boolean indexingPlanKnown = false;
 
     /**
      * Create a document constructor instruction
@@ -302,7 +307,16 @@ public class DocumentInstr extends ParentNodeConstructor {
                 pipe.setHostLanguage(getPackageData().getHostLanguage());
                 builder.setPipelineConfiguration(pipe);
 
-                Receiver out = ComplexContentOutputter.makeComplexContentReceiver(builder, getValidationOptions());
+                Receiver target = builder;
+                if (builder instanceof TinyBuilder && config.getBooleanProperty(Feature.INCREMENTAL_TREE_INDEXING)
+                        && controller instanceof XsltController) {
+                    IncrementalIndexer.Plan plan = getIndexingPlan();
+                    if (plan != null) {
+                        target = new IncrementalIndexer((TinyBuilder) builder, plan, context);
+                    }
+                }
+
+                Receiver out = ComplexContentOutputter.makeComplexContentReceiver(target, getValidationOptions());
                 context.setReceiver(out);
                 out.open();
                 out.startDocument(0);
@@ -323,6 +337,20 @@ public class DocumentInstr extends ParentNodeConstructor {
     }
 
 
+    /**
+     * Get the keys and accumulators that can be computed while the result tree is being built
+     *
+     * @return the plan, or null if there are no such keys or accumulators
+     */
+
+    private IncrementalIndexer.Plan getIndexingPlan() {
+        if (!indexingPlanKnown) {
+            indexingPlan = IncrementalIndexer.Plan.make(getPackageData());
+            indexingPlanKnown = true;
+        }
+        return indexingPlan;
+    }
+
     /**
      * Get the name of this instruction for diagnostic and tracing purposes
      * (the string "document-constructor")
@@ -13,6 +13,7 @@ import net.sf.saxon.expr.*;
 import net.sf.saxon.expr.parser.*;
 import net.sf.saxon.lib.TraceListener;
 import net.sf.saxon.om.FocusIterator;
+import net.sf.saxon.om.GroundedValue;
 import net.sf.saxon.om.Item;
 import net.sf.saxon.om.SequenceIterator;
 import net.sf.saxon.om.StandardNames;
@@ -38,6 +39,8 @@ public class ForEach extends Instruction implements ContextMappingFunction<Item<
     protected Operand actionOp;
     protected Operand threadsOp;
     protected boolean isInstruction;
+    protected boolean parallelEvaluationRequested;
+    protected boolean parallelizable;
 
     /**
      * Create an xsl:for-each instruction
@@ -56,7 +59,7 @@ public class ForEach extends Instruction implements ContextMappingFunction<Item<
      * @param select           the select expression
      * @param action           the body of the xsl:for-each loop
      * @param containsTailCall true if the body of the loop contains a tail call on the containing function
-     * @param threads          if &gt;1 causes multithreaded execution (Saxon-EE only)
+     * @param threads          if &gt;1 causes multithreaded execution, if multithreading is enabled
      */
 
     public ForEach(Expression select, Expression action, boolean containsTailCall, Expression threads) {
@@ -91,6 +94,28 @@ public class ForEach extends Instruction implements ContextMappingFunction<Item<
     }
 
 
+    /**
+     * Request that the "!" operator be evaluated in parallel if possible, regardless of the setting of
+     * {@link net.sf.saxon.lib.Feature#PARALLEL_MAPPING}. This is used for an expression enclosed in the
+     * XQuery pragma <code>(# saxon:parallel #)</code>.
+     *
+     * @param requested true if parallel evaluation is requested
+     */
+
+    public void setParallelEvaluationRequested(boolean requested) {
+        parallelEvaluationRequested = requested;
+    }
+
+    /**
+     * Ask whether parallel evaluation of this expression has been specifically requested
+     *
+     * @return true if parallel evaluation has been requested
+     */
+
+    public boolean isParallelEvaluationRequested() {
+        return parallelEvaluationRequested;
+    }
+
     /**
      * Get the select expression
      *
@@ -285,6 +310,8 @@ public class ForEach extends Instruction implements ContextMappingFunction<Item<
             actionOp.setOperandRole(actionOp.getOperandRole().modifyProperty(OperandRole.SINGLETON, true));
         }
 
+        parallelizable = ParallelMappingIterator.isParallelizable(
+                getAction(), parallelEvaluationRequested, visitor.getConfiguration());
         return this;
     }
 
@@ -309,6 +336,8 @@ public class ForEach extends Instruction implements ContextMappingFunction<Item<
         if (threadsOp != null && !Literal.isEmptySequence(getThreads())) {
             return visitor.obtainOptimizer().generateMultithreadedInstruction(this);
         }
+        parallelizable = ParallelMappingIterator.isParallelizable(
+                getAction(), parallelEvaluationRequested, visitor.getConfiguration());
         return this;
     }
 
@@ -364,6 +393,8 @@ public class ForEach extends Instruction implements ContextMappingFunction<Item<
         ForEach f2 = new ForEach(getSelect().copy(rebindings), getAction().copy(rebindings), containsTailCall, getThreads());
         ExpressionTool.copyLocationInfo(this, f2);
         f2.setInstruction(isInstruction());
+        f2.setParallelEvaluationRequested(parallelEvaluationRequested);
+        f2.parallelizable = parallelizable;
         return f2;
     }
 
@@ -500,8 +531,17 @@ public class ForEach extends Instruction implements ContextMappingFunction<Item<
 
     /*@NotNull*/
     public SequenceIterator<?> iterate(XPathContext context) throws XPathException {
+        SequenceIterator<?> base = getSelect().iterate(context);
+        if (!isInstruction && (base.getProperties() & SequenceIterator.GROUNDED) != 0 &&
+                ParallelMappingIterator.isEnabled(parallelEvaluationRequested, context)) {
+            GroundedValue<?> input = base.materialize();
+            if (parallelizable && input.getLength() >= ParallelMappingIterator.MIN_PARALLEL_SIZE) {
+                return new ParallelMappingIterator(input, getAction(), -1, context);
+            }
+            base = input.iterate();
+        }
         XPathContextMinor c2 = context.newMinorContext();
-        c2.trackFocus(getSelect().iterate(context));
+        c2.trackFocus(base);
         return new ContextMappingIterator<>(this, c2);
     }
 
@@ -7,10 +7,11 @@
 
 package net.sf.saxon.expr.instruct;
 
-import net.sf.saxon.expr.Expression;
-import net.sf.saxon.expr.Operand;
-import net.sf.saxon.expr.OperandRole;
-import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.event.EventBuffer;
+import net.sf.saxon.event.PipelineConfiguration;
+import net.sf.saxon.event.Receiver;
+import net.sf.saxon.expr.*;
 import net.sf.saxon.expr.parser.ExpressionTool;
 import net.sf.saxon.expr.parser.RebindingMap;
 import net.sf.saxon.om.StandardNames;
@@ -21,16 +22,30 @@ import net.sf.saxon.type.ErrorType;
 import net.sf.saxon.type.ItemType;
 import net.sf.saxon.type.Type;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 
 /**
  * This class implements an xsl:fork expression.
+ *
+ * <p>When multi-threading is enabled, and at least two of the branches do more than return a constant,
+ * the branches other than the first are evaluated concurrently in the worker pool of the configuration
+ * (whose size is set by {@link net.sf.saxon.lib.Feature#MAX_PARALLELISM}), while the first branch is
+ * evaluated in the calling thread. Each branch evaluated in another thread has its own copy of the dynamic
+ * context and writes its result to an {@link EventBuffer}; the buffers are replayed in order after the
+ * first branch has finished, so the result is the same as for sequential evaluation. Branches that contain
+ * an <code>xsl:result-document</code> instruction, whose effect depends on the current output state, are
+ * always evaluated sequentially.</p>
  */
 
 public class Fork extends Instruction {
 
     Operand[] operanda;
+    private int parallelizable = -1;  // -1: not yet known; 0: false; 1: true
 
     /**
      * Create a Fork instruction
@@ -147,12 +162,80 @@ public class Fork extends Instruction {
      */
     @Override
     public TailCall processLeavingTail(XPathContext context) throws XPathException {
-        for (Operand o : operands()) {
-            o.getChildExpression().process(context);
+        Configuration config = context.getConfiguration();
+        if (context instanceof XPathContextMinor && isParallelizable() && config.isMultiThreadingEnabled() &&
+                config.getMaxParallelism() > 1 && !context.getController().isTracing()) {
+            processInParallel((XPathContextMinor) context);
+        } else {
+            for (Operand o : operands()) {
+                o.getChildExpression().process(context);
+            }
         }
         return null;
     }
 
+    /**
+     * Ask whether the branches of the fork are eligible for concurrent evaluation. This is the case if
+     * at least two of them do more than return a constant, and none of them contains an xsl:result-document
+     * instruction.
+     *
+     * @return true if the branches may be evaluated concurrently
+     */
+
+    public boolean isParallelizable() {
+        if (parallelizable < 0) {
+            int active = 0;
+            boolean ok = true;
+            for (Operand o : operands()) {
+                Expression prong = o.getChildExpression();
+                if (!(prong instanceof Literal)) {
+                    active++;
+                }
+                if (ExpressionTool.contains(prong, false, e -> e instanceof ResultDocument)) {
+                    ok = false;
+                }
+            }
+            parallelizable = ok && active > 1 ? 1 : 0;
+        }
+        return parallelizable == 1;
+    }
+
+    /**
+     * Process the instruction, evaluating the branches concurrently
+     *
+     * @param context the dynamic context
+     * @throws XPathException if a dynamic error occurs in any branch. If several branches fail,
+     *                        the error in the first of them is reported.
+     */
+
+    private void processInParallel(XPathContextMinor context) throws XPathException {
+        Receiver out = context.getReceiver();
+        PipelineConfiguration pipe = out.getPipelineConfiguration();
+        ForkJoinPool pool = context.getConfiguration().getWorkerPool();
+        List<Future<EventBuffer>> tasks = new ArrayList<>(getSize() - 1);
+        try {
+            for (int i = 1; i < getSize(); i++) {
+                Expression prong = getProng(i);
+                boolean needsLast = (prong.getDependencies() & StaticProperty.DEPENDS_ON_LAST) != 0;
+                XPathContextMajor c2 = XPathContextMajor.newThreadContext(context, needsLast);
+                tasks.add(pool.submit(() -> {
+                    EventBuffer buffer = new EventBuffer(pipe);
+                    c2.setReceiver(buffer);
+                    prong.process(c2);
+                    return buffer;
+                }));
+            }
+            getProng(0).process(context);
+            for (Future<EventBuffer> task : tasks) {
+                MultithreadedForEach.waitFor(task).replay(out);
+            }
+        } finally {
+            for (Future<EventBuffer> task : tasks) {
+                task.cancel(false);
+            }
+        }
+    }
+
     /**
      * Diagnostic print of expression structure. The abstract expression tree
      * is written to the supplied output destination.
@@ -736,18 +736,24 @@ public class GlobalVariable extends Actor
         final Controller controller = context.getController();
         assert controller != null;
         final Bindery b = controller.getBindery(getPackageData());
+        boolean go = false;
 
         try {
             // This is the first reference to a global variable; try to evaluate it now.
             // But first check for circular dependencies.
             setDependencies(this, context);
 
-            // Set a flag to indicate that the variable is being evaluated. This is designed to prevent
-            // (where possible) the same global variable being evaluated several times in different threads
-            boolean go = b.setExecuting(this);
+            // Indicate that the variable is being evaluated. This prevents the same global variable being
+            // evaluated several times in different threads: if another thread is already evaluating it, we
+            // wait for that evaluation to finish
+            go = b.setExecuting(this);
             if (!go) {
                 // some other thread has evaluated the variable while we were waiting
-                return b.getGlobalVariable(getBinderySlotNumber());
+                GroundedValue<?> v = b.getGlobalVariable(getBinderySlotNumber());
+                if (v instanceof Bindery.FailureValue) {
+                    throw ((Bindery.FailureValue) v).getObject();
+                }
+                return v;
             }
 
             GroundedValue<?> value = getSelectValue(context, target);
@@ -757,7 +763,9 @@ public class GlobalVariable extends Actor
             return b.saveGlobalVariableValue(this, value);
 
         } catch (XPathException err) {
-            b.setNotExecuting(this);
+            if (go) {
+                b.setNotExecuting(this);
+            }
             if (err instanceof XPathException.Circularity) {
                 String errorCode;
                 if (getPackageData().getHostLanguage() == Configuration.XSLT) {
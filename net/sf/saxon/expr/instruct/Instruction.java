@@ -190,7 +190,7 @@ public abstract class Instruction extends Expression implements TailCallReturner
         }
         ParameterSet params = new ParameterSet(actualParams.length);
         for (WithParam actualParam : actualParams) {
-            params.put(actualParam.getVariableQName(),
+            params.put(actualParam.getParameterId(),
                     actualParam.getSelectValue(context),
                     actualParam.isTypeChecked());
         }
@@ -222,7 +222,7 @@ public abstract class Instruction extends Expression implements TailCallReturner
 
         ParameterSet newParams = new ParameterSet(existingParams, actualParams.length);
         for (WithParam actualParam : actualParams) {
-            newParams.put(actualParam.getVariableQName(),
+            newParams.put(actualParam.getParameterId(),
                           actualParam.getSelectValue(context),
                           false);
         }
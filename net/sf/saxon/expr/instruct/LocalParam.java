@@ -44,6 +44,7 @@ public final class LocalParam extends Instruction implements LocalBinding {
     private byte properties = 0;
     private Operand selectOp = null;
     protected StructuredQName variableQName;
+    private int parameterId = -1;
     private SequenceType requiredType;
     protected int slotNumber = -999;
     protected int referenceCount = 10;
@@ -282,6 +283,7 @@ public final class LocalParam extends Instruction implements LocalBinding {
             p2.setSelectExpression(getSelectExpression().copy(rebindings));
         }
         p2.variableQName = variableQName;
+        p2.parameterId = parameterId;
         p2.requiredType = requiredType;
         p2.slotNumber = slotNumber;
         p2.referenceCount = referenceCount;
@@ -372,6 +374,7 @@ public final class LocalParam extends Instruction implements LocalBinding {
 
     public void setVariableQName(StructuredQName s) {
         variableQName = s;
+        parameterId = ParameterSet.getParameterId(s);
     }
 
     /**
@@ -453,7 +456,7 @@ public final class LocalParam extends Instruction implements LocalBinding {
      */
 
     public TailCall processLeavingTail(XPathContext context) throws XPathException {
-        int wasSupplied = context.useLocalParameter(variableQName, slotNumber, isTunnelParam());
+        int wasSupplied = context.useLocalParameter(parameterId, slotNumber, isTunnelParam());
         switch (wasSupplied) {
             case ParameterSet.SUPPLIED_AND_CHECKED:
                 // No action needed
@@ -477,7 +480,7 @@ public final class LocalParam extends Instruction implements LocalBinding {
             case ParameterSet.NOT_SUPPLIED:
                 if (isRequiredParam() || isImplicitlyRequiredParam()) {
                     String name = "$" + getVariableQName().getDisplayName();
-                    int suppliedAsTunnel = context.useLocalParameter(variableQName, slotNumber, !isTunnelParam());
+                    int suppliedAsTunnel = context.useLocalParameter(parameterId, slotNumber, !isTunnelParam());
                     String message = "No value supplied for required parameter " + name;
                     if (isImplicitlyRequiredParam()) {
                         message += ". A value is required because " +
@@ -0,0 +1,203 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018 Saxonica Limited.
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.expr.instruct;
+
+import net.sf.saxon.event.EventBuffer;
+import net.sf.saxon.event.PipelineConfiguration;
+import net.sf.saxon.event.Receiver;
+import net.sf.saxon.expr.*;
+import net.sf.saxon.expr.parser.ExpressionTool;
+import net.sf.saxon.expr.parser.RebindingMap;
+import net.sf.saxon.om.GroundedValue;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.trace.ExpressionPresenter;
+import net.sf.saxon.trans.Err;
+import net.sf.saxon.trans.UncheckedXPathException;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.iter.ManualIterator;
+import net.sf.saxon.value.Whitespace;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * A multi-threaded implementation of xsl:for-each, used when the instruction has a <code>saxon:threads</code>
+ * attribute and multi-threading is enabled in the configuration.
+ *
+ * <p>The items selected by the select expression are divided into contiguous blocks, and the body of the loop
+ * is evaluated for each block as a separate task in the worker pool of the configuration. Each task has its own
+ * copy of the dynamic context (including the stack frame holding local variables), and writes its output to an
+ * {@link EventBuffer}. The buffers are replayed to the current output destination in input order, so the result
+ * is the same as for single-threaded execution. The number of tasks in progress at any one time is limited
+ * to the value of <code>saxon:threads</code>.</p>
+ *
+ * <p>If evaluation of the body fails for any item, the output for the preceding blocks is written, the error is
+ * reported, and any tasks that have not yet started are cancelled. The instruction is evaluated in a single
+ * thread when tracing is enabled, and when it is evaluated in pull mode.</p>
+ */
+
+public class MultithreadedForEach extends ForEach {
+
+    /**
+     * The number of blocks into which the input is divided for each thread
+     */
+
+    private final static int BLOCKS_PER_THREAD = 4;
+
+    /**
+     * Create a multi-threaded xsl:for-each instruction
+     *
+     * @param select  the select expression
+     * @param action  the body of the xsl:for-each loop
+     * @param threads the expression used to compute the number of threads (the value of the
+     *                <code>saxon:threads</code> attribute)
+     */
+
+    public MultithreadedForEach(Expression select, Expression action, Expression threads) {
+        super(select, action, false, threads);
+    }
+
+    /*@NotNull*/
+    public Expression copy(RebindingMap rebindings) {
+        MultithreadedForEach f2 = new MultithreadedForEach(
+                getSelect().copy(rebindings), getAction().copy(rebindings), getThreads().copy(rebindings));
+        ExpressionTool.copyLocationInfo(this, f2);
+        f2.setInstruction(isInstruction());
+        return f2;
+    }
+
+    public TailCall processLeavingTail(XPathContext context) throws XPathException {
+        int threads = getNumberOfThreads(context);
+        if (threads < 2 || context.getController().isTracing()) {
+            return super.processLeavingTail(context);
+        }
+
+        GroundedValue<?> items = getSelect().iterate(context).materialize();
+        int size = items.getLength();
+        XPathContextMajor c2 = context.newContext();
+        c2.setOrigin(this);
+        c2.setCurrentTemplateRule(null);
+        if (size < 2) {
+            processItems(items, 0, size, c2);
+            return null;
+        }
+
+        Receiver out = context.getReceiver();
+        PipelineConfiguration pipe = out.getPipelineConfiguration();
+        ForkJoinPool pool = context.getConfiguration().getWorkerPool();
+        int blockSize = Math.max(1, size / (threads * BLOCKS_PER_THREAD));
+        Deque<Future<EventBuffer>> pending = new ArrayDeque<>(threads);
+        try {
+            for (int start = 0; start < size; start += blockSize) {
+                if (pending.size() >= threads) {
+                    waitFor(pending.removeFirst()).replay(out);
+                }
+                final int from = start;
+                final int to = Math.min(size, start + blockSize);
+                // The context is copied in this thread, while the stack frame is not changing
+                final XPathContextMajor c3 = XPathContextMajor.newThreadContext(c2);
+                pending.addLast(pool.submit(() -> {
+                    EventBuffer buffer = new EventBuffer(pipe);
+                    c3.setReceiver(buffer);
+                    processItems(items, from, to, c3);
+                    return buffer;
+                }));
+            }
+            while (!pending.isEmpty()) {
+                waitFor(pending.removeFirst()).replay(out);
+            }
+        } finally {
+            for (Future<EventBuffer> f : pending) {
+                f.cancel(false);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Evaluate the body of the loop for a contiguous range of items in the input sequence
+     *
+     * @param items   the input sequence
+     * @param from    the position of the first item to be processed (zero-based)
+     * @param to      the position after the last item to be processed (zero-based)
+     * @param context the dynamic context to be used; its focus is changed to each item in turn
+     * @throws XPathException if a dynamic error occurs
+     */
+
+    private void processItems(GroundedValue<?> items, int from, int to, XPathContextMajor context) throws XPathException {
+        Expression action = getAction();
+        final int size = items.getLength();
+        for (int i = from; i < to; i++) {
+            ManualIterator<Item<?>> focus = new ManualIterator<>(items.itemAt(i), i + 1);
+            focus.setLastPositionFinder(() -> size);
+            context.setCurrentIterator(focus);
+            action.process(context);
+        }
+    }
+
+    /**
+     * Wait for a task to complete, and return its result
+     *
+     * @param task the task
+     * @param <T>  the type of the result of the task
+     * @return the result of the task, for example the buffer containing its output
+     * @throws XPathException if the task failed with a dynamic error, or if the thread was interrupted
+     */
+
+    public static <T> T waitFor(Future<T> task) throws XPathException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XPathException(e);
+        } catch (ExecutionException e) {
+            // The worker pool may wrap the exception thrown by the task in one or more RuntimeExceptions
+            Throwable cause = e.getCause();
+            while (cause.getClass() == RuntimeException.class && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof XPathException) {
+                throw (XPathException) cause;
+            } else if (cause instanceof UncheckedXPathException) {
+                throw ((UncheckedXPathException) cause).getXPathException();
+            } else {
+                throw new XPathException(cause);
+            }
+        }
+    }
+
+    /**
+     * Evaluate the <code>saxon:threads</code> attribute
+     *
+     * @param context the dynamic context
+     * @return the requested number of threads
+     * @throws XPathException if the value is not an integer
+     */
+
+    private int getNumberOfThreads(XPathContext context) throws XPathException {
+        String value = Whitespace.trim(getThreads().evaluateAsString(context));
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            XPathException err = new XPathException("The value of saxon:threads must be an integer; supplied value is "
+                    + Err.wrap(value));
+            err.setLocation(getLocation());
+            err.setXPathContext(context);
+            throw err;
+        }
+    }
+
+    @Override
+    protected void explainThreads(ExpressionPresenter out) throws XPathException {
+        out.setChildRole("threads");
+        getThreads().export(out);
+    }
+}
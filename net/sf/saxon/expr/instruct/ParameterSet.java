@@ -12,20 +12,52 @@ import net.sf.saxon.om.StructuredQName;
 import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.value.Closure;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A ParameterSet is a set of parameters supplied when calling a template.
  * It is a collection of name-value pairs.
- * (Use of numeric IDs dropped in 9.6 to support separate compilation of packages)
+ *
+ * <p>Parameters are identified by an integer allocated to their name (see {@link #getParameterId}). The
+ * <code>xsl:with-param</code> and <code>xsl:param</code> instructions obtain the identifier when their name is set,
+ * that is, when the stylesheet is compiled or a compiled package is loaded. The same name always has the same
+ * identifier within a Java VM, whatever the configuration, so packages compiled separately can still be combined.
+ * Finding a parameter then requires a search comparing integers rather than names.</p>
+ *
+ * <p>A parameter set may be created as an extension of an existing set, which is the case for tunnel
+ * parameters when a template call adds further tunnel parameters to those it received. The new set
+ * holds only the added parameters, together with a reference to the existing set (which is never modified
+ * once it has been passed to a template), rather than a copy of all the parameters. Entries in the new set
+ * take precedence over entries with the same name in the existing set. To keep the cost of searching bounded,
+ * the chain of sets is copied into a single set when it becomes longer than {@link #MAX_DEPTH}.</p>
+ *
+ * <p>The entries of a parameter set are numbered from zero to <code>size()-1</code>: first the entries of this
+ * set, then those of the set it extends. An entry that is overridden by an entry with the same name in an
+ * extending set keeps its position, and is therefore counted by {@link #size()}; but it is never found by
+ * {@link #getIndex}.</p>
  */
 
 public class ParameterSet {
-    private StructuredQName[] keys;
+
+    /**
+     * The maximum number of parameter sets that are chained together before the chain is copied
+     */
+
+    public final static int MAX_DEPTH = 8;
+
+    private int[] keys;
     private Sequence<?>[] values;
     private boolean[] typeChecked;
     private int used = 0;
+    private ParameterSet parent;
+    private int depth = 0;
+
+    private final static Map<StructuredQName, Integer> parameterIds = new ConcurrentHashMap<>();
+    private final static List<StructuredQName> parameterNames = new ArrayList<>();
 
     public static ParameterSet EMPTY_PARAMETER_SET = new ParameterSet(0);
 
@@ -44,7 +76,7 @@ public class ParameterSet {
      */
 
     public ParameterSet(int capacity) {
-        keys = new StructuredQName[capacity];
+        keys = new int[capacity];
         values = (Sequence<?>[])new Sequence[capacity];
         typeChecked = new boolean[capacity];
     }
@@ -58,7 +90,7 @@ public class ParameterSet {
         this(map.size());
         int i = 0;
         for (Map.Entry<StructuredQName, Sequence<?>> entry : map.entrySet()) {
-            keys[i] = entry.getKey();
+            keys[i] = getParameterId(entry.getKey());
             values[i] = entry.getValue();
             typeChecked[i++] = false;
         }
@@ -66,39 +98,90 @@ public class ParameterSet {
     }
 
     /**
-     * Create a parameter set as a copy of an existing parameter set
+     * Create a parameter set as an extension of an existing parameter set. The existing parameter set
+     * must not be modified subsequently.
      *
-     * @param existing the parameter set to be copied
+     * @param existing the parameter set to be extended
      * @param extra    the space to be allocated for additional entries
      */
 
     public ParameterSet(ParameterSet existing, int extra) {
-        this(existing.used + extra);
-        for (int i = 0; i < existing.used; i++) {
-            put(existing.keys[i], existing.values[i], existing.typeChecked[i]);
+        this(existing.depth >= MAX_DEPTH ? existing.size() + extra : extra);
+        if (existing.depth >= MAX_DEPTH) {
+            existing.copyInto(this);
+        } else if (existing.size() > 0) {
+            parent = existing;
+            depth = existing.depth + 1;
+        }
+    }
+
+    private void copyInto(ParameterSet target) {
+        if (parent != null) {
+            parent.copyInto(target);
+        }
+        for (int i = 0; i < used; i++) {
+            target.put(keys[i], values[i], typeChecked[i]);
         }
     }
 
     /**
-     * Get the number of parameters in the parameter set
-     * @return the number of parameters
+     * Get the identifier used for a parameter with a given name, allocating a new identifier if the
+     * name has not been used before. Identifiers are allocated in sequence, starting at zero, and are
+     * shared by all configurations in the Java VM.
+     *
+     * @param name the name of the parameter
+     * @return the identifier of the parameter
+     */
+
+    public static int getParameterId(StructuredQName name) {
+        Integer id = parameterIds.get(name);
+        if (id == null) {
+            synchronized (parameterNames) {
+                id = parameterIds.get(name);
+                if (id == null) {
+                    id = parameterNames.size();
+                    parameterNames.add(name);
+                    parameterIds.put(name, id);
+                }
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Get the name of the parameter with a given identifier
+     *
+     * @param id the identifier of the parameter, as returned by {@link #getParameterId}
+     * @return the name of the parameter
+     */
+
+    public static StructuredQName getParameterName(int id) {
+        synchronized (parameterNames) {
+            return parameterNames.get(id);
+        }
+    }
+
+    /**
+     * Get the number of entries in the parameter set. If the set extends another parameter set,
+     * this includes any entries in the other set that are overridden by entries in this set.
+     * @return the number of entries
      */
 
     public int size() {
-        return used;
+        return parent == null ? used : used + parent.size();
     }
 
     /**
      * Add a parameter to the ParameterSet
      *
-     * @param id      The parameter id, representing its name.
+     * @param id      The parameter id, representing its name: see {@link #getParameterId}
      * @param value   The value of the parameter
      * @param checked True if the caller has done static type checking against the required type
      */
 
-    public void put(StructuredQName id, Sequence<?> value, boolean checked) {
+    public void put(int id, Sequence<?> value, boolean checked) {
         for (int i = 0; i < used; i++) {
-            if (keys[i].equals(id)) {
+            if (keys[i] == id) {
                 values[i] = value;
                 typeChecked[i] = checked;
                 return;
@@ -116,30 +199,73 @@ public class ParameterSet {
     }
 
     /**
-     * Get the set of key names
-     * @return the key names
+     * Add a parameter to the ParameterSet
+     *
+     * @param id      The parameter name
+     * @param value   The value of the parameter
+     * @param checked True if the caller has done static type checking against the required type
+     * @deprecated since 9.9.1.6: use {@link #put(int, Sequence, boolean)}
+     */
+
+    @Deprecated
+    public void put(StructuredQName id, Sequence<?> value, boolean checked) {
+        put(getParameterId(id), value, checked);
+    }
+
+    /**
+     * Get the names of the parameters, in the order of their index positions. The result
+     * includes the names of entries that are overridden by later entries.
+     * @return the parameter names
+     * @deprecated since 9.9.1.6: parameters are identified by integer identifiers
      */
 
+    @Deprecated
     public StructuredQName[] getParameterNames() {
-        return keys;
+        StructuredQName[] names = new StructuredQName[size()];
+        int i = 0;
+        for (ParameterSet p = this; p != null; p = p.parent) {
+            for (int j = 0; j < p.used; j++) {
+                names[i++] = getParameterName(p.keys[j]);
+            }
+        }
+        return names;
     }
 
     /**
      * Get the index position of a parameter
      *
-     * @param id The numeric parameter id, representing its name.
+     * @param id The numeric parameter id, representing its name: see {@link #getParameterId}
      * @return The index position of the parameter, or -1 if not defined
      */
 
-    public int getIndex(StructuredQName id) {
-        for (int i = 0; i < used; i++) {
-            if (keys[i].equals(id)) {
-                return i;
+    public int getIndex(int id) {
+        int offset = 0;
+        for (ParameterSet p = this; p != null; p = p.parent) {
+            int[] k = p.keys;
+            for (int i = 0; i < p.used; i++) {
+                if (k[i] == id) {
+                    return offset + i;
+                }
             }
+            offset += p.used;
         }
         return -1;
     }
 
+    /**
+     * Get the index position of a parameter
+     *
+     * @param id The parameter name
+     * @return The index position of the parameter, or -1 if not defined
+     * @deprecated since 9.9.1.6: use {@link #getIndex(int)}
+     */
+
+    @Deprecated
+    public int getIndex(StructuredQName id) {
+        Integer n = parameterIds.get(id);
+        return n == null ? -1 : getIndex(n);
+    }
+
     /**
      * Get the value of the parameter at a given index
      *
@@ -148,7 +274,12 @@ public class ParameterSet {
      */
 
     public Sequence<?> getValue(int index) {
-        return values[index];
+        ParameterSet p = this;
+        while (index >= p.used) {
+            index -= p.used;
+            p = p.parent;
+        }
+        return p.values[index];
     }
 
     /**
@@ -159,7 +290,12 @@ public class ParameterSet {
      */
 
     public boolean isTypeChecked(int index) {
-        return typeChecked[index];
+        ParameterSet p = this;
+        while (index >= p.used) {
+            index -= p.used;
+            p = p.parent;
+        }
+        return p.typeChecked[index];
     }
 
     /**
@@ -168,6 +304,8 @@ public class ParameterSet {
 
     public void clear() {
         used = 0;
+        parent = null;
+        depth = 0;
     }
 
     /**
@@ -178,9 +316,11 @@ public class ParameterSet {
      */
 
     public void materializeValues() throws XPathException {
-        for (int i = 0; i < used; i++) {
-            if (values[i] instanceof Closure) {
-                values[i] = ((Closure) values[i]).reduce();
+        for (ParameterSet p = this; p != null; p = p.parent) {
+            for (int i = 0; i < p.used; i++) {
+                if (p.values[i] instanceof Closure) {
+                    p.values[i] = ((Closure) p.values[i]).reduce();
+                }
             }
         }
     }
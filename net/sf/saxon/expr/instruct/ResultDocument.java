@@ -384,13 +384,63 @@ public class ResultDocument extends Instruction
      */
 
     public void processInstruction(Expression content, XPathContext context) throws XPathException {
-        final XsltController controller = (XsltController) context.getController();
-        assert controller != null;
-        final Configuration config = controller.getConfiguration();
         Receiver saved = context.getReceiver();
-        PipelineConfiguration pipe = saved.getPipelineConfiguration();
         String savedOutputUri = context.getCurrentOutputUri();
         Receiver out = processLeft(context);
+        processContent(content, context, out);
+        context.setReceiver(saved);
+        context.setCurrentOutputUri(savedOutputUri);
+
+    }
+
+    /**
+     * Evaluate the instruction asynchronously. The output destination is determined and opened in the
+     * calling thread, so that any conflict between output URIs is reported synchronously; the content is
+     * then evaluated and written to the destination by a task submitted to the thread manager, using a copy
+     * of the dynamic context. Output to the principal result document is always written synchronously,
+     * to preserve the order of the principal output.
+     *
+     * @param content The content expression
+     * @param context dynamic evaluation context
+     * @param manager the thread manager to which the task is submitted
+     * @throws XPathException if a dynamic error occurs in the calling thread. Errors occurring while the
+     *                        content is evaluated are reported by {@link ResultDocumentThreadManager#waitForChildThreads()}
+     */
+
+    public void processAsynchronously(Expression content, XPathContext context, ResultDocumentThreadManager manager)
+            throws XPathException {
+        XsltController controller = (XsltController) context.getController();
+        String hrefValue = evaluateHref(context);
+        if (!(context instanceof XPathContextMinor) || controller.isTracing() ||
+                hrefValue.isEmpty() || hrefValue.equals(controller.getBaseOutputURI())) {
+            Receiver saved = context.getReceiver();
+            String savedOutputUri = context.getCurrentOutputUri();
+            Receiver out = processLeft(context, hrefValue);
+            processContent(content, context, out);
+            context.setReceiver(saved);
+            context.setCurrentOutputUri(savedOutputUri);
+            return;
+        }
+        boolean needsLast = (content.getDependencies() & StaticProperty.DEPENDS_ON_LAST) != 0;
+        XPathContextMajor c2 = XPathContextMajor.newThreadContext((XPathContextMinor) context, needsLast);
+        c2.setOrigin(this);
+        Receiver out = processLeft(c2, hrefValue);
+        manager.submit(() -> {
+            processContent(content, c2, out);
+            return null;
+        });
+    }
+
+    /**
+     * Evaluate the content of the instruction, writing it to the destination, and close the destination
+     *
+     * @param content the content expression
+     * @param context the dynamic context, whose receiver is the destination
+     * @param out     the destination
+     * @throws XPathException if a dynamic error occurs
+     */
+
+    private void processContent(Expression content, XPathContext context, Receiver out) throws XPathException {
         boolean failed = false;
         try {
             content.process(context);
@@ -410,15 +460,31 @@ public class ResultDocument extends Instruction
                 // Otherwise no further action; report the original error in preference. Bug 4227
             }
         }
-        context.setReceiver(saved);
-        context.setCurrentOutputUri(savedOutputUri);
+    }
+
+    /**
+     * Evaluate the href attribute
+     *
+     * @param context the dynamic context
+     * @return the value of the href attribute, converted to a URI, or a zero-length string if absent
+     * @throws XPathException if a dynamic error occurs
+     */
 
+    private String evaluateHref(XPathContext context) throws XPathException {
+        if (getHref() != null) {
+            return IriToUri.iriToUri(getHref().evaluateAsString(context)).toString();
+        }
+        return "";
     }
 
     public Receiver processLeft(XPathContext context) throws XPathException {
+        checkNotTemporaryOutputState(context);
+        return processLeft(context, evaluateHref(context));
+    }
+
+    private Receiver processLeft(XPathContext context, String hrefValue) throws XPathException {
         XsltController controller = (XsltController)context.getController();
         Configuration config = controller.getConfiguration();
-        checkNotTemporaryOutputState(context);
 
         Properties computedLocalProps = gatherOutputProperties(context);
         if (getStaticBaseURIString() != null) {
@@ -443,10 +509,6 @@ public class ResultDocument extends Instruction
 
         Receiver out = null;
         ResultDocumentResolver resolver = null;
-        String hrefValue = "";
-        if (getHref() != null) {
-            hrefValue = IriToUri.iriToUri(getHref().evaluateAsString(context)).toString();
-        }
         if (hrefValue.isEmpty() || hrefValue.equals(controller.getBaseOutputURI())) {
             PrincipalOutputGatekeeper gateKeeper = controller.getGatekeeper();
             if (gateKeeper != null) {
@@ -0,0 +1,92 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018 Saxonica Limited.
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.expr.instruct;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.expr.XPathContextMajor;
+import net.sf.saxon.trans.UncheckedXPathException;
+import net.sf.saxon.trans.XPathException;
+
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * The thread manager used in Saxon-HE to evaluate <code>xsl:result-document</code> instructions asynchronously.
+ * A thread manager is created at the start of a transformation, and at the start of each <code>xsl:try</code>
+ * instruction; it keeps track of the result documents that are being written in other threads, so that
+ * the transformation (or the <code>xsl:try</code>) can wait for them to finish, and report any errors.
+ *
+ * <p>The tasks run on the result document executor of the configuration, whose size is determined by
+ * {@link net.sf.saxon.lib.Feature#RESULT_DOCUMENT_THREADS}. If all its threads are busy, a task is run
+ * synchronously in the thread that submits it.</p>
+ */
+
+public class ResultDocumentThreadManager extends XPathContextMajor.ThreadManager {
+
+    private final Configuration config;
+    private final Queue<Future<?>> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Create a thread manager
+     *
+     * @param config the Saxon configuration, which supplies the executor used to run the tasks
+     */
+
+    public ResultDocumentThreadManager(Configuration config) {
+        this.config = config;
+    }
+
+    /**
+     * Start a task that writes a result document
+     *
+     * @param task the task to be executed. Any exception thrown by the task is reported when
+     *             {@link #waitForChildThreads()} is called.
+     */
+
+    public void submit(Callable<?> task) {
+        tasks.add(config.getResultDocumentExecutor().submit(task));
+    }
+
+    /**
+     * Wait until all the tasks started under the control of this thread manager (including any that
+     * are started while waiting) have finished
+     *
+     * @throws XPathException if any of the tasks failed; if several failed, the error reported is
+     *                        that of the first task to be started
+     */
+
+    public void waitForChildThreads() throws XPathException {
+        XPathException error = null;
+        Future<?> task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new XPathException(e);
+            } catch (ExecutionException e) {
+                if (error == null) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof XPathException) {
+                        error = (XPathException) cause;
+                    } else if (cause instanceof UncheckedXPathException) {
+                        error = ((UncheckedXPathException) cause).getXPathException();
+                    } else {
+                        error = new XPathException(cause);
+                    }
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
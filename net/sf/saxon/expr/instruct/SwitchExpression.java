@@ -0,0 +1,524 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018 Saxonica Limited.
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.expr.instruct;
+
+import net.sf.saxon.expr.*;
+import net.sf.saxon.expr.parser.ExpressionTool;
+import net.sf.saxon.expr.parser.PathMap;
+import net.sf.saxon.expr.parser.RebindingMap;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.om.StandardNames;
+import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.trace.ExpressionPresenter;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.util.FastStringBuffer;
+import net.sf.saxon.type.*;
+import net.sf.saxon.value.Cardinality;
+import net.sf.saxon.value.SequenceExtent;
+import net.sf.saxon.value.StringValue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * A switch expression: this is the compiled form of an xsl:choose instruction, XPath conditional, or
+ * XQuery switch expression in which every condition compares the same expression (the subject) for
+ * equality with one or more string literals, using the Unicode codepoint collation. The action is selected
+ * by looking up the string values of the subject in a hash table, rather than by testing each condition in turn.
+ *
+ * <p>The optimizer only generates a switch expression where the original conditions would compare
+ * string values: that is, where each item in the value of the subject is an instance of xs:string,
+ * xs:anyURI, or xs:untypedAtomic, or where the comparison (as in an XQuery switch expression) treats items
+ * of other types as unequal to every string. If the subject has several items, the action chosen is that of
+ * the first case that matches any of them, as with a general comparison. If no case matches, the
+ * default action is evaluated; this represents the xsl:otherwise branch, or the remaining conditions
+ * of the original xsl:choose, or an empty sequence if there are neither.</p>
+ */
+
+public class SwitchExpression extends Instruction implements ConditionalInstruction {
+
+    private Operand subjectOp;
+    private Operand[] actionOps;
+    private Operand defaultOp;
+    private String[][] caseKeys;
+    private Map<String, Integer> dispatch;
+    private boolean isInstruction;
+
+    /**
+     * Construct a switch expression
+     *
+     * @param subject       the expression whose value is compared with the keys
+     * @param caseKeys      for each case, the strings that select that case
+     * @param actions       for each case, the action to be evaluated if that case is selected
+     * @param defaultAction the action to be evaluated if no case is selected
+     */
+
+    public SwitchExpression(Expression subject, String[][] caseKeys, Expression[] actions, Expression defaultAction) {
+        subjectOp = new Operand(this, subject, OperandRole.ATOMIC_SEQUENCE);
+        actionOps = new Operand[actions.length];
+        for (int i = 0; i < actions.length; i++) {
+            actionOps[i] = new Operand(this, actions[i], Choose.CHOICE_ACTION);
+        }
+        defaultOp = new Operand(this, defaultAction, Choose.CHOICE_ACTION);
+        this.caseKeys = caseKeys;
+        dispatch = new HashMap<>();
+        for (int i = 0; i < caseKeys.length; i++) {
+            for (String key : caseKeys[i]) {
+                // if the same key appears in more than one case, the first case wins
+                dispatch.putIfAbsent(key, i);
+            }
+        }
+    }
+
+    /**
+     * Say whether this switch expression originates as an XSLT instruction
+     *
+     * @param inst true if this is an xsl:choose instruction
+     */
+
+    public void setInstruction(boolean inst) {
+        isInstruction = inst;
+    }
+
+    /**
+     * Ask whether this expression is an instruction. In XSLT streamability analysis this
+     * is used to distinguish constructs corresponding to XSLT instructions from other constructs.
+     *
+     * @return true if this construct originates as an XSLT instruction
+     */
+
+    @Override
+    public boolean isInstruction() {
+        return isInstruction;
+    }
+
+    /**
+     * Get the expression whose value is compared with the keys
+     *
+     * @return the subject expression
+     */
+
+    public Expression getSubject() {
+        return subjectOp.getChildExpression();
+    }
+
+    /**
+     * Get the number of cases, excluding the default
+     *
+     * @return the number of cases
+     */
+
+    public int getNumberOfCases() {
+        return actionOps.length;
+    }
+
+    /**
+     * Get the keys that select a given case
+     *
+     * @param i the case number, zero-based
+     * @return the strings that select this case
+     */
+
+    public String[] getCaseKeys(int i) {
+        return caseKeys[i];
+    }
+
+    /**
+     * Get the action for a given case
+     *
+     * @param i the case number, zero-based
+     * @return the action to be evaluated when this case is selected
+     */
+
+    public Expression getAction(int i) {
+        return actionOps[i].getChildExpression();
+    }
+
+    /**
+     * Get the action to be evaluated when no case is selected
+     *
+     * @return the default action
+     */
+
+    public Expression getDefaultAction() {
+        return defaultOp.getChildExpression();
+    }
+
+    @Override
+    public Iterable<Operand> operands() {
+        List<Operand> operanda = new ArrayList<>(actionOps.length + 2);
+        operanda.add(subjectOp);
+        for (Operand o : actionOps) {
+            operanda.add(o);
+        }
+        operanda.add(defaultOp);
+        return operanda;
+    }
+
+    private Iterable<Operand> allActions() {
+        List<Operand> list = new ArrayList<>(actionOps.length + 1);
+        for (Operand o : actionOps) {
+            list.add(o);
+        }
+        list.add(defaultOp);
+        return list;
+    }
+
+    /**
+     * Ask whether common subexpressions found in the operands of this expression can
+     * be extracted and evaluated outside the expression itself.
+     *
+     * @return false for this kind of expression
+     */
+    @Override
+    public boolean allowExtractingCommonSubexpressions() {
+        return false;
+    }
+
+    /**
+     * Get the name of this instruction for diagnostic and tracing purposes
+     */
+
+    public int getInstructionNameCode() {
+        return StandardNames.XSL_CHOOSE;
+    }
+
+    /**
+     * Copy an expression. This makes a deep copy.
+     *
+     * @param rebindings variables that need to be re-bound
+     * @return the copy of the original expression
+     */
+
+    /*@NotNull*/
+    public Expression copy(RebindingMap rebindings) {
+        Expression[] a2 = new Expression[actionOps.length];
+        for (int i = 0; i < actionOps.length; i++) {
+            a2[i] = getAction(i).copy(rebindings);
+        }
+        SwitchExpression sw = new SwitchExpression(
+                getSubject().copy(rebindings), caseKeys, a2, getDefaultAction().copy(rebindings));
+        ExpressionTool.copyLocationInfo(this, sw);
+        sw.setInstruction(isInstruction());
+        return sw;
+    }
+
+    /**
+     * An implementation of Expression must provide at least one of the methods evaluateItem(), iterate(), or process().
+     * This method indicates which of these methods is prefered. For instructions this is the process() method.
+     */
+
+    public int getImplementationMethod() {
+        int m = Expression.PROCESS_METHOD | Expression.ITERATE_METHOD | Expression.WATCH_METHOD;
+        if (!Cardinality.allowsMany(getCardinality())) {
+            m |= Expression.EVALUATE_METHOD;
+        }
+        return m;
+    }
+
+    /**
+     * Mark tail-recursive calls on functions. For most expressions, this does nothing.
+     *
+     * @return 0 if no tail call was found; 1 if a tail call on a different function was found;
+     *         2 if a tail recursive call was found and if this call accounts for the whole of the value.
+     */
+
+    public int markTailFunctionCalls(StructuredQName qName, int arity) {
+        int result = UserFunctionCall.NOT_TAIL_CALL;
+        for (Operand action : allActions()) {
+            result = Math.max(result, action.getChildExpression().markTailFunctionCalls(qName, arity));
+        }
+        return result;
+    }
+
+    /**
+     * Get the item type of the items returned by evaluating this instruction
+     *
+     * @return the static item type of the instruction
+     */
+
+    /*@NotNull*/
+    public ItemType getItemType() {
+        TypeHierarchy th = getConfiguration().getTypeHierarchy();
+        ItemType type = getDefaultAction().getItemType();
+        for (int i = 0; i < actionOps.length; i++) {
+            type = Type.getCommonSuperType(type, getAction(i).getItemType(), th);
+        }
+        return type;
+    }
+
+    /**
+     * Get the static type of the expression as a UType, following precisely the type
+     * inference rules defined in the XSLT 3.0 specification.
+     *
+     * @param contextItemType the static type of the context item
+     * @return the static item type of the expression according to the XSLT 3.0 defined rules
+     */
+    @Override
+    public UType getStaticUType(UType contextItemType) {
+        if (isInstruction()) {
+            return super.getStaticUType(contextItemType);
+        } else {
+            UType type = getDefaultAction().getStaticUType(contextItemType);
+            for (int i = 0; i < actionOps.length; i++) {
+                type = type.union(getAction(i).getStaticUType(contextItemType));
+            }
+            return type;
+        }
+    }
+
+    /**
+     * Compute the cardinality of the sequence returned by evaluating this instruction
+     *
+     * @return the static cardinality
+     */
+
+    public int computeCardinality() {
+        int card = getDefaultAction().getCardinality();
+        for (int i = 0; i < actionOps.length; i++) {
+            card = Cardinality.union(card, getAction(i).getCardinality());
+        }
+        return card;
+    }
+
+    /**
+     * Get the static properties of this expression (other than its type). The result is
+     * bit-signficant. These properties are used for optimizations. In general, if
+     * property bit is set, it is true, but if it is unset, the value is unknown.
+     *
+     * @return a set of flags indicating static properties of this expression
+     */
+
+    public int computeSpecialProperties() {
+        // The special properties of a switch are those which are common to every branch
+        int props = getDefaultAction().getSpecialProperties();
+        for (int i = 0; i < actionOps.length; i++) {
+            props &= getAction(i).getSpecialProperties();
+        }
+        return props;
+    }
+
+    /**
+     * Determine whether this instruction creates new nodes.
+     * This implementation returns true if any of the actions creates new nodes.
+     */
+
+    public final boolean mayCreateNewNodes() {
+        for (Operand action : allActions()) {
+            int props = action.getChildExpression().getSpecialProperties();
+            if ((props & StaticProperty.NO_NODES_NEWLY_CREATED) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replace this expression by a simpler expression that delivers the results without regard
+     * to order.
+     *
+     * @param retainAllNodes set to true if the result must contain exactly the same nodes as the
+     *                       original; set to false if the result can eliminate (or introduce) duplicates.
+     * @param forStreaming  set to true if optimizing for streaming
+     */
+    @Override
+    public Expression unordered(boolean retainAllNodes, boolean forStreaming) throws XPathException {
+        for (Operand action : allActions()) {
+            action.setChildExpression(action.getChildExpression().unordered(retainAllNodes, forStreaming));
+        }
+        return this;
+    }
+
+    /**
+     * Check that any elements and attributes constructed or returned by this expression are acceptable
+     * in the content model of a given complex type.
+     */
+
+    public void checkPermittedContents(SchemaType parentType, boolean whole) throws XPathException {
+        for (Operand action : allActions()) {
+            action.getChildExpression().checkPermittedContents(parentType, whole);
+        }
+    }
+
+    /**
+     * Add a representation of this expression to a PathMap. The subject contributes paths, but
+     * these do not contribute to the result.
+     *
+     * @param pathMap        the PathMap to which the expression should be added
+     * @param pathMapNodeSet the set of PathMap nodes to which the paths from this expression should be appended
+     * @return the pathMapNodeSet representing the points in the source document that are both reachable by this
+     *         expression, and that represent possible results of this expression
+     */
+
+    public PathMap.PathMapNodeSet addToPathMap(PathMap pathMap, PathMap.PathMapNodeSet pathMapNodeSet) {
+        getSubject().addToPathMap(pathMap, pathMapNodeSet);
+        PathMap.PathMapNodeSet result = new PathMap.PathMapNodeSet();
+        for (Operand action : allActions()) {
+            PathMap.PathMapNodeSet temp = action.getChildExpression().addToPathMap(pathMap, pathMapNodeSet);
+            result.addNodeSet(temp);
+        }
+        return result;
+    }
+
+    /**
+     * The toString() method for an expression attempts to give a representation of the expression
+     * in an XPath-like form, but there is no guarantee that the syntax will actually be true XPath.
+     *
+     * @return a representation of the expression as a string
+     */
+
+    public String toString() {
+        FastStringBuffer sb = new FastStringBuffer(FastStringBuffer.C64);
+        sb.append("switch (");
+        sb.append(getSubject().toString());
+        sb.append(")");
+        for (int i = 0; i < actionOps.length; i++) {
+            for (String key : caseKeys[i]) {
+                sb.append(" case \"");
+                sb.append(key);
+                sb.append("\"");
+            }
+            sb.append(" return (");
+            sb.append(getAction(i).toString());
+            sb.append(")");
+        }
+        sb.append(" default return (");
+        sb.append(getDefaultAction().toString());
+        sb.append(")");
+        return sb.toString();
+    }
+
+    @Override
+    public String toShortString() {
+        return "switch(" + getSubject().toShortString() + ") ...";
+    }
+
+    /**
+     * Diagnostic print of expression structure. The abstract expression tree
+     * is written to the supplied output destination.
+     */
+
+    public void export(ExpressionPresenter out) throws XPathException {
+        out.startElement("switch", this);
+        getSubject().export(out);
+        for (int i = 0; i < actionOps.length; i++) {
+            out.startElement("case");
+            List<StringValue> keys = new ArrayList<>(caseKeys[i].length);
+            for (String key : caseKeys[i]) {
+                keys.add(new StringValue(key));
+            }
+            Literal.makeLiteral(SequenceExtent.makeSequenceExtent(keys), this).export(out);
+            getAction(i).export(out);
+            out.endElement();
+        }
+        out.startElement("default");
+        getDefaultAction().export(out);
+        out.endElement();
+        out.endElement();
+    }
+
+    /**
+     * Process this instruction, that is, choose a case and process its action.
+     *
+     * @param context the dynamic context of this transformation
+     * @return a TailCall, if the chosen action ends with a call of call-template or
+     *         apply-templates. It is the caller's responsibility to execute such a TailCall.
+     *         If there is no TailCall, returns null.
+     * @throws XPathException if any non-recoverable dynamic error occurs
+     */
+
+    public TailCall processLeavingTail(XPathContext context) throws XPathException {
+        Expression action = getSelectedAction(context);
+        if (action instanceof TailCallReturner) {
+            return ((TailCallReturner) action).processLeavingTail(context);
+        } else {
+            action.process(context);
+            return null;
+        }
+    }
+
+    /**
+     * Identify the action to be evaluated
+     *
+     * @param context the dynamic context
+     * @return the action of the first case whose keys include the string value of some item in the value
+     * of the subject, or the default action if there is no such case
+     * @throws XPathException if evaluating the subject fails
+     */
+
+    private Expression getSelectedAction(XPathContext context) throws XPathException {
+        int selected = Integer.MAX_VALUE;
+        try {
+            SequenceIterator<?> iter = getSubject().iterate(context);
+            Item<?> item;
+            while ((item = iter.next()) != null) {
+                if (item instanceof StringValue) {
+                    Integer i = dispatch.get(item.getStringValue());
+                    if (i != null && i < selected) {
+                        selected = i;
+                        if (selected == 0) {
+                            iter.close();
+                            break;
+                        }
+                    }
+                }
+            }
+        } catch (XPathException e) {
+            e.maybeSetFailingExpression(getSubject());
+            throw e;
+        }
+        return selected == Integer.MAX_VALUE ? getDefaultAction() : getAction(selected);
+    }
+
+    /**
+     * Evaluate an expression as a single item. This always returns either a single Item or
+     * null (denoting the empty sequence).
+     *
+     * @param context The context in which the expression is to be evaluated
+     * @return the node or atomic value that results from evaluating the
+     *         expression; or null to indicate that the result is an empty
+     *         sequence
+     * @throws XPathException if any dynamic error occurs evaluating the
+     *                        expression
+     */
+
+    public Item evaluateItem(XPathContext context) throws XPathException {
+        return getSelectedAction(context).evaluateItem(context);
+    }
+
+    /**
+     * Return an Iterator to iterate over the values of a sequence.
+     *
+     * @param context supplies the context for evaluation
+     * @return a SequenceIterator that can be used to iterate over the result
+     *         of the expression
+     * @throws XPathException if any dynamic error occurs evaluating the
+     *                        expression
+     */
+
+    /*@NotNull*/
+    public SequenceIterator<?> iterate(XPathContext context) throws XPathException {
+        return getSelectedAction(context).iterate(context);
+    }
+
+    /**
+     * Get a name identifying the kind of expression, in terms meaningful to a user.
+     *
+     * @return a name identifying the kind of expression, in terms meaningful to a user.
+     * The name will always be in the form of a lexical XML QName, and should match the name used
+     * in explain() output displaying the expression.
+     */
+    @Override
+    public String getExpressionName() {
+        return "switch";
+    }
+}
@@ -64,6 +64,7 @@ public class UserFunction extends Actor implements Function, ContextOriginator {
     private FunctionStreamability declaredStreamability = FunctionStreamability.UNCLASSIFIED;
     private Determinism determinism = Determinism.PROACTIVE;
     private int refCount = 0;
+    private int contextReusable = -1; // 0:no 1:yes -1:don't know
 
 
     /**
@@ -246,6 +247,7 @@ public class UserFunction extends Actor implements Function, ContextOriginator {
      */
 
     public void computeEvaluationMode() {
+        contextReusable = -1;
         if (tailRecursive) {
             // If this function contains tail calls, we evaluate it eagerly, because
             // the caller needs to know whether a tail call was returned or not: if we
@@ -500,6 +502,40 @@ public class UserFunction extends Actor implements Function, ContextOriginator {
 
     public void setEvaluationMode(int mode) {
         evaluator = Evaluator.evaluatorForCode(mode);
+        contextReusable = -1;
+    }
+
+    @Override
+    public void setBody(Expression body) {
+        super.setBody(body);
+        contextReusable = -1;
+    }
+
+    /**
+     * Ask whether the context and stack frame created for a call on this function can be reused for
+     * a later call once this call has returned. This is the case if nothing that refers to the context
+     * can outlive the call. The function result must therefore be evaluated eagerly (a lazily-evaluated
+     * result would be a closure holding the context), and the body must not create function items, which
+     * might capture the values of local variables as closures. Memo functions, and functions containing
+     * trace instructions (which pass the context to a trace listener), are also excluded.
+     *
+     * @return true if the context used for a call on this function can be reused
+     */
+
+    public boolean isContextReusable() {
+        if (contextReusable == -1) {
+            Evaluator eval = getEvaluator();
+            boolean eager = eval == Evaluator.SINGLE_ITEM || eval == Evaluator.OPTIONAL_ITEM ||
+                    eval == Evaluator.EAGER_SEQUENCE || eval == Evaluator.LITERAL ||
+                    eval == Evaluator.EMPTY_SEQUENCE || eval == Evaluator.SHARED_APPEND ||
+                    eval == Evaluator.PROCESS;
+            Expression body = getBody();
+            boolean reusable = eager && body != null && !isMemoFunction() &&
+                    !ExpressionTool.contains(body, false,
+                                             e -> e instanceof TraceExpression || e.getItemType() instanceof FunctionItemType);
+            contextReusable = reusable ? 1 : 0;
+        }
+        return contextReusable == 1;
     }
 
     /**
@@ -597,6 +633,23 @@ public class UserFunction extends Actor implements Function, ContextOriginator {
 
         XPathContextMajor c2 = (XPathContextMajor) context;
         c2.setStackFrame(getStackFrameMap(), actualArgs);
+        return callInPreparedContext(c2);
+    }
+
+    /**
+     * Call this function to return a value, using a context whose stack frame has already been
+     * set up and populated with the arguments, for example by using
+     * {@link XPathContextMajor#openReusableStackFrame}
+     *
+     * @param c2 the context for evaluating the function body
+     * @return a Value representing the result of the function.
+     * @throws net.sf.saxon.trans.XPathException if a dynamic error occurs while evaluating the function
+     */
+
+    public Sequence<?> callInPreparedContext(XPathContextMajor c2) throws XPathException {
+        if (evaluator == null) {
+            computeEvaluationMode();
+        }
         Sequence<?> result;
         try {
             result = evaluator.evaluate(getBody(), c2);
@@ -30,7 +30,7 @@ public class WithParam  {
     public static WithParam[] EMPTY_ARRAY = new WithParam[0];
 
     private Operand selectOp;
-    //private int parameterId;
+    private int parameterId = -1;
     private boolean typeChecked = false;
     private int slotNumber = -1;
     private SequenceType requiredType;
@@ -109,6 +109,7 @@ public class WithParam  {
 
     public void setVariableQName(StructuredQName s) {
         variableQName = s;
+        parameterId = ParameterSet.getParameterId(s);
     }
 
     /**
@@ -121,6 +122,17 @@ public class WithParam  {
         return variableQName;
     }
 
+    /**
+     * Get the identifier of this parameter, used to find the parameter in a {@link ParameterSet}.
+     * The identifier is allocated when the name of the parameter is set.
+     *
+     * @return the parameter identifier
+     */
+
+    public int getParameterId() {
+        return parameterId;
+    }
+
     /**
      * Say whether this parameter will have been typechecked by the caller to ensure it satisfies
      * the required type, in which case the callee need not do a dynamic type check
@@ -222,7 +234,7 @@ public class WithParam  {
         WithParam[] result = new WithParam[params.length];
         for (int i = 0; i < params.length; i++) {
             result[i] = new WithParam();
-            //result[i].parameterId = params[i].parameterId;
+            result[i].parameterId = params[i].parameterId;
             result[i].slotNumber = params[i].slotNumber;
             result[i].typeChecked = params[i].typeChecked;
             result[i].selectOp = new Operand(parent, params[i].selectOp.getChildExpression().copy(rebindings), OperandRole.NAVIGATE);
@@ -0,0 +1,300 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018 Saxonica Limited.
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.expr.parser;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.expr.*;
+import net.sf.saxon.expr.flwor.Clause;
+import net.sf.saxon.expr.flwor.FLWORExpression;
+import net.sf.saxon.expr.flwor.LocalVariableBinding;
+import net.sf.saxon.expr.instruct.Block;
+import net.sf.saxon.expr.instruct.UserFunctionParameter;
+import net.sf.saxon.lib.Feature;
+import net.sf.saxon.lib.Logger;
+import net.sf.saxon.lib.NamespaceConstant;
+import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.value.Cardinality;
+import net.sf.saxon.value.SequenceType;
+
+import java.util.*;
+
+/**
+ * Class to handle elimination of common subexpressions within the body of a function or template
+ * (or within the predicate of a pattern). Where the same subexpression appears more than once, and
+ * every occurrence is evaluated with the same focus and the same variable bindings, the occurrences are
+ * replaced by references to a local variable, bound (with lazy evaluation) by a <code>let</code> expression
+ * wrapped around the smallest subtree that contains them all. For example
+ * <code>(contains(X, 'x') and contains(X, 'y'))</code> becomes
+ * <code>(let $vv:C := X return (contains($vv:C, 'x') and contains($vv:C, 'y')))</code>.
+ *
+ * <p>Only subexpressions that have no side-effects, create no new nodes, and do not depend on
+ * the context position or size or on the XSLT context are considered. Because the variable is evaluated
+ * lazily, the subexpression is evaluated only if one of the occurrences is evaluated, so conditional
+ * evaluation and error behaviour are unaffected.</p>
+ */
+
+public class CommonSubexpressionEliminator {
+
+    /**
+     * The maximum number of rewrites performed on a single expression tree
+     */
+
+    private final static int MAX_REWRITES = 100;
+
+    /**
+     * Eliminate common subexpressions within an expression
+     *
+     * @param exp the expression (typically the body of a template or function)
+     * @param config the Saxon configuration
+     * @return the rewritten expression, which may be the original expression, either unchanged or
+     * modified in situ, or a new let expression wrapped around it
+     */
+
+    public static Expression process(Expression exp, Configuration config) {
+        CommonSubexpressionEliminator eliminator = new CommonSubexpressionEliminator(exp, config);
+        for (int i = 0; i < MAX_REWRITES; i++) {
+            if (!eliminator.eliminateOne()) {
+                break;
+            }
+        }
+        if (eliminator.changed) {
+            ExpressionTool.resetPropertiesWithinSubtree(eliminator.root);
+        }
+        return eliminator.root;
+    }
+
+    private Expression root;
+    private Configuration config;
+    private boolean tracing;
+    private boolean changed = false;
+    private int sequence = 0;
+
+    private CommonSubexpressionEliminator(Expression root, Configuration config) {
+        this.root = root;
+        this.config = config;
+        this.tracing = config.getBooleanProperty(Feature.TRACE_OPTIMIZER_DECISIONS);
+    }
+
+    /**
+     * Find a group of equivalent subexpressions that can be bound to a common variable, and
+     * perform the rewrite. Larger subexpressions are preferred to smaller ones.
+     *
+     * @return true if a rewrite was performed
+     */
+
+    private boolean eliminateOne() {
+        Map<Integer, List<Expression>> candidates = new HashMap<>();
+        gatherCandidates(root, candidates);
+        List<List<Expression>> groups = new ArrayList<>();
+        for (List<Expression> list : candidates.values()) {
+            while (list.size() > 1) {
+                Expression first = list.get(0);
+                List<Expression> group = new ArrayList<>();
+                Iterator<Expression> iter = list.iterator();
+                while (iter.hasNext()) {
+                    Expression e = iter.next();
+                    if (e == first || e.isEqual(first)) {
+                        group.add(e);
+                        iter.remove();
+                    }
+                }
+                if (group.size() > 1) {
+                    groups.add(group);
+                }
+            }
+        }
+        groups.sort((a, b) -> Integer.compare(b.get(0).getCost(), a.get(0).getCost()));
+        for (List<Expression> group : groups) {
+            Expression scope = findScope(group);
+            if (scope != null) {
+                bind(group, scope);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void gatherCandidates(Expression exp, Map<Integer, List<Expression>> candidates) {
+        if (isCandidate(exp)) {
+            candidates.computeIfAbsent(exp.hashCode(), k -> new ArrayList<>()).add(exp);
+        }
+        for (Operand o : exp.operands()) {
+            Expression child = o.getChildExpression();
+            if (!o.getOperandRole().isConstrainedClass() && !(child instanceof PseudoExpression)) {
+                gatherCandidates(child, candidates);
+            }
+        }
+    }
+
+    private static boolean isCandidate(Expression exp) {
+        return !(exp instanceof Literal || exp instanceof VariableReference) &&
+                exp.getCost() > 1 &&
+                exp.isLiftable(false) &&
+                (exp.getDependencies() & StaticProperty.DEPENDS_ON_XSLT_CONTEXT) == 0 &&
+                !exp.isUpdatingExpression();
+    }
+
+    /**
+     * Find the expression around which a variable binding for a group of equivalent subexpressions
+     * can be placed
+     *
+     * @param group the equivalent subexpressions
+     * @return the smallest subtree containing all the subexpressions, if every subexpression is evaluated
+     * with the same focus and the same variable bindings as this subtree; otherwise null
+     */
+
+    private Expression findScope(List<Expression> group) {
+        // The root may itself have a parent (for example a pattern), which is outside our scope
+        Expression scope = group.get(0).getParentExpression();
+        for (Expression e : group) {
+            while (scope != root && !isAncestorOrSelf(scope, e)) {
+                scope = scope.getParentExpression();
+            }
+        }
+        // The variable binding cannot replace an operand that is constrained to a particular class
+        while (scope != root && ExpressionTool.findOperand(scope.getParentExpression(), scope).getOperandRole().isConstrainedClass()) {
+            scope = scope.getParentExpression();
+        }
+        if (scope instanceof PseudoExpression) {
+            return null;
+        }
+        Expression first = group.get(0);
+        boolean usesFocus = (first.getDependencies() & StaticProperty.DEPENDS_ON_FOCUS) != 0;
+        for (Expression e : group) {
+            Expression child = e;
+            while (child != scope) {
+                Expression p = child.getParentExpression();
+                Operand o = ExpressionTool.findOperand(p, child);
+                if (o == null || (usesFocus && !o.getOperandRole().hasSameFocus()) || p.isMultiThreaded(config)) {
+                    return null;
+                }
+                child = p;
+            }
+        }
+        if ((first.getDependencies() & StaticProperty.DEPENDS_ON_LOCAL_VARIABLES) != 0) {
+            List<Binding> bindings = new ArrayList<>();
+            ExpressionTool.gatherReferencedVariables(first, bindings);
+            for (Binding b : bindings) {
+                if (!b.isGlobal() && !isBoundAt(b, scope)) {
+                    return null;
+                }
+            }
+        }
+        return scope;
+    }
+
+    private static boolean isAncestorOrSelf(Expression ancestor, Expression exp) {
+        while (exp != null) {
+            if (exp == ancestor) {
+                return true;
+            }
+            exp = exp.getParentExpression();
+        }
+        return false;
+    }
+
+    /**
+     * Ask whether a local variable is bound, and has been assigned its value, at the point where a
+     * given expression is evaluated. This is needed because a lazily-evaluated variable saves the
+     * values of the local variables on which it depends at the time it is bound.
+     *
+     * @param binding the variable binding
+     * @param exp     the expression
+     * @return true if the variable is known to be available when the expression is evaluated
+     */
+
+    private static boolean isBoundAt(Binding binding, Expression exp) {
+        if (binding instanceof UserFunctionParameter) {
+            return true;
+        }
+        Expression child = exp;
+        Expression parent = exp.getParentExpression();
+        while (parent != null) {
+            if (parent == binding) {
+                return binding instanceof Assignation && ((Assignation) binding).getAction() == child;
+            }
+            if (parent instanceof Block) {
+                // xsl:param and other instructions that bind variables for the following siblings
+                for (Operand o : parent.operands()) {
+                    if (o.getChildExpression() == child) {
+                        break;
+                    } else if (o.getChildExpression() == binding) {
+                        return true;
+                    }
+                }
+            }
+            if (parent instanceof FLWORExpression && binding instanceof LocalVariableBinding &&
+                    ((FLWORExpression) parent).getReturnClause() == child) {
+                for (Clause c : ((FLWORExpression) parent).getClauseList()) {
+                    for (LocalVariableBinding b : c.getRangeVariables()) {
+                        if (b == binding) {
+                            return true;
+                        }
+                    }
+                }
+            }
+            child = parent;
+            parent = parent.getParentExpression();
+        }
+        return false;
+    }
+
+    /**
+     * Bind a group of equivalent subexpressions to a new variable
+     *
+     * @param group the subexpressions
+     * @param scope the expression to be wrapped in the new variable binding
+     */
+
+    private void bind(List<Expression> group, Expression scope) {
+        changed = true;
+        Expression first = group.get(0);
+        Operand scopeOperand = scope == root ? null : ExpressionTool.findOperand(scope.getParentExpression(), scope);
+
+        LetExpression let = new LetExpression();
+        let.setVariableQName(new StructuredQName("vv", NamespaceConstant.SAXON_GENERATED_VARIABLE, "cse" + sequence++));
+        SequenceType type = SequenceType.makeSequenceType(first.getItemType(), first.getCardinality());
+        let.setRequiredType(type);
+        ExpressionTool.copyLocationInfo(first, let);
+        let.setRetainedStaticContext(scope.getRetainedStaticContext());
+
+        int properties = first.getSpecialProperties() & StaticProperty.NOT_UNTYPED_ATOMIC;
+        List<LocalVariableReference> refs = new ArrayList<>(group.size());
+        for (Expression e : group) {
+            LocalVariableReference ref = new LocalVariableReference(let);
+            ref.setStaticType(type, null, properties);
+            ExpressionTool.copyLocationInfo(e, ref);
+            ExpressionTool.findOperand(e.getParentExpression(), e).setChildExpression(ref);
+            refs.add(ref);
+        }
+        let.setSequence(first);
+        let.setAction(scope);
+        let.setNeedsLazyEvaluation(true);
+        let.setEvaluationMode(Cardinality.allowsMany(first.getCardinality()) ?
+                                      ExpressionTool.MAKE_MEMO_CLOSURE : ExpressionTool.MAKE_SINGLETON_CLOSURE);
+        if (scopeOperand == null) {
+            root = let;
+        } else {
+            scopeOperand.setChildExpression(let);
+        }
+        for (LocalVariableReference ref : refs) {
+            boolean inLoop = ExpressionTool.isLoopingSubexpression(ref, let);
+            ref.setInLoop(inLoop);
+            let.addReference(ref, inLoop);
+        }
+
+        if (tracing) {
+            Logger err = config.getLogger();
+            err.info("OPT : At line " + first.getLocation().getLineNumber() + " of " + first.getLocation().getSystemId());
+            err.info("OPT : Common subexpression (" + first.toShortString() + ") occurring " + group.size() +
+                             " times bound to variable $" + let.getVariableQName().getDisplayName());
+            err.info("OPT : Expression after rewrite: " + let);
+        }
+    }
+
+}
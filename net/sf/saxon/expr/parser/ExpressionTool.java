@@ -1218,8 +1218,9 @@ public class ExpressionTool {
 
         if (!visitor.isOptimizeForStreaming()) {
             body = opt.eliminateCommonSubexpressions(body);
+            opt.injectByteCodeCandidates(body);
+            body = opt.makeByteCodeCandidate(null, body, null, Expression.PROCESS_METHOD | Expression.ITERATE_METHOD);
         }
-        opt.injectByteCodeCandidates(body);
         opt.prepareForStreaming(body);
 
         computeEvaluationModesForUserFunctionCalls(body);
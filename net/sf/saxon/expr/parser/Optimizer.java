@@ -9,21 +9,40 @@ package net.sf.saxon.expr.parser;
 
 import net.sf.saxon.Configuration;
 import net.sf.saxon.expr.*;
+import net.sf.saxon.expr.compiler.CompilationCandidate;
+import net.sf.saxon.expr.compiler.ExpressionCompiler;
 import net.sf.saxon.expr.instruct.*;
+import net.sf.saxon.expr.flwor.LocalVariableBinding;
+import net.sf.saxon.expr.sort.AtomicComparer;
+import net.sf.saxon.expr.sort.CodepointCollator;
 import net.sf.saxon.expr.sort.DocumentSorter;
+import net.sf.saxon.functions.KeyFn;
 import net.sf.saxon.lib.Feature;
 import net.sf.saxon.lib.Logger;
-import net.sf.saxon.om.GroundedValue;
-import net.sf.saxon.om.Item;
-import net.sf.saxon.om.Sequence;
-import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.lib.NamespaceConstant;
+import net.sf.saxon.om.*;
+import net.sf.saxon.pattern.NodeKindTest;
+import net.sf.saxon.pattern.NodeTestPattern;
 import net.sf.saxon.pattern.Pattern;
 import net.sf.saxon.style.XSLFunction;
 import net.sf.saxon.style.XSLTemplate;
-import net.sf.saxon.trans.GlobalVariableManager;
-import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.trans.*;
 import net.sf.saxon.trans.rules.RuleTarget;
+import net.sf.saxon.type.BuiltInAtomicType;
+import net.sf.saxon.type.ItemType;
 import net.sf.saxon.type.TypeHierarchy;
+import net.sf.saxon.type.UType;
+import net.sf.saxon.value.BooleanValue;
+import net.sf.saxon.value.Cardinality;
+import net.sf.saxon.value.IndexedValue;
+import net.sf.saxon.value.SequenceType;
+import net.sf.saxon.value.StringValue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class performs optimizations that vary between different versions of the Saxon product.
@@ -36,6 +55,8 @@ public class Optimizer {
     public static final int NO_OPTIMIZATION = 0;
     public static final int FULL_OPTIMIZATION = 10;
 
+    private static AtomicInteger nextGlobalVariable = new AtomicInteger(0);
+
     /*@NotNull*/ protected Configuration config;
     private OptimizerOptions optimizerOptions = OptimizerOptions.FULL_EE_OPTIMIZATION;
     protected boolean tracing;
@@ -127,6 +148,13 @@ public class Optimizer {
      * Examine a path expression to see whether it can be replaced by a call on the key() function;
      * if so, generate an appropriate key definition and return the call on key(). If not, return null.
      *
+     * <p>The path must take the form <code>R/descendant::E[K = V]</code> (typically written <code>//E[K = V]</code>),
+     * where <code>R</code> is a single document node, <code>E</code> is an element test, <code>K</code> selects
+     * attributes or children of the element, <code>V</code> does not depend on the focus, and the values of
+     * <code>K</code> and <code>V</code> are strings or untyped atomic values compared using the codepoint
+     * collation. An existing key definition with the same match pattern and use expression is reused if there
+     * is one. The conversion is made only if the optimizer option {@link OptimizerOptions#CREATE_KEYS} is set.</p>
+     *
      * @param pathExp The path expression to be converted.
      * @param visitor The expression visitor
      * @return the optimized expression, or null if no optimization is possible
@@ -134,28 +162,194 @@ public class Optimizer {
 
     public Expression convertPathExpressionToKey(SlashExpression pathExp, ExpressionVisitor visitor)
             throws XPathException {
-        return null;
+        if (!isOptionSet(OptimizerOptions.CREATE_KEYS) || !(pathExp.getStep() instanceof FilterExpression)) {
+            return null;
+        }
+        FilterExpression step = (FilterExpression) pathExp.getStep();
+        if (!(step.getBase() instanceof AxisExpression) || step.isPositional(config.getTypeHierarchy())) {
+            return null;
+        }
+        int isIndexable = isIndexableFilter(step.getFilter());
+        if (isIndexable == 0) {
+            return null;
+        }
+        return tryKeyLookup(pathExp.getStart(), (AxisExpression) step.getBase(), step.getFilter(), isIndexable > 0, pathExp, visitor);
     }
 
     /**
      * Try converting a filter expression to a call on the key function. Return the supplied
-     * expression unchanged if not possible
+     * expression unchanged if not possible.
+     *
+     * <p>In Saxon-HE, a filter of the form <code>R/descendant::E[K = V]</code>, where <code>R</code> is a
+     * document node, is replaced by a call on key() if the conditions described under
+     * {@link #convertPathExpressionToKey} are satisfied. The only other rewrite performed is for a filter whose
+     * base expression is a reference to a variable (a global variable, or a local variable or function parameter
+     * that is referenced within a loop). The variable is marked as indexed, so that its value is held as an
+     * {@link net.sf.saxon.value.IndexedValue}, and the filter expression is marked so that it is evaluated
+     * using a hash index built over that value on first use.</p>
      *
      * @param f                 the filter expression to be converted
      * @param visitor           the expression visitor, which must be currently visiting the filter expression f
      * @param indexFirstOperand true if the first operand of the filter comparison is to be indexed;
      *                          false if it is the second operand
      * @param contextIsDoc      true if the context item is known to be a document node
-     * @return the optimized expression, or the unchanged expression f if no optimization is possible
+     * @return the optimized expression, or the unchanged expression f if no optimization is possible.
      */
 
     public Expression tryIndexedFilter(FilterExpression f, ExpressionVisitor visitor, boolean indexFirstOperand, boolean contextIsDoc) {
+        if (f.isFilterIsIndexed()) {
+            return f;
+        }
+        if (f.getBase() instanceof SlashExpression && ((SlashExpression) f.getBase()).getStep() instanceof AxisExpression) {
+            SlashExpression path = (SlashExpression) f.getBase();
+            if (isOptionSet(OptimizerOptions.CREATE_KEYS)) {
+                Expression k = tryKeyLookup(path.getStart(), (AxisExpression) path.getStep(), f.getFilter(), indexFirstOperand, f, visitor);
+                if (k != null) {
+                    return k;
+                }
+            }
+            return f;
+        }
+        if (!(f.getBase() instanceof VariableReference) || !isOptionSet(OptimizerOptions.INDEX_VARIABLES)) {
+            return f;
+        }
+        VariableReference ref = (VariableReference) f.getBase();
+        Binding binding = ref.getBinding();
+        if (binding instanceof GlobalVariable) {
+            ((GlobalVariable) binding).setIndexedVariable();
+        } else if (binding instanceof LetExpression || binding instanceof LocalVariableBinding) {
+            // Only worthwhile if the filter is evaluated repeatedly for the same value of the variable
+            if (!ExpressionTool.isLoopingReference(ref, binding)) {
+                return f;
+            }
+            ((LocalBinding) binding).setIndexedVariable();
+        } else if (binding instanceof UserFunctionParameter) {
+            if (!ExpressionTool.isLoopingSubexpression(f, null)) {
+                return f;
+            }
+            ((UserFunctionParameter) binding).setIndexedVariable();
+        } else {
+            return f;
+        }
+        f.setFilterIsIndexed(true);
+        trace("Filter expression will be evaluated using an index on variable $" + ref.getDisplayName(), f);
         return f;
     }
 
+    /**
+     * Try to replace a path of the form <code>R/descendant::E[K = V]</code> by a call on the key() function,
+     * using a key definition (generated if necessary) that matches elements <code>E</code> and indexes them on
+     * <code>K</code>. This is possible when <code>R</code> is a single document node, when <code>K</code> selects
+     * attributes or children of the element, and when both <code>K</code> and <code>V</code> are strings (or untyped
+     * atomic values), since under the codepoint collation the key() function then gives the same result as the
+     * comparison. When the path is evaluated repeatedly (for example within a loop) the index is built once for
+     * each document, instead of searching the whole document on each evaluation.
+     *
+     * @param start             the expression <code>R</code> that selects the root of the search
+     * @param step              the axis step that selects the elements <code>E</code>
+     * @param predicate         the equality comparison <code>K = V</code>
+     * @param indexFirstOperand true if the first operand of the comparison is the key <code>K</code>
+     * @param original          the expression being replaced, used for diagnostics
+     * @param visitor           the expression visitor
+     * @return the call on key(), or null if no conversion is possible
+     */
+
+    private Expression tryKeyLookup(Expression start, AxisExpression step, Expression predicate,
+                                    boolean indexFirstOperand, Expression original, ExpressionVisitor visitor) {
+        TypeHierarchy th = config.getTypeHierarchy();
+        if (step.getAxis() != AxisInfo.DESCENDANT || step.getNodeTest() == null ||
+                !step.getNodeTest().getUType().equals(UType.ELEMENT) ||
+                start.getCardinality() != StaticProperty.EXACTLY_ONE ||
+                !th.isSubType(start.getItemType(), NodeKindTest.DOCUMENT) ||
+                !(predicate instanceof GeneralComparison || predicate instanceof ValueComparison)) {
+            return null;
+        }
+        ComparisonExpression comparison = (ComparisonExpression) predicate;
+        Expression key = indexFirstOperand ? comparison.getLhsExpression() : comparison.getRhsExpression();
+        Expression probe = indexFirstOperand ? comparison.getRhsExpression() : comparison.getLhsExpression();
+        Expression keyStep = key;
+        if (keyStep instanceof CastExpression && ((CastExpression) keyStep).getTargetType() == BuiltInAtomicType.STRING) {
+            // a general comparison of untyped operands may already have been rewritten as xs:string(K) eq xs:string(V)
+            keyStep = ((CastExpression) keyStep).getBaseExpression();
+        }
+        if (keyStep instanceof Atomizer) {
+            keyStep = ((Atomizer) keyStep).getBaseExpression();
+        }
+        int axis;
+        if (keyStep instanceof AttributeGetter) {
+            axis = AxisInfo.ATTRIBUTE;
+        } else if (keyStep instanceof AxisExpression) {
+            axis = ((AxisExpression) keyStep).getAxis();
+        } else {
+            return null;
+        }
+        if (comparison instanceof ValueComparison) {
+            // key() does not raise the type errors that "eq" raises for sequences of more than one item
+            if (axis != AxisInfo.ATTRIBUTE || Cardinality.allowsMany(probe.getCardinality())) {
+                return null;
+            }
+        } else if (axis != AxisInfo.ATTRIBUTE && axis != AxisInfo.CHILD) {
+            return null;
+        }
+        RetainedStaticContext rsc = original.getRetainedStaticContext();
+        if (rsc == null) {
+            rsc = visitor.getStaticContext().makeRetainedStaticContext();
+        }
+        boolean untyped = !rsc.getPackageData().isSchemaAware();
+        ItemType keyType = Atomizer.getAtomizedItemType(key, untyped, th);
+        if (!isStringLike(keyType, th) ||
+                !isStringLike(Atomizer.getAtomizedItemType(probe, untyped, th), th)) {
+            return null;
+        }
+
+        KeyManager keyManager = rsc.getPackageData().getKeyManager();
+        Pattern match = new NodeTestPattern(step.getNodeTest());
+        Expression use = key.copy(new RebindingMap());
+        String collationName = NamespaceConstant.CODEPOINT_COLLATION_URI;
+        KeyDefinitionSet keySet = keyManager.findKeyDefinition(match, use, collationName);
+        if (keySet == null) {
+            StructuredQName keyName;
+            int n = keyManager.getNumberOfKeyDefinitions();
+            do {
+                keyName = new StructuredQName("saxon", NamespaceConstant.SAXON_GENERATED_VARIABLE, "key" + n++);
+            } while (keyManager.getKeyDefinitionSet(keyName) != null);
+            KeyDefinition keyDef = new KeyDefinition(new SymbolicName(StandardNames.XSL_KEY, keyName),
+                                                     match, use, collationName, CodepointCollator.getInstance());
+            keyDef.setPackageData(rsc.getPackageData());
+            keyDef.setIndexedItemType((BuiltInAtomicType) keyType.getPrimitiveItemType());
+            keyDef.setLocation(original.getLocation().getSystemId(), original.getLocation().getLineNumber());
+            try {
+                keyManager.addKeyDefinition(keyName, keyDef, true, config);
+            } catch (XPathException e) {
+                return null;
+            }
+            keySet = keyManager.getKeyDefinitionSet(keyName);
+        }
+        Expression call = KeyFn.internalKeyCall(keyManager, keySet, keySet.getKeyName().getEQName(), probe, start, rsc);
+        ExpressionTool.copyLocationInfo(original, call);
+        trace("Path expression replaced by a call on key() using the index " + keySet.getKeyName().getDisplayName(), call);
+        return call;
+    }
+
+    private static boolean isStringLike(ItemType type, TypeHierarchy th) {
+        return th.isSubType(type, BuiltInAtomicType.STRING) ||
+                type.equals(BuiltInAtomicType.UNTYPED_ATOMIC) ||
+                type.equals(BuiltInAtomicType.ANY_URI);
+    }
+
     /**
      * Consider reordering the predicates in a filter expression based on cost estimates
      *
+     * <p>A chain of non-positional predicates such as <code>E[P1][P2][P3]</code> is rewritten so that the
+     * predicates are evaluated in order of increasing estimated cost (as given by {@link Expression#getCost}),
+     * and they are combined into a single predicate <code>E[Pa and Pb and Pc]</code>, so that the base
+     * expression is filtered in a single pass. If one of the predicates is a candidate for indexing
+     * (see {@link #isIndexableFilter}), it is retained as a separate predicate applied first, so that it
+     * remains eligible for evaluation using an index. The rewrite is not attempted if any predicate has
+     * side-effects. As with any reordering of operands permitted by the specification, the rewrite may
+     * cause a predicate to be evaluated for an item that an earlier predicate would have excluded, which
+     * can affect whether dynamic errors are reported.</p>
+     *
      * @param f       the filter expression (which is known to have more than one predicate)
      * @param visitor expression visitor
      * @param cisi    information about the context item type
@@ -165,7 +359,69 @@ public class Optimizer {
 
     public Expression reorderPredicates(FilterExpression f, ExpressionVisitor visitor, ContextItemStaticInfo cisi)
             throws XPathException {
-        return f;
+        if (!isOptionSet(OptimizerOptions.MISCELLANEOUS) || visitor.isOptimizeForStreaming()) {
+            return f;
+        }
+        Expression parent = f.getParentExpression();
+        if (parent instanceof FilterExpression && ((FilterExpression) parent).getBase() == f &&
+                !((FilterExpression) parent).isFilterIsPositional()) {
+            // leave the outermost filter expression in the chain to handle all the predicates
+            return f;
+        }
+
+        // Collect the predicates, innermost first
+        List<Expression> predicates = new ArrayList<>();
+        Expression base = f;
+        while (base instanceof FilterExpression &&
+                !((FilterExpression) base).isFilterIsPositional() &&
+                !((FilterExpression) base).isFilterIsIndexed()) {
+            Expression p = ((FilterExpression) base).getFilter();
+            if ((p.getSpecialProperties() & StaticProperty.HAS_SIDE_EFFECTS) != 0) {
+                return f;
+            }
+            predicates.add(0, p);
+            base = ((FilterExpression) base).getBase();
+        }
+        if (predicates.size() < 2) {
+            return f;
+        }
+
+        // Choose the predicate (if any) to be retained for indexing
+        Expression indexable = null;
+        for (Expression p : predicates) {
+            if (isIndexableFilter(p) != 0 && (indexable == null || p.getCost() < indexable.getCost())) {
+                indexable = p;
+            }
+        }
+        if (predicates.size() == 2 && predicates.get(0) == indexable) {
+            return f;
+        }
+
+        List<Expression> ordered = new ArrayList<>(predicates);
+        ordered.remove(indexable);
+        ordered.sort((a, b) -> Integer.compare(a.getCost(), b.getCost()));   // stable, so equal costs keep their order
+
+        Expression combined = null;
+        for (Expression p : ordered) {
+            if (combined == null) {
+                combined = p;
+            } else {
+                combined = new AndExpression(combined, p);
+                ExpressionTool.copyLocationInfo(f, combined);
+                combined.setRetainedStaticContext(f.getRetainedStaticContext());
+            }
+        }
+        Expression result = base;
+        if (indexable != null) {
+            result = new FilterExpression(result, indexable);
+            ExpressionTool.copyLocationInfo(f, result);
+            result.setRetainedStaticContext(f.getRetainedStaticContext());
+        }
+        result = new FilterExpression(result, combined);
+        ExpressionTool.copyLocationInfo(f, result);
+        result.setRetainedStaticContext(f.getRetainedStaticContext());
+        trace("Reordered filter predicates by estimated cost", result);
+        return result.typeCheck(visitor, cisi).optimize(visitor, cisi);
     }
 
     /**
@@ -193,19 +449,37 @@ public class Optimizer {
      */
 
     public int isIndexableFilter(Expression filter) {
+        if ((filter instanceof GeneralComparison || filter instanceof ValueComparison) &&
+                ((ComparisonExpression) filter).getSingletonOperator() == Token.FEQ) {
+            ComparisonExpression comparison = (ComparisonExpression) filter;
+            AtomicComparer comparer = comparison.getAtomicComparer();
+            if (comparer == null ||
+                    !(comparer.getCollator() == null || comparer.getCollator() instanceof CodepointCollator)) {
+                return 0;
+            }
+            Expression lhs = comparison.getLhsExpression();
+            Expression rhs = comparison.getRhsExpression();
+            if (FilterIndex.isIndexableKey(lhs) && FilterIndex.isIndexableProbe(rhs)) {
+                return +1;
+            } else if (FilterIndex.isIndexableKey(rhs) && FilterIndex.isIndexableProbe(lhs)) {
+                return -1;
+            }
+        }
         return 0;
     }
 
     /**
-     * Create an indexed value
+     * Create an indexed value. The indexes themselves are built on demand, by the filter expressions
+     * that use them
      *
      * @param iter the iterator that delivers the sequence of values to be indexed
      * @return the indexed value
-     * @throws UnsupportedOperationException: this method should not be called in Saxon-HE
+     * @throws XPathException if evaluation of the sequence fails
      */
 
     public <T extends Item<?>> GroundedValue<T> makeIndexedValue(SequenceIterator<? extends T> iter) throws XPathException {
-        throw new UnsupportedOperationException("Indexing requires Saxon-EE");
+        //noinspection unchecked
+        return new IndexedValue<>((SequenceIterator<T>) iter);
     }
 
     /**
@@ -284,53 +558,406 @@ public class Optimizer {
      * @param visitor         the expression visitor
      * @param contextItemType the context item type
      * @return either the original expression unchanged, or an expression that consists of the inlined
-     * function body, with all function parameters bound as required. In Saxon-HE, function inlining is
-     * not supported, so the original functionCall is always returned unchanged
+     * function body, with all function parameters bound as required. The function parameters are bound
+     * using let expressions, which are subsequently optimized in the usual way (for example, a parameter
+     * that is referenced only once will be replaced by the corresponding argument).
      */
 
     public Expression tryInlineFunctionCall(
             UserFunctionCall functionCall, ExpressionVisitor visitor, ContextItemStaticInfo contextItemType) {
-        return functionCall;
+        if (!isOptionSet(OptimizerOptions.INLINE_FUNCTIONS) || visitor.isOptimizeForStreaming()) {
+            return functionCall;
+        }
+        UserFunction target = functionCall.getFunction();
+        if (!isInlineable(target, visitor)) {
+            return functionCall;
+        }
+        try {
+            Expression body = target.getBody().copy(new RebindingMap());
+            UserFunctionParameter[] params = target.getParameterDefinitions();
+            Expression result = body;
+            for (int i = params.length - 1; i >= 0; i--) {
+                LetExpression let = new LetExpression();
+                let.setVariableQName(params[i].getVariableQName());
+                let.setRequiredType(params[i].getRequiredType());
+                // the original arguments are left in place in case inlining fails
+                let.setSequence(functionCall.getArg(i).copy(new RebindingMap()));
+                ExpressionTool.rebindVariableReferences(body, params[i], let);
+                let.setAction(result);
+                ExpressionTool.copyLocationInfo(functionCall, let);
+                result = let;
+            }
+            ExpressionTool.copyLocationInfo(functionCall, result);
+            result = result.typeCheck(visitor, contextItemType);
+            result = result.optimize(visitor, contextItemType);
+            target.markAsInlined();
+            trace("Inlined call on function " + target.getObjectName().getDisplayName() + "#" + params.length, result);
+            return result;
+        } catch (XPathException e) {
+            // leave the function call as it is
+            return functionCall;
+        }
+    }
+
+    /**
+     * The maximum size (as a number of expression nodes) of the body of a function that can be inlined
+     */
+
+    private final static int MAX_INLINED_FUNCTION_SIZE = 30;
+
+    /**
+     * Decide whether calls on a function can be inlined. This requires that the function cannot be overridden
+     * (for example by a using package); that its body is small, has no side-effects, and does not depend on
+     * the focus or the XSLT context; and that it is not recursive, directly or indirectly. In XSLT the function
+     * must also be declared in the same package as the call, since references from the function body to other
+     * components are bound separately for each package. The result is remembered in the function.
+     *
+     * @param target  the function
+     * @param visitor the expression visitor
+     * @return true if calls on the function can be inlined
+     */
+
+    private static boolean isInlineable(UserFunction target, ExpressionVisitor visitor) {
+        Boolean known = target.isInlineable();
+        if (known != null) {
+            return known;
+        }
+        Expression body = target.getBody();
+        if (body == null || target.isUpdating() || target.isMemoFunction() ||
+                target.getDeclaredStreamability() != FunctionStreamability.UNCLASSIFIED) {
+            return false;
+        }
+        if (target.getDeclaringComponent() != null &&
+                target.getPackageData() != visitor.getStaticContext().getPackageData()) {
+            return false;
+        }
+        boolean inlineable = ExpressionTool.expressionSize(body) <= MAX_INLINED_FUNCTION_SIZE &&
+                (body.getDependencies() & (StaticProperty.DEPENDS_ON_FOCUS | StaticProperty.DEPENDS_ON_XSLT_CONTEXT)) == 0 &&
+                !body.isUpdatingExpression() &&
+                !calls(body, target, new HashSet<>());
+        target.setInlineable(inlineable);
+        return inlineable;
+    }
+
+    /**
+     * Ask whether an expression contains a call (direct or indirect) to a given function
+     *
+     * @param exp     the expression
+     * @param target  the function
+     * @param visited the functions whose bodies have already been examined
+     * @return true if evaluating the expression may involve a call to the target function
+     */
+
+    private static boolean calls(Expression exp, UserFunction target, Set<UserFunction> visited) {
+        if (exp instanceof UserFunctionCall) {
+            UserFunction f = ((UserFunctionCall) exp).getFunction();
+            if (f == target) {
+                return true;
+            }
+            if (f == null || (f.getBody() != null && visited.add(f) && calls(f.getBody(), target, visited))) {
+                return true;
+            }
+        }
+        for (Operand o : exp.operands()) {
+            if (calls(o.getChildExpression(), target, visited)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
      * Identify expressions within a function or template body that can be promoted to be
      * evaluated as global variables.
      *
-     * @param body    the body of the template or function
-     * @param visitor the expression visitor
+     * <p>A subexpression is promoted if it does not depend on the focus, on local variables, or on the
+     * XSLT context; if it has no side-effects and does not create new nodes; and if it is not trivially
+     * cheap to evaluate (for example <code>doc('codes.xml')//code</code> or <code>count($param)</code>).
+     * Each such subexpression is replaced by a reference to a private global variable with a generated
+     * name. Global variables are evaluated lazily, on first reference, so the expression is evaluated at
+     * most once per transformation, and not at all if the reference is never reached; and an error in
+     * evaluating it is reported only when the reference is evaluated, as it would be without the rewrite.
+     * Expressions that call user-defined functions are not promoted, nor are expressions that evaluate
+     * a range (<code>1 to N</code>), since the value of a global variable is held in memory in full.</p>
+     *
+     * @param body      the body of the template or function
+     * @param gvManager the manager of the global variables, to which any new variables are added
+     * @param visitor   the expression visitor
      * @return the expression after subexpressions have been promoted to global variables; or null if
      * nothing has changed
+     * @throws XPathException if adding a global variable fails
      */
 
     public Expression promoteExpressionsToGlobal(Expression body, GlobalVariableManager gvManager, ExpressionVisitor visitor)
             throws XPathException {
-        return null;
+        if (!isOptionSet(OptimizerOptions.EXTRACT_GLOBALS) || visitor.isOptimizeForStreaming()) {
+            return null;
+        }
+        return promoteSubexpressions(body, gvManager, visitor) ? body : null;
+    }
+
+    private boolean promoteSubexpressions(Expression parent, GlobalVariableManager gvManager, ExpressionVisitor visitor)
+            throws XPathException {
+        boolean changed = false;
+        for (Operand o : parent.operands()) {
+            Expression child = o.getChildExpression();
+            if (o.getOperandRole().isConstrainedClass() || child instanceof PseudoExpression) {
+                continue;
+            }
+            if (isPromotable(child)) {
+                o.setChildExpression(promote(child, gvManager, visitor));
+                changed = true;
+            } else if (promoteSubexpressions(child, gvManager, visitor)) {
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private static boolean isPromotable(Expression exp) {
+        return !(exp instanceof Literal || exp instanceof VariableReference) &&
+                exp.getCost() > 1 &&
+                exp.isLiftable(false) &&
+                (exp.getDependencies() & (StaticProperty.DEPENDS_ON_FOCUS |
+                        StaticProperty.DEPENDS_ON_LOCAL_VARIABLES |
+                        StaticProperty.DEPENDS_ON_XSLT_CONTEXT |
+                        StaticProperty.DEPENDS_ON_USER_FUNCTIONS)) == 0 &&
+                !exp.isUpdatingExpression() &&
+                !ExpressionTool.containsSubexpression(exp, RangeExpression.class);
+    }
+
+    private Expression promote(Expression exp, GlobalVariableManager gvManager, ExpressionVisitor visitor)
+            throws XPathException {
+        GlobalVariable var = gvManager.getEquivalentVariable(exp);
+        boolean isNew = var == null;
+        if (isNew) {
+            var = new GlobalVariable();
+            var.setVariableQName(new StructuredQName("gg", NamespaceConstant.SAXON_GENERATED_VARIABLE,
+                                                     "g" + nextGlobalVariable.getAndIncrement()));
+            var.setRequiredType(SequenceType.makeSequenceType(exp.getItemType(), exp.getCardinality()));
+            var.setPackageData(visitor.getStaticContext().getPackageData());
+            var.setSystemId(exp.getLocation().getSystemId());
+            var.setLineNumber(exp.getLocation().getLineNumber());
+            var.setSelectExpression(exp);
+            // local variables bound within the expression need slots in a stack frame of their own
+            SlotManager frame = config.makeSlotManager();
+            if (ExpressionTool.allocateSlots(exp, 0, frame) > 0) {
+                var.setContainsLocals(frame);
+            }
+        }
+        GlobalVariableReference ref = new GlobalVariableReference(var);
+        ref.setStaticType(var.getRequiredType(), null,
+                          exp.getSpecialProperties() | StaticProperty.NO_NODES_NEWLY_CREATED);
+        ExpressionTool.copyLocationInfo(exp, ref);
+        var.registerReference(ref);
+        if (isNew) {
+            gvManager.addGlobalVariable(var);
+        }
+        trace("Promoted subexpression to global variable $" + var.getVariableQName().getDisplayName(), exp);
+        return ref;
     }
 
     /**
      * Eliminate common subexpressions. Rewrites (contains(X, 'x') and contains(X, 'y')) as
      * (let $vv:C := X return (contains($vv:C, 'x') and contains($vv:C, 'y'))).
-     * Dummy method; the optimization happens only in Saxon-EE.
+     * The rewrite is performed only if the optimizer option {@link OptimizerOptions#COMMON_SUBEXPRESSIONS}
+     * is set; see {@link CommonSubexpressionEliminator} for details.
      * @param in the expression to be optimized
      * @return out the optimized expression (possibly the same as the input).
      */
 
     public Expression eliminateCommonSubexpressions(Expression in) {
-        return in;
+        if (!isOptionSet(OptimizerOptions.COMMON_SUBEXPRESSIONS)) {
+            return in;
+        }
+        return CommonSubexpressionEliminator.process(in, config);
     }
 
     /**
-     * Try to convert a Choose expression into a switch
+     * Try to convert a Choose expression into a switch. This is possible if the leading conditions
+     * all compare the same expression for equality with string literals, under the codepoint collation:
+     * the conditions are then replaced by a lookup in a hash table. Any remaining conditions are retained
+     * as a Choose expression that acts as the default action of the switch.
      *
      * @param choose the Choose expression
      * @return the result of optimizing this (the original expression if no optimization was possible)
      */
 
     public Expression trySwitch(Choose choose, ExpressionVisitor visitor) {
+        if (!isOptionSet(OptimizerOptions.SWITCH) || visitor.isOptimizeForStreaming() ||
+                choose.isUpdatingExpression()) {
+            return choose;
+        }
+        TypeHierarchy th = config.getTypeHierarchy();
+        int size = choose.size();
+        // Find the first run of conditions that can be converted to the cases of a switch
+        int start = 0;
+        while (start < size) {
+            Expression subject = null;
+            List<String[]> caseKeys = new ArrayList<>();
+            int keyCount = 0;
+            int end = start;
+            for (; end < size; end++) {
+                List<String> keys = new ArrayList<>();
+                Expression s = getSwitchSubject(choose.getCondition(end), subject, keys, th);
+                if (s == null) {
+                    break;
+                }
+                subject = s;
+                caseKeys.add(keys.toArray(new String[0]));
+                keyCount += keys.size();
+            }
+            if (keyCount >= MIN_SWITCH_KEYS) {
+                return makeSwitch(choose, start, end, subject, caseKeys, keyCount, visitor);
+            }
+            start = Math.max(end, start + 1);
+        }
         return choose;
     }
 
+    /**
+     * Replace a run of conditions in a Choose expression by a switch expression
+     *
+     * @param choose   the Choose expression
+     * @param start    the position of the first condition to be replaced
+     * @param end      the position after the last condition to be replaced
+     * @param subject  the expression compared with the keys
+     * @param caseKeys the keys for each of the conditions to be replaced
+     * @param keyCount the total number of keys
+     * @param visitor  the expression visitor
+     * @return the rewritten expression
+     */
+
+    private Expression makeSwitch(Choose choose, int start, int end, Expression subject,
+                                  List<String[]> caseKeys, int keyCount, ExpressionVisitor visitor) {
+        int size = choose.size();
+        Expression defaultAction;
+        if (end == size) {
+            defaultAction = Literal.makeEmptySequence();
+        } else if (end == size - 1 && Literal.hasEffectiveBooleanValue(choose.getCondition(end), true)) {
+            defaultAction = choose.getAction(end);
+        } else {
+            // the remaining conditions may themselves contain a run that can be converted
+            defaultAction = trySwitch(makeChoose(choose, end, size), visitor);
+        }
+        Expression[] actions = new Expression[end - start];
+        for (int i = start; i < end; i++) {
+            actions[i - start] = choose.getAction(i);
+        }
+        SwitchExpression switchExp = new SwitchExpression(
+                subject, caseKeys.toArray(new String[0][]), actions, defaultAction);
+        ExpressionTool.copyLocationInfo(choose, switchExp);
+        switchExp.setInstruction(choose.isInstruction());
+        Expression result = switchExp;
+        if (start > 0) {
+            // retain the leading conditions, with the switch as the final branch
+            Expression[] conditions = new Expression[start + 1];
+            Expression[] headActions = new Expression[start + 1];
+            for (int i = 0; i < start; i++) {
+                conditions[i] = choose.getCondition(i);
+                headActions[i] = choose.getAction(i);
+            }
+            conditions[start] = Literal.makeLiteral(BooleanValue.TRUE, choose);
+            headActions[start] = switchExp;
+            Choose head = new Choose(conditions, headActions);
+            ExpressionTool.copyLocationInfo(choose, head);
+            head.setInstruction(choose.isInstruction());
+            result = head;
+        }
+        trace("Replaced " + (end - start) + " conditions on " + subject.toShortString() +
+                      " by a switch on " + keyCount + " keys", result);
+        return result;
+    }
+
+    private static Choose makeChoose(Choose choose, int start, int end) {
+        Expression[] conditions = new Expression[end - start];
+        Expression[] actions = new Expression[end - start];
+        for (int i = start; i < end; i++) {
+            conditions[i - start] = choose.getCondition(i);
+            actions[i - start] = choose.getAction(i);
+        }
+        Choose result = new Choose(conditions, actions);
+        ExpressionTool.copyLocationInfo(choose, result);
+        result.setInstruction(choose.isInstruction());
+        return result;
+    }
+
+    /**
+     * The minimum number of keys for which a switch expression is worth creating
+     */
+
+    private final static int MIN_SWITCH_KEYS = 3;
+
+    /**
+     * Analyze one condition of a Choose expression to see whether it can act as a case in a switch.
+     * This is possible if the condition compares an expression with one or more string literals, using
+     * the codepoint collation, or if it is an "or" of such comparisons; and if (as in a value comparison
+     * or general comparison) the expression is known to deliver strings, untyped atomic values or URIs, or
+     * if (as in the comparisons generated for an XQuery switch) the comparison treats all other values as
+     * not equal to a string.
+     *
+     * @param condition the condition to be analyzed
+     * @param subject   the subject of the previous conditions, if any
+     * @param keys      a list to which the literal strings are added
+     * @param th        the type hierarchy cache
+     * @return the expression compared with the literals, or null if the condition is unsuitable, or if
+     * it compares an expression other than the supplied subject
+     */
+
+    private static Expression getSwitchSubject(Expression condition, Expression subject, List<String> keys, TypeHierarchy th) {
+        if (condition instanceof OrExpression) {
+            Expression s = getSwitchSubject(((OrExpression) condition).getLhsExpression(), subject, keys, th);
+            return s == null ? null : getSwitchSubject(((OrExpression) condition).getRhsExpression(), s, keys, th);
+        }
+        if (!(condition instanceof ValueComparison || condition instanceof GeneralComparison ||
+                      condition instanceof EquivalenceComparison)) {
+            return null;
+        }
+        ComparisonExpression comparison = (ComparisonExpression) condition;
+        AtomicComparer comparer = comparison.getAtomicComparer();
+        if (comparison.getSingletonOperator() != Token.FEQ || comparer == null ||
+                !(comparer.getCollator() instanceof CodepointCollator)) {
+            return null;
+        }
+        Expression s;
+        Literal literal;
+        if (comparison.getRhsExpression() instanceof Literal) {
+            s = comparison.getLhsExpression();
+            literal = (Literal) comparison.getRhsExpression();
+        } else if (comparison.getLhsExpression() instanceof Literal) {
+            s = comparison.getRhsExpression();
+            literal = (Literal) comparison.getLhsExpression();
+        } else {
+            return null;
+        }
+        if (s instanceof CastExpression && ((CastExpression) s).getTargetType() == BuiltInAtomicType.STRING &&
+                isStringLike(((CastExpression) s).getBaseExpression().getItemType(), th)) {
+            // casting a string, URI, or untyped atomic value to xs:string does not change its string value
+            s = ((CastExpression) s).getBaseExpression();
+        }
+        if (subject != null && !s.isEqual(subject)) {
+            return null;
+        }
+        if (!(condition instanceof GeneralComparison) && Cardinality.allowsMany(s.getCardinality())) {
+            return null;
+        }
+        if (!(condition instanceof EquivalenceComparison) && !isStringLike(s.getItemType(), th)) {
+            return null;
+        }
+        GroundedValue<?> value = literal.getValue();
+        if (value.getLength() == 0) {
+            return null;
+        }
+        for (int i = 0; i < value.getLength(); i++) {
+            Item<?> key = value.itemAt(i);
+            if (!(key instanceof StringValue)) {
+                return null;
+            }
+            keys.add(key.getStringValue());
+        }
+        return s;
+    }
+
 
     /**
      * Try to convert an Or expression into a comparison with Literal sequence
@@ -425,13 +1052,23 @@ public class Optimizer {
 
     /**
      * Generate a multi-threaded version of an instruction.
-     * Supported in Saxon-EE only; ignored with no action in Saxon-HE and Saxon-PE
+     * In Saxon-HE this is supported for xsl:for-each only, and only if multi-threading is enabled
+     * in the configuration; other instructions are returned unchanged.
      *
      * @param instruction the instruction to be multi-threaded
      * @return the multi-threaded version of the instruction
      */
 
     public Expression generateMultithreadedInstruction(Expression instruction) {
+        if (instruction instanceof ForEach && !(instruction instanceof MultithreadedForEach) &&
+                ((ForEach) instruction).getThreads() != null && config.isMultiThreadingEnabled()) {
+            ForEach forEach = (ForEach) instruction;
+            MultithreadedForEach result = new MultithreadedForEach(
+                    forEach.getSelect(), forEach.getAction(), forEach.getThreads());
+            ExpressionTool.copyLocationInfo(forEach, result);
+            result.setInstruction(forEach.isInstruction());
+            return result;
+        }
         return instruction;
     }
 
@@ -464,12 +1101,59 @@ public class Optimizer {
 
 
     public Expression makeByteCodeCandidate(ExpressionOwner owner, Expression expr, String objectName, int requiredEvaluationModes) {
+        if (isByteCodeEnabled() && new ExpressionCompiler(config.getTypeHierarchy()).isCandidate(expr)) {
+            CompilationCandidate candidate = new CompilationCandidate(expr, config);
+            candidate.setRetainedStaticContext(expr.getRetainedStaticContext());
+            trace("Expression will be compiled when hot", candidate);
+            return candidate;
+        }
         return expr;
     }
 
+    /**
+     * Insert compilation candidates into an expression tree, wrapping each maximal subexpression
+     * (below the root) that the {@link ExpressionCompiler} can compile. This is done only if the
+     * configuration option {@link Feature#GENERATE_BYTE_CODE} and the optimizer option
+     * {@link OptimizerOptions#BYTE_CODE} are both set.
+     *
+     * @param exp the root of the expression tree, typically the body of a function or template
+     * @throws XPathException if anything goes wrong
+     */
+
     public void injectByteCodeCandidates(Expression exp) throws XPathException {
+        if (isByteCodeEnabled()) {
+            ExpressionCompiler compiler = new ExpressionCompiler(config.getTypeHierarchy());
+            injectByteCodeCandidates(exp, compiler.isCandidate(exp), compiler);
+        }
+    }
 
-    };
+    private void injectByteCodeCandidates(Expression exp, boolean compiled, ExpressionCompiler compiler) {
+        if (exp instanceof CompilationCandidate) {
+            injectByteCodeCandidates(((CompilationCandidate) exp).getBaseExpression(), true, compiler);
+            return;
+        }
+        for (Operand o : exp.operands()) {
+            Expression child = o.getChildExpression();
+            if (child instanceof PseudoExpression) {
+                continue;
+            }
+            // A child that is compiled as part of its parent is not wrapped separately
+            boolean candidate = compiler.isCandidate(child);
+            boolean wrap = candidate && !compiled &&
+                    !o.getOperandRole().isConstrainedClass() && !(exp instanceof PseudoExpression);
+            if (wrap) {
+                CompilationCandidate wrapper = new CompilationCandidate(child, config);
+                wrapper.setRetainedStaticContext(child.getRetainedStaticContext());
+                o.setChildExpression(wrapper);
+                trace("Expression will be compiled when hot", wrapper);
+            }
+            injectByteCodeCandidates(child, candidate && (compiled || wrap), compiler);
+        }
+    }
+
+    private boolean isByteCodeEnabled() {
+        return config.getBooleanProperty(Feature.GENERATE_BYTE_CODE) && isOptionSet(OptimizerOptions.BYTE_CODE);
+    }
 
     public Expression optimizeNumberInstruction(NumberInstruction ni, ContextItemStaticInfo contextInfo) {
         return null;
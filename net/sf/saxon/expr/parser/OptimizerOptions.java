@@ -31,7 +31,7 @@ public class OptimizerOptions {
 
     private int options;
 
-    public final static OptimizerOptions FULL_HE_OPTIMIZATION = new OptimizerOptions("lvmt");
+    public final static OptimizerOptions FULL_HE_OPTIMIZATION = new OptimizerOptions("cfgklmrstvwx");
     public final static OptimizerOptions FULL_EE_OPTIMIZATION = new OptimizerOptions(-1);
 
     public OptimizerOptions(int options) {
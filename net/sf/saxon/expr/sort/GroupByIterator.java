@@ -16,11 +16,14 @@ import net.sf.saxon.om.*;
 import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.tree.iter.ListIterator;
 import net.sf.saxon.tree.iter.LookaheadIterator;
+import net.sf.saxon.type.BuiltInAtomicType;
+import net.sf.saxon.type.ItemType;
+import net.sf.saxon.type.TypeHierarchy;
 import net.sf.saxon.value.AtomicValue;
+import net.sf.saxon.value.BigIntegerValue;
+import net.sf.saxon.value.IntegerValue;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
+import java.util.*;
 
 /**
  * A GroupByIterator iterates over a sequence of groups defined by
@@ -44,6 +47,11 @@ public class GroupByIterator implements GroupIterator, LastPositionFinder, Looka
     // flattened into three parallel lists: a list of groups (each group being represented
     // as a list of items in population order), a list of grouping keys, and a list of
     // the initial items of the groups.
+    //
+    // Where the grouping keys are statically known to be integers, or to be strings compared
+    // using the Unicode codepoint collation, the hash table is keyed directly on the long or
+    // String value of the key rather than on an AtomicMatchKey, and each group is held as an
+    // array of integer positions within the population rather than as a list of items.
 
     private SequenceIterator<?> population;
     protected Expression keyExpression;
@@ -87,7 +95,40 @@ public class GroupByIterator implements GroupIterator, LastPositionFinder, Looka
         if (composite) {
             buildIndexedGroupsComposite();
         } else {
-            buildIndexedGroups();
+            int primitiveKeys = getPrimitiveKeyType();
+            if (primitiveKeys == NO_PRIMITIVE_KEYS) {
+                buildIndexedGroups();
+            } else {
+                buildPrimitiveGroups(primitiveKeys == INTEGER_KEYS);
+            }
+        }
+    }
+
+    private final static int NO_PRIMITIVE_KEYS = 0;
+    private final static int INTEGER_KEYS = 1;
+    private final static int STRING_KEYS = 2;
+
+    /**
+     * Determine from the static type of the grouping key whether a specialised grouping table
+     * can be used
+     *
+     * @return {@link #INTEGER_KEYS} if all the keys are known to be integers; {@link #STRING_KEYS} if all
+     * the keys are known to be strings (or untypedAtomic or anyURI values) compared using the Unicode
+     * codepoint collation; otherwise {@link #NO_PRIMITIVE_KEYS}
+     */
+
+    private int getPrimitiveKeyType() {
+        ItemType type = keyExpression.getItemType();
+        TypeHierarchy th = keyContext.getConfiguration().getTypeHierarchy();
+        if (th.isSubType(type, BuiltInAtomicType.INTEGER)) {
+            return INTEGER_KEYS;
+        } else if (collator instanceof CodepointCollator &&
+                (th.isSubType(type, BuiltInAtomicType.STRING) ||
+                         th.isSubType(type, BuiltInAtomicType.UNTYPED_ATOMIC) ||
+                         th.isSubType(type, BuiltInAtomicType.ANY_URI))) {
+            return STRING_KEYS;
+        } else {
+            return NO_PRIMITIVE_KEYS;
         }
     }
 
@@ -148,6 +189,59 @@ public class GroupByIterator implements GroupIterator, LastPositionFinder, Looka
         }
     }
 
+    /**
+     * Build the grouping table forming groups of items with equal keys, in the case where
+     * the keys are all integers, or are all strings compared using codepoint collation.
+     * As with {@link #buildIndexedGroups()}, a member of the population may be present in
+     * zero or more groups.
+     *
+     * @param integerKeys true if the keys are integers, false if they are strings
+     * @throws XPathException if any error occurs
+     */
+
+    private void buildPrimitiveGroups(boolean integerKeys) throws XPathException {
+        List<Item<?>> members = new ArrayList<>(256);
+        LongGroupTable longIndex = integerKeys ? new LongGroupTable() : null;
+        StringGroupTable stringIndex = integerKeys ? null : new StringGroupTable();
+        // Integers outside the range of a long are indexed in the usual way
+        HashMap<AtomicMatchKey, Integer> otherIndex = null;
+        List<IndexedGroup> newGroups = new ArrayList<>(40);
+        XPathContext c2 = keyContext.newMinorContext();
+        FocusIterator<?> focus = c2.trackFocus(population);
+        Item<?> item;
+        while ((item = focus.next()) != null) {
+            int member = members.size();
+            members.add(item);
+            SequenceIterator<?> keys = keyExpression.iterate(c2);
+            AtomicValue key;
+            while ((key = (AtomicValue) keys.next()) != null) {
+                int groupNr = newGroups.size();
+                int existing;
+                if (!integerKeys) {
+                    existing = stringIndex.putIfAbsent(key.getStringValue(), groupNr);
+                } else if (!(key instanceof BigIntegerValue) || ((BigIntegerValue) key).isWithinLongRange()) {
+                    existing = longIndex.putIfAbsent(((IntegerValue) key).longValue(), groupNr);
+                } else {
+                    if (otherIndex == null) {
+                        otherIndex = new HashMap<>();
+                    }
+                    AtomicMatchKey comparisonKey = key.getXPathComparable(false, collator, c2.getImplicitTimezone());
+                    Integer g = otherIndex.putIfAbsent(comparisonKey, groupNr);
+                    existing = g == null ? -1 : g;
+                }
+                if (existing < 0) {
+                    newGroups.add(new IndexedGroup(members, member));
+                    groupKeys.add(key);
+                } else {
+                    // The item may already be in this group if it has more than one key value;
+                    // if so, it will be the last item in the group
+                    newGroups.get(existing).addIfAbsent(member);
+                }
+            }
+        }
+        groups = new ArrayList<>(newGroups);
+    }
+
     /**
      * Build the grouping table forming groups of items with equal keys.
      * This form of grouping allows the grouping key to be a sequence of atomic values.
@@ -277,6 +371,163 @@ public class GroupByIterator implements GroupIterator, LastPositionFinder, Looka
         return groups.size();
     }
 
+    /**
+     * A group held as an array of positions within the population, presented as a list of items
+     */
+
+    private static class IndexedGroup extends AbstractList<Item<?>> implements RandomAccess {
+
+        private List<Item<?>> members;
+        private int[] positions;
+        private int size;
+
+        IndexedGroup(List<Item<?>> members, int first) {
+            this.members = members;
+            this.positions = new int[]{first};
+            this.size = 1;
+        }
+
+        void addIfAbsent(int member) {
+            if (positions[size - 1] != member) {
+                if (size == positions.length) {
+                    positions = Arrays.copyOf(positions, size * 2);
+                }
+                positions[size++] = member;
+            }
+        }
+
+        public Item<?> get(int index) {
+            if (index >= size) {
+                throw new IndexOutOfBoundsException(index + "");
+            }
+            return members.get(positions[index]);
+        }
+
+        public int size() {
+            return size;
+        }
+    }
+
+    /**
+     * An open-addressing hash table mapping long grouping keys to group numbers
+     */
+
+    private static class LongGroupTable {
+
+        private long[] keys = new long[64];
+        private int[] values = new int[64];  // group number plus one; zero marks an empty slot
+        private int count = 0;
+
+        /**
+         * Get the group number for a key, adding the key if it is not already present
+         *
+         * @param key   the grouping key
+         * @param group the group number to be used if the key is not present
+         * @return the existing group number, or -1 if the key was added
+         */
+
+        int putIfAbsent(long key, int group) {
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            while (values[i] != 0) {
+                if (keys[i] == key) {
+                    return values[i] - 1;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = group + 1;
+            if (++count * 2 > keys.length) {
+                rehash();
+            }
+            return -1;
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        private void rehash() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldValues[j] != 0) {
+                    int i = hash(oldKeys[j]) & mask;
+                    while (values[i] != 0) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+    }
+
+    /**
+     * An open-addressing hash table mapping string grouping keys to group numbers, comparing
+     * keys by codepoints
+     */
+
+    private static class StringGroupTable {
+
+        private String[] keys = new String[64];
+        private int[] values = new int[64];
+        private int count = 0;
+
+        /**
+         * Get the group number for a key, adding the key if it is not already present
+         *
+         * @param key   the grouping key
+         * @param group the group number to be used if the key is not present
+         * @return the existing group number, or -1 if the key was added
+         */
+
+        int putIfAbsent(String key, int group) {
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            String k;
+            while ((k = keys[i]) != null) {
+                if (k.equals(key)) {
+                    return values[i];
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = group;
+            if (++count * 2 > keys.length) {
+                rehash();
+            }
+            return -1;
+        }
+
+        private static int hash(String key) {
+            int h = key.hashCode() * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        private void rehash() {
+            String[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new String[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] != null) {
+                    int i = hash(oldKeys[j]) & mask;
+                    while (keys[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+    }
+
 //#if EE==true
 
     public ManualGroupIterator getSnapShot(XPathContext context) {
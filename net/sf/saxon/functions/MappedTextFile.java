@@ -0,0 +1,383 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018 Saxonica Limited.
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.functions;
+
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.expr.parser.Location;
+import net.sf.saxon.lib.StandardUnparsedTextResolver;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.regex.LatinString;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.value.StringValue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+import java.util.function.IntPredicate;
+
+/**
+ * A local text file read by unparsed-text() or unparsed-text-lines() using a memory-mapped
+ * buffer rather than a <code>Reader</code>. This is used only for files accessed using the <code>file</code>
+ * URI scheme through the standard unparsed text resolver, and only when the encoding (explicit or inferred)
+ * is UTF-8, ISO-8859-1, or US-ASCII: these are the encodings in which a line ending can be recognized
+ * from a single octet, and in which ASCII characters can be checked and copied without decoding.
+ *
+ * <p>Lines are decoded one at a time, so unparsed-text-lines() can process files of any size, including
+ * files too large to be mapped in a single buffer. Characters are checked for validity against a table
+ * indexed by octet value; only non-ASCII characters in UTF-8 input need to be decoded and tested
+ * individually.</p>
+ */
+
+public class MappedTextFile {
+
+    private final static int LATIN1 = 0;
+    private final static int UTF8 = 1;
+    private final static int ASCII = 2;
+
+    /**
+     * The maximum size of a single mapped region, when reading a file line by line
+     */
+
+    private final static int WINDOW = 1 << 26;
+
+    private URI uri;
+    private FileChannel channel;
+    private long size;
+    private int encoding;
+    private IntPredicate checker;
+    private boolean[] validOctet;
+
+    private MappedTextFile(URI uri, FileChannel channel, int encoding, IntPredicate checker) throws IOException {
+        this.uri = uri;
+        this.channel = channel;
+        this.size = channel.size();
+        this.encoding = encoding;
+        this.checker = checker;
+        this.validOctet = UnparsedTextFunction.makeLatinValidityTable(checker);
+    }
+
+    /**
+     * Open a text file for memory-mapped reading, if this is possible
+     *
+     * @param absoluteURI the absolute URI of the file
+     * @param encoding    the requested encoding, or null if the encoding is to be inferred
+     * @param context     the XPath dynamic context
+     * @return the opened file, or null if the file cannot be read using this mechanism, in which case
+     * the caller should use the configured {@link net.sf.saxon.lib.UnparsedTextURIResolver}
+     */
+
+    public static MappedTextFile open(URI absoluteURI, String encoding, XPathContext context) {
+        if (!"file".equals(absoluteURI.getScheme()) ||
+                context.getController().getUnparsedTextURIResolver().getClass() != StandardUnparsedTextResolver.class) {
+            return null;
+        }
+        FileChannel channel = null;
+        try {
+            File file = new File(absoluteURI);
+            if (!file.isFile()) {
+                return null;
+            }
+            channel = new RandomAccessFile(file, "r").getChannel();
+            if (encoding == null) {
+                ByteBuffer start = ByteBuffer.allocate(100);
+                channel.read(start, 0);
+                encoding = StandardUnparsedTextResolver.inferStreamEncoding(
+                        new ByteArrayInputStream(start.array(), 0, start.position()), null);
+            }
+            String name = Charset.forName(encoding).name();
+            int code;
+            if (name.equals("UTF-8")) {
+                code = UTF8;
+            } else if (name.equals("ISO-8859-1")) {
+                code = LATIN1;
+            } else if (name.equals("US-ASCII")) {
+                code = ASCII;
+            } else {
+                channel.close();
+                return null;
+            }
+            return new MappedTextFile(absoluteURI, channel, code, context.getConfiguration().getValidCharacterChecker());
+        } catch (IOException | IllegalArgumentException | SecurityException e) {
+            // Includes unknown encodings: leave the standard resolver to report the problem
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e2) {
+                    // ignore the failure
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Read the whole file as a string, for unparsed-text(). If every character is in the Latin-1 range the
+     * result is a {@link LatinString} built directly from the file's octets.
+     *
+     * @return the content of the file, excluding any byte order mark
+     * @throws IOException    if the file cannot be read, or is not correctly encoded
+     * @throws XPathException if the file contains a character that is not valid in XML
+     */
+
+    public CharSequence readAll() throws IOException, XPathException {
+        try {
+            if (size > Integer.MAX_VALUE - 16) {
+                throw new IOException("File is too large to be read as a single string");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int start = skipByteOrderMark(buffer);
+            int end = (int) size;
+            if (encoding != UTF8 || isAscii(buffer, start, end)) {
+                return LatinString.fromLatin1Octets(copyOctets(buffer, start, end, 1));
+            } else {
+                String s = decode(buffer, start, end);
+                checkDecoded(s, 1);
+                return isLatin(s) ? new LatinString(s) : s;
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Get an iterator over the lines of the file, for unparsed-text-lines()
+     *
+     * @param location the location of the calling expression, for diagnostics
+     * @return an iterator delivering one string per line, with line endings removed
+     */
+
+    public SequenceIterator<StringValue> lines(Location location) {
+        return new LinesIterator(location);
+    }
+
+    /**
+     * Release the file
+     */
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore the failure
+        }
+    }
+
+    private int skipByteOrderMark(ByteBuffer buffer) {
+        if (encoding == UTF8 && buffer.limit() >= 3 &&
+                (buffer.get(0) & 0xff) == 0xEF && (buffer.get(1) & 0xff) == 0xBB && (buffer.get(2) & 0xff) == 0xBF) {
+            return 3;
+        }
+        return 0;
+    }
+
+    private static boolean isAscii(ByteBuffer buffer, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isLatin(CharSequence s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) > 255) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copy octets that each represent a single character, checking that every character is valid
+     *
+     * @param buffer    the mapped buffer
+     * @param start     the offset of the first octet
+     * @param end       the offset after the last octet
+     * @param firstLine the line number of the first octet, for diagnostics
+     * @return the copied octets
+     * @throws IOException    if the encoding is US-ASCII and an octet is outside the ASCII range
+     * @throws XPathException if a character is not valid in XML
+     */
+
+    private byte[] copyOctets(ByteBuffer buffer, int start, int end, int firstLine) throws IOException, XPathException {
+        byte[] octets = new byte[end - start];
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b < 0 && encoding == ASCII) {
+                // Reported in the same way as by the decoder used when the file is not mapped
+                throw new MalformedInputException(1);
+            }
+            if (!validOctet[b & 0xff]) {
+                throw invalidCharacter(b & 0xff, buffer, start, i, firstLine);
+            }
+            octets[i - start] = b;
+        }
+        return octets;
+    }
+
+    private static String decode(ByteBuffer buffer, int start, int end) throws CharacterCodingException {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(end);
+        slice.position(start);
+        CharBuffer chars = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT)
+                .decode(slice);
+        return chars.toString();
+    }
+
+    private void checkDecoded(String s, int firstLine) throws XPathException {
+        int line = firstLine;
+        int column = 1;
+        for (int i = 0; i < s.length(); ) {
+            int ch32 = s.codePointAt(i);
+            i += Character.charCount(ch32);
+            if (ch32 < 256 ? !validOctet[ch32] : !checker.test(ch32)) {
+                throw illegalCharacter(ch32, line, column);
+            }
+            if (ch32 == '\n') {
+                line++;
+                column = 0;
+            }
+            column++;
+        }
+    }
+
+    private XPathException invalidCharacter(int ch32, ByteBuffer buffer, int start, int offset, int firstLine) {
+        // Only called on the error path, so the position is computed by rescanning
+        int line = firstLine;
+        int column = 1;
+        for (int i = start; i < offset; i++) {
+            if (buffer.get(i) == '\n') {
+                line++;
+                column = 0;
+            }
+            column++;
+        }
+        return illegalCharacter(ch32, line, column);
+    }
+
+    private static XPathException illegalCharacter(int ch32, int line, int column) {
+        XPathException err = new XPathException("The text file contains a character that is illegal in XML (line=" +
+                                                        line + " column=" + column + " value=hex " + Integer.toHexString(ch32) + ')');
+        err.setErrorCode("FOUT1190");
+        return err;
+    }
+
+    /**
+     * Iterator over the lines of the file. A region of the file is mapped at a time; a line that crosses
+     * the end of the current region causes the region to be remapped starting at the beginning of that line.
+     */
+
+    private class LinesIterator implements SequenceIterator<StringValue> {
+
+        private Location location;
+        private long regionStart = 0;
+        private MappedByteBuffer region;
+        private int pos;
+        private int lineNumber = 0;
+        private boolean finished = false;
+
+        LinesIterator(Location location) {
+            this.location = location;
+        }
+
+        private boolean hasMoreRegions() {
+            return regionStart + region.limit() < size;
+        }
+
+        private void map(long start, long minimum) throws IOException {
+            long length = Math.min(Math.max(WINDOW, minimum), size - start);
+            if (length > Integer.MAX_VALUE) {
+                length = Integer.MAX_VALUE;
+            }
+            regionStart = start;
+            region = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            pos = 0;
+        }
+
+        public StringValue next() throws XPathException {
+            if (finished) {
+                return null;
+            }
+            try {
+                if (region == null) {
+                    map(0, WINDOW);
+                    pos = skipByteOrderMark(region);
+                }
+                if (regionStart + pos >= size) {
+                    close();
+                    return null;
+                }
+                int end;
+                while (true) {
+                    int limit = region.limit();
+                    end = pos;
+                    while (end < limit) {
+                        byte b = region.get(end);
+                        if (b == '\n' || b == '\r') {
+                            break;
+                        }
+                        end++;
+                    }
+                    if (end < limit || !hasMoreRegions()) {
+                        break;
+                    }
+                    if (limit - pos == Integer.MAX_VALUE) {
+                        throw new IOException("Line too long");
+                    }
+                    map(regionStart + pos, 2L * (limit - pos));
+                }
+                lineNumber++;
+                String line;
+                if (encoding != UTF8 || isAscii(region, pos, end)) {
+                    line = new String(copyOctets(region, pos, end, lineNumber), StandardCharsets.ISO_8859_1);
+                } else {
+                    line = decode(region, pos, end);
+                    checkDecoded(line, lineNumber);
+                }
+                pos = end;
+                if (pos < region.limit()) {
+                    byte terminator = region.get(pos++);
+                    if (terminator == '\r') {
+                        if (pos == region.limit() && hasMoreRegions()) {
+                            map(regionStart + pos, WINDOW);
+                        }
+                        if (pos < region.limit() && region.get(pos) == '\n') {
+                            pos++;
+                        }
+                    }
+                }
+                return new StringValue(line);
+            } catch (IOException err) {
+                close();
+                XPathException e = UnparsedTextFunction.handleIOError(uri, err, null);
+                e.setLocator(location);
+                throw e;
+            } catch (XPathException err) {
+                close();
+                err.maybeSetLocation(location);
+                throw err;
+            }
+        }
+
+        public void close() {
+            finished = true;
+            region = null;
+            MappedTextFile.this.close();
+        }
+    }
+}
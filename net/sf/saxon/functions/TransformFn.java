@@ -297,9 +297,7 @@ public class TransformFn extends SystemFunction implements Callable {
                                     unsuitable("supports-streaming", value.getStringValue());
                                 }
                             } else {
-                                if (processor.getUnderlyingConfiguration().isLicensedFeature(Configuration.LicenseFeature.ENTERPRISE_XSLT)) {
-                                    processor.setConfigurationProperty(Feature.STREAMABILITY, "off");
-                                }
+                                processor.setConfigurationProperty(Feature.STREAMABILITY, "off");
                             }
                             break;
                         }
@@ -43,6 +43,8 @@ public class URIQueryParameters {
     boolean unparsed;
     Boolean stable = null;
     Boolean metadata = null;
+    Integer parallel = null;
+    Integer prefetch = null;
 
     public static final int ON_ERROR_FAIL = 1;
     public static final int ON_ERROR_WARNING = 2;
@@ -107,6 +109,16 @@ public class URIQueryParameters {
             } else if (value.equals("no")) {
                 metadata = Boolean.FALSE;
             }
+        } else if (keyword.equals("parallel")) {
+            Integer n = parsePositiveInteger(value);
+            if (n != null) {
+                parallel = n;
+            }
+        } else if (keyword.equals("prefetch")) {
+            Integer n = parsePositiveInteger(value);
+            if (n != null) {
+                prefetch = n;
+            }
         } else if (keyword.equals("xinclude")) {
             if (value.equals("yes")) {
                 xinclude = Boolean.TRUE;
@@ -136,6 +148,15 @@ public class URIQueryParameters {
         }
     }
 
+    private static Integer parsePositiveInteger(String value) {
+        try {
+            int n = Integer.parseInt(value);
+            return n > 0 ? n : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     public static FilenameFilter makeGlobFilter(String value) throws XPathException {
         FastStringBuffer sb = new FastStringBuffer(value.length() + 6);
         sb.append('^');
@@ -221,6 +242,24 @@ public class URIQueryParameters {
         return metadata;
     }
 
+    /**
+     * Get the value of parallel=N, the maximum number of resources in the collection that may be
+     * parsed concurrently, ahead of their consumption, or null if unspecified
+     */
+
+    public Integer getParallel() {
+        return parallel;
+    }
+
+    /**
+     * Get the value of prefetch=N, the maximum number of resources that may be parsed ahead of
+     * consumption when parallel parsing is in use, or null if unspecified
+     */
+
+    public Integer getPrefetch() {
+        return prefetch;
+    }
+
     /**
      * Get the value of unparsed=yes|no, or false if unspecified
      */
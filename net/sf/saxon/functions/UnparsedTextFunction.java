@@ -62,6 +62,17 @@ public abstract class UnparsedTextFunction extends SystemFunction {
         final Configuration config = context.getConfiguration();
         IntPredicate checker = config.getValidCharacterChecker();
 
+        // For local files in a single-octet-delimited encoding, avoid decoding through a Reader
+
+        MappedTextFile mapped = MappedTextFile.open(absoluteURI, encoding, context);
+        if (mapped != null) {
+            try {
+                return mapped.readAll();
+            } catch (java.io.IOException ioErr) {
+                throw handleIOError(absoluteURI, ioErr, context);
+            }
+        }
+
         // Use the URI machinery to validate and resolve the URIs
 
         Reader reader;
@@ -134,6 +145,22 @@ public abstract class UnparsedTextFunction extends SystemFunction {
         }
     }
 
+    /**
+     * Tabulate the results of a character validity checker for the characters in the Latin-1 range,
+     * so that the common case can be tested by an array lookup
+     *
+     * @param checker predicate for checking whether characters are valid XML characters
+     * @return an array whose n'th entry indicates whether the character with codepoint n is valid
+     */
+
+    public static boolean[] makeLatinValidityTable(IntPredicate checker) {
+        boolean[] table = new boolean[256];
+        for (int i = 0; i < 256; i++) {
+            table[i] = checker.test(i);
+        }
+        return table;
+    }
+
     /**
      * Read the contents of an unparsed text file
      *
@@ -145,6 +172,7 @@ public abstract class UnparsedTextFunction extends SystemFunction {
      */
 
     public static CharSequence readFile(IntPredicate checker, Reader reader) throws IOException, XPathException {
+        boolean[] validLatin = makeLatinValidityTable(checker);
         FastStringBuffer sb = new FastStringBuffer(2048);
         char[] buffer = new char[2048];
         boolean first = true;
@@ -182,7 +210,7 @@ public abstract class UnparsedTextFunction extends SystemFunction {
                         ch32 = UTF16CharacterSet.combinePair((char) ch32, low);
                     }
                 }
-                if (!checker.test(ch32)) {
+                if (ch32 < 256 ? !validLatin[ch32] : !checker.test(ch32)) {
                     XPathException err = new XPathException("The text file contains a character that is illegal in XML (line=" +
                                                                     line + " column=" + column + " value=hex " + Integer.toHexString(ch32) + ')');
                     err.setErrorCode("FOUT1190");
@@ -63,6 +63,10 @@ public class UnparsedTextLines extends UnparsedTextFunction implements Callable
         } else {
             // with unstable results, we avoid reading the whole file into memory
             final URI absoluteURI = UnparsedTextFunction.getAbsoluteURI(href, getRetainedStaticContext().getStaticBaseUriString(), context);
+            MappedTextFile mapped = MappedTextFile.open(absoluteURI, encoding, context);
+            if (mapped != null) {
+                return mapped.lines(null);
+            }
             return new UnparsedTextIterator(absoluteURI, context, encoding, null);
         }
     }
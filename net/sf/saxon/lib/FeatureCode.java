@@ -268,9 +268,19 @@ public abstract class FeatureCode {
     public final static int THRESHOLD_FOR_FUNCTION_INLINING = 122;
     /** @see Feature#THRESHOLD_FOR_HOTSPOT_BYTE_CODE  */
     public final static int THRESHOLD_FOR_HOTSPOT_BYTE_CODE = 123;
+    /** @see Feature#MAX_PARALLELISM  */
+    public final static int MAX_PARALLELISM = 124;
+    /** @see Feature#INCREMENTAL_TREE_INDEXING  */
+    public final static int INCREMENTAL_TREE_INDEXING = 125;
+    /** @see Feature#RULE_MATCH_CACHE_SIZE  */
+    public final static int RULE_MATCH_CACHE_SIZE = 126;
+    /** @see Feature#PRE_EVALUATE_GLOBAL_VARIABLES  */
+    public final static int PRE_EVALUATE_GLOBAL_VARIABLES = 127;
+    /** @see Feature#PARALLEL_MAPPING  */
+    public final static int PARALLEL_MAPPING = 128;
 
 
-    public final static int MAX = 124;
+    public final static int MAX = 129;
 
 }
         
\ No newline at end of file
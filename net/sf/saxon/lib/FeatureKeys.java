@@ -1044,7 +1044,9 @@ public abstract class FeatureKeys {
     *            <p>Indicates the maximum number of threads to be used for processing
     *                    <code>xsl:result-document</code> instructions in parallel. If the maximum number
     *                of threads are already in use, the <code>xsl:result-document</code> instruction will
-    *                be executed synchronously within its parent thread.</p>
+    *                be executed synchronously within its parent thread. Asynchronous processing takes place
+    *                only if <code>ALLOW_MULTITHREADING</code> is set to true, and only for result documents other
+    *                than the principal result document.</p>
     *            <p>The default value is initialized to
     *                    <code>Runtime.getRuntime().availableProcessors()</code> which is intended to
     *                represent the number of "processors" (under some definition) available from the
@@ -2163,5 +2165,96 @@ public abstract class FeatureKeys {
 // AUTO-GENERATED FROM FeatureKeys.xml - DO NOT EDIT THIS FILE
 
 
+    /**
+    *            <p>MAX_PARALLELISM sets the maximum number of worker threads used for multi-threaded evaluation of
+    *                expressions and instructions, for example parallel grouping in XQuery FLWOR expressions.
+    *                Multi-threaded evaluation only takes place if <code>ALLOW_MULTITHREADING</code> is set to true.</p>
+    *            <p>The default is the number of processors available to the Java virtual machine. The worker pool is
+    *                created when it is first needed, so changing this property after that point has no effect.</p>
+    *        
+    **/
+
+    public final static String MAX_PARALLELISM = 
+        "http://saxon.sf.net/feature/maxParallelism";
+
+// AUTO-GENERATED FROM FeatureKeys.xml - DO NOT EDIT THIS FILE
+
+
+    /**
+    *            <p>If INCREMENTAL_TREE_INDEXING is set to true, key indexes and accumulator values for temporary
+    *                trees constructed using <code>xsl:variable</code>, <code>xsl:document</code> and similar
+    *                instructions are computed while the tree is being built, rather than by a further traversal of the
+    *                tree when the key or accumulator is first used.</p>
+    *            <p>Only keys and accumulators whose match patterns and expressions are known not to depend on parts
+    *                of the tree that have not yet been built are indexed in this way; others continue to be computed on
+    *                first use. The option is useful when most temporary trees are subsequently accessed using keys or
+    *                accumulators: otherwise it may waste time computing values that are never used.</p>
+    *        
+    **/
+
+    public final static String INCREMENTAL_TREE_INDEXING = 
+        "http://saxon.sf.net/feature/incrementalTreeIndexing";
+
+// AUTO-GENERATED FROM FeatureKeys.xml - DO NOT EDIT THIS FILE
+
+
+    /**
+    *            <p>RULE_MATCH_CACHE_SIZE, if set to a positive value, causes the template rule selected for a node in a
+    *                given mode to be remembered for the duration of a transformation, so that when
+    *                <code>xsl:apply-templates</code> processes the same node in the same mode again, the rule is
+    *                found without matching the patterns a second time. The value is the maximum number of nodes
+    *                remembered for each mode; when this is exceeded, the least recently used entries are discarded.</p>
+    *            <p>The cache is used only for modes in which none of the match patterns depends on anything other
+    *                than the node being matched and the values of global variables: for example, a mode is not
+    *                cached if any of its patterns uses <code>current()</code>. The default is zero, meaning that
+    *                rule selection is never cached.</p>
+    *        
+    **/
+
+    public final static String RULE_MATCH_CACHE_SIZE = 
+        "http://saxon.sf.net/feature/ruleMatchCacheSize";
+
+// AUTO-GENERATED FROM FeatureKeys.xml - DO NOT EDIT THIS FILE
+
+
+    /**
+    *            <p>If PRE_EVALUATE_GLOBAL_VARIABLES is set to true, all the global variables and parameters of a stylesheet
+    *                are evaluated at the start of each transformation, rather than when they are first referenced. If
+    *                <code>ALLOW_MULTITHREADING</code> is also set, the variables are evaluated in parallel using the
+    *                worker threads whose number is set by <code>MAX_PARALLELISM</code>.</p>
+    *            <p>A dynamic error evaluating a variable is reported only if the variable is subsequently used. The
+    *                option can reduce the elapsed time of transformations that use many expensive global variables
+    *                (for example, variables that load documents), but it wastes time evaluating variables that are
+    *                never referenced, and the output of any <code>xsl:message</code> instructions executed while
+    *                evaluating the variables may be interleaved.</p>
+    *        
+    **/
+
+    public final static String PRE_EVALUATE_GLOBAL_VARIABLES = 
+        "http://saxon.sf.net/feature/preEvaluateGlobalVariables";
+
+// AUTO-GENERATED FROM FeatureKeys.xml - DO NOT EDIT THIS FILE
+
+
+    /**
+    *            <p>If PARALLEL_MAPPING is set to true, <code>for</code> expressions and expressions using the simple
+    *                mapping operator <code>!</code> may be evaluated in parallel, using the worker threads whose number
+    *                is set by <code>MAX_PARALLELISM</code>, provided that <code>ALLOW_MULTITHREADING</code> is also set.
+    *                The option affects only expressions whose return expression creates no new nodes and has no
+    *                side-effects, and only when the input sequence is large. In XQuery, the same effect can be obtained
+    *                for an individual expression by enclosing it in the pragma <code>(# saxon:parallel #)</code>.</p>
+    *            <p>The input sequence is divided into chunks which are evaluated as separate tasks. The result of the
+    *                expression, and any dynamic error it reports, are the same as for sequential evaluation; but the
+    *                return expression may be evaluated for items that would not have been processed sequentially,
+    *                for example when only the first item of the result is used.</p>
+    *        
+    **/
+
+    public final static String PARALLEL_MAPPING = 
+        "http://saxon.sf.net/feature/parallelMapping";
+
+// AUTO-GENERATED FROM FeatureKeys.xml - DO NOT EDIT THIS FILE
+
+
 }
         
\ No newline at end of file
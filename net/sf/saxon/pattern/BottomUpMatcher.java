@@ -0,0 +1,316 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018 Saxonica Limited.
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.pattern;
+
+import net.sf.saxon.expr.*;
+import net.sf.saxon.expr.sort.DocumentSorter;
+import net.sf.saxon.om.AxisInfo;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.iter.AxisIterator;
+import net.sf.saxon.tree.iter.ManualIterator;
+import net.sf.saxon.type.Type;
+import net.sf.saxon.type.TypeHierarchy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A matcher for the path expression underlying a {@link GeneralNodePattern}, which tests whether
+ * a node is selected by the path without evaluating it. The matcher starts at the node being tested and
+ * works upwards: it checks the last step of the path against the node, then moves to the node from which
+ * that step could have been taken (the parent, for a child or attribute step, or any ancestor, for a
+ * descendant step) and checks the previous step against that node, and so on until the start of the path
+ * is reached.
+ *
+ * <p>Predicates are evaluated with the node being tested as the context item. When a predicate is
+ * positional, the context position and size are obtained by counting the nodes that the step selects
+ * from the origin node, which for a child step means counting the siblings of the node being tested.
+ * This is much cheaper than evaluating the path from every ancestor of the node and searching the result.</p>
+ *
+ * <p>The matcher handles paths starting at the root or at the context item, made up of steps using the
+ * child, attribute, self, descendant and descendant-or-self axes, each with any number of predicates
+ * provided that at most one of the predicates on a step is positional and that it is the last one.
+ * For other paths (for example those starting with a call on <code>key()</code> or <code>id()</code>,
+ * or with a positional predicate applied to a sequence of several steps) {@link #make} returns null,
+ * and the pattern is matched by evaluating the expression.</p>
+ */
+
+public final class BottomUpMatcher {
+
+    private final static int FILTER = 0;
+    private final static int FIRST = 1;
+    private final static int LAST = 2;
+
+    private static class Predicate {
+        int kind;
+        Expression filter;
+        boolean positional;
+        boolean usesLast;
+    }
+
+    private static class Step {
+        byte axis;
+        NodeTest test;
+        List<Predicate> predicates = new ArrayList<>(2);
+        boolean positional;
+    }
+
+    private final Step[] steps;
+    private final boolean absolute;
+
+    private BottomUpMatcher(Step[] steps, boolean absolute) {
+        this.steps = steps;
+        this.absolute = absolute;
+    }
+
+    /**
+     * Make a bottom-up matcher for a path expression, if the expression takes a suitable form
+     *
+     * @param exp the path expression, as used in a {@link GeneralNodePattern}
+     * @param th  the type hierarchy cache
+     * @return the matcher, or null if the expression cannot be matched bottom-up
+     */
+
+    public static BottomUpMatcher make(Expression exp, TypeHierarchy th) {
+        List<Step> steps = new ArrayList<>();
+        boolean[] state = new boolean[2]; // [0]: start processed; [1]: path is absolute
+        if (!addSteps(exp, steps, state, th) || steps.isEmpty()) {
+            return null;
+        }
+        return new BottomUpMatcher(steps.toArray(new Step[0]), state[1]);
+    }
+
+    private static boolean addSteps(Expression exp, List<Step> steps, boolean[] state, TypeHierarchy th) {
+        if (exp instanceof DocumentSorter) {
+            return addSteps(((DocumentSorter) exp).getBaseExpression(), steps, state, th);
+        } else if (exp instanceof SlashExpression) {
+            return addSteps(((SlashExpression) exp).getStart(), steps, state, th) &&
+                    addSteps(((SlashExpression) exp).getStep(), steps, state, th);
+        } else if (exp instanceof RootExpression) {
+            if (state[0]) {
+                return false;
+            }
+            state[0] = true;
+            state[1] = true;
+            return true;
+        } else if (exp instanceof ContextItemExpression ||
+                exp instanceof ItemChecker && ((ItemChecker) exp).getBaseExpression() instanceof ContextItemExpression) {
+            if (state[0]) {
+                return false;
+            }
+            state[0] = true;
+            return true;
+        } else if (exp instanceof AxisExpression) {
+            byte axis = ((AxisExpression) exp).getAxis();
+            if (!(axis == AxisInfo.CHILD || axis == AxisInfo.ATTRIBUTE || axis == AxisInfo.SELF ||
+                    axis == AxisInfo.DESCENDANT || axis == AxisInfo.DESCENDANT_OR_SELF)) {
+                return false;
+            }
+            state[0] = true;
+            Step step = new Step();
+            step.axis = axis;
+            step.test = ((AxisExpression) exp).getNodeTest();
+            if (step.test == null) {
+                step.test = AnyNodeTest.getInstance();
+            }
+            steps.add(step);
+            return true;
+        } else if (exp instanceof FilterExpression) {
+            Expression filter = ((FilterExpression) exp).getFilter();
+            Predicate p = new Predicate();
+            p.kind = FILTER;
+            p.filter = filter;
+            p.positional = FilterExpression.isPositionalFilter(filter, th);
+            p.usesLast = (filter.getDependencies() & StaticProperty.DEPENDS_ON_LAST) != 0;
+            return addPredicate(((FilterExpression) exp).getSelectExpression(), p, steps, state, th);
+        } else if (exp instanceof FirstItemExpression || exp instanceof LastItemExpression) {
+            Predicate p = new Predicate();
+            p.kind = exp instanceof FirstItemExpression ? FIRST : LAST;
+            p.positional = true;
+            p.usesLast = p.kind == LAST;
+            return addPredicate(((SingleItemFilter) exp).getBaseExpression(), p, steps, state, th);
+        } else if (exp instanceof SubscriptExpression) {
+            Predicate p = new Predicate();
+            p.kind = FILTER;
+            p.filter = ((SubscriptExpression) exp).getSubscript();
+            p.positional = true;
+            p.usesLast = (p.filter.getDependencies() & StaticProperty.DEPENDS_ON_LAST) != 0;
+            return addPredicate(((SubscriptExpression) exp).getBaseExpression(), p, steps, state, th);
+        } else {
+            return false;
+        }
+    }
+
+    private static boolean addPredicate(Expression base, Predicate p, List<Step> steps, boolean[] state, TypeHierarchy th) {
+        int before = steps.size();
+        if (!addSteps(base, steps, state, th) || steps.size() == before) {
+            return false;
+        }
+        if (p.positional && steps.size() != before + 1) {
+            // a positional predicate applied to the result of several steps cannot be matched bottom-up
+            return false;
+        }
+        Step step = steps.get(steps.size() - 1);
+        if (step.positional) {
+            // only the last predicate on a step may be positional
+            return false;
+        }
+        step.positional = p.positional;
+        step.predicates.add(p);
+        return true;
+    }
+
+    /**
+     * Test whether a node is selected by the path expression
+     *
+     * @param node    the node to be tested
+     * @param anchor  if non-null, the node to be used as the context item for evaluating a relative
+     *                path; if null, a relative path may be evaluated from any ancestor-or-self of the node
+     * @param context the dynamic evaluation context
+     * @return true if the node is selected by the path
+     * @throws XPathException if a dynamic error occurs evaluating a predicate
+     */
+
+    public boolean matches(NodeInfo node, NodeInfo anchor, XPathContext context) throws XPathException {
+        return matchesStep(node, steps.length - 1, anchor, context.newMinorContext());
+    }
+
+    private boolean matchesStep(NodeInfo node, int i, NodeInfo anchor, XPathContext context) throws XPathException {
+        Step step = steps[i];
+        if (!step.test.matchesNode(node)) {
+            return false;
+        }
+        int kind = node.getNodeKind();
+        switch (step.axis) {
+            case AxisInfo.CHILD: {
+                NodeInfo origin = node.getParent();
+                return kind != Type.ATTRIBUTE && kind != Type.NAMESPACE && origin != null &&
+                        testPredicates(node, origin, step, context) &&
+                        matchesOrigin(origin, i, anchor, context);
+            }
+            case AxisInfo.ATTRIBUTE: {
+                NodeInfo origin = node.getParent();
+                return kind == Type.ATTRIBUTE && origin != null &&
+                        testPredicates(node, origin, step, context) &&
+                        matchesOrigin(origin, i, anchor, context);
+            }
+            case AxisInfo.SELF:
+                return testPredicates(node, node, step, context) &&
+                        matchesOrigin(node, i, anchor, context);
+            default: {
+                // descendant or descendant-or-self: the origin can be any ancestor
+                NodeInfo origin = step.axis == AxisInfo.DESCENDANT_OR_SELF ? node : node.getParent();
+                if (kind == Type.ATTRIBUTE || kind == Type.NAMESPACE) {
+                    if (step.axis == AxisInfo.DESCENDANT) {
+                        return false;
+                    }
+                    return testPredicates(node, node, step, context) &&
+                            matchesOrigin(node, i, anchor, context);
+                }
+                while (origin != null) {
+                    if (testPredicates(node, origin, step, context) &&
+                            matchesOrigin(origin, i, anchor, context)) {
+                        return true;
+                    }
+                    if (!step.positional && anchor == null && i == 0 && !absolute) {
+                        // the result cannot differ for other origins
+                        return false;
+                    }
+                    origin = origin.getParent();
+                }
+                return false;
+            }
+        }
+    }
+
+    private boolean matchesOrigin(NodeInfo origin, int i, NodeInfo anchor, XPathContext context) throws XPathException {
+        if (i > 0) {
+            return matchesStep(origin, i - 1, anchor, context);
+        } else if (absolute) {
+            return origin.getNodeKind() == Type.DOCUMENT && origin.getParent() == null;
+        } else {
+            return anchor == null || origin.equals(anchor);
+        }
+    }
+
+    /**
+     * Test the predicates of a step
+     *
+     * @param node    the node being tested
+     * @param origin  the node from which the step is taken
+     * @param step    the step
+     * @param context a context that can be modified to evaluate the predicates
+     * @return true if the node satisfies all the predicates
+     * @throws XPathException if a dynamic error occurs
+     */
+
+    private boolean testPredicates(NodeInfo node, NodeInfo origin, Step step, XPathContext context) throws XPathException {
+        List<Predicate> predicates = step.predicates;
+        int n = predicates.size();
+        if (n == 0) {
+            return true;
+        }
+        int last = step.positional ? n - 1 : n;
+        if (!testNonPositionalPredicates(node, last, step, context)) {
+            return false;
+        }
+        if (!step.positional) {
+            return true;
+        }
+        Predicate p = predicates.get(last);
+
+        // Find the position of the node, and if required the size, among the nodes selected by the step
+        // from the origin that satisfy the preceding predicates
+        int position = 0;
+        int size = 0;
+        AxisIterator selected = origin.iterateAxis(step.axis, step.test);
+        NodeInfo s;
+        while ((s = selected.next()) != null) {
+            if (s.equals(node)) {
+                position = ++size;
+                if (!p.usesLast) {
+                    break;
+                }
+            } else if (testNonPositionalPredicates(s, last, step, context)) {
+                size++;
+                if (position == 0 && p.kind == FIRST) {
+                    break;
+                }
+            }
+        }
+        selected.close();
+        if (position == 0) {
+            return false;
+        }
+        switch (p.kind) {
+            case FIRST:
+                return position == 1;
+            case LAST:
+                return position == size;
+            default: {
+                ManualIterator<NodeInfo> focus = new ManualIterator<>(node, position);
+                final int length = size;
+                focus.setLastPositionFinder(() -> length);
+                context.setCurrentIterator(focus);
+                return FilterIterator.testPredicateValue(p.filter.iterate(context), position, p.filter);
+            }
+        }
+    }
+
+    private boolean testNonPositionalPredicates(NodeInfo node, int count, Step step, XPathContext context) throws XPathException {
+        for (int j = 0; j < count; j++) {
+            Predicate p = step.predicates.get(j);
+            context.setCurrentIterator(new ManualIterator<>(node, 1));
+            if (!FilterIterator.testPredicateValue(p.filter.iterate(context), 1, p.filter)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
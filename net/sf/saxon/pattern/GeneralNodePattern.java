@@ -27,7 +27,10 @@ import net.sf.saxon.type.UType;
 
 /**
  * A GeneralNodePattern represents a pattern which, because of the presence of positional
- * predicates or otherwise, can only be evaluated "the hard way", by evaluating the equivalent
+ * predicates or otherwise, cannot be matched by testing the node and its ancestors against simple
+ * node tests and predicates. Where possible, such patterns are matched using a {@link BottomUpMatcher},
+ * which works upwards from the tested node, computing the context position for positional predicates
+ * by counting siblings. Otherwise they are evaluated "the hard way", by evaluating the equivalent
  * expression with successive ancestors of the tested node as context item.
  */
 
@@ -35,6 +38,9 @@ public final class GeneralNodePattern extends Pattern {
 
     private Expression equivalentExpr = null;
     private NodeTest itemType = null;
+    private boolean bottomUpAllowed = true;
+    private volatile boolean bottomUpAnalyzed = false;
+    private BottomUpMatcher bottomUpMatcher = null;
 
     /**
      * Create a GeneralNodePattern
@@ -87,6 +93,7 @@ public final class GeneralNodePattern extends Pattern {
     public Pattern typeCheck(ExpressionVisitor visitor, ContextItemStaticInfo contextItemType) throws XPathException {
         ContextItemStaticInfo cit = visitor.getConfiguration().getDefaultContextItemStaticInfo();
         equivalentExpr = equivalentExpr.typeCheck(visitor, cit);
+        bottomUpAnalyzed = false;
         return this;
     }
 
@@ -110,6 +117,8 @@ public final class GeneralNodePattern extends Pattern {
         Configuration config = visitor.getConfiguration();
         ContextItemStaticInfo defaultInfo = config.getDefaultContextItemStaticInfo();
         equivalentExpr = equivalentExpr.optimize(visitor, defaultInfo);
+        bottomUpAllowed = visitor.obtainOptimizer().isOptionSet(OptimizerOptions.RULE_SET);
+        bottomUpAnalyzed = false;
         // See if the expression is now known to be non-positional
         if (equivalentExpr instanceof FilterExpression && !((FilterExpression) equivalentExpr).isFilterIsPositional()) {
             try {
@@ -146,6 +155,7 @@ public final class GeneralNodePattern extends Pattern {
             } else {
                 replaceCurrent(equivalentExpr, binding);
             }
+            bottomUpAnalyzed = false;
         }
     }
 
@@ -172,6 +182,10 @@ public final class GeneralNodePattern extends Pattern {
         if (!itemType.matches(item, th)) {
             return false;
         }
+        BottomUpMatcher matcher = getBottomUpMatcher(th);
+        if (matcher != null) {
+            return matchesBottomUp(matcher, (NodeInfo) item, null, context);
+        }
         AxisIterator anc = ((NodeInfo) item).iterateAxis(AxisInfo.ANCESTOR_OR_SELF);
         while (true) {
             NodeInfo a = anc.next();
@@ -200,6 +214,11 @@ public final class GeneralNodePattern extends Pattern {
             return false;
         }
 
+        BottomUpMatcher matcher = getBottomUpMatcher(context.getConfiguration().getTypeHierarchy());
+        if (matcher != null) {
+            return matchesBottomUp(matcher, node, anchor, context);
+        }
+
         // for a positional pattern, we do it the hard way: test whether the
         // node is a member of the nodeset obtained by evaluating the
         // equivalent expression
@@ -240,6 +259,34 @@ public final class GeneralNodePattern extends Pattern {
         }
     }
 
+    /**
+     * Get the bottom-up matcher for this pattern, constructing it on first use
+     *
+     * @param th the type hierarchy cache
+     * @return the bottom-up matcher, or null if the pattern must be matched by evaluating the
+     * equivalent expression
+     */
+
+    private BottomUpMatcher getBottomUpMatcher(TypeHierarchy th) {
+        if (!bottomUpAnalyzed) {
+            bottomUpMatcher = bottomUpAllowed ? BottomUpMatcher.make(equivalentExpr, th) : null;
+            bottomUpAnalyzed = true;
+        }
+        return bottomUpMatcher;
+    }
+
+    private boolean matchesBottomUp(BottomUpMatcher matcher, NodeInfo node, NodeInfo anchor, XPathContext context)
+            throws XPathException {
+        try {
+            return matcher.matches(node, anchor, context);
+        } catch (XPathException.Circularity e) {
+            throw e;
+        } catch (XPathException e) {
+            handleDynamicError(e, context);
+            return false;
+        }
+    }
+
     /**
      * Get a UType indicating which kinds of items this Pattern can match.
      *
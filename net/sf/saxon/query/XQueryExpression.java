@@ -101,6 +101,22 @@ public class XQueryExpression implements Location, ExpressionOwner {
                     exp = e2;
                 }
             }
+            if (!streaming) {
+                e2 = optimizer.eliminateCommonSubexpressions(exp);
+                if (e2 != exp) {
+                    e2.setRetainedStaticContext(exp.getRetainedStaticContext());
+                    e2.setParentExpression(null);
+                    exp = e2;
+                }
+                optimizer.injectByteCodeCandidates(exp);
+                e2 = optimizer.makeByteCodeCandidate(this, exp, "query body",
+                                                     Expression.PROCESS_METHOD | Expression.ITERATE_METHOD);
+                if (e2 != exp) {
+                    e2.setRetainedStaticContext(exp.getRetainedStaticContext());
+                    e2.setParentExpression(null);
+                    exp = e2;
+                }
+            }
         } catch (XPathException err) {
             //err.printStackTrace();
             mainModule.reportStaticError(err);
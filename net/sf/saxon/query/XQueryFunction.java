@@ -481,7 +481,8 @@ public class XQueryFunction implements InstructionInfo, Declaration {
                 body = body.optimize(visitor, ContextItemStaticInfo.ABSENT);
             }
         }
-        
+        body = opt.eliminateCommonSubexpressions(body);
+
         // mark tail calls within the function body
         if (opt.getOptimizerOptions().isSet(OptimizerOptions.TAIL_CALLS) && !isUpdating) {
             int tailCalls = ExpressionTool.markTailFunctionCalls(body, functionName, arity);
@@ -3323,6 +3323,7 @@ public class XQueryParser extends XPathParser {
 
         boolean validateType = false;
         boolean streaming = false;
+        boolean parallel = false;
         StructuredQName pragmaName = makeStructuredQName(qname, "");
         assert pragmaName != null;
         String uri = pragmaName.getURI();
@@ -3346,6 +3347,9 @@ public class XQueryParser extends XPathParser {
                         validateType = true;
                     }
                     break;
+                case "parallel":
+                    parallel = true;
+                    break;
                 default:
                     warning("Ignored pragma " + qname + " (unrecognized Saxon pragma)");
                     break;
@@ -3369,6 +3373,16 @@ public class XQueryParser extends XPathParser {
             t.lookAhead();      // always done manually after an RCURLY
             nextToken();
         }
+        if (parallel) {
+            if (expr instanceof FLWORExpression) {
+                ((FLWORExpression) expr).setParallelEvaluationRequested(true);
+            } else if (expr instanceof ForEach && !((ForEach) expr).isInstruction()) {
+                ((ForEach) expr).setParallelEvaluationRequested(true);
+            } else {
+                warning("Ignoring saxon:parallel. The pragma applies only to a FLWOR expression " +
+                                "or to an expression using the \"!\" operator");
+            }
+        }
         if (validateType) {
             if (expr instanceof ParentNodeConstructor) {
                 ((ParentNodeConstructor) expr).setValidationAction(Validation.BY_TYPE, requiredType);
@@ -34,6 +34,17 @@ public final class LatinString extends UnicodeString {
         this.chars = chars;
     }
 
+    /**
+     * Create a LatinString that wraps an array of Latin-1 octets, without copying it
+     * @param chars the octets, each representing the character with the same codepoint. The caller
+     *              must not modify the array after this call.
+     * @return the LatinString
+     */
+
+    public static LatinString fromLatin1Octets(byte[] chars) {
+        return new LatinString(chars);
+    }
+
     public LatinString uSubstring(int beginIndex, int endIndex) {
         byte[] s = new byte[endIndex - beginIndex];
         System.arraycopy(chars, beginIndex, s, 0, endIndex - beginIndex);
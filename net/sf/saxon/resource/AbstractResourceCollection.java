@@ -20,6 +20,7 @@ import org.xml.sax.XMLReader;
 import javax.xml.transform.TransformerException;
 import java.io.*;
 import java.net.*;
+import java.util.Iterator;
 
 /**
  * AbstractCollection is an abstract superclass for the various implementations
@@ -64,6 +65,28 @@ public abstract class AbstractResourceCollection implements ResourceCollection {
         }
     }
 
+    /**
+     * Arrange for the XML resources delivered by an iterator to be parsed in parallel, ahead of their
+     * consumption, if this has been requested by the query parameter <code>parallel=N</code> in the
+     * collection URI. The query parameter <code>prefetch=N</code> limits the number of resources that may
+     * be parsed ahead of consumption; the default is twice the number of threads.
+     *
+     * @param resources an iterator over the resources in the collection
+     * @param context   the XPath evaluation context
+     * @return either the supplied iterator, or an iterator that delivers the same resources in the
+     * same order, with XML resources already parsed
+     */
+
+    protected Iterator<Resource> prefetchResources(Iterator<Resource> resources, XPathContext context) {
+        if (params != null && params.getParallel() != null) {
+            int threads = params.getParallel();
+            Integer prefetch = params.getPrefetch();
+            int window = prefetch == null ? 2 * threads : prefetch;
+            return new ParallelResourceIterator(resources, context, threads, window);
+        }
+        return resources;
+    }
+
     /**
      * Associate a media type with a resource factory.
      * Since 9.7.0.6 this registers the content type with the configuration, making the register
@@ -90,7 +90,7 @@ public class DirectoryCollection extends AbstractResourceCollection {
         final boolean metadata = metadataParam != null && metadataParam;
         Iterator<String> resourceURIs = getResourceURIs(context);
 
-        return new MappingJavaIterator<>(resourceURIs,
+        Iterator<Resource> resources = new MappingJavaIterator<>(resourceURIs,
                                          in -> {
                                              try {
                                                  InputDetails details = getInputDetails(in);
@@ -116,6 +116,7 @@ public class DirectoryCollection extends AbstractResourceCollection {
                                                  }
                                              }
                                          });
+        return prefetchResources(resources, context);
     }
 
     /**
@@ -198,7 +198,7 @@ public class JarCollection extends AbstractResourceCollection {
 
         }
         ZipInputStream zipInputStream = getZipInputStream();
-        return new JarIterator(this.context, zipInputStream, filter);
+        return prefetchResources(new JarIterator(this.context, zipInputStream, filter), context);
     }
 
 
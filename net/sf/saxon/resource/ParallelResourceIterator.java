@@ -0,0 +1,145 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018 Saxonica Limited.
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.resource;
+
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.lib.Resource;
+import net.sf.saxon.trans.UncheckedXPathException;
+import net.sf.saxon.trans.XPathException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.*;
+
+/**
+ * An iterator over the resources in a collection which parses XML resources in the worker pool of
+ * the configuration, ahead of their consumption. Resources are delivered in the same order as they are
+ * delivered by the underlying iterator, so the order of a stable collection is unaffected.
+ *
+ * <p>The number of resources that are being parsed at any one time is limited to the requested number
+ * of threads (and in practice also by the parallelism of the worker pool). The number of resources that
+ * have been submitted for parsing but not yet delivered is limited to a fixed window; this places a bound
+ * on the memory occupied by documents that have been built in advance of the consumer needing them.</p>
+ *
+ * <p>Errors that occur while parsing a resource are not reported until the consumer reaches that
+ * resource, at which point it is delivered as a {@link FailedResource}.</p>
+ */
+
+public class ParallelResourceIterator implements Iterator<Resource>, Closeable {
+
+    private Iterator<? extends Resource> base;
+    private XPathContext context;
+    private int threads;
+    private int window;
+    private ForkJoinPool pool;
+    private Deque<Future<Resource>> pending = new ArrayDeque<>();
+    private boolean closed = false;
+
+    /**
+     * Create an iterator that parses resources in parallel
+     *
+     * @param base    the underlying iterator over the (unparsed) resources
+     * @param context the XPath dynamic context of the call on collection()
+     * @param threads the maximum number of resources to be parsed concurrently
+     * @param window  the maximum number of resources that may be parsed ahead of consumption
+     */
+
+    public ParallelResourceIterator(Iterator<? extends Resource> base, XPathContext context, int threads, int window) {
+        this.base = base;
+        this.context = context;
+        this.threads = Math.max(threads, 1);
+        this.window = Math.max(window, 1);
+        this.pool = context.getConfiguration().getWorkerPool();
+        fill();
+    }
+
+    /**
+     * Submit resources from the underlying iterator for parsing until the window is full, the
+     * maximum number of resources are being parsed, or the underlying iterator is exhausted
+     */
+
+    private void fill() {
+        int running = 0;
+        for (Future<Resource> f : pending) {
+            if (!f.isDone()) {
+                running++;
+            }
+        }
+        while (!closed && pending.size() < window && running < threads && base.hasNext()) {
+            final Resource resource = base.next();
+            if (resource instanceof XmlResource) {
+                pending.addLast(pool.submit(() -> parse(resource)));
+                running++;
+            } else {
+                pending.addLast(CompletableFuture.completedFuture(resource));
+            }
+        }
+    }
+
+    private Resource parse(Resource resource) {
+        try {
+            resource.getItem(context);
+            return resource;
+        } catch (XPathException e) {
+            return new FailedResource(resource.getResourceURI(), e);
+        }
+    }
+
+    public boolean hasNext() {
+        return !pending.isEmpty();
+    }
+
+    public Resource next() {
+        if (pending.isEmpty()) {
+            throw new NoSuchElementException();
+        }
+        Future<Resource> head = pending.removeFirst();
+        try {
+            return head.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new UncheckedXPathException(new XPathException(e));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedXPathException) {
+                throw (UncheckedXPathException) cause;
+            }
+            throw new UncheckedXPathException(XPathException.makeXPathException(
+                    cause instanceof Exception ? (Exception) cause : e));
+        } finally {
+            fill();
+        }
+    }
+
+    /**
+     * Close the iterator, abandoning any resources that have been submitted for parsing but not yet
+     * delivered, and closing the underlying iterator if it is closeable
+     */
+
+    public void close() {
+        if (!closed) {
+            closed = true;
+            for (Future<Resource> f : pending) {
+                f.cancel(true);
+            }
+            pending.clear();
+            if (base instanceof Closeable) {
+                try {
+                    ((Closeable) base).close();
+                } catch (IOException e) {
+                    throw new UncheckedXPathException(new XPathException(e));
+                }
+            }
+        }
+    }
+}
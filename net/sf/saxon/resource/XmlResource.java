@@ -32,6 +32,7 @@ public class XmlResource implements Resource {
     private NodeInfo doc;
     private Configuration config;
     private int onError = URIQueryParameters.ON_ERROR_FAIL;
+    private boolean failed = false;
 
     public final static ResourceFactory FACTORY = new ResourceFactory() {
         public Resource makeResource(Configuration config, String resourceURI, String contentType, AbstractResourceCollection.InputDetails details) throws XPathException {
@@ -104,7 +105,7 @@ public class XmlResource implements Resource {
      */
 
     public Item getItem(XPathContext context) throws XPathException {
-        if (doc == null) {
+        if (doc == null && !failed) {
             try {
                 doc = config.buildDocumentTree(source, options).getRootNode();
             } catch (XPathException e) {
@@ -114,7 +115,9 @@ public class XmlResource implements Resource {
                     throw e2;
                 } else if (onError == URIQueryParameters.ON_ERROR_WARNING) {
                     context.getController().warning("collection(): failed to parse XML file " + source.getSystemId() + ": " + e.getMessage(), e.getErrorCodeLocalPart(), null);
+                    failed = true;
                 } else {
+                    failed = true;
                     return null;
                 }
             }
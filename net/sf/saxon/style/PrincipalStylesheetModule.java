@@ -17,6 +17,7 @@ import net.sf.saxon.expr.parser.ExpressionTool;
 import net.sf.saxon.expr.parser.Optimizer;
 import net.sf.saxon.functions.DocumentFn;
 import net.sf.saxon.functions.ExecutableFunctionLibrary;
+import net.sf.saxon.lib.NamespaceConstant;
 import net.sf.saxon.lib.SaxonOutputKeys;
 import net.sf.saxon.om.*;
 import net.sf.saxon.pattern.NameTest;
@@ -1616,9 +1617,29 @@ public class PrincipalStylesheetModule extends StylesheetModule implements Globa
     }
 
 
+    /**
+     * Get an existing global variable whose initializer is a given expression, if there is one.
+     * Only variables generated by the optimizer are considered, and only if their initializer has the
+     * same retained static context as the supplied expression.
+     *
+     * @param select the initializing expression
+     * @return an existing generated global variable with an equivalent initializer, or null if there is none
+     */
+
     @Override
     public GlobalVariable getEquivalentVariable(Expression select) {
-        return null;  // implemented in Saxon-EE
+        for (Component component : stylesheetPackage.getComponentIndex().values()) {
+            if (component.getActor() instanceof GlobalVariable) {
+                GlobalVariable var = (GlobalVariable) component.getActor();
+                Expression init = var.getSelectExpression();
+                if (var.getVariableQName().hasURI(NamespaceConstant.SAXON_GENERATED_VARIABLE) &&
+                        init != null && init.isEqual(select) &&
+                        ExpressionTool.equalOrNull(init.getRetainedStaticContext(), select.getRetainedStaticContext())) {
+                    return var;
+                }
+            }
+        }
+        return null;
     }
 
     @Override
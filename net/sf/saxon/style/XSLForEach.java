@@ -88,8 +88,8 @@ public class XSLForEach extends StyleElement {
                     compileWarning("saxon:threads - no multithreading takes place when compiling with trace enabled",
                             SaxonErrorCode.SXWN9012);
                     threads = new StringLiteral("0");
-                } else if (!"EE".equals(getConfiguration().getEditionCode())) {
-                    compileWarning("saxon:threads - ignored when not running Saxon-EE",
+                } else if (!getConfiguration().isMultiThreadingEnabled()) {
+                    compileWarning("saxon:threads - ignored because multithreading is not enabled",
                             SaxonErrorCode.SXWN9013);
                     threads = new StringLiteral("0");
                 }
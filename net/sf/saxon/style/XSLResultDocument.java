@@ -150,8 +150,8 @@ public class XSLResultDocument extends StyleElement {
                 async = processBooleanAttribute("saxon:asynchronous", atts.getValue(a));
                 if (getCompilation().getCompilerInfo().isCompileWithTracing()) {
                     async = false;
-                } else if (!"EE".equals(getConfiguration().getEditionCode())) {
-                    compileWarning("saxon:asynchronous - ignored when not running Saxon-EE",
+                } else if (!getConfiguration().isMultiThreadingEnabled()) {
+                    compileWarning("saxon:asynchronous - ignored because multithreading is not enabled",
                             SaxonErrorCode.SXWN9013);
                     async = false;
                 }
@@ -13,6 +13,7 @@ import net.sf.saxon.expr.Literal;
 import net.sf.saxon.expr.accum.Accumulator;
 import net.sf.saxon.expr.accum.AccumulatorRegistry;
 import net.sf.saxon.expr.parser.ExpressionVisitor;
+import net.sf.saxon.lib.Feature;
 import net.sf.saxon.lib.NamespaceConstant;
 import net.sf.saxon.lib.ParseOptions;
 import net.sf.saxon.lib.Validation;
@@ -85,7 +86,16 @@ public class XSLSourceDocument extends StyleElement {
             } else if (f.equals("use-accumulators")) {
                 useAccumulatorsAtt = Whitespace.trim(atts.getValue(a));
             } else if (f.equals("streamable")) {
-                streaming = processStreamableAtt(atts.getValue(a));
+                if (getConfiguration().isLicensedFeature(Configuration.LicenseFeature.ENTERPRISE_XSLT)) {
+                    streaming = processStreamableAtt(atts.getValue(a));
+                } else {
+                    // Saxon-HE uses burst-mode streaming where the body of the instruction allows it
+                    streaming = processBooleanAttribute("streamable", atts.getValue(a));
+                    if (streaming && "off".equals(getConfiguration().getConfigurationProperty(Feature.STREAMABILITY))) {
+                        compileWarning("Request for streaming ignored: streaming is disabled in this Saxon configuration", SaxonErrorCode.SXST0068);
+                        streaming = false;
+                    }
+                }
             } else if (NamespaceConstant.SAXON.equals(atts.getURI(a))) {
                 String local = atts.getLocalName(a);
                 getConfiguration().checkLicensedFeature(Configuration.LicenseFeature.PROFESSIONAL_EDITION,
@@ -0,0 +1,208 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018 Saxonica Limited.
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.testdriver;
+
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.lib.ExtensionFunctionCall;
+import net.sf.saxon.lib.ExtensionFunctionDefinition;
+import net.sf.saxon.om.Sequence;
+import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.s9api.*;
+import net.sf.saxon.value.Int64Value;
+import net.sf.saxon.value.SequenceType;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.StringReader;
+
+/**
+ * A benchmark for calls on user-defined functions. It first checks that repeated calls on a recursive
+ * function reuse the contexts and stack frames of earlier calls, and then measures the time taken to
+ * evaluate a recursive function over every node of a generated tree.
+ *
+ * <p>Usage: <code>java net.sf.saxon.testdriver.FunctionCallBenchmark [-n:nodes] [-runs:runs]</code>. The
+ * defaults are 100000 nodes and 20 timed runs, each preceded by a run that is not timed. The program exits
+ * with status 1 if the check on stack frame reuse fails.</p>
+ */
+
+public class FunctionCallBenchmark {
+
+    private final static String NS = "xmlns:xsl='http://www.w3.org/1999/XSL/Transform' " +
+            "xmlns:xs='http://www.w3.org/2001/XMLSchema' xmlns:f='urn:f' xmlns:t='urn:t' exclude-result-prefixes='#all'";
+
+    /**
+     * A stylesheet in which a recursive function reports the identity of the stack frame used for each
+     * call, for five successive calls from the same context
+     */
+
+    private final static String FRAMES_STYLESHEET =
+            "<xsl:stylesheet version='3.0' " + NS + ">" +
+                    "<xsl:function name='f:frames' as='xs:integer*'>" +
+                    "  <xsl:param name='n' as='xs:integer'/>" +
+                    "  <xsl:sequence select='if ($n eq 0) then t:frame-id() else (f:frames($n - 1), t:frame-id())'/>" +
+                    "</xsl:function>" +
+                    "<xsl:template name='xsl:initial-template'>" +
+                    "  <xsl:for-each select='1 to 5'><run><xsl:value-of select='f:frames(9)'/></run></xsl:for-each>" +
+                    "</xsl:template>" +
+                    "</xsl:stylesheet>";
+
+    /**
+     * A stylesheet that computes the number of nodes in a tree by calling a recursive function once
+     * for each element
+     */
+
+    private final static String WEIGHT_STYLESHEET =
+            "<xsl:stylesheet version='3.0' " + NS + ">" +
+                    "<xsl:function name='f:weight' as='xs:integer'>" +
+                    "  <xsl:param name='e' as='element()'/>" +
+                    "  <xsl:sequence select='sum(for $c in $e/* return f:weight($c)) + string-length(name($e))'/>" +
+                    "</xsl:function>" +
+                    "<xsl:template match='/'><xsl:sequence select='f:weight(*)'/></xsl:template>" +
+                    "</xsl:stylesheet>";
+
+    /**
+     * An extension function <code>t:frame-id()</code> that returns the identity hash code of the
+     * stack frame of its dynamic context
+     */
+
+    private static class FrameId extends ExtensionFunctionDefinition {
+        public StructuredQName getFunctionQName() {
+            return new StructuredQName("t", "urn:t", "frame-id");
+        }
+
+        public SequenceType[] getArgumentTypes() {
+            return new SequenceType[0];
+        }
+
+        public SequenceType getResultType(SequenceType[] suppliedArgumentTypes) {
+            return SequenceType.SINGLE_INTEGER;
+        }
+
+        @Override
+        public boolean hasSideEffects() {
+            // prevents the call being moved out of the function body
+            return true;
+        }
+
+        public ExtensionFunctionCall makeCallExpression() {
+            return new ExtensionFunctionCall() {
+                public Sequence<?> call(XPathContext context, Sequence[] arguments) {
+                    return Int64Value.makeIntegerValue(System.identityHashCode(context.getStackFrame()));
+                }
+            };
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int nodes = 100000;
+        int runs = 20;
+        for (String arg : args) {
+            if (arg.startsWith("-n:")) {
+                nodes = Integer.parseInt(arg.substring(3));
+            } else if (arg.startsWith("-runs:")) {
+                runs = Integer.parseInt(arg.substring(6));
+            } else {
+                System.err.println("java net.sf.saxon.testdriver.FunctionCallBenchmark [-n:nodes] [-runs:runs]");
+                return;
+            }
+        }
+        Processor processor = new Processor(false);
+        if (!checkFrameReuse(processor)) {
+            System.exit(1);
+        }
+        measure(processor, nodes, runs);
+    }
+
+    /**
+     * Check that in the steady state, a recursive function uses the same stack frame for each level of
+     * recursion as it did on the previous call
+     *
+     * @param processor the processor
+     * @return true if the check succeeds
+     * @throws SaxonApiException if the transformation fails
+     */
+
+    private static boolean checkFrameReuse(Processor processor) throws SaxonApiException {
+        processor.registerExtensionFunction(new FrameId());
+        XsltExecutable exec = processor.newXsltCompiler().compile(new StreamSource(new StringReader(FRAMES_STYLESHEET)));
+        XdmValue result = exec.load30().callTemplate(null);
+        String first = null;
+        for (XdmItem run : result) {
+            String frames = run.getStringValue();
+            if (first == null) {
+                first = frames;
+            } else if (!frames.equals(first)) {
+                System.err.println("FAIL: stack frames were not reused: " + first + " / " + frames);
+                return false;
+            }
+        }
+        if (first == null || first.split(" ").length != 10) {
+            System.err.println("FAIL: unexpected result " + result);
+            return false;
+        }
+        System.err.println("Stack frames reused on repeated calls: OK");
+        return true;
+    }
+
+    /**
+     * Measure the time taken to evaluate a recursive function over every element of a tree
+     *
+     * @param processor the processor
+     * @param nodes     the number of elements in the tree
+     * @param runs      the number of timed transformations
+     * @throws SaxonApiException if the transformation fails
+     */
+
+    private static void measure(Processor processor, int nodes, int runs) throws SaxonApiException {
+        XsltExecutable exec = processor.newXsltCompiler().compile(new StreamSource(new StringReader(WEIGHT_STYLESHEET)));
+        XdmNode doc = processor.newDocumentBuilder().build(new StreamSource(new StringReader(makeTree(nodes))));
+        String expected = null;
+        long total = 0;
+        for (int i = 0; i < runs; i++) {
+            for (int warm = 0; warm < 2; warm++) {
+                Xslt30Transformer transformer = exec.load30();
+                long start = System.nanoTime();
+                XdmValue result = transformer.applyTemplates(doc);
+                long elapsed = System.nanoTime() - start;
+                if (expected == null) {
+                    expected = result.toString();
+                } else if (!expected.equals(result.toString())) {
+                    throw new IllegalStateException("Inconsistent results: " + expected + " / " + result);
+                }
+                if (warm == 1) {
+                    total += elapsed;
+                }
+            }
+        }
+        System.err.println("Recursive function over " + nodes + " elements: result " + expected + ", average " +
+                                   (total / runs / 1000) / 1000.0 + "ms over " + runs + " runs");
+    }
+
+    /**
+     * Make a document containing a tree of elements in which each element has up to four children
+     *
+     * @param nodes the number of elements
+     * @return the serialized document
+     */
+
+    private static String makeTree(int nodes) {
+        StringBuilder sb = new StringBuilder(nodes * 8);
+        makeTree(sb, nodes);
+        return sb.toString();
+    }
+
+    private static void makeTree(StringBuilder sb, int nodes) {
+        sb.append("<e>");
+        int remaining = nodes - 1;
+        for (int c = 0; c < 4 && remaining > 0; c++) {
+            int size = (remaining + 3 - c) / (4 - c);
+            makeTree(sb, size);
+            remaining -= size;
+        }
+        sb.append("</e>");
+    }
+}
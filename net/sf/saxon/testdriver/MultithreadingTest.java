@@ -0,0 +1,803 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018 Saxonica Limited.
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.testdriver;
+
+import net.sf.saxon.expr.PackageData;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.expr.instruct.Bindery;
+import net.sf.saxon.expr.instruct.GlobalVariable;
+import net.sf.saxon.lib.ExtensionFunctionCall;
+import net.sf.saxon.lib.ExtensionFunctionDefinition;
+import net.sf.saxon.lib.Feature;
+import net.sf.saxon.lib.StandardLogger;
+import net.sf.saxon.om.GroundedValue;
+import net.sf.saxon.om.Sequence;
+import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.s9api.*;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.value.EmptySequence;
+import net.sf.saxon.value.Int64Value;
+import net.sf.saxon.value.SequenceType;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tests for multi-threaded evaluation in Saxon-HE. Each test either completes normally or throws an
+ * exception describing the failure; a test that does not complete within {@link #TIMEOUT} seconds is
+ * treated as having deadlocked.
+ *
+ * <p>Usage: <code>java net.sf.saxon.testdriver.MultithreadingTest [test-name ...]</code>. With no arguments,
+ * all the tests are run. The program exits with status 1 if any test fails.</p>
+ */
+
+public class MultithreadingTest {
+
+    /**
+     * The number of seconds after which a test that has not finished is assumed to be deadlocked
+     */
+
+    private final static int TIMEOUT = 30;
+
+    private final static String NS = "xmlns:xsl='http://www.w3.org/1999/XSL/Transform' " +
+            "xmlns:xs='http://www.w3.org/2001/XMLSchema' xmlns:saxon='http://saxon.sf.net/' " +
+            "xmlns:f='urn:f' xmlns:t='urn:t' exclude-result-prefixes='#all'";
+
+    /**
+     * A test case
+     */
+
+    private interface TestCase {
+        void run() throws Exception;
+    }
+
+    private final Map<String, TestCase> tests = new LinkedHashMap<>();
+
+    public MultithreadingTest() {
+        tests.put("bindery-evaluate-once", MultithreadingTest::testEvaluateOnce);
+        tests.put("bindery-cycle", MultithreadingTest::testCrossThreadCycle);
+        tests.put("bindery-takeover", MultithreadingTest::testTakeoverAfterFailure);
+        tests.put("pre-evaluate-globals", MultithreadingTest::testPreEvaluateGlobals);
+        tests.put("pre-evaluate-cycle", MultithreadingTest::testPreEvaluateCycle);
+        tests.put("for-each-order", MultithreadingTest::testForEachOrder);
+        tests.put("for-each-error", MultithreadingTest::testForEachError);
+        tests.put("result-document-order", MultithreadingTest::testResultDocumentOrder);
+        tests.put("result-document-error", MultithreadingTest::testResultDocumentError);
+        tests.put("fork-order", MultithreadingTest::testForkOrder);
+        tests.put("fork-error", MultithreadingTest::testForkError);
+    }
+
+    public static void main(String[] args) {
+        MultithreadingTest driver = new MultithreadingTest();
+        List<String> names = new ArrayList<>();
+        for (String arg : args) {
+            if (!driver.tests.containsKey(arg)) {
+                System.err.println("Unknown test " + arg + ": available tests are " + driver.tests.keySet());
+                System.exit(2);
+            }
+            names.add(arg);
+        }
+        if (names.isEmpty()) {
+            names.addAll(driver.tests.keySet());
+        }
+        int failures = 0;
+        for (String name : names) {
+            if (!driver.runTest(name)) {
+                failures++;
+            }
+        }
+        System.err.println(names.size() - failures + " passed, " + failures + " failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * Run one test in its own thread, reporting the outcome
+     *
+     * @param name the name of the test
+     * @return true if the test passed
+     */
+
+    private boolean runTest(String name) {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> outcome = executor.submit(() -> {
+                tests.get(name).run();
+                return null;
+            });
+            outcome.get(TIMEOUT, TimeUnit.SECONDS);
+            System.err.println(name + ": OK");
+            return true;
+        } catch (TimeoutException e) {
+            System.err.println(name + ": FAILED: no result after " + TIMEOUT + " seconds (deadlock?)");
+        } catch (ExecutionException e) {
+            System.err.println(name + ": FAILED: " + e.getCause());
+        } catch (InterruptedException e) {
+            System.err.println(name + ": FAILED: interrupted");
+        } finally {
+            executor.shutdownNow();
+        }
+        return false;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+
+    /**
+     * Wait for a task started by a test, treating a task that does not finish as a deadlock
+     *
+     * @param task the task
+     * @param <T>  the type of the result of the task
+     * @return the result of the task
+     * @throws Exception if the task fails or does not finish within the timeout
+     */
+
+    private static <T> T await(Future<T> task) throws Exception {
+        try {
+            return task.get(TIMEOUT, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("task did not finish (deadlock?)");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Make global variables with slots in a new bindery
+     *
+     * @param vars an array to be filled with the new variables
+     * @return the bindery holding the values of the variables
+     */
+
+    private static Bindery makeBindery(GlobalVariable[] vars) {
+        PackageData pack = new PackageData(new Processor(false).getUnderlyingConfiguration());
+        for (int i = 0; i < vars.length; i++) {
+            StructuredQName name = new StructuredQName("", "", "v" + i);
+            vars[i] = new GlobalVariable();
+            vars[i].setVariableQName(name);
+            vars[i].setPackageData(pack);
+            vars[i].setBinderySlotNumber(pack.getGlobalSlotManager().allocateSlotNumber(name));
+        }
+        return new Bindery(pack);
+    }
+
+    /**
+     * Wait until a thread is blocked, which in these tests means it is waiting for an evaluation to finish
+     *
+     * @param thread the thread
+     * @throws InterruptedException if interrupted
+     */
+
+    private static void awaitBlocked(AtomicReference<Thread> thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT * 1000L;
+        while (thread.get() == null || thread.get().getState() != Thread.State.WAITING) {
+            check(System.currentTimeMillis() < deadline, "thread did not start waiting");
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * Several threads needing the same global variable at the same time: only one of them evaluates it,
+     * and all of them see the value it saves
+     */
+
+    private static void testEvaluateOnce() throws Exception {
+        GlobalVariable[] vars = new GlobalVariable[1];
+        Bindery bindery = makeBindery(vars);
+        GlobalVariable x = vars[0];
+        GroundedValue<?> value = Int64Value.makeIntegerValue(42);
+        int threads = 4;
+        CyclicBarrier start = new CyclicBarrier(threads);
+        AtomicInteger evaluations = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<GroundedValue<?>>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    if (bindery.setExecuting(x)) {
+                        evaluations.incrementAndGet();
+                        Thread.sleep(200);
+                        return bindery.saveGlobalVariableValue(x, value);
+                    } else {
+                        return bindery.getGlobalVariableValue(x);
+                    }
+                }));
+            }
+            for (Future<GroundedValue<?>> result : results) {
+                check(await(result) == value, "a thread did not see the saved value");
+            }
+            check(evaluations.get() == 1, "variable evaluated " + evaluations.get() + " times");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Two threads, each evaluating one variable and then needing the variable being evaluated by the other:
+     * one of them must report a circularity (which GlobalVariable reports as XTDE0640) rather than both
+     * waiting for ever. When that thread abandons its evaluation, the other takes it over and completes.
+     */
+
+    private static void testCrossThreadCycle() throws Exception {
+        GlobalVariable[] vars = new GlobalVariable[2];
+        Bindery bindery = makeBindery(vars);
+        CyclicBarrier claimed = new CyclicBarrier(2);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                GlobalVariable first = vars[i];
+                GlobalVariable second = vars[1 - i];
+                results.add(executor.submit(() -> {
+                    check(bindery.setExecuting(first), "variable already claimed");
+                    claimed.await();
+                    try {
+                        if (bindery.setExecuting(second)) {
+                            bindery.saveGlobalVariableValue(second, Int64Value.makeIntegerValue(2));
+                        }
+                    } catch (XPathException.Circularity e) {
+                        bindery.setNotExecuting(first);
+                        return "circularity";
+                    }
+                    bindery.saveGlobalVariableValue(first, Int64Value.makeIntegerValue(1));
+                    return "completed";
+                }));
+            }
+            String a = await(results.get(0));
+            String b = await(results.get(1));
+            check(a.equals("circularity") != b.equals("circularity"),
+                  "expected one thread to report a circularity: outcomes were " + a + ", " + b);
+            for (GlobalVariable var : vars) {
+                check(bindery.getGlobalVariableValue(var) != null, "variable " + var.getVariableQName() + " has no value");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A thread waiting for the evaluation of a variable, when that evaluation fails: the waiting thread is
+     * released and takes over the evaluation
+     */
+
+    private static void testTakeoverAfterFailure() throws Exception {
+        GlobalVariable[] vars = new GlobalVariable[1];
+        Bindery bindery = makeBindery(vars);
+        GlobalVariable x = vars[0];
+        GroundedValue<?> value = Int64Value.makeIntegerValue(7);
+        CountDownLatch claimed = new CountDownLatch(1);
+        AtomicReference<Thread> waiter = new AtomicReference<>();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Boolean> failing = executor.submit(() -> {
+                boolean go = bindery.setExecuting(x);
+                claimed.countDown();
+                awaitBlocked(waiter);
+                // evaluation fails
+                bindery.setNotExecuting(x);
+                return go;
+            });
+            Future<Boolean> taking = executor.submit(() -> {
+                claimed.await();
+                waiter.set(Thread.currentThread());
+                boolean go = bindery.setExecuting(x);
+                if (go) {
+                    bindery.saveGlobalVariableValue(x, value);
+                }
+                return go;
+            });
+            check(await(failing), "first thread was not given the evaluation");
+            check(await(taking), "waiting thread did not take over the failed evaluation");
+            check(bindery.getGlobalVariableValue(x) == value, "value not saved");
+            check(!bindery.setExecuting(x), "variable evaluated again after its value was saved");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * An extension function <code>t:tick()</code> that returns 10, counting the number of times it is called
+     */
+
+    private static class Tick extends ExtensionFunctionDefinition {
+        final AtomicInteger calls = new AtomicInteger();
+
+        public StructuredQName getFunctionQName() {
+            return new StructuredQName("t", "urn:t", "tick");
+        }
+
+        public SequenceType[] getArgumentTypes() {
+            return new SequenceType[0];
+        }
+
+        public SequenceType getResultType(SequenceType[] suppliedArgumentTypes) {
+            return SequenceType.SINGLE_INTEGER;
+        }
+
+        @Override
+        public boolean hasSideEffects() {
+            return true;
+        }
+
+        public ExtensionFunctionCall makeCallExpression() {
+            return new ExtensionFunctionCall() {
+                public Sequence<?> call(XPathContext context, Sequence[] arguments) {
+                    calls.incrementAndGet();
+                    return Int64Value.makeIntegerValue(10);
+                }
+            };
+        }
+    }
+
+    /**
+     * Make a processor with multi-threading enabled, using four worker threads
+     *
+     * @return the processor
+     */
+
+    private static Processor makeMultithreadedProcessor() {
+        Processor processor = new Processor(false);
+        processor.setConfigurationProperty(Feature.ALLOW_MULTITHREADING, true);
+        processor.setConfigurationProperty(Feature.MAX_PARALLELISM, 4);
+        return processor;
+    }
+
+    /**
+     * Make a processor that evaluates global variables in parallel when a transformation starts
+     *
+     * @return the processor
+     */
+
+    private static Processor makePreEvaluatingProcessor() {
+        Processor processor = makeMultithreadedProcessor();
+        processor.setConfigurationProperty(Feature.PRE_EVALUATE_GLOBAL_VARIABLES, true);
+        return processor;
+    }
+
+    /**
+     * Make an error listener that collects errors without reporting them
+     *
+     * @return the error listener
+     */
+
+    private static ErrorCollector makeSilentErrorListener() {
+        ErrorCollector errors = new ErrorCollector();
+        errors.setLogger(new StandardLogger(new PrintStream(new ByteArrayOutputStream())));
+        return errors;
+    }
+
+    /**
+     * Run a transformation by calling the initial template, serializing the principal result
+     *
+     * @param exec    the compiled stylesheet
+     * @param out     the destination for the serialized result, which holds any output written
+     *                before a failure
+     * @param threads the value of the stylesheet parameter <code>threads</code>
+     * @param fail    the value of the stylesheet parameter <code>fail</code>
+     * @param results if not null, a map to which the serialized secondary result documents are added,
+     *                indexed by the last part of their URI
+     * @return the serialized result
+     * @throws SaxonApiException if the transformation fails
+     */
+
+    private static String callTemplate(XsltExecutable exec, StringWriter out, int threads, int fail,
+                                       Map<String, StringWriter> results)
+            throws SaxonApiException {
+        Xslt30Transformer transformer = exec.load30();
+        Map<QName, XdmAtomicValue> params = new HashMap<>();
+        params.put(new QName("threads"), new XdmAtomicValue(threads));
+        params.put(new QName("fail"), new XdmAtomicValue(fail));
+        transformer.setStylesheetParameters(params);
+        transformer.setErrorListener(makeSilentErrorListener());
+        if (results != null) {
+            transformer.setResultDocumentHandler(uri -> {
+                String path = uri.getPath();
+                StringWriter writer = new StringWriter();
+                results.put(path.substring(path.lastIndexOf('/') + 1), writer);
+                Serializer serializer = exec.getProcessor().newSerializer(writer);
+                serializer.setOutputProperty(Serializer.Property.OMIT_XML_DECLARATION, "yes");
+                return serializer;
+            });
+        }
+        Serializer serializer = exec.getProcessor().newSerializer(out);
+        serializer.setOutputProperty(Serializer.Property.OMIT_XML_DECLARATION, "yes");
+        transformer.callTemplate(null, serializer);
+        return out.toString();
+    }
+
+    /**
+     * Get the values of the <code>p</code> attributes in a serialized result, in document order
+     *
+     * @param result the serialized result
+     * @return the values of the attributes
+     */
+
+    private static List<Integer> getPositions(String result) {
+        List<Integer> positions = new ArrayList<>();
+        Matcher m = Pattern.compile(" p=\"([0-9]+)\"").matcher(result);
+        while (m.find()) {
+            positions.add(Integer.parseInt(m.group(1)));
+        }
+        return positions;
+    }
+
+    /**
+     * Check that the items in a partial result are those at the start of the complete result
+     *
+     * @param partial the positions in the partial result
+     * @param limit   the position at which the failure occurred: no later item may appear
+     */
+
+    private static void checkPrefix(List<Integer> partial, int limit) {
+        for (int i = 0; i < partial.size(); i++) {
+            check(partial.get(i) == i + 1, "partial output is not a prefix of the full output: " + partial);
+        }
+        check(partial.size() < limit, "output written for items after the failure: " + partial.size() + " items");
+    }
+
+    /**
+     * Global variables pre-evaluated in parallel, all depending on one shared variable: each is evaluated
+     * once, and the results are the same as for lazy evaluation
+     */
+
+    private static void testPreEvaluateGlobals() throws Exception {
+        StringBuilder sb = new StringBuilder("<xsl:stylesheet version='3.0' " + NS + ">");
+        sb.append("<xsl:variable name='shared' select='t:tick()'/>");
+        StringBuilder refs = new StringBuilder();
+        for (int i = 1; i <= 8; i++) {
+            sb.append("<xsl:variable name='v").append(i).append("' select='$shared * ").append(i).append("'/>");
+            refs.append(i == 1 ? "" : ", ").append("$v").append(i);
+        }
+        sb.append("<xsl:template name='xsl:initial-template'><out><xsl:value-of select='")
+                .append(refs).append("'/></out></xsl:template></xsl:stylesheet>");
+        Processor processor = makePreEvaluatingProcessor();
+        Tick tick = new Tick();
+        processor.registerExtensionFunction(tick);
+        XsltExecutable exec = processor.newXsltCompiler().compile(new StreamSource(new StringReader(sb.toString())));
+        for (int run = 0; run < 20; run++) {
+            tick.calls.set(0);
+            XdmValue result = exec.load30().callTemplate(null);
+            check(result.itemAt(0).getStringValue().equals("10 20 30 40 50 60 70 80"),
+                  "unexpected result " + result);
+            check(tick.calls.get() == 1, "shared variable evaluated " + tick.calls.get() + " times");
+        }
+    }
+
+    /**
+     * Global variables that depend on each other through function calls, pre-evaluated in parallel: the
+     * circularity is reported as XTDE0640 rather than causing a deadlock
+     */
+
+    private static void testPreEvaluateCycle() throws Exception {
+        String stylesheet = "<xsl:stylesheet version='3.0' " + NS + ">" +
+                "<xsl:function name='f:a'><xsl:param name='n' as='xs:integer'/>" +
+                "  <xsl:sequence select='if ($n gt 0) then $b else 0'/></xsl:function>" +
+                "<xsl:function name='f:b'><xsl:param name='n' as='xs:integer'/>" +
+                "  <xsl:sequence select='if ($n gt 0) then $a else 0'/></xsl:function>" +
+                "<xsl:param name='n' as='xs:integer' select='1'/>" +
+                "<xsl:variable name='a' select='f:a($n)'/>" +
+                "<xsl:variable name='b' select='f:b($n)'/>" +
+                "<xsl:template name='xsl:initial-template'><out><xsl:value-of select='$a, $b'/></out></xsl:template>" +
+                "</xsl:stylesheet>";
+        Processor processor = makePreEvaluatingProcessor();
+        XsltExecutable exec = processor.newXsltCompiler().compile(new StreamSource(new StringReader(stylesheet)));
+        for (int run = 0; run < 20; run++) {
+            Xslt30Transformer transformer = exec.load30();
+            transformer.setErrorListener(makeSilentErrorListener());
+            try {
+                XdmValue result = transformer.callTemplate(null);
+                throw new IllegalStateException("no error reported: result " + result);
+            } catch (SaxonApiException e) {
+                check(e.getErrorCode() != null && e.getErrorCode().getLocalName().equals("XTDE0640"),
+                      "unexpected error " + e.getErrorCode() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * An extension function <code>t:note-thread()</code> that records the thread in which it is called, and
+     * returns an empty sequence
+     */
+
+    private static class NoteThread extends ExtensionFunctionDefinition {
+        final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+        public StructuredQName getFunctionQName() {
+            return new StructuredQName("t", "urn:t", "note-thread");
+        }
+
+        public SequenceType[] getArgumentTypes() {
+            return new SequenceType[0];
+        }
+
+        public SequenceType getResultType(SequenceType[] suppliedArgumentTypes) {
+            return SequenceType.EMPTY_SEQUENCE;
+        }
+
+        @Override
+        public boolean hasSideEffects() {
+            return true;
+        }
+
+        public ExtensionFunctionCall makeCallExpression() {
+            return new ExtensionFunctionCall() {
+                public Sequence<?> call(XPathContext context, Sequence[] arguments) {
+                    threads.add(Thread.currentThread());
+                    return EmptySequence.getInstance();
+                }
+            };
+        }
+
+        /**
+         * Ask whether the function was called in a thread other than the current thread
+         *
+         * @return true if it was called in another thread
+         */
+
+        boolean usedOtherThreads() {
+            for (Thread t : threads) {
+                if (t != Thread.currentThread()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A stylesheet containing an xsl:for-each instruction with saxon:threads="{$threads}", whose body uses
+     * a local variable, position() and last(), and fails for the item at position $fail
+     */
+
+    private final static String FOR_EACH_STYLESHEET =
+            "<xsl:stylesheet version='3.0' " + NS + ">" +
+                    "<xsl:param name='threads' as='xs:integer'/>" +
+                    "<xsl:param name='fail' as='xs:integer'/>" +
+                    "<xsl:template name='xsl:initial-template'><out>" +
+                    "  <xsl:for-each select='(1 to 200) ! (. * 3)' saxon:threads='{$threads}'>" +
+                    "    <xsl:variable name='v' select='. * 2'/>" +
+                    "    <i p='{position()}' l='{last()}' v='{$v}'>" +
+                    "      <xsl:sequence select='t:note-thread()'/>" +
+                    "      <xsl:if test='position() eq $fail'>" +
+                    "        <xsl:sequence select=\"error(QName('urn:t', 't:BOOM'), 'failed at ' || position())\"/>" +
+                    "      </xsl:if>" +
+                    "    </i>" +
+                    "  </xsl:for-each>" +
+                    "</out></xsl:template>" +
+                    "</xsl:stylesheet>";
+
+    /**
+     * An xsl:for-each instruction with saxon:threads="4": the output, including the values of position() and
+     * last(), is the same as for single-threaded evaluation, and the body is evaluated in worker threads
+     */
+
+    private static void testForEachOrder() throws Exception {
+        Processor processor = makeMultithreadedProcessor();
+        NoteThread noter = new NoteThread();
+        processor.registerExtensionFunction(noter);
+        XsltExecutable exec = processor.newXsltCompiler().compile(new StreamSource(new StringReader(FOR_EACH_STYLESHEET)));
+        String expected = callTemplate(exec, new StringWriter(), 1, 0, null);
+        check(getPositions(expected).size() == 200, "unexpected sequential result " + expected);
+        check(expected.contains("<i p=\"200\" l=\"200\" v=\"1200\"/>"), "unexpected sequential result " + expected);
+        check(!noter.usedOtherThreads(), "sequential evaluation used other threads");
+        for (int run = 0; run < 10; run++) {
+            String actual = callTemplate(exec, new StringWriter(), 4, 0, null);
+            check(actual.equals(expected), "result differs from sequential evaluation: " + actual);
+        }
+        check(noter.usedOtherThreads(), "saxon:threads='4' did not use worker threads");
+    }
+
+    /**
+     * An xsl:for-each instruction with saxon:threads="4" that fails for an item in the middle of the input:
+     * the error is reported, and the output written is a prefix of the sequential output
+     */
+
+    private static void testForEachError() throws Exception {
+        Processor processor = makeMultithreadedProcessor();
+        processor.registerExtensionFunction(new NoteThread());
+        XsltExecutable exec = processor.newXsltCompiler().compile(new StreamSource(new StringReader(FOR_EACH_STYLESHEET)));
+        for (int run = 0; run < 10; run++) {
+            StringWriter out = new StringWriter();
+            try {
+                callTemplate(exec, out, 4, 100, null);
+                throw new IllegalStateException("no error reported");
+            } catch (SaxonApiException e) {
+                check(e.getErrorCode() != null && e.getErrorCode().getLocalName().equals("BOOM"),
+                      "unexpected error " + e.getErrorCode() + ": " + e.getMessage());
+                check(e.getMessage().contains("failed at 100"), "unexpected message " + e.getMessage());
+            }
+            checkPrefix(getPositions(out.toString()), 100);
+        }
+    }
+
+    /**
+     * A stylesheet that writes twenty secondary result documents from within an xsl:for-each instruction, using a
+     * local variable, position() and last(). The result documents at positions $fail, $fail+5, $fail+10, ... fail.
+     */
+
+    private final static String RESULT_DOCUMENT_STYLESHEET =
+            "<xsl:stylesheet version='3.0' " + NS + ">" +
+                    "<xsl:param name='fail' as='xs:integer'/>" +
+                    "<xsl:template name='xsl:initial-template'><out>" +
+                    "  <xsl:for-each select='(1 to 20) ! (. * 3)'>" +
+                    "    <xsl:variable name='v' select='. * 2'/>" +
+                    "    <xsl:result-document href='r{position()}.xml'>" +
+                    "      <r p='{position()}' l='{last()}' v='{$v}'>" +
+                    "        <xsl:sequence select='t:note-thread()'/>" +
+                    "        <xsl:if test='$fail gt 0 and position() ge $fail and (position() - $fail) mod 5 eq 0'>" +
+                    "          <xsl:sequence select=\"error(QName('urn:t', 't:BOOM'), 'failed at ' || position())\"/>" +
+                    "        </xsl:if>" +
+                    "        <xsl:for-each select='1 to 50'><x><xsl:value-of select='.'/></x></xsl:for-each>" +
+                    "      </r>" +
+                    "    </xsl:result-document>" +
+                    "    <i p='{position()}'/>" +
+                    "  </xsl:for-each>" +
+                    "</out></xsl:template>" +
+                    "</xsl:stylesheet>";
+
+    /**
+     * Make a processor that writes secondary result documents asynchronously, using four threads
+     *
+     * @return the processor
+     */
+
+    private static Processor makeAsynchronousProcessor() {
+        Processor processor = makeMultithreadedProcessor();
+        processor.setConfigurationProperty(Feature.RESULT_DOCUMENT_THREADS, 4);
+        return processor;
+    }
+
+    /**
+     * Secondary result documents written asynchronously: the principal result and each result document,
+     * including the values of position() and last() within it, are the same as for synchronous evaluation,
+     * and the result documents are written in worker threads
+     */
+
+    private static void testResultDocumentOrder() throws Exception {
+        Processor sequential = new Processor(false);
+        sequential.registerExtensionFunction(new NoteThread());
+        XsltExecutable exec0 = sequential.newXsltCompiler().compile(
+                new StreamSource(new StringReader(RESULT_DOCUMENT_STYLESHEET)));
+        Map<String, StringWriter> expectedResults = new ConcurrentHashMap<>();
+        String expected = callTemplate(exec0, new StringWriter(), 1, 0, expectedResults);
+        check(getPositions(expected).size() == 20, "unexpected principal result " + expected);
+        check(expectedResults.size() == 20, "expected 20 result documents, got " + expectedResults.size());
+        check(expectedResults.get("r20.xml").toString().startsWith("<r p=\"20\" l=\"20\" v=\"120\">"),
+              "unexpected result document " + expectedResults.get("r20.xml"));
+
+        Processor processor = makeAsynchronousProcessor();
+        NoteThread noter = new NoteThread();
+        processor.registerExtensionFunction(noter);
+        XsltExecutable exec = processor.newXsltCompiler().compile(
+                new StreamSource(new StringReader(RESULT_DOCUMENT_STYLESHEET)));
+        for (int run = 0; run < 10; run++) {
+            Map<String, StringWriter> results = new ConcurrentHashMap<>();
+            String actual = callTemplate(exec, new StringWriter(), 4, 0, results);
+            check(actual.equals(expected), "principal result differs from synchronous evaluation: " + actual);
+            check(results.keySet().equals(expectedResults.keySet()), "result documents written: " + results.keySet());
+            for (Map.Entry<String, StringWriter> entry : expectedResults.entrySet()) {
+                String doc = results.get(entry.getKey()).toString();
+                check(doc.equals(entry.getValue().toString()),
+                      "result document " + entry.getKey() + " differs from synchronous evaluation: " + doc);
+            }
+        }
+        check(noter.usedOtherThreads(), "result documents were not written in worker threads");
+    }
+
+    /**
+     * Several secondary result documents written asynchronously fail: the transformation fails, reporting the
+     * error in the first of them, as synchronous evaluation does
+     */
+
+    private static void testResultDocumentError() throws Exception {
+        Processor processor = makeAsynchronousProcessor();
+        processor.registerExtensionFunction(new NoteThread());
+        XsltExecutable exec = processor.newXsltCompiler().compile(
+                new StreamSource(new StringReader(RESULT_DOCUMENT_STYLESHEET)));
+        for (int run = 0; run < 10; run++) {
+            try {
+                callTemplate(exec, new StringWriter(), 4, 10, new ConcurrentHashMap<>());
+                throw new IllegalStateException("no error reported");
+            } catch (SaxonApiException e) {
+                check(e.getErrorCode() != null && e.getErrorCode().getLocalName().equals("BOOM"),
+                      "unexpected error " + e.getErrorCode() + ": " + e.getMessage());
+                check(e.getMessage().contains("failed at 10"), "unexpected message " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A stylesheet containing an xsl:fork instruction with three branches, each using a local variable,
+     * position() and last(). At position $fail the second branch fails, and from position $fail onwards
+     * the third branch fails.
+     */
+
+    private final static String FORK_STYLESHEET =
+            "<xsl:stylesheet version='3.0' " + NS + ">" +
+                    "<xsl:param name='fail' as='xs:integer'/>" +
+                    "<xsl:template name='xsl:initial-template'><out>" +
+                    "  <xsl:for-each select='(1 to 20) ! (. * 3)'>" +
+                    "    <xsl:variable name='v' select='. * 2'/>" +
+                    "    <xsl:fork>" +
+                    "      <xsl:sequence><a p='{position()}' l='{last()}' v='{$v}'>" +
+                    "        <xsl:sequence select='t:note-thread(), (1 to 20) ! (. * $v)'/></a></xsl:sequence>" +
+                    "      <xsl:sequence><b p='{position()}' l='{last()}' v='{$v + 1}'>" +
+                    "        <xsl:sequence select='t:note-thread(), (1 to 20) ! (. + $v)'/>" +
+                    "        <xsl:if test='position() eq $fail'>" +
+                    "          <xsl:sequence select=\"error(QName('urn:t', 't:BOOM'), 'b failed at ' || position())\"/>" +
+                    "        </xsl:if></b></xsl:sequence>" +
+                    "      <xsl:sequence><c p='{position()}' l='{last()}' v='{$v + 2}'>" +
+                    "        <xsl:sequence select='t:note-thread(), (1 to 20) ! (. - $v)'/>" +
+                    "        <xsl:if test='$fail gt 0 and position() ge $fail'>" +
+                    "          <xsl:sequence select=\"error(QName('urn:t', 't:BANG'), 'c failed at ' || position())\"/>" +
+                    "        </xsl:if></c></xsl:sequence>" +
+                    "    </xsl:fork>" +
+                    "  </xsl:for-each>" +
+                    "</out></xsl:template>" +
+                    "</xsl:stylesheet>";
+
+    /**
+     * An xsl:fork instruction whose branches are evaluated concurrently: the output, including the values of
+     * position() and last(), is the same as for sequential evaluation, and branches are evaluated in worker threads
+     */
+
+    private static void testForkOrder() throws Exception {
+        Processor sequential = new Processor(false);
+        sequential.registerExtensionFunction(new NoteThread());
+        XsltExecutable exec0 = sequential.newXsltCompiler().compile(new StreamSource(new StringReader(FORK_STYLESHEET)));
+        String expected = callTemplate(exec0, new StringWriter(), 1, 0, null);
+        check(getPositions(expected).size() == 60, "unexpected sequential result " + expected);
+        check(expected.contains("<c p=\"20\" l=\"20\" v=\"122\">"), "unexpected sequential result " + expected);
+
+        Processor processor = makeMultithreadedProcessor();
+        NoteThread noter = new NoteThread();
+        processor.registerExtensionFunction(noter);
+        XsltExecutable exec = processor.newXsltCompiler().compile(new StreamSource(new StringReader(FORK_STYLESHEET)));
+        for (int run = 0; run < 10; run++) {
+            String actual = callTemplate(exec, new StringWriter(), 4, 0, null);
+            check(actual.equals(expected), "result differs from sequential evaluation: " + actual);
+        }
+        check(noter.usedOtherThreads(), "xsl:fork branches were not evaluated in worker threads");
+    }
+
+    /**
+     * An xsl:fork instruction in which two branches evaluated concurrently fail: the error in the first of
+     * them is reported, as it is for sequential evaluation
+     */
+
+    private static void testForkError() throws Exception {
+        Processor processor = makeMultithreadedProcessor();
+        processor.registerExtensionFunction(new NoteThread());
+        XsltExecutable exec = processor.newXsltCompiler().compile(new StreamSource(new StringReader(FORK_STYLESHEET)));
+        for (int run = 0; run < 10; run++) {
+            StringWriter out = new StringWriter();
+            try {
+                callTemplate(exec, out, 4, 10, null);
+                throw new IllegalStateException("no error reported");
+            } catch (SaxonApiException e) {
+                check(e.getErrorCode() != null && e.getErrorCode().getLocalName().equals("BOOM"),
+                      "unexpected error " + e.getErrorCode() + ": " + e.getMessage());
+                check(e.getMessage().contains("b failed at 10"), "unexpected message " + e.getMessage());
+            }
+            check(!out.toString().contains(" p=\"11\""), "output written for items after the failure");
+        }
+    }
+
+}
@@ -355,9 +355,14 @@ public class ConfigurationReader implements ContentHandler, NamespaceResolver {
         applyProperty(props, "expandAttributeDefaults", FeatureKeys.EXPAND_ATTRIBUTE_DEFAULTS);
         applyProperty(props, "generateByteCode", FeatureKeys.GENERATE_BYTE_CODE);
         applyProperty(props, "ignoreSAXSourceParser", FeatureKeys.IGNORE_SAX_SOURCE_PARSER);
+        applyProperty(props, "incrementalTreeIndexing", FeatureKeys.INCREMENTAL_TREE_INDEXING);
         applyProperty(props, "lineNumbering", FeatureKeys.LINE_NUMBERING);
         applyProperty(props, "markDefaultedAttributes", FeatureKeys.MARK_DEFAULTED_ATTRIBUTES);
         applyProperty(props, "maxCompiledClasses", FeatureKeys.MAX_COMPILED_CLASSES);
+        applyProperty(props, "maxParallelism", FeatureKeys.MAX_PARALLELISM);
+        applyProperty(props, "ruleMatchCacheSize", FeatureKeys.RULE_MATCH_CACHE_SIZE);
+        applyProperty(props, "preEvaluateGlobalVariables", FeatureKeys.PRE_EVALUATE_GLOBAL_VARIABLES);
+        applyProperty(props, "parallelMapping", FeatureKeys.PARALLEL_MAPPING);
         applyProperty(props, "monitorHotSpotByteCode", FeatureKeys.MONITOR_HOT_SPOT_BYTE_CODE);
         applyProperty(props, "optimizationLevel", FeatureKeys.OPTIMIZATION_LEVEL);
         applyProperty(props, "parser", FeatureKeys.SOURCE_PARSER_CLASS);
@@ -60,6 +60,8 @@ public class KeyIndex {
     private StringCollator collation;
     private long creatingThread;
     private Status status;
+    private List<KeyDefinition> incrementalDefinitions;
+    private XPathContext[] incrementalContexts;
 
     public KeyIndex(boolean isRangeKey) {
         index = isRangeKey ? new TreeMap<>() : new HashMap<>(100);
@@ -148,8 +150,20 @@ public class KeyIndex {
                                 boolean isFirst) throws XPathException {
         //System.err.println("build index for doc " + doc.getDocumentNumber());
         Pattern match = keydef.getMatch();
+        XPathContextMajor xc = makeKeyContext(keydef, context);
+        match.selectNodes(doc, xc).forEachOrFail(node -> processNode(node, keydef, xc, isFirst));
+
+    }
 
-        //NodeInfo curr;
+    /**
+     * Create the context used for evaluating the match pattern and use expression of a key definition
+     *
+     * @param keydef  the key definition
+     * @param context the XPath dynamic evaluation context
+     * @return a new context
+     */
+
+    private static XPathContextMajor makeKeyContext(KeyDefinition keydef, XPathContext context) {
         XPathContextMajor xc = context.newContext();
         xc.setOrigin(keydef);
         xc.setCurrentComponent(keydef.getDeclaringComponent());
@@ -160,9 +174,69 @@ public class KeyIndex {
         if (map != null) {
             xc.openStackFrame(map);
         }
+        return xc;
+    }
 
-        match.selectNodes(doc, xc).forEachOrFail(node -> processNode(node, keydef, xc, isFirst));
+    /**
+     * Prepare to build the index incrementally, while the document is under construction. The caller
+     * must call {@link #indexNodeIncrementally(NodeInfo)} for each node of the document at a point where
+     * the subtree rooted at that node is complete, and then {@link #endIncrementalBuild()}.
+     *
+     * @param keySet  the set of key definitions with this name
+     * @param context the dynamic context
+     */
+
+    public void startIncrementalBuild(KeyDefinitionSet keySet, XPathContext context) {
+        incrementalDefinitions = keySet.getKeyDefinitions();
+        incrementalContexts = new XPathContext[incrementalDefinitions.size()];
+        for (int k = 0; k < incrementalContexts.length; k++) {
+            incrementalContexts[k] = makeKeyContext(incrementalDefinitions.get(k), context);
+        }
+        this.rules = context.getConfiguration().getConversionRules();
+        this.implicitTimezone = context.getImplicitTimezone();
+        this.collation = incrementalDefinitions.get(0).getCollation();
+    }
 
+    /**
+     * Add entries to the index for a node, if it is matched by any of the key definitions.
+     * Nodes need not be supplied in document order.
+     *
+     * @param node the node to be indexed
+     * @throws XPathException if a dynamic error is encountered
+     */
+
+    public void indexNodeIncrementally(NodeInfo node) throws XPathException {
+        for (int k = 0; k < incrementalContexts.length; k++) {
+            KeyDefinition keydef = incrementalDefinitions.get(k);
+            if (keydef.getMatch().matches(node, incrementalContexts[k])) {
+                processNode(node, keydef, incrementalContexts[k], k == 0);
+            }
+        }
+    }
+
+    /**
+     * Complete the incremental construction of the index. Because nodes may have been supplied
+     * in an order other than document order (for example, an element is indexed after its descendants),
+     * any list of nodes that is out of order is sorted, and any duplicates then removed.
+     */
+
+    public void endIncrementalBuild() {
+        LocalOrderComparer comparer = LocalOrderComparer.getInstance();
+        for (List<NodeInfo> nodes : index.values()) {
+            for (int i = 1; i < nodes.size(); i++) {
+                if (comparer.compare(nodes.get(i - 1), nodes.get(i)) >= 0) {
+                    nodes.sort(comparer::compare);
+                    for (int j = nodes.size() - 1; j > 0; j--) {
+                        if (comparer.compare(nodes.get(j - 1), nodes.get(j)) == 0) {
+                            nodes.remove(j);
+                        }
+                    }
+                    break;
+                }
+            }
+        }
+        incrementalDefinitions = null;
+        incrementalContexts = null;
     }
 
     /**
@@ -479,6 +479,26 @@ public class KeyManager {
         return index;
     }
 
+    /**
+     * Register an index that has been built by some means other than a call on {@link #obtainIndex},
+     * for example while the document was being constructed. If a completed index for this key and
+     * document already exists, it is retained in preference.
+     *
+     * @param keySet  the set of key definitions with this name
+     * @param doc     the document that has been indexed
+     * @param index   the completed index
+     * @param context the dynamic evaluation context
+     */
+
+    public void registerIndex(KeyDefinitionSet keySet, TreeInfo doc, KeyIndex index, XPathContext context) {
+        index.setStatus(BUILT);
+        if (keySet.isReusable()) {
+            putSharedIndex(doc, keySet.getKeySetNumber(), index, context);
+        } else {
+            putLocalIndex(doc, keySet.getKeySetNumber(), index, context);
+        }
+    }
+
     /**
      * Save the index associated with a particular key, a particular item type,
      * and a particular document. This needs to be done in such a way that the index is
@@ -431,6 +431,8 @@ public abstract class Mode extends Actor {
             }
         }
 
+        InvertedTraversal inversion = tracing ? null : getInvertedTraversal();
+
         // Iterate over this sequence
 
         boolean lookahead = (iterator.getProperties() & SequenceIterator.LOOKAHEAD) != 0;
@@ -492,7 +494,9 @@ public abstract class Mode extends Actor {
 
             if (rule == null) {             // Use the default action for the node
                 // No need to open a new stack frame
-                getBuiltInRuleSet().process(item, parameters, tunnelParameters, context, locationId);
+                if (inversion == null || !inversion.process(item, parameters, tunnelParameters, context, locationId)) {
+                    getBuiltInRuleSet().process(item, parameters, tunnelParameters, context, locationId);
+                }
 
             } else {
 
@@ -540,6 +544,18 @@ public abstract class Mode extends Actor {
 
     public abstract int getStackFrameSlotsNeeded();
 
+    /**
+     * Get the inverted traversal to be used for processing unmatched document and element nodes
+     * in a TinyTree, if any
+     *
+     * @return the inverted traversal, or null if nodes are to be processed using the built-in
+     * template rules in the normal way. The default implementation returns null.
+     */
+
+    public InvertedTraversal getInvertedTraversal() {
+        return null;
+    }
+
     /**
      * Return a code string for a built-in rule set. This can be specialised in subclasses for PE/EE
      *
@@ -2881,6 +2881,29 @@ public class PackageLoaderHE implements IPackageLoader {
         });
 
 
+        eMap.put("switch", (loader, element) -> {
+            Expression subject = loader.getFirstChildExpression(element);
+            List<String[]> caseKeys = new ArrayList<>();
+            List<Expression> actions = new ArrayList<>();
+            AxisIterator iter = element.iterateAxis(
+                    AxisInfo.CHILD, new NameTest(Type.ELEMENT, NamespaceConstant.SAXON_XSLT_EXPORT, "case", loader.config.getNamePool()));
+            NodeInfo caseElement;
+            while ((caseElement = iter.next()) != null) {
+                GroundedValue<?> keys = ((Literal) loader.getFirstChildExpression(caseElement)).getValue();
+                String[] strings = new String[keys.getLength()];
+                for (int i = 0; i < strings.length; i++) {
+                    strings[i] = keys.itemAt(i).getStringValue();
+                }
+                caseKeys.add(strings);
+                actions.add(loader.getSecondChildExpression(caseElement));
+            }
+            NodeInfo defaultElement = element.iterateAxis(
+                    AxisInfo.CHILD, new NameTest(Type.ELEMENT, NamespaceConstant.SAXON_XSLT_EXPORT, "default", loader.config.getNamePool())).next();
+            Expression defaultAction = loader.getFirstChildExpression(defaultElement);
+            return new SwitchExpression(subject, caseKeys.toArray(new String[0][]),
+                                        actions.toArray(new Expression[0]), defaultAction);
+        });
+
         eMap.put("tail", (loader, element) -> {
             Expression select = loader.getFirstChildExpression(element);
             int start = loader.getIntegerAttribute(element, "start");
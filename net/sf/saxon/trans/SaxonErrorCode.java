@@ -381,7 +381,7 @@ public class SaxonErrorCode {
     public static final String SXWN9012 = "SXWN9012";
 
     /**
-     * SXWN9013: saxon:threads ignored when not running under Saxon-EE
+     * SXWN9013: saxon:threads or saxon:asynchronous ignored because multithreading is not available
      */
 
     public static final String SXWN9013 = "SXWN9013";
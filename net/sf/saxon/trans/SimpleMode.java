@@ -8,13 +8,17 @@
 package net.sf.saxon.trans;
 
 import net.sf.saxon.Configuration;
+import net.sf.saxon.Controller;
 import net.sf.saxon.expr.ComponentBinding;
+import net.sf.saxon.expr.StaticProperty;
 import net.sf.saxon.expr.XPathContext;
 import net.sf.saxon.expr.XPathContextMajor;
 import net.sf.saxon.expr.instruct.SlotManager;
 import net.sf.saxon.expr.instruct.TemplateRule;
+import net.sf.saxon.expr.parser.ExpressionTool;
 import net.sf.saxon.expr.sort.GenericSorter;
 import net.sf.saxon.expr.sort.Sortable;
+import net.sf.saxon.functions.Current;
 import net.sf.saxon.om.*;
 import net.sf.saxon.pattern.*;
 import net.sf.saxon.style.StylesheetModule;
@@ -26,6 +30,7 @@ import net.sf.saxon.type.*;
 import net.sf.saxon.value.AtomicValue;
 import net.sf.saxon.value.Whitespace;
 import net.sf.saxon.z.IntHashMap;
+import net.sf.saxon.z.IntHashSet;
 import net.sf.saxon.z.IntIterator;
 
 import java.util.*;
@@ -60,6 +65,9 @@ public class SimpleMode extends Mode {
     private int mostRecentModuleHash;
     private int stackFrameSlotsNeeded = 0;
     private int highestRank;
+    private InvertedTraversal invertedTraversal;
+    private volatile int ruleVersion = 0;
+    private volatile Boolean ruleMatchCacheable = null;
 
 
     private Map<String, Integer> explicitPropertyPrecedences = new HashMap<>();
@@ -421,6 +429,9 @@ public class SimpleMode extends Mode {
 
 
     private void addRuleToList(Rule newRule, RuleChain list) {
+        list.setAttributeValueIndex(null);
+        ruleVersion++;
+        ruleMatchCacheable = null;
         if (list.head() == null) {
             list.setHead(newRule);
         } else {
@@ -461,9 +472,61 @@ public class SimpleMode extends Mode {
         stackFrameSlotsNeeded = Math.max(stackFrameSlotsNeeded, slots);
     }
 
+    /**
+     * Get a number that changes whenever a rule is added to this mode. This is used to detect
+     * that the rules previously selected for nodes, and held in a {@link RuleMatchCache}, may no
+     * longer be correct.
+     *
+     * @return the version number of the set of rules in this mode
+     */
+
+    public int getRuleVersion() {
+        return ruleVersion;
+    }
+
+    /**
+     * Ask whether the rule selected for a node can be remembered and reused when the same node is
+     * processed again in this mode. This is the case if none of the match patterns depends on anything
+     * other than the node itself and the values of global variables: in particular, no pattern may use
+     * <code>current()</code> or depend on the XSLT context (such as the current group). Positional
+     * predicates in patterns are allowed, since they refer to the position of the node among its
+     * siblings, which does not change.
+     *
+     * @return true if the rule selection depends only on the node being matched
+     */
+
+    public boolean isRuleMatchCacheable() {
+        Boolean cacheable = ruleMatchCacheable;
+        if (cacheable == null) {
+            final boolean[] ok = new boolean[]{true};
+            try {
+                processRules(rule -> {
+                    Pattern pattern = rule.getPattern();
+                    if ((pattern.getDependencies() &
+                            (StaticProperty.DEPENDS_ON_XSLT_CONTEXT | StaticProperty.DEPENDS_ON_LOCAL_VARIABLES)) != 0 ||
+                            ExpressionTool.containsSubexpression(pattern, PatternThatSetsCurrent.class) ||
+                            ExpressionTool.callsFunction(pattern, Current.FN_CURRENT, false)) {
+                        ok[0] = false;
+                    }
+                });
+            } catch (XPathException e) {
+                ok[0] = false;
+            }
+            cacheable = ok[0];
+            ruleMatchCacheable = cacheable;
+        }
+        return cacheable;
+    }
+
     /**
      * Get the rule corresponding to a given item, by finding the best pattern match.
      *
+     * <p>If {@link net.sf.saxon.lib.Feature#RULE_MATCH_CACHE_SIZE} is set, and the rule selection
+     * for this mode depends only on the node being matched, the rule selected for a node is remembered
+     * for the rest of the transformation, and is reused if the same node is processed again in this mode.
+     * In this case a warning about an ambiguous rule match is reported only the first time the node
+     * is processed.</p>
+     *
      * @param item    the item to be matched
      * @param context the XPath dynamic evaluation context
      * @return the best matching rule, if any (otherwise null).
@@ -472,6 +535,36 @@ public class SimpleMode extends Mode {
 
     @Override
     public Rule getRule(Item item, XPathContext context) throws XPathException {
+        Controller controller = context.getController();
+        if (item instanceof NodeInfo && controller instanceof XsltController &&
+                controller.getConfiguration().getRuleMatchCacheSize() > 0 && isRuleMatchCacheable()) {
+            RuleMatchCache cache = ((XsltController) controller).getRuleMatchCache(this);
+            if (cache != null) {
+                NodeInfo node = (NodeInfo) item;
+                int version = ruleVersion;
+                Rule rule = cache.get(node, version);
+                if (rule == null) {
+                    rule = selectRule(item, context);
+                    cache.put(node, rule, version);
+                    return rule;
+                }
+                return rule == RuleMatchCache.NO_MATCH ? null : rule;
+            }
+        }
+        return selectRule(item, context);
+    }
+
+    /**
+     * Find the rule corresponding to a given item by matching the patterns, without using any
+     * rule match cache.
+     *
+     * @param item    the item to be matched
+     * @param context the XPath dynamic evaluation context
+     * @return the best matching rule, if any (otherwise null).
+     * @throws XPathException if an error occurs matching a pattern
+     */
+
+    private Rule selectRule(Item item, XPathContext context) throws XPathException {
 
         // If there are match patterns in the stylesheet that use local variables, we need to allocate
         // a new stack frame for evaluating the match patterns. We base this on the match pattern with
@@ -624,7 +717,10 @@ public class SimpleMode extends Mode {
         // Get the rule search state object - this could be reusable within a rule chain.
         RuleSearchState ruleSearchState = makeRuleSearchState(chain, context);
 
-        Rule head = chain == null ? null : chain.head();
+        Rule[] candidates = getCandidateRules(item, chain);
+        int next = 0;
+        Rule head = candidates == null ? (chain == null ? null : chain.head()) :
+                candidates.length == 0 ? null : candidates[0];
         while (head != null) {
             if (bestRule != null) {
                 int rank = head.compareRank(bestRule);
@@ -666,7 +762,7 @@ public class SimpleMode extends Mode {
                 }
             }
             //ruleSearchState.count();// Keep tab of the number of checks
-            head = head.getNext();
+            head = candidates == null ? head.getNext() : ++next < candidates.length ? candidates[next] : null;
         }
 
         return bestRule;
@@ -820,7 +916,10 @@ public class SimpleMode extends Mode {
 
     protected Rule searchRuleChain(Item item, XPathContext context,
                                    Rule/*@Nullable*/ bestRule, RuleChain chain, RuleSearchState ruleSearchState, RuleFilter filter) throws XPathException {
-        Rule head = chain == null ? null : chain.head();
+        Rule[] candidates = getCandidateRules(item, chain);
+        int next = 0;
+        Rule head = candidates == null ? (chain == null ? null : chain.head()) :
+                candidates.length == 0 ? null : candidates[0];
         while (!(context instanceof XPathContextMajor)) {
             context = context.getCaller();
         }
@@ -855,11 +954,25 @@ public class SimpleMode extends Mode {
                     }
                 }
             }
-            head = head.getNext();
+            head = candidates == null ? head.getNext() : ++next < candidates.length ? candidates[next] : null;
         }
         return bestRule;
     }
 
+    /**
+     * Use the attribute value index of a rule chain, if it has one, to find the rules in the chain
+     * that might match a given item
+     *
+     * @param item  the item being matched
+     * @param chain the chain to be searched (may be null)
+     * @return the rules that might match, in chain order; or null if the whole chain is to be searched
+     */
+
+    private static Rule[] getCandidateRules(Item item, RuleChain chain) {
+        AttributeValueRuleIndex index = chain == null ? null : chain.getAttributeValueIndex();
+        return index == null || !(item instanceof NodeInfo) ? null : index.getCandidateRules((NodeInfo) item);
+    }
+
 
     /**
      * Report an ambiguity, that is, the situation where two rules of the same
@@ -1149,11 +1262,76 @@ public class SimpleMode extends Mode {
     }
 
     /**
-     * Perform optimization on the complete set of rules comprising this Mode. This is a null operation
-     * in Saxon-HE.
+     * Perform optimization on the complete set of rules comprising this Mode. In Saxon-HE, this
+     * indexes the rule chains for elements on the value of an attribute, where many rules in a chain
+     * have a precondition on the same attribute (see {@link AttributeValueRuleIndex}); and it
+     * decides whether unmatched document and element nodes in a TinyTree can be processed using
+     * an {@link InvertedTraversal}. This is possible if the built-in rules are <code>shallow-skip</code>
+     * or <code>text-only-copy</code>, if every rule that might match an element is specific to a
+     * particular element name, and if no template rule depends on the context position or size.
      */
 
     public void optimizeRules() {
+        indexRuleChain(unnamedElementRuleChain);
+        IntIterator chains = namedElementRuleChains.keyIterator();
+        while (chains.hasNext()) {
+            indexRuleChain(namedElementRuleChains.get(chains.next()));
+        }
+        invertedTraversal = null;
+        if (!(builtInRuleSet instanceof ShallowSkipRuleSet || builtInRuleSet instanceof TextOnlyCopyRuleSet) ||
+                mustBeTyped || mustBeUntyped ||
+                !isEmptyChain(genericRuleChain) || !isEmptyChain(unnamedElementRuleChain)) {
+            return;
+        }
+        final boolean[] positional = new boolean[]{false};
+        try {
+            processRules(r -> {
+                RuleTarget target = r.getAction();
+                if (!(target instanceof TemplateRule) || ((TemplateRule) target).getBody() == null ||
+                        (((TemplateRule) target).getBody().getDependencies() &
+                                 (StaticProperty.DEPENDS_ON_POSITION | StaticProperty.DEPENDS_ON_LAST)) != 0) {
+                    positional[0] = true;
+                }
+            });
+        } catch (XPathException e) {
+            return;
+        }
+        if (positional[0]) {
+            return;
+        }
+        IntHashSet elementNames = new IntHashSet();
+        IntIterator ii = namedElementRuleChains.keyIterator();
+        while (ii.hasNext()) {
+            elementNames.add(ii.next());
+        }
+        invertedTraversal = new InvertedTraversal(this, builtInRuleSet, elementNames,
+                !isEmptyChain(unnamedAttributeRuleChain) || namedAttributeRuleChains.size() > 0,
+                !isEmptyChain(textRuleChain),
+                !isEmptyChain(commentRuleChain),
+                !isEmptyChain(processingInstructionRuleChain));
+    }
+
+    private static void indexRuleChain(RuleChain chain) {
+        if (chain != null && chain.head() != null) {
+            chain.setAttributeValueIndex(AttributeValueRuleIndex.makeIndex(chain));
+        }
+    }
+
+    private static boolean isEmptyChain(RuleChain chain) {
+        return chain == null || chain.head() == null;
+    }
+
+    /**
+     * Get the inverted traversal to be used for processing unmatched document and element nodes
+     * in a TinyTree, if any
+     *
+     * @return the inverted traversal, or null if nodes are to be processed using the built-in
+     * template rules in the normal way
+     */
+
+    @Override
+    public InvertedTraversal getInvertedTraversal() {
+        return invertedTraversal;
     }
 
     public int getMaxPrecedence() {
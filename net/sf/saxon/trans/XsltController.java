@@ -22,6 +22,7 @@ import net.sf.saxon.serialize.Emitter;
 import net.sf.saxon.serialize.MessageEmitter;
 import net.sf.saxon.serialize.PrincipalOutputGatekeeper;
 import net.sf.saxon.style.StylesheetPackage;
+import net.sf.saxon.trans.rules.RuleMatchCache;
 import net.sf.saxon.tree.iter.EmptyIterator;
 import net.sf.saxon.tree.iter.ManualIterator;
 import net.sf.saxon.tree.iter.SingletonIterator;
@@ -35,6 +36,7 @@ import javax.xml.transform.Source;
 import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamSource;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Supplier;
 
 /**
@@ -60,6 +62,7 @@ public class XsltController extends Controller {
     private AccumulatorManager accumulatorManager = new AccumulatorManager();
     private PrincipalOutputGatekeeper gatekeeper = null;
     private Destination principalDestination;
+    private volatile Map<SimpleMode, RuleMatchCache> ruleMatchCaches;
 
     public XsltController(Configuration config, PreparedStylesheet pss) {
         super(config, pss);
@@ -131,6 +134,7 @@ public class XsltController extends Controller {
         super.clearPerTransformationData();
         principalResult = null;
         allOutputDestinations = null;
+        ruleMatchCaches = null;
         if (messageCounters != null) {
             messageCounters.clear();
         }
@@ -231,6 +235,43 @@ public class XsltController extends Controller {
         return accumulatorManager;
     }
 
+    /**
+     * Get the cache of template rules selected for nodes in a given mode during this transformation
+     *
+     * @param mode the mode
+     * @return the rule match cache for the mode, or null if rule selection is not to be cached,
+     * because {@link Feature#RULE_MATCH_CACHE_SIZE} is not set
+     */
+
+    public RuleMatchCache getRuleMatchCache(SimpleMode mode) {
+        int size = getConfiguration().getRuleMatchCacheSize();
+        if (size <= 0) {
+            return null;
+        }
+        Map<SimpleMode, RuleMatchCache> caches = ruleMatchCaches;
+        if (caches == null) {
+            synchronized (this) {
+                if (ruleMatchCaches == null) {
+                    ruleMatchCaches = new ConcurrentHashMap<>();
+                }
+                caches = ruleMatchCaches;
+            }
+        }
+        return caches.computeIfAbsent(mode, m -> new RuleMatchCache(size, m.getRuleVersion()));
+    }
+
+    /**
+     * Get the rule match caches that have been used during this transformation, for example
+     * to report the number of cache hits
+     *
+     * @return the rule match caches, indexed by mode; empty if no rule selection has been cached
+     */
+
+    public Map<SimpleMode, RuleMatchCache> getRuleMatchCaches() {
+        Map<SimpleMode, RuleMatchCache> caches = ruleMatchCaches;
+        return caches == null ? Collections.emptyMap() : Collections.unmodifiableMap(caches);
+    }
+
     /**
      * Check that an output destination has not been used before, optionally adding
      * this URI to the set of URIs that have been used.
@@ -657,6 +698,24 @@ public class XsltController extends Controller {
         this.assertionsEnabled = enabled;
     }
 
+    /**
+     * Initialize the controller ready for a new transformation. This method should not normally be called by
+     * users (it is done automatically when a transformation is invoked).
+     * <p>In addition to the actions of the superclass method, this evaluates all global variables if
+     * {@link Feature#PRE_EVALUATE_GLOBAL_VARIABLES} is set.</p>
+     *
+     * @param params the values of stylesheet parameters
+     * @throws XPathException if an error occurs, for example if a required parameter is not supplied.
+     */
+
+    @Override
+    public void initializeController(GlobalParameterSet params) throws XPathException {
+        super.initializeController(params);
+        if (getTraceListener() == null && getConfiguration().getBooleanProperty(Feature.PRE_EVALUATE_GLOBAL_VARIABLES)) {
+            preEvaluateGlobals(newXPathContext());
+        }
+    }
+
     @Override
     public void preEvaluateGlobals(XPathContext context) throws XPathException {
         openMessageEmitter();
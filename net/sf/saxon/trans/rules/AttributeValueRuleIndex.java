@@ -0,0 +1,223 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018 Saxonica Limited.
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.trans.rules;
+
+import net.sf.saxon.expr.*;
+import net.sf.saxon.expr.parser.Token;
+import net.sf.saxon.expr.sort.AtomicComparer;
+import net.sf.saxon.expr.sort.CodepointCollator;
+import net.sf.saxon.om.AxisInfo;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.pattern.AncestorQualifiedPattern;
+import net.sf.saxon.pattern.BasePatternWithPredicate;
+import net.sf.saxon.pattern.NameTest;
+import net.sf.saxon.pattern.Pattern;
+import net.sf.saxon.type.BuiltInAtomicType;
+import net.sf.saxon.type.Type;
+import net.sf.saxon.type.Untyped;
+
+import java.util.*;
+
+/**
+ * An index to the rules in a {@link RuleChain} for elements, based on the value of an attribute.
+ *
+ * <p>Many stylesheets contain large numbers of template rules for the same element name that are
+ * distinguished only by the value of an attribute, for example <code>field[@name='X']</code>. Such a
+ * rule can only match an element if the element has the attribute with the given value; this is a
+ * precondition of the rule. The index identifies the attribute that appears in the largest number of
+ * such preconditions, and for each value of that attribute, holds the list of rules that might match
+ * an element having that value: that is, the rules whose precondition requires that value, together with
+ * the rules that have no precondition on this attribute. Selecting a rule then requires one attribute
+ * lookup and a hash table lookup, followed by a sequential search of a (usually very short) list of rules.</p>
+ *
+ * <p>The lists of rules retain the order of the rule chain, so that the rule search (including the
+ * detection of ambiguities) gives the same result as a search of the whole chain. The index is used only
+ * for untyped elements, since the precondition compares the string value of the attribute, which for a
+ * typed attribute may differ from the value used in the comparison.</p>
+ */
+
+public class AttributeValueRuleIndex {
+
+    /**
+     * The minimum number of rules in a chain that must have a precondition on the same attribute
+     * before the chain is indexed
+     */
+
+    public final static int MIN_INDEXED_RULES = 8;
+
+    private final StructuredQName attributeName;
+    private final Map<String, Rule[]> rulesByValue;
+    private final Rule[] otherRules;
+
+    private AttributeValueRuleIndex(StructuredQName attributeName, Map<String, Rule[]> rulesByValue, Rule[] otherRules) {
+        this.attributeName = attributeName;
+        this.rulesByValue = rulesByValue;
+        this.otherRules = otherRules;
+    }
+
+    /**
+     * Construct an index for a rule chain, if it is worthwhile to do so
+     *
+     * @param chain a chain of rules, all of which match elements only
+     * @return the index, or null if fewer than {@link #MIN_INDEXED_RULES} rules in the chain have
+     * a precondition on the same attribute
+     */
+
+    public static AttributeValueRuleIndex makeIndex(RuleChain chain) {
+        // Find the preconditions of each rule
+        List<Rule> rules = new ArrayList<>();
+        List<Map<StructuredQName, String>> preconditions = new ArrayList<>();
+        Map<StructuredQName, Integer> counts = new HashMap<>();
+        for (Rule r = chain.head(); r != null; r = r.getNext()) {
+            Map<StructuredQName, String> required = new HashMap<>();
+            if (!r.isAlwaysMatches()) {
+                gatherPreconditions(r.getPattern(), required);
+            }
+            for (StructuredQName name : required.keySet()) {
+                counts.merge(name, 1, Integer::sum);
+            }
+            rules.add(r);
+            preconditions.add(required);
+        }
+
+        // Choose the attribute that discriminates the largest number of rules
+        StructuredQName best = null;
+        int bestCount = 0;
+        for (Map.Entry<StructuredQName, Integer> entry : counts.entrySet()) {
+            if (entry.getValue() > bestCount) {
+                best = entry.getKey();
+                bestCount = entry.getValue();
+            }
+        }
+        if (bestCount < MIN_INDEXED_RULES) {
+            return null;
+        }
+
+        // Distribute the rules to the entries for each value, keeping the unconditional rules in every entry
+        Map<String, List<Rule>> lists = new HashMap<>();
+        List<Rule> others = new ArrayList<>();
+        for (int i = 0; i < rules.size(); i++) {
+            String value = preconditions.get(i).get(best);
+            if (value != null) {
+                lists.computeIfAbsent(value, v -> new ArrayList<>(others)).add(rules.get(i));
+            } else {
+                others.add(rules.get(i));
+                for (List<Rule> list : lists.values()) {
+                    list.add(rules.get(i));
+                }
+            }
+        }
+        Map<String, Rule[]> rulesByValue = new HashMap<>(lists.size());
+        for (Map.Entry<String, List<Rule>> entry : lists.entrySet()) {
+            rulesByValue.put(entry.getKey(), entry.getValue().toArray(new Rule[0]));
+        }
+        return new AttributeValueRuleIndex(best, rulesByValue, others.toArray(new Rule[0]));
+    }
+
+    /**
+     * Find the preconditions of a pattern: that is, attribute-equals-literal tests that must be
+     * satisfied by any node that the pattern matches
+     *
+     * @param pattern  the pattern
+     * @param required a map, to which an entry is added from the attribute name to the required
+     *                 value for each precondition found
+     */
+
+    private static void gatherPreconditions(Pattern pattern, Map<StructuredQName, String> required) {
+        if (pattern instanceof BasePatternWithPredicate) {
+            gatherPreconditions(((BasePatternWithPredicate) pattern).getBasePattern(), required);
+            gatherPreconditions(((BasePatternWithPredicate) pattern).getPredicate(), required);
+        } else if (pattern instanceof AncestorQualifiedPattern) {
+            gatherPreconditions(((AncestorQualifiedPattern) pattern).getBasePattern(), required);
+        }
+    }
+
+    private static void gatherPreconditions(Expression predicate, Map<StructuredQName, String> required) {
+        if (predicate instanceof AndExpression) {
+            gatherPreconditions(((AndExpression) predicate).getLhsExpression(), required);
+            gatherPreconditions(((AndExpression) predicate).getRhsExpression(), required);
+        } else if (predicate instanceof ValueComparison || predicate instanceof GeneralComparison) {
+            BinaryExpression comparison = (BinaryExpression) predicate;
+            int operator = comparison.getOperator();
+            AtomicComparer comparer = comparison instanceof ValueComparison ?
+                    ((ValueComparison) comparison).getAtomicComparer() :
+                    ((GeneralComparison) comparison).getAtomicComparer();
+            if ((operator == Token.FEQ || operator == Token.EQUALS) &&
+                    comparer != null && comparer.getCollator() instanceof CodepointCollator) {
+                Expression lhs = comparison.getLhsExpression();
+                Expression rhs = comparison.getRhsExpression();
+                if (lhs instanceof StringLiteral) {
+                    Expression temp = lhs;
+                    lhs = rhs;
+                    rhs = temp;
+                }
+                StructuredQName name = getAttributeName(lhs);
+                if (name != null && rhs instanceof StringLiteral) {
+                    required.putIfAbsent(name, ((StringLiteral) rhs).getStringValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * If an expression selects an attribute of the context node by name (possibly atomizing
+     * it or casting it to a string), get the name of the attribute
+     *
+     * @param exp the expression
+     * @return the name of the attribute, or null if the expression is not of this form
+     */
+
+    private static StructuredQName getAttributeName(Expression exp) {
+        if (exp instanceof CastExpression && ((CastExpression) exp).getTargetType() == BuiltInAtomicType.STRING) {
+            exp = ((CastExpression) exp).getBaseExpression();
+        }
+        if (exp instanceof Atomizer) {
+            exp = ((Atomizer) exp).getBaseExpression();
+        }
+        if (exp instanceof AttributeGetter) {
+            return ((AttributeGetter) exp).getAttributeName().getStructuredQName();
+        } else if (exp instanceof AxisExpression && ((AxisExpression) exp).getAxis() == AxisInfo.ATTRIBUTE &&
+                ((AxisExpression) exp).getNodeTest() instanceof NameTest) {
+            return ((AxisExpression) exp).getNodeTest().getMatchingNodeName();
+        }
+        return null;
+    }
+
+    /**
+     * Get the name of the attribute used as the index key
+     *
+     * @return the attribute name
+     */
+
+    public StructuredQName getAttributeName() {
+        return attributeName;
+    }
+
+    /**
+     * Get the rules that might match a given element
+     *
+     * @param node the element
+     * @return the rules that might match the element, in the order of the rule chain; or null if
+     * the index cannot be used for this element, in which case the whole rule chain must be searched
+     */
+
+    public Rule[] getCandidateRules(NodeInfo node) {
+        if (node.getNodeKind() != Type.ELEMENT || node.getSchemaType() != Untyped.getInstance()) {
+            return null;
+        }
+        String value = node.getAttributeValue(attributeName.getURI(), attributeName.getLocalPart());
+        if (value != null) {
+            Rule[] rules = rulesByValue.get(value);
+            if (rules != null) {
+                return rules;
+            }
+        }
+        return otherRules;
+    }
+}
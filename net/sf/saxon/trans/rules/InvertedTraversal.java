@@ -0,0 +1,196 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018 Saxonica Limited.
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.trans.rules;
+
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.expr.XPathContextMajor;
+import net.sf.saxon.expr.instruct.ParameterSet;
+import net.sf.saxon.expr.instruct.TailCall;
+import net.sf.saxon.expr.parser.Location;
+import net.sf.saxon.om.AxisInfo;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.NamePool;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.trans.Mode;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.iter.SingletonIterator;
+import net.sf.saxon.tree.tiny.TinyNodeImpl;
+import net.sf.saxon.tree.tiny.TinyTree;
+import net.sf.saxon.type.Type;
+import net.sf.saxon.z.IntSet;
+
+/**
+ * An inverted form of the built-in template rules <code>shallow-skip</code> and <code>text-only-copy</code>,
+ * used when they are applied to a document or element node in a {@link TinyTree}.
+ *
+ * <p>The built-in rules process an unmatched node by applying templates to its children (and, for
+ * <code>shallow-skip</code>, its attributes), recursively, so that a mode whose only template rules match
+ * elements with particular names (a typical "process every X anywhere" stylesheet) performs a rule search,
+ * and creates a new context, for every node in the document. The inverted traversal instead makes a single
+ * pass over the subtree in document order, examining the node kind and name code arrays of the TinyTree
+ * directly. Nodes that cannot match any template rule in the mode are given their built-in action in
+ * place (which for a text node means copying it to the result, or doing nothing); a node that might match
+ * a rule is processed by applying templates to that node alone, after which its subtree is skipped, since
+ * the rule (or the built-in rule, if no rule actually matches) determines how the subtree is processed.</p>
+ *
+ * <p>The traversal is used only if the mode contains no rules that might match any element, the node
+ * kind of every rule is known, and no rule depends on the context position or size, which differ
+ * when a node is processed individually. Grafted subtrees, and modes whose current implementation differs
+ * from the mode for which the traversal was constructed (for example because it has been overridden in
+ * another package), are handled by the built-in rules in the normal way.</p>
+ */
+
+public class InvertedTraversal {
+
+    private Mode mode;
+    private boolean textOnlyCopy;
+    private IntSet elementNames;
+    private boolean matchesAttributes;
+    private boolean matchesText;
+    private boolean matchesComments;
+    private boolean matchesProcessingInstructions;
+
+    /**
+     * Create an inverted traversal for a mode
+     *
+     * @param mode                          the mode
+     * @param builtInRuleSet                the built-in rule set of the mode, which must be either
+     *                                      {@link ShallowSkipRuleSet} or {@link TextOnlyCopyRuleSet}
+     * @param elementNames                  the fingerprints of the element names that might be matched by a
+     *                                      template rule in the mode
+     * @param matchesAttributes             true if the mode contains rules that might match attributes
+     *                                      (these are relevant only to the <code>shallow-skip</code> rules)
+     * @param matchesText                   true if the mode contains rules that might match text nodes
+     * @param matchesComments               true if the mode contains rules that might match comments
+     * @param matchesProcessingInstructions true if the mode contains rules that might match processing instructions
+     */
+
+    public InvertedTraversal(Mode mode, BuiltInRuleSet builtInRuleSet, IntSet elementNames,
+                             boolean matchesAttributes, boolean matchesText,
+                             boolean matchesComments, boolean matchesProcessingInstructions) {
+        this.mode = mode;
+        this.textOnlyCopy = builtInRuleSet instanceof TextOnlyCopyRuleSet;
+        this.elementNames = elementNames;
+        this.matchesAttributes = matchesAttributes && !textOnlyCopy;
+        this.matchesText = matchesText;
+        this.matchesComments = matchesComments;
+        this.matchesProcessingInstructions = matchesProcessingInstructions;
+    }
+
+    /**
+     * Perform the built-in template action for an item that matches no template rule, if this can be
+     * done using the inverted traversal
+     *
+     * @param item         the item to be processed
+     * @param parameters   the parameters supplied to apply-templates
+     * @param tunnelParams the tunnel parameters to be passed through
+     * @param context      the dynamic evaluation context
+     * @param locationId   location of the instruction that caused the built-in template to be invoked
+     * @return true if the item has been processed; false if the caller must invoke the built-in rules
+     * in the normal way
+     * @throws XPathException if any dynamic error occurs
+     */
+
+    public boolean process(Item item, ParameterSet parameters, ParameterSet tunnelParams,
+                           XPathContext context, Location locationId) throws XPathException {
+        if (!(item instanceof TinyNodeImpl) || context.getCurrentMode().getActor() != mode) {
+            return false;
+        }
+        TinyNodeImpl start = (TinyNodeImpl) item;
+        if (start.getNodeKind() != Type.DOCUMENT && start.getNodeKind() != Type.ELEMENT) {
+            // attribute nodes are numbered separately, so the node number is not an index into the node arrays
+            return false;
+        }
+        TinyTree tree = start.getTree();
+        int startNr = start.getNodeNumber();
+        byte[] kinds = tree.getNodeKindArray();
+        if (!(kinds[startNr] == Type.DOCUMENT || kinds[startNr] == Type.ELEMENT) || tree.containsGraftedSubtrees()) {
+            return false;
+        }
+        short[] depth = tree.getNodeDepthArray();
+        int[] nameCodes = tree.getNameCodeArray();
+        int n = tree.getNumberOfNodes();
+
+        if (matchesAttributes && kinds[startNr] == Type.ELEMENT) {
+            processAttributes(start, parameters, tunnelParams, context, locationId);
+        }
+        int startDepth = depth[startNr];
+        int i = startNr + 1;
+        while (i < n && depth[i] > startDepth) {
+            byte kind = kinds[i];
+            boolean candidate;
+            switch (kind) {
+                case Type.ELEMENT:
+                    candidate = elementNames.contains(nameCodes[i] & NamePool.FP_MASK);
+                    break;
+                case Type.TEXTUAL_ELEMENT:
+                    // The text node child is not represented in the arrays
+                    candidate = matchesText || elementNames.contains(nameCodes[i] & NamePool.FP_MASK);
+                    break;
+                case Type.TEXT:
+                case Type.WHITESPACE_TEXT:
+                    candidate = matchesText;
+                    break;
+                case Type.COMMENT:
+                    candidate = matchesComments;
+                    break;
+                case Type.PROCESSING_INSTRUCTION:
+                    candidate = matchesProcessingInstructions;
+                    break;
+                default:
+                    // parent pointers are not nodes
+                    i++;
+                    continue;
+            }
+            if (candidate) {
+                applyTemplates(SingletonIterator.makeIterator(tree.getNode(i)), parameters, tunnelParams, context, locationId);
+                int d = depth[i++];
+                while (i < n && depth[i] > d) {
+                    i++;
+                }
+                continue;
+            }
+            switch (kind) {
+                case Type.ELEMENT:
+                    if (matchesAttributes) {
+                        processAttributes(tree.getNode(i), parameters, tunnelParams, context, locationId);
+                    }
+                    break;
+                case Type.TEXTUAL_ELEMENT:
+                case Type.TEXT:
+                case Type.WHITESPACE_TEXT:
+                    if (textOnlyCopy) {
+                        context.getReceiver().characters(tree.getNode(i).getStringValueCS(), locationId, 0);
+                    }
+                    break;
+                default:
+                    // no action
+            }
+            i++;
+        }
+        return true;
+    }
+
+    private void processAttributes(NodeInfo element, ParameterSet parameters, ParameterSet tunnelParams,
+                                   XPathContext context, Location locationId) throws XPathException {
+        applyTemplates(element.iterateAxis(AxisInfo.ATTRIBUTE), parameters, tunnelParams, context, locationId);
+    }
+
+    private void applyTemplates(SequenceIterator<?> nodes, ParameterSet parameters, ParameterSet tunnelParams,
+                                XPathContext context, Location locationId) throws XPathException {
+        XPathContextMajor c2 = context.newContext();
+        c2.setOrigin(mode.getBuiltInRuleSet());
+        c2.trackFocus(nodes);
+        c2.setCurrentComponent(c2.getCurrentMode());
+        TailCall tc = mode.applyTemplates(parameters, tunnelParams, c2, locationId);
+        while (tc != null) {
+            tc = tc.processLeavingTail();
+        }
+    }
+}
@@ -15,6 +15,7 @@ public class RuleChain {
 
     private Rule head;
     public Object optimizationData; // give this a better type
+    private AttributeValueRuleIndex attributeValueIndex;
 
     /**
      * Create an empty rule chain
@@ -49,6 +50,26 @@ public class RuleChain {
 
     public void setHead(Rule head) {
         this.head = head;
+        attributeValueIndex = null;
+    }
+
+    /**
+     * Get the index to the rules in this chain based on an attribute value, if there is one
+     * @return the index, or null if the chain has not been indexed
+     */
+
+    public AttributeValueRuleIndex getAttributeValueIndex() {
+        return attributeValueIndex;
+    }
+
+    /**
+     * Set an index to the rules in this chain based on an attribute value. The index must be
+     * discarded (by setting it to null) if the chain is subsequently modified
+     * @param index the index, or null if the chain is not indexed
+     */
+
+    public void setAttributeValueIndex(AttributeValueRuleIndex index) {
+        this.attributeValueIndex = index;
     }
 
     /**
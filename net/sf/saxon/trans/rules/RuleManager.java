@@ -335,7 +335,6 @@ public final class RuleManager {
     /**
      * Optimization of template rules
      * Only invoked when rule optimization has been turned on.
-     * In this case we know the modes are instances of at least ModeEE
      */
     public void optimizeRules() {
         unnamedMode.optimizeRules();
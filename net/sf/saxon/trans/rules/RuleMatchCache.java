@@ -0,0 +1,137 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018 Saxonica Limited.
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.trans.rules;
+
+import net.sf.saxon.lib.Feature;
+import net.sf.saxon.om.NodeInfo;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of the template rules selected for nodes in one mode during one transformation. The cache
+ * is used when {@link Feature#RULE_MATCH_CACHE_SIZE} is set, and only for modes whose match patterns
+ * depend on nothing other than the node being matched (and the values of global variables, which are fixed
+ * for the duration of a transformation). It allows a node that is processed repeatedly in the same mode
+ * to be dispatched to the right template rule without matching the patterns again.
+ *
+ * <p>The cache holds at most a given number of entries; when it is full, the least recently used entry
+ * is discarded. Nodes are identified using {@link NodeInfo#equals}, which compares node identity.
+ * The cache is discarded at the start of each transformation, so a change to the global parameters
+ * cannot cause a stale rule to be selected; it is also cleared if rules are added to the mode.</p>
+ *
+ * <p>The methods are synchronized, because a transformation may process nodes in several threads.</p>
+ */
+
+public class RuleMatchCache {
+
+    /**
+     * A value returned by {@link #get} to indicate that it is known that no template rule matches the node
+     */
+
+    public final static Rule NO_MATCH = new Rule();
+
+    private final int maxSize;
+    private final LinkedHashMap<NodeInfo, Rule> rules;
+    private int version;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Create a rule match cache
+     *
+     * @param maxSize the maximum number of nodes for which the selected rule is remembered
+     * @param version the version of the rules in the mode, as returned by
+     *                {@link net.sf.saxon.trans.SimpleMode#getRuleVersion()}
+     */
+
+    public RuleMatchCache(int maxSize, int version) {
+        this.maxSize = maxSize;
+        this.version = version;
+        this.rules = new LinkedHashMap<NodeInfo, Rule>(Math.min(maxSize, 1024), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<NodeInfo, Rule> eldest) {
+                return size() > RuleMatchCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Get the rule previously selected for a node
+     *
+     * @param node    the node
+     * @param version the current version of the rules in the mode. If this differs from the version
+     *                for which the cache was populated, the cache is cleared
+     * @return the rule selected for the node; or {@link #NO_MATCH} if it is known that no rule matches
+     * the node; or null if the node is not in the cache
+     */
+
+    public synchronized Rule get(NodeInfo node, int version) {
+        if (version != this.version) {
+            rules.clear();
+            this.version = version;
+        }
+        Rule rule = rules.get(node);
+        if (rule == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return rule;
+    }
+
+    /**
+     * Record the rule selected for a node
+     *
+     * @param node    the node
+     * @param rule    the rule selected for the node, or null if no rule matches the node
+     * @param version the version of the rules in the mode that were used to select the rule
+     */
+
+    public synchronized void put(NodeInfo node, Rule rule, int version) {
+        if (version == this.version) {
+            rules.put(node, rule == null ? NO_MATCH : rule);
+        }
+    }
+
+    /**
+     * Get the number of nodes for which a rule is currently remembered
+     *
+     * @return the number of entries in the cache
+     */
+
+    public synchronized int size() {
+        return rules.size();
+    }
+
+    /**
+     * Get the number of lookups that found the node in the cache
+     *
+     * @return the number of cache hits
+     */
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the number of lookups that did not find the node in the cache, and therefore required
+     * the patterns to be matched
+     *
+     * @return the number of cache misses
+     */
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RuleMatchCache(size=" + rules.size() + ", hits=" + hits + ", misses=" + misses + ")";
+    }
+}
@@ -32,6 +32,7 @@ public abstract class TextLinesIterator implements SequenceIterator<StringValue>
     int position = 0;
     protected Location location;
     protected URI uri;
+    private boolean[] validLatin;
 
     protected TextLinesIterator() {
 
@@ -111,13 +112,16 @@ public abstract class TextLinesIterator implements SequenceIterator<StringValue>
 
 
     private void checkLine(IntPredicate checker, /*@NotNull*/ String buffer) throws XPathException {
+        if (validLatin == null) {
+            validLatin = UnparsedTextFunction.makeLatinValidityTable(checker);
+        }
         for (int c = 0; c < buffer.length(); ) {
             int ch32 = buffer.charAt(c++);
             if (UTF16CharacterSet.isHighSurrogate(ch32)) {
                 char low = buffer.charAt(c++);
                 ch32 = UTF16CharacterSet.combinePair((char) ch32, low);
             }
-            if (!checker.test(ch32)) {
+            if (ch32 < 256 ? !validLatin[ch32] : !checker.test(ch32)) {
                 XPathException err = new XPathException("The unparsed-text file contains a character that is illegal in XML (line=" +
                         position + " column=" + (c + 1) + " value=hex " + Integer.toHexString(ch32) + ')');
                 err.setErrorCode("FOUT1190");
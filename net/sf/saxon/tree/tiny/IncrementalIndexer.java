@@ -0,0 +1,500 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018 Saxonica Limited.
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.tree.tiny;
+
+import net.sf.saxon.event.ProxyReceiver;
+import net.sf.saxon.expr.*;
+import net.sf.saxon.expr.accum.Accumulator;
+import net.sf.saxon.expr.accum.AccumulatorData;
+import net.sf.saxon.expr.accum.AccumulatorManager;
+import net.sf.saxon.expr.accum.AccumulatorRegistry;
+import net.sf.saxon.expr.accum.AccumulatorRule;
+import net.sf.saxon.expr.instruct.NumberInstruction;
+import net.sf.saxon.expr.parser.Location;
+import net.sf.saxon.lib.NamespaceConstant;
+import net.sf.saxon.om.AxisInfo;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.NodeName;
+import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.pattern.*;
+import net.sf.saxon.trans.*;
+import net.sf.saxon.tree.iter.AxisIterator;
+import net.sf.saxon.type.SchemaType;
+import net.sf.saxon.type.Type;
+import net.sf.saxon.type.UType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * A filter inserted in front of a {@link TinyBuilder} that computes key indexes and accumulator values for
+ * the tree while it is being built, so that a temporary tree can be indexed in the same pass that constructs it,
+ * rather than by a separate traversal when a key or accumulator is first used.
+ *
+ * <p>A node is presented to the key definitions as soon as the subtree rooted at that node is complete (for an
+ * element, on the endElement event; for an attribute, on the startContent event of its parent). The pre-descent
+ * rules of an accumulator are applied to an element when its attributes are known, and the post-descent rules
+ * when its subtree is complete. Only those keys and accumulators that are known (by a conservative static
+ * analysis, see {@link Plan}) not to depend on parts of the tree that have not yet been built are handled in
+ * this way.</p>
+ *
+ * <p>If a dynamic error occurs while evaluating a key or accumulator, the incremental data for that key or
+ * accumulator is discarded, so that it will be computed in the usual way if it is ever used, and the error
+ * reported at that point.</p>
+ */
+
+public class IncrementalIndexer extends ProxyReceiver {
+
+    private TinyBuilder builder;
+    private Plan plan;
+    private XPathContext context;
+    private TinyTree tree;
+    private KeyIndex[] keyIndexes;
+    private AccumulatorData[] accumulatorData;
+    private int level = 0;
+    private int documentNr = -1;
+    private int elementNr = -1;
+    private int pendingTextNr = -1;
+
+    /**
+     * Create an incremental indexer
+     *
+     * @param builder the builder of the tree to be indexed; this must be the next receiver in the pipeline
+     * @param plan    the keys and accumulators to be computed
+     * @param context the dynamic context of the instruction that constructs the tree
+     */
+
+    public IncrementalIndexer(TinyBuilder builder, Plan plan, XPathContext context) {
+        super(builder);
+        this.builder = builder;
+        this.plan = plan;
+        this.context = context;
+    }
+
+    public void startDocument(int properties) throws XPathException {
+        nextReceiver.startDocument(properties);
+        if (level++ == 0) {
+            tree = builder.getTree();
+            documentNr = tree.numberOfNodes - 1;
+            NodeInfo doc = tree.getNode(documentNr);
+            keyIndexes = new KeyIndex[plan.keys.size()];
+            for (int i = 0; i < keyIndexes.length; i++) {
+                KeyDefinitionSet keySet = plan.keys.get(i);
+                keyIndexes[i] = new KeyIndex(keySet.isRangeKey());
+                keyIndexes[i].startIncrementalBuild(keySet, context);
+            }
+            accumulatorData = new AccumulatorData[plan.accumulators.size()];
+            for (int i = 0; i < accumulatorData.length; i++) {
+                Accumulator acc = plan.accumulators.get(i);
+                accumulatorData[i] = new AccumulatorData(acc);
+                XPathContextMajor c2 = context.newCleanContext();
+                c2.setCurrentComponent(acc.getDeclaringComponent());
+                try {
+                    accumulatorData[i].startIncrementalBuild(doc, c2);
+                    accumulatorData[i].visitIncrementally(doc, false);
+                } catch (XPathException e) {
+                    accumulatorData[i] = null;
+                }
+            }
+        }
+    }
+
+    public void startElement(NodeName elemName, SchemaType type, Location location, int properties) throws XPathException {
+        flushText();
+        nextReceiver.startElement(elemName, type, location, properties);
+        elementNr = tree.numberOfNodes - 1;
+    }
+
+    public void startContent() throws XPathException {
+        nextReceiver.startContent();
+        NodeInfo element = tree.getNode(elementNr);
+        visitAccumulators(element, false);
+        if (plan.indexAttributes) {
+            AxisIterator atts = element.iterateAxis(AxisInfo.ATTRIBUTE);
+            NodeInfo att;
+            while ((att = atts.next()) != null) {
+                indexNode(att);
+            }
+        }
+    }
+
+    public void endElement() throws XPathException {
+        int textNr = pendingTextNr;
+        pendingTextNr = -1;
+        nextReceiver.endElement();
+        // Ensure that navigation within the completed subtree does not stray beyond the nodes built so far
+        tree.addNode(Type.STOPPER, 0, 0, 0, -1);
+        tree.numberOfNodes--;
+        TinyNodeImpl element = builder.getLastCompletedElement();
+        if (textNr >= 0) {
+            // The builder may have merged the text node into its parent
+            visitLeaf(element instanceof TinyTextualElement
+                              ? ((TinyTextualElement) element).getTextNode()
+                              : tree.getNode(textNr));
+        }
+        visitAccumulators(element, true);
+        indexNode(element);
+    }
+
+    public void characters(CharSequence chars, Location locationId, int properties) throws XPathException {
+        int count = tree.numberOfNodes;
+        nextReceiver.characters(chars, locationId, properties);
+        if (tree.numberOfNodes > count) {
+            flushText();
+            pendingTextNr = tree.numberOfNodes - 1;
+        }
+    }
+
+    public void processingInstruction(String target, CharSequence data, Location locationId, int properties) throws XPathException {
+        flushText();
+        int count = tree.numberOfNodes;
+        nextReceiver.processingInstruction(target, data, locationId, properties);
+        if (tree.numberOfNodes > count) {
+            visitLeaf(tree.getNode(tree.numberOfNodes - 1));
+        }
+    }
+
+    public void comment(CharSequence chars, Location locationId, int properties) throws XPathException {
+        flushText();
+        int count = tree.numberOfNodes;
+        nextReceiver.comment(chars, locationId, properties);
+        if (tree.numberOfNodes > count) {
+            visitLeaf(tree.getNode(tree.numberOfNodes - 1));
+        }
+    }
+
+    public void endDocument() throws XPathException {
+        if (--level == 0) {
+            flushText();
+            nextReceiver.endDocument();
+            NodeInfo doc = tree.getNode(documentNr);
+            visitAccumulators(doc, true);
+            indexNode(doc);
+            register(doc);
+        } else {
+            nextReceiver.endDocument();
+        }
+    }
+
+    /**
+     * Process a text node whose content is now known to be complete
+     */
+
+    private void flushText() throws XPathException {
+        if (pendingTextNr >= 0) {
+            int textNr = pendingTextNr;
+            pendingTextNr = -1;
+            visitLeaf(tree.getNode(textNr));
+        }
+    }
+
+    private void visitLeaf(NodeInfo node) throws XPathException {
+        visitAccumulators(node, false);
+        visitAccumulators(node, true);
+        indexNode(node);
+    }
+
+    private void visitAccumulators(NodeInfo node, boolean isPostDescent) {
+        for (int i = 0; i < accumulatorData.length; i++) {
+            if (accumulatorData[i] != null) {
+                try {
+                    accumulatorData[i].visitIncrementally(node, isPostDescent);
+                } catch (XPathException e) {
+                    accumulatorData[i] = null;
+                }
+            }
+        }
+    }
+
+    private void indexNode(NodeInfo node) {
+        for (int i = 0; i < keyIndexes.length; i++) {
+            if (keyIndexes[i] != null) {
+                try {
+                    keyIndexes[i].indexNodeIncrementally(node);
+                } catch (XPathException e) {
+                    keyIndexes[i] = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * On completion of the tree, register the key indexes and accumulator data that were
+     * built successfully
+     *
+     * @param doc the root of the completed tree
+     */
+
+    private void register(NodeInfo doc) {
+        KeyManager keyManager = plan.keyManager;
+        for (int i = 0; i < keyIndexes.length; i++) {
+            if (keyIndexes[i] != null) {
+                keyIndexes[i].endIncrementalBuild();
+                keyManager.registerIndex(plan.keys.get(i), tree, keyIndexes[i], context);
+            }
+        }
+        AccumulatorManager accumulatorManager = ((XsltController) context.getController()).getAccumulatorManager();
+        for (AccumulatorData data : accumulatorData) {
+            if (data != null) {
+                data.endIncrementalBuild(doc);
+                accumulatorManager.addAccumulatorData(tree, data.getAccumulator(), data);
+            }
+        }
+    }
+
+    /**
+     * The set of keys and accumulators in a package that can safely be computed while a tree
+     * is under construction.
+     *
+     * <p>A pattern or expression is accepted only if every node it can reach is complete at the point
+     * where it is evaluated. Navigation downwards (and evaluation of the context item) is allowed only where
+     * the context node's subtree is known to be complete; navigation upwards is allowed only to
+     * select a focus for further navigation, for example <code>../@id</code>; and anything whose behaviour
+     * cannot be determined statically, such as a call on a stylesheet function or on <code>key()</code>,
+     * causes the key or accumulator to be excluded. Axes that rely on indexes maintained lazily by the
+     * TinyTree (the preceding and preceding-sibling axes) are also excluded.</p>
+     */
+
+    public static class Plan {
+
+        private KeyManager keyManager;
+        private List<KeyDefinitionSet> keys = new ArrayList<>();
+        private List<Accumulator> accumulators = new ArrayList<>();
+        private boolean indexAttributes;
+
+        private Plan() {
+        }
+
+        /**
+         * Determine which keys and accumulators declared in a package can be computed incrementally
+         *
+         * @param pack the package
+         * @return the plan, or null if there are no such keys or accumulators
+         */
+
+        public static Plan make(PackageData pack) {
+            Plan plan = new Plan();
+            plan.keyManager = pack.getKeyManager();
+            if (plan.keyManager != null) {
+                for (KeyDefinitionSet keySet : plan.keyManager.getAllKeyDefinitionSets()) {
+                    if (isEligibleKey(keySet)) {
+                        plan.keys.add(keySet);
+                        for (KeyDefinition keydef : keySet.getKeyDefinitions()) {
+                            plan.indexAttributes |= keydef.getMatch().getUType().overlaps(UType.ATTRIBUTE);
+                        }
+                    }
+                }
+            }
+            AccumulatorRegistry registry = pack.getAccumulatorRegistry();
+            if (registry != null) {
+                for (Accumulator acc : registry.getAllAccumulators()) {
+                    if (isEligibleAccumulator(acc)) {
+                        plan.accumulators.add(acc);
+                    }
+                }
+            }
+            return plan.keys.isEmpty() && plan.accumulators.isEmpty() ? null : plan;
+        }
+
+        private static boolean isEligibleKey(KeyDefinitionSet keySet) {
+            if (NamespaceConstant.SCHEMA.equals(keySet.getKeyName().getURI())) {
+                // the internal key used to support idref()
+                return false;
+            }
+            for (KeyDefinition keydef : keySet.getKeyDefinitions()) {
+                Pattern match = keydef.getMatch();
+                if (match.getUType().overlaps(UType.NAMESPACE) ||
+                        !isSafePattern(match, true) || !isSafe(keydef.getUse(), true)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean isEligibleAccumulator(Accumulator acc) {
+            // The accumulator value must not hold nodes, since these might be incomplete
+            Expression init = acc.getInitialValueExpression();
+            if (!init.getItemType().isPlainType() || !isSafe(init, false)) {
+                return false;
+            }
+            return areSafeRules(acc.getPreDescentRules(), false) && areSafeRules(acc.getPostDescentRules(), true);
+        }
+
+        private static boolean areSafeRules(SimpleMode rules, boolean complete) {
+            boolean[] safe = new boolean[]{true};
+            try {
+                rules.processRules(r -> {
+                    Expression value = ((AccumulatorRule) r.getAction()).getNewValueExpression();
+                    safe[0] &= value.getItemType().isPlainType() &&
+                            isSafePattern(r.getPattern(), complete) && isSafe(value, complete);
+                });
+            } catch (XPathException e) {
+                return false;
+            }
+            return safe[0];
+        }
+
+        private final static HashSet<String> unsafeFunctions = new HashSet<>(Arrays.asList(
+                "accumulator-after", "accumulator-before", "element-with-id", "function-lookup", "id", "idref",
+                "key", "last", "load-xquery-module", "path", "position", "root", "transform"));
+
+        private final static HashSet<String> nameFunctions = new HashSet<>(Arrays.asList(
+                "base-uri", "generate-id", "lang", "local-name", "name", "namespace-uri", "node-name"));
+
+        /**
+         * Ask whether a pattern can safely be matched against a node
+         *
+         * @param pattern  the pattern
+         * @param complete true if the subtree rooted at the node will be complete when the pattern is matched
+         * @return true if the pattern is known to be safe
+         */
+
+        private static boolean isSafePattern(Pattern pattern, boolean complete) {
+            if (pattern instanceof NodeTestPattern || pattern instanceof UniversalPattern) {
+                return true;
+            } else if (pattern instanceof BasePatternWithPredicate) {
+                return isSafePattern(((BasePatternWithPredicate) pattern).getBasePattern(), complete) &&
+                        isSafe(((BasePatternWithPredicate) pattern).getPredicate(), complete);
+            } else if (pattern instanceof AncestorQualifiedPattern) {
+                return isSafePattern(((AncestorQualifiedPattern) pattern).getBasePattern(), complete) &&
+                        isSafePattern(((AncestorQualifiedPattern) pattern).getUpperPattern(), false);
+            } else if (pattern instanceof VennPattern) {
+                return isSafePattern(((VennPattern) pattern).getLHS(), complete) &&
+                        isSafePattern(((VennPattern) pattern).getRHS(), complete);
+            } else {
+                return false;
+            }
+        }
+
+        /**
+         * Ask whether an expression can safely be evaluated
+         *
+         * @param exp      the expression
+         * @param complete true if the subtree rooted at the context node will be complete when the
+         *                 expression is evaluated
+         * @return true if the expression is known to be safe
+         */
+
+        private static boolean isSafe(Expression exp, boolean complete) {
+            if (exp instanceof AxisExpression) {
+                switch (((AxisExpression) exp).getAxis()) {
+                    case AxisInfo.ATTRIBUTE:
+                    case AxisInfo.NAMESPACE:
+                        return true;
+                    case AxisInfo.SELF:
+                    case AxisInfo.CHILD:
+                    case AxisInfo.DESCENDANT:
+                    case AxisInfo.DESCENDANT_OR_SELF:
+                        return complete;
+                    default:
+                        return false;
+                }
+            } else if (exp instanceof ContextItemExpression) {
+                return complete;
+            } else if (exp instanceof RootExpression || exp instanceof NumberInstruction) {
+                return false;
+            } else if (exp instanceof FilterExpression) {
+                Expression base = ((FilterExpression) exp).getBase();
+                return isSafe(base, complete) &&
+                        isSafe(((FilterExpression) exp).getFilter(), complete && isDownward(base));
+            } else if (exp instanceof SlashExpression || exp instanceof net.sf.saxon.expr.instruct.ForEach) {
+                Expression select = ((ContextSwitchingExpression) exp).getSelectExpression();
+                return isSafeFocus(select, complete) &&
+                        isSafe(((ContextSwitchingExpression) exp).getActionExpression(), complete && isDownward(select));
+            } else if (exp instanceof ComponentInvocation && !(exp instanceof GlobalVariableReference)) {
+                return false;
+            } else if (exp instanceof FunctionCall && !(exp instanceof SystemFunctionCall)) {
+                return false;
+            } else if (exp instanceof SystemFunctionCall) {
+                StructuredQName name = ((SystemFunctionCall) exp).getTargetFunction().getFunctionName();
+                if (NamespaceConstant.FN.equals(name.getURI())) {
+                    if (unsafeFunctions.contains(name.getLocalPart())) {
+                        return false;
+                    } else if (nameFunctions.contains(name.getLocalPart())) {
+                        for (Operand o : exp.operands()) {
+                            if (!isSafeFocus(o.getChildExpression(), complete)) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                }
+            }
+            for (Operand o : exp.operands()) {
+                if (!isSafe(o.getChildExpression(), complete && o.hasSameFocus())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Ask whether an expression can safely be evaluated to select nodes that are used only as the
+         * focus for further evaluation (or whose names, attributes and identity are used), and not
+         * atomized or navigated downwards. Such nodes may be incomplete.
+         */
+
+        private static boolean isSafeFocus(Expression exp, boolean complete) {
+            if (exp instanceof AxisExpression) {
+                switch (((AxisExpression) exp).getAxis()) {
+                    case AxisInfo.PARENT:
+                    case AxisInfo.ANCESTOR:
+                    case AxisInfo.ANCESTOR_OR_SELF:
+                        return true;
+                    default:
+                        return isSafe(exp, complete);
+                }
+            } else if (exp instanceof ContextItemExpression) {
+                return true;
+            } else if (exp instanceof FilterExpression) {
+                Expression base = ((FilterExpression) exp).getBase();
+                return isSafeFocus(base, complete) &&
+                        isSafe(((FilterExpression) exp).getFilter(), complete && isDownward(base));
+            } else if (exp instanceof SlashExpression) {
+                Expression select = ((SlashExpression) exp).getSelectExpression();
+                return isSafeFocus(select, complete) &&
+                        isSafeFocus(((SlashExpression) exp).getActionExpression(), complete && isDownward(select));
+            } else {
+                return isSafe(exp, complete);
+            }
+        }
+
+        /**
+         * Ask whether an expression selects only atomic values, or nodes within the subtree rooted
+         * at the context node
+         */
+
+        private static boolean isDownward(Expression exp) {
+            if (exp instanceof AxisExpression) {
+                switch (((AxisExpression) exp).getAxis()) {
+                    case AxisInfo.ATTRIBUTE:
+                    case AxisInfo.NAMESPACE:
+                    case AxisInfo.SELF:
+                    case AxisInfo.CHILD:
+                    case AxisInfo.DESCENDANT:
+                    case AxisInfo.DESCENDANT_OR_SELF:
+                        return true;
+                    default:
+                        return false;
+                }
+            } else if (exp instanceof ContextItemExpression) {
+                return true;
+            } else if (exp instanceof FilterExpression) {
+                return isDownward(((FilterExpression) exp).getBase());
+            } else if (exp instanceof SlashExpression) {
+                return isDownward(((SlashExpression) exp).getSelectExpression()) &&
+                        isDownward(((SlashExpression) exp).getActionExpression());
+            } else {
+                return exp.getItemType().isPlainType();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018 Saxonica Limited.
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.value;
+
+import net.sf.saxon.om.GroundedValue;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.trans.XPathException;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The value of an indexed variable: that is, a variable whose value is searched by one or more
+ * filter expressions of the form <code>$var[key = value]</code>, typically within a loop. The value
+ * holds the items of the sequence in the same way as any other {@link SequenceExtent}; in addition
+ * it holds any indexes that have been built over these items. Indexes are built on demand, when
+ * a filter expression first needs them, and are then retained for as long as the value itself.
+ *
+ * <p>Each index is identified by an owner object (typically the filter expression that uses the index);
+ * the value itself places no interpretation on the contents of an index.</p>
+ */
+
+public class IndexedValue<T extends Item<?>> extends SequenceExtent<T> {
+
+    private Map<Object, Object> indexes = new IdentityHashMap<>(4);
+
+    /**
+     * Construct an indexed value containing all the items delivered by a SequenceIterator
+     *
+     * @param iter the supplied sequence of items, which will be consumed
+     * @throws XPathException if reading the items raises an error
+     */
+
+    public IndexedValue(SequenceIterator<T> iter) throws XPathException {
+        super(iter);
+    }
+
+    /**
+     * Get an index over this value, building it if this has not already been done. The call is
+     * synchronized, so that the index is built only once even when the value is shared between threads
+     *
+     * @param owner   the object that identifies the required index
+     * @param builder the function used to build the index if it does not already exist
+     * @return the index (which may be null, if the builder returns null)
+     * @throws XPathException if building the index fails
+     */
+
+    public synchronized <I> I obtainIndex(Object owner, IndexBuilder<T, I> builder) throws XPathException {
+        if (indexes.containsKey(owner)) {
+            //noinspection unchecked
+            return (I) indexes.get(owner);
+        }
+        I index = builder.build(this);
+        indexes.put(owner, index);
+        return index;
+    }
+
+    /**
+     * Simplify the value. An indexed value is returned unchanged, so that its indexes are not lost
+     *
+     * @return this value
+     */
+
+    @Override
+    public GroundedValue<T> reduce() {
+        return getLength() == 0 ? EmptySequence.getInstance() : this;
+    }
+
+    /**
+     * A function that builds an index over an indexed value
+     */
+
+    @FunctionalInterface
+    public interface IndexBuilder<T extends Item<?>, I> {
+        /**
+         * Build the index
+         *
+         * @param value the value to be indexed
+         * @return the index
+         * @throws XPathException if a dynamic error occurs
+         */
+        I build(IndexedValue<T> value) throws XPathException;
+    }
+}